@@ -0,0 +1,124 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.benchmark;
+
+import static com.readytalk.revori.util.Util.cols;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.readytalk.revori.Column;
+import com.readytalk.revori.Index;
+import com.readytalk.revori.Revision;
+import com.readytalk.revori.RevisionBuilder;
+import com.readytalk.revori.Revisions;
+import com.readytalk.revori.Table;
+
+/**
+ * Measures how secondary indexes add to the cost of a commit.  The
+ * table has four value columns, and each index covers one of them
+ * (plus the primary key, to keep index keys unique), so every update
+ * touches every index.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(value = 1, jvmArgsAppend = { "-Xms2g", "-Xmx2g" })
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class CommitBenchmark {
+  private static final int ValueColumnCount = 4;
+
+  @Param({ "0", "1", "2", "4" })
+  public int indexes;
+
+  @Param({ "10000" })
+  public int rows;
+
+  @Param({ "1", "100" })
+  public int batch;
+
+  private final Column<Integer> key = new Column<Integer>
+    (Integer.class, "key");
+  private final Table table = new Table(cols(key), "benchmark");
+  private final Column<Integer>[] values = new Column[ValueColumnCount];
+  private Comparable[] present;
+  private Comparable[] absent;
+  private Revision base;
+  private int next;
+
+  @Setup
+  public void setup() {
+    for (int i = 0; i < ValueColumnCount; ++i) {
+      values[i] = new Column<Integer>(Integer.class, "value" + i);
+    }
+
+    present = Keys.shuffled("Integer", rows, 0);
+    absent = Keys.shuffled("Integer", rows, 1);
+
+    RevisionBuilder builder = Revisions.Empty.builder();
+    for (int i = 0; i < indexes; ++i) {
+      builder.add(new Index(table, cols(values[i], key)));
+    }
+
+    for (int i = 0; i < rows; ++i) {
+      set(builder, present[i], i);
+    }
+    base = builder.commit();
+  }
+
+  private void set(RevisionBuilder builder, Comparable row, int value) {
+    for (Column<Integer> c: values) {
+      builder.table(table).row(row).update(c, value);
+    }
+  }
+
+  private int next() {
+    int n = next;
+    next = n + 1 == rows ? 0 : n + 1;
+    return n;
+  }
+
+  @Benchmark
+  public Revision insert() {
+    RevisionBuilder builder = base.builder();
+    for (int i = 0; i < batch; ++i) {
+      set(builder, absent[next()], i);
+    }
+    return builder.commit();
+  }
+
+  @Benchmark
+  public Revision update() {
+    RevisionBuilder builder = base.builder();
+    for (int i = 0; i < batch; ++i) {
+      set(builder, present[next()], -i);
+    }
+    return builder.commit();
+  }
+
+  @Benchmark
+  public Revision delete() {
+    RevisionBuilder builder = base.builder();
+    for (int i = 0; i < batch; ++i) {
+      builder.table(table).delete(present[next()]);
+    }
+    return builder.commit();
+  }
+}
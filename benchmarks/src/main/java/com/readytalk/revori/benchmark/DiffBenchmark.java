@@ -0,0 +1,137 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.benchmark;
+
+import static com.readytalk.revori.ExpressionFactory.greaterThanOrEqual;
+import static com.readytalk.revori.ExpressionFactory.parameter;
+import static com.readytalk.revori.ExpressionFactory.reference;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.google.common.collect.Lists;
+import com.readytalk.revori.DiffResult;
+import com.readytalk.revori.Expression;
+import com.readytalk.revori.QueryResult;
+import com.readytalk.revori.QueryTemplate;
+import com.readytalk.revori.Revision;
+import com.readytalk.revori.RevisionBuilder;
+import com.readytalk.revori.Revisions;
+
+/**
+ * Measures diffs between a base revision and a fork which changes a
+ * given number of rows, both as a raw tree diff and as the difference
+ * between a query's results.  The "full" benchmarks diff against the
+ * empty revision, i.e. visit everything, for comparison.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(value = 1, jvmArgsAppend = { "-Xms2g", "-Xmx2g" })
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class DiffBenchmark {
+  @Param({ "1000", "100000" })
+  public int rows;
+
+  @Param({ "1", "100" })
+  public int edits;
+
+  @Param({ "plain", "indexed", "view", "foreignKey" })
+  public String schema;
+
+  private Revision base;
+  private Revision fork;
+  private QueryTemplate query;
+
+  @Setup
+  public void setup() {
+    Workload workload = new Workload(schema);
+    base = workload.populate(rows);
+
+    int stride = Math.max(1, rows / edits);
+    RevisionBuilder builder = base.builder();
+    for (int i = 0; i < edits; ++i) {
+      int row = (i * stride) % rows;
+      workload.edit(builder, row, workload.a, -row);
+    }
+    fork = builder.commit();
+
+    query = new QueryTemplate
+      (Lists.newArrayList
+       ((Expression) reference(workload.reference, workload.key),
+        reference(workload.reference, workload.a)),
+       workload.reference,
+       greaterThanOrEqual(reference(workload.reference, workload.b),
+                          parameter()));
+  }
+
+  private static void consume(DiffResult result, Blackhole blackhole) {
+    while (true) {
+      DiffResult.Type type = result.next();
+      switch (type) {
+      case End:
+        return;
+
+      case Key:
+        blackhole.consume(result.fork());
+        break;
+
+      case Value:
+        blackhole.consume(result.fork());
+        break;
+
+      default:
+        break;
+      }
+    }
+  }
+
+  private static void consume(QueryResult result,
+                              int columns,
+                              Blackhole blackhole)
+  {
+    while (result.nextRow() != QueryResult.Type.End) {
+      for (int i = 0; i < columns; ++i) {
+        blackhole.consume(result.nextItem());
+      }
+    }
+  }
+
+  @Benchmark
+  public void diff(Blackhole blackhole) {
+    consume(base.diff(fork, true), blackhole);
+  }
+
+  @Benchmark
+  public void diffFull(Blackhole blackhole) {
+    consume(Revisions.Empty.diff(fork, true), blackhole);
+  }
+
+  @Benchmark
+  public void queryDiff(Blackhole blackhole) {
+    consume(base.diff(fork, query, 0), 2, blackhole);
+  }
+
+  @Benchmark
+  public void queryDiffFull(Blackhole blackhole) {
+    consume(Revisions.Empty.diff(fork, query, 0), 2, blackhole);
+  }
+}
@@ -0,0 +1,67 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.benchmark;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Generates keys of a given type for benchmarks.  The keys are
+ * shuffled with a fixed seed so that each run sees the same sequence.
+ */
+public class Keys {
+  public static final long Seed = 42;
+
+  private Keys() { }
+
+  /**
+   * Returns the class of keys of the specified type, which may be
+   * "Integer", "Long" or "String".
+   */
+  public static Class<?> type(String keyType) {
+    if ("Integer".equals(keyType)) {
+      return Integer.class;
+    } else if ("Long".equals(keyType)) {
+      return Long.class;
+    } else if ("String".equals(keyType)) {
+      return String.class;
+    } else {
+      throw new IllegalArgumentException("unknown key type: " + keyType);
+    }
+  }
+
+  public static Comparable key(String keyType, int value) {
+    if ("Integer".equals(keyType)) {
+      return value;
+    } else if ("Long".equals(keyType)) {
+      return (long) value;
+    } else if ("String".equals(keyType)) {
+      return String.format("key%010d", value);
+    } else {
+      throw new IllegalArgumentException("unknown key type: " + keyType);
+    }
+  }
+
+  /**
+   * Returns count distinct keys of the specified type in a
+   * reproducible random order.  The keys for parity 0 and parity 1 are
+   * disjoint, so one set may be inserted up front and the other used
+   * to measure inserting keys which aren't yet present.
+   */
+  public static Comparable[] shuffled(String keyType, int count, int parity) {
+    List<Comparable> keys = Lists.newArrayListWithCapacity(count);
+    for (int i = 0; i < count; ++i) {
+      keys.add(key(keyType, (i * 2) + parity));
+    }
+    Collections.shuffle(keys, new Random(Seed + parity));
+    return keys.toArray(new Comparable[count]);
+  }
+}
@@ -0,0 +1,110 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.benchmark;
+
+/**
+ * A histogram of non-negative values, such as latencies in
+ * nanoseconds, in the style of HdrHistogram: values are counted in
+ * buckets whose width grows with their magnitude, so that any
+ * recorded value is reproduced to within 1/64 of itself regardless of
+ * the range of values, using a fixed amount of memory and constant
+ * time per value.<p>
+ *
+ * Values below 128 get a bucket each.  Beyond that, each power of two
+ * is divided into 64 buckets.
+ *
+ * This class is not thread safe; give each thread its own and add
+ * them together at the end.
+ */
+public class LatencyHistogram {
+  private static final int SubBucketBits = 6;
+  private static final int SubBucketCount = 1 << SubBucketBits;
+  private static final int BucketCount
+    = SubBucketCount * (64 - SubBucketBits);
+
+  private final long[] counts = new long[BucketCount];
+  private long count;
+  private long total;
+  private long max;
+
+  public void record(long value) {
+    if (value < 0) {
+      throw new IllegalArgumentException("negative value: " + value);
+    }
+
+    ++ counts[index(value)];
+    ++ count;
+    total += value;
+    if (value > max) {
+      max = value;
+    }
+  }
+
+  public void add(LatencyHistogram other) {
+    for (int i = 0; i < BucketCount; ++i) {
+      counts[i] += other.counts[i];
+    }
+    count += other.count;
+    total += other.total;
+    max = Math.max(max, other.max);
+  }
+
+  public long count() {
+    return count;
+  }
+
+  public long max() {
+    return max;
+  }
+
+  public double mean() {
+    return count == 0 ? 0 : (double) total / count;
+  }
+
+  /**
+   * Returns the greatest value equivalent (i.e. sharing a bucket with)
+   * the value at the specified percentile, or the maximum if that is
+   * smaller.
+   */
+  public long percentile(double percentile) {
+    if (count == 0) {
+      return 0;
+    }
+
+    long target = Math.max(1, (long) Math.ceil((percentile / 100) * count));
+    long seen = 0;
+    for (int i = 0; i < BucketCount; ++i) {
+      seen += counts[i];
+      if (seen >= target) {
+        return Math.min(max, highestEquivalent(i));
+      }
+    }
+    return max;
+  }
+
+  private static int index(long value) {
+    if (value < SubBucketCount * 2) {
+      return (int) value;
+    }
+
+    // shift such that the top bits fall in [SubBucketCount,
+    // SubBucketCount * 2)
+    int shift = (63 - Long.numberOfLeadingZeros(value)) - SubBucketBits;
+    return (shift * SubBucketCount) + (int) (value >>> shift);
+  }
+
+  private static long highestEquivalent(int index) {
+    if (index < SubBucketCount * 2) {
+      return index;
+    }
+
+    int shift = (index / SubBucketCount) - 1;
+    long top = index - (shift * SubBucketCount);
+    return ((top + 1) << shift) - 1;
+  }
+}
@@ -0,0 +1,144 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.readytalk.revori.Column;
+import com.readytalk.revori.ConflictResolver;
+import com.readytalk.revori.ForeignKeyResolvers;
+import com.readytalk.revori.Revision;
+import com.readytalk.revori.RevisionBuilder;
+import com.readytalk.revori.Table;
+
+/**
+ * Measures three-way merges of two forks of a common base revision.
+ * The edits parameter is the number of rows each fork changes, and
+ * the overlap parameter determines how the forks' changes relate:<p>
+ *
+ * <ul><li>"disjoint": the forks change different rows</li>
+ *
+ * <li>"overlapping": the forks change different columns of the same
+ * rows, so each row must be merged column by column</li>
+ *
+ * <li>"conflicting": the forks change the same column of the same
+ * rows to different values, so the conflict resolver is consulted for
+ * each</li></ul>
+ *
+ * The resolver parameter only matters for conflicting merges.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(value = 1, jvmArgsAppend = { "-Xms2g", "-Xmx2g" })
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class MergeBenchmark {
+  @Param({ "1000", "100000" })
+  public int rows;
+
+  @Param({ "10", "1000" })
+  public int edits;
+
+  @Param({ "disjoint", "overlapping", "conflicting" })
+  public String overlap;
+
+  @Param({ "plain", "indexed", "view", "foreignKey" })
+  public String schema;
+
+  @Param({ "left", "right", "sum" })
+  public String resolver;
+
+  private ConflictResolver conflictResolver;
+  private Revision base;
+  private Revision left;
+  private Revision right;
+
+  @Setup
+  public void setup() {
+    Workload workload = new Workload(schema);
+    conflictResolver = resolver(resolver);
+    base = workload.populate(rows);
+
+    // spread the edits across the table
+    int stride = Math.max(1, rows / (edits * 2));
+
+    RevisionBuilder leftBuilder = base.builder();
+    RevisionBuilder rightBuilder = base.builder();
+    for (int i = 0; i < edits; ++i) {
+      int row = (i * 2 * stride) % rows;
+      workload.edit(leftBuilder, row, workload.a, -row);
+
+      if ("disjoint".equals(overlap)) {
+        workload.edit(rightBuilder, (row + stride) % rows, workload.a, -row);
+      } else if ("overlapping".equals(overlap)) {
+        workload.edit(rightBuilder, row, workload.b, -row);
+      } else if ("conflicting".equals(overlap)) {
+        workload.edit(rightBuilder, row, workload.a, row + 1);
+      } else {
+        throw new IllegalArgumentException("unknown overlap: " + overlap);
+      }
+    }
+    left = leftBuilder.commit();
+    right = rightBuilder.commit();
+  }
+
+  private static ConflictResolver resolver(String name) {
+    if ("left".equals(name)) {
+      return new ConflictResolver() {
+        public Object resolveConflict(Table table, Column column,
+                                      Object[] primaryKeyValues,
+                                      Object baseValue, Object leftValue,
+                                      Object rightValue)
+        {
+          return leftValue;
+        }
+      };
+    } else if ("right".equals(name)) {
+      return new ConflictResolver() {
+        public Object resolveConflict(Table table, Column column,
+                                      Object[] primaryKeyValues,
+                                      Object baseValue, Object leftValue,
+                                      Object rightValue)
+        {
+          return rightValue;
+        }
+      };
+    } else if ("sum".equals(name)) {
+      return new ConflictResolver() {
+        public Object resolveConflict(Table table, Column column,
+                                      Object[] primaryKeyValues,
+                                      Object baseValue, Object leftValue,
+                                      Object rightValue)
+        {
+          return (Integer) leftValue + (Integer) rightValue;
+        }
+      };
+    } else {
+      throw new IllegalArgumentException("unknown resolver: " + name);
+    }
+  }
+
+  @Benchmark
+  public Revision merge() {
+    return base.merge
+      (left, right, conflictResolver, ForeignKeyResolvers.Restrict);
+  }
+}
@@ -0,0 +1,440 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.benchmark;
+
+import static com.readytalk.revori.util.Util.cols;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+
+import com.readytalk.revori.Column;
+import com.readytalk.revori.ForeignKeyResolvers;
+import com.readytalk.revori.Revision;
+import com.readytalk.revori.RevisionBuilder;
+import com.readytalk.revori.Table;
+import com.readytalk.revori.server.EpidemicServer;
+import com.readytalk.revori.server.NetworkServer;
+import com.readytalk.revori.server.NetworkServer.NodeConflictResolver;
+import com.readytalk.revori.server.NetworkServer.NodeID;
+import com.readytalk.revori.server.TreeServer;
+
+/**
+ * Runs a cluster of EpidemicServers or TreeServers over a
+ * SimulatedNetwork under a synthetic write workload, and reports how
+ * long each commit took to reach every node, how many messages and
+ * bytes replication cost per commit, and how much CPU time each node
+ * spent.<p>
+ *
+ * Each commit inserts a row unique to the commit, which is how its
+ * arrival at each node is detected, and optionally overwrites one of
+ * a small set of rows shared by all nodes, so that concurrent commits
+ * conflict.  Commits are spread evenly over the write phase and made
+ * by randomly chosen nodes, after which the simulation continues
+ * until every commit has reached every node or the settle time runs
+ * out.<p>
+ *
+ * Run it with e.g.
+ *
+ * <pre>
+ *   $ ./gradlew benchmarks:simulate -Psimulation="nodes=16 dropRate=0.001"
+ * </pre>
+ *
+ * See Settings for the available options.
+ */
+public class ReplicationSimulation {
+  // the granularity with which convergence of the whole workload is
+  // checked, which bounds the precision of the reported elapsed time
+  // but not of individual latencies
+  private static final long StepMicros = 1000;
+
+  private static final Column<Integer> origin = new Column<Integer>
+    (Integer.class, "origin");
+  private static final Column<Integer> sequence = new Column<Integer>
+    (Integer.class, "sequence");
+  private static final Column<String> payload = new Column<String>
+    (String.class, "payload");
+  private static final Table writes = new Table
+    (cols(origin, sequence), "writes");
+
+  private static final Column<Integer> hotKey = new Column<Integer>
+    (Integer.class, "hotKey");
+  private static final Column<Integer> hotValue = new Column<Integer>
+    (Integer.class, "hotValue");
+  private static final Table hot = new Table(cols(hotKey), "hot");
+
+  // resolve conflicts in favor of the lower-numbered node, as
+  // EpidemicTest does, so that every node reaches the same result
+  private static final NodeConflictResolver ConflictResolver
+    = new NodeConflictResolver() {
+    public Object resolveConflict(NodeID leftNode,
+                                  NodeID rightNode,
+                                  Table table,
+                                  Column column,
+                                  Object[] primaryKeyValues,
+                                  Object baseValue,
+                                  Object leftValue,
+                                  Object rightValue)
+    {
+      if (Integer.parseInt(leftNode.id) <= Integer.parseInt(rightNode.id)) {
+        return leftValue;
+      } else {
+        return rightValue;
+      }
+    }
+  };
+
+  private final Settings settings;
+  private final SimulatedNetwork network;
+  private final NodeID[] ids;
+  private final Random random;
+  private final String payloadValue;
+  // commits[o] lists the times at which node o made its commits
+  private final List<List<Long>> commits = new ArrayList<List<Long>>();
+  // seenCounts[o][s] is the number of nodes which have commit s by
+  // node o, and next[n][o] is the first commit by node o which node n
+  // has not yet been observed to have
+  private final List<List<Integer>> seenCounts = new ArrayList<List<Integer>>();
+  private final int[][] next;
+  private final List<Long> latencies = new ArrayList<Long>();
+  private int commitCount;
+
+  public ReplicationSimulation(Settings settings) {
+    settings.validate();
+
+    this.settings = settings;
+    this.random = new Random(settings.seed);
+    this.network = new SimulatedNetwork
+      (settings.seed, settings.latencyMicros, settings.jitterMicros,
+       settings.bytesPerSecond, settings.dropRate, settings.reconnectMicros);
+
+    char[] chars = new char[settings.payloadBytes];
+    Arrays.fill(chars, 'x');
+    this.payloadValue = new String(chars);
+
+    ids = new NodeID[settings.nodes];
+    next = new int[settings.nodes][settings.nodes];
+    for (int i = 0; i < settings.nodes; ++i) {
+      ids[i] = new NodeID(String.valueOf(i));
+      commits.add(new ArrayList<Long>());
+      seenCounts.add(new ArrayList<Integer>());
+    }
+
+    for (int i = 0; i < settings.nodes; ++i) {
+      // derive instance IDs from the seed so runs are repeatable
+      UUID instance = new UUID(random.nextLong(), random.nextLong());
+      NetworkServer server;
+      if ("epidemic".equals(settings.server)) {
+        server = new EpidemicServer
+          (ConflictResolver, ForeignKeyResolvers.Delete, network, ids[i],
+           instance);
+      } else {
+        server = new TreeServer
+          (ConflictResolver, ForeignKeyResolvers.Delete, network, ids[i],
+           instance);
+      }
+      network.add(ids[i], server);
+    }
+
+    for (int i = 1; i < settings.nodes; ++i) {
+      if ("mesh".equals(settings.topology)) {
+        for (int j = 0; j < i; ++j) {
+          network.link(ids[i], ids[j]);
+        }
+      } else {
+        network.link(ids[i], ids[(i - 1) / 2]);
+      }
+    }
+
+    network.setObserver(new SimulatedNetwork.Observer() {
+        public void delivered(NodeID node) {
+          observe(Integer.parseInt(node.id));
+        }
+      });
+  }
+
+  public Result run() {
+    network.updateViews();
+
+    if (settings.partitionEndMicros > settings.partitionStartMicros) {
+      // split the cluster into halves
+      Set<NodeID> side = new HashSet<NodeID>
+        (Arrays.asList(ids).subList(0, settings.nodes / 2));
+      network.partition
+        (settings.partitionStartMicros, settings.partitionEndMicros, side);
+    }
+
+    int total = (int) ((settings.durationMicros * settings.commitsPerSecond)
+                       / 1000000L);
+    for (int i = 0; i < total; ++i) {
+      final int node = random.nextInt(settings.nodes);
+      network.schedule
+        ((settings.durationMicros * i) / total, new Runnable() {
+            public void run() {
+              commit(node);
+            }
+          });
+    }
+
+    long deadline = settings.durationMicros + settings.settleMicros;
+    while (network.now() < deadline) {
+      boolean pending = network.run
+        (Math.min(deadline, network.now() + StepMicros));
+
+      if (network.now() >= settings.durationMicros
+          && (latencies.size() == commitCount || ! pending))
+      {
+        break;
+      }
+    }
+
+    return new Result(settings, commitCount, latencies, network.stats(),
+                      network.now(), network.nodes());
+  }
+
+  private void commit(final int node) {
+    final int s = commits.get(node).size();
+    commits.get(node).add(network.now());
+    seenCounts.get(node).add(0);
+    ++ commitCount;
+
+    final NetworkServer server = network.server(ids[node]);
+    network.execute(ids[node], new Runnable() {
+        public void run() {
+          Revision base = server.head();
+          RevisionBuilder builder = base.builder();
+          builder.table(writes).row(node, s).update(payload, payloadValue);
+          if (settings.hotRows > 0) {
+            builder.table(hot).row(random.nextInt(settings.hotRows))
+              .update(hotValue, s);
+          }
+          server.merge(base, builder.commit());
+        }
+      });
+
+    observe(node);
+  }
+
+  /**
+   * Records the commits which have newly reached the specified node.
+   * Rows are never deleted, and each node's commits reach others in
+   * the order they were made, so it's enough to check each origin's
+   * commits from the first not yet seen.
+   */
+  private void observe(int node) {
+    Revision head = network.server(ids[node]).head();
+    for (int o = 0; o < settings.nodes; ++o) {
+      List<Long> times = commits.get(o);
+      List<Integer> counts = seenCounts.get(o);
+      while (next[node][o] < times.size()
+             && head.query(payload, writes.primaryKey, o, next[node][o])
+             != null)
+      {
+        int s = next[node][o]++;
+        int count = counts.get(s) + 1;
+        counts.set(s, count);
+        if (count == settings.nodes) {
+          latencies.add(network.now() - times.get(s));
+        }
+      }
+    }
+  }
+
+  public static void main(String[] args) {
+    new ReplicationSimulation(Settings.parse(args)).run().print(System.out);
+  }
+
+  /**
+   * The parameters of a simulation.  Each may be specified on the
+   * command line as name=value, where times are in milliseconds.
+   */
+  public static class Settings {
+    /** "epidemic" or "tree" */
+    public String server = "epidemic";
+    /** "mesh" or "tree"; TreeServers require a tree */
+    public String topology = "mesh";
+    public int nodes = 8;
+    public long seed = 42;
+    /** commits per second of simulated time, across all nodes */
+    public int commitsPerSecond = 200;
+    public long durationMicros = 10 * 1000 * 1000;
+    /** how long to wait for commits to converge after the last */
+    public long settleMicros = 60 * 1000 * 1000;
+    public int payloadBytes = 64;
+    /** the number of rows shared by all nodes, or zero for none */
+    public int hotRows = 16;
+    public long latencyMicros = 5 * 1000;
+    public long jitterMicros = 1000;
+    /** per link direction, or zero for unlimited */
+    public long bytesPerSecond = 100 * 1000 * 1000 / 8;
+    public double dropRate;
+    public long reconnectMicros = 100 * 1000;
+    public long partitionStartMicros;
+    public long partitionEndMicros;
+
+    public void validate() {
+      if (! ("epidemic".equals(server) || "tree".equals(server))) {
+        throw new IllegalArgumentException("unknown server: " + server);
+      }
+      if (! ("mesh".equals(topology) || "tree".equals(topology))) {
+        throw new IllegalArgumentException("unknown topology: " + topology);
+      }
+      if ("tree".equals(server) && ! "tree".equals(topology)) {
+        throw new IllegalArgumentException
+          ("tree servers require a tree topology");
+      }
+      if (nodes < 1 || commitsPerSecond < 0 || payloadBytes < 0
+          || hotRows < 0 || durationMicros < 0 || settleMicros < 0)
+      {
+        throw new IllegalArgumentException("invalid settings");
+      }
+    }
+
+    public static Settings parse(String[] args) {
+      Settings s = new Settings();
+      for (String arg: args) {
+        int equals = arg.indexOf('=');
+        if (equals < 0) {
+          throw new IllegalArgumentException("expected name=value: " + arg);
+        }
+
+        String name = arg.substring(0, equals);
+        String value = arg.substring(equals + 1);
+        if ("server".equals(name)) {
+          s.server = value;
+        } else if ("topology".equals(name)) {
+          s.topology = value;
+        } else if ("nodes".equals(name)) {
+          s.nodes = Integer.parseInt(value);
+        } else if ("seed".equals(name)) {
+          s.seed = Long.parseLong(value);
+        } else if ("commitsPerSecond".equals(name)) {
+          s.commitsPerSecond = Integer.parseInt(value);
+        } else if ("duration".equals(name)) {
+          s.durationMicros = micros(value);
+        } else if ("settle".equals(name)) {
+          s.settleMicros = micros(value);
+        } else if ("payloadBytes".equals(name)) {
+          s.payloadBytes = Integer.parseInt(value);
+        } else if ("hotRows".equals(name)) {
+          s.hotRows = Integer.parseInt(value);
+        } else if ("latency".equals(name)) {
+          s.latencyMicros = micros(value);
+        } else if ("jitter".equals(name)) {
+          s.jitterMicros = micros(value);
+        } else if ("bytesPerSecond".equals(name)) {
+          s.bytesPerSecond = Long.parseLong(value);
+        } else if ("dropRate".equals(name)) {
+          s.dropRate = Double.parseDouble(value);
+        } else if ("reconnect".equals(name)) {
+          s.reconnectMicros = micros(value);
+        } else if ("partition".equals(name)) {
+          // start-end, e.g. 2000-5000
+          int dash = value.indexOf('-');
+          if (dash < 0) {
+            throw new IllegalArgumentException
+              ("expected partition=start-end: " + value);
+          }
+          s.partitionStartMicros = micros(value.substring(0, dash));
+          s.partitionEndMicros = micros(value.substring(dash + 1));
+        } else {
+          throw new IllegalArgumentException("unknown setting: " + name);
+        }
+      }
+      return s;
+    }
+
+    private static long micros(String millis) {
+      return (long) (Double.parseDouble(millis) * 1000);
+    }
+
+    public String toString() {
+      return "server " + server + " topology " + topology + " nodes " + nodes
+        + " seed " + seed + " commitsPerSecond " + commitsPerSecond
+        + " duration " + (durationMicros / 1000) + "ms"
+        + " payloadBytes " + payloadBytes + " hotRows " + hotRows
+        + " latency " + (latencyMicros / 1000.0) + "ms"
+        + " jitter " + (jitterMicros / 1000.0) + "ms"
+        + " bytesPerSecond " + bytesPerSecond + " dropRate " + dropRate
+        + (partitionEndMicros > partitionStartMicros
+           ? " partition " + (partitionStartMicros / 1000) + "-"
+           + (partitionEndMicros / 1000) + "ms" : "");
+    }
+  }
+
+  public static class Result {
+    public final Settings settings;
+    public final int commits;
+    public final int converged;
+    /** convergence latencies in microseconds, in ascending order */
+    public final List<Long> latencies;
+    public final SimulatedNetwork.Stats network;
+    public final long elapsedMicros;
+    public final List<SimulatedNetwork.Node> nodes;
+
+    public Result(Settings settings, int commits, List<Long> latencies,
+                  SimulatedNetwork.Stats network, long elapsedMicros,
+                  Iterable<SimulatedNetwork.Node> nodes)
+    {
+      this.settings = settings;
+      this.commits = commits;
+      this.converged = latencies.size();
+      List<Long> sorted = new ArrayList<Long>(latencies);
+      Collections.sort(sorted);
+      this.latencies = Collections.unmodifiableList(sorted);
+      this.network = network;
+      this.elapsedMicros = elapsedMicros;
+      List<SimulatedNetwork.Node> list = new ArrayList<SimulatedNetwork.Node>();
+      for (SimulatedNetwork.Node n: nodes) {
+        list.add(n);
+      }
+      this.nodes = Collections.unmodifiableList(list);
+    }
+
+    /**
+     * Returns the convergence latency, in microseconds, at the
+     * specified percentile of converged commits.
+     */
+    public long percentile(double p) {
+      if (latencies.isEmpty()) {
+        return 0;
+      }
+      int i = (int) Math.ceil((p / 100) * latencies.size()) - 1;
+      return latencies.get(Math.max(0, Math.min(latencies.size() - 1, i)));
+    }
+
+    public void print(PrintStream out) {
+      out.println(settings);
+      out.println("commits " + commits + " converged " + converged
+                  + " simulated " + (elapsedMicros / 1000) + "ms");
+      out.printf("convergence latency ms: p50 %.3f p90 %.3f p99 %.3f"
+                 + " max %.3f%n",
+                 percentile(50) / 1000.0, percentile(90) / 1000.0,
+                 percentile(99) / 1000.0, percentile(100) / 1000.0);
+      double perCommit = commits == 0 ? 0 : 1.0 / commits;
+      out.printf("messages %d (%.1f per commit) bytes %d (%.1f per commit)"
+                 + " dropped %d lost %d resets %d%n",
+                 network.messages, network.messages * perCommit,
+                 network.bytes, network.bytes * perCommit,
+                 network.dropped, network.lost, network.resets);
+      out.printf("%6s %10s %12s %10s %12s %10s%n", "node", "sent",
+                 "bytes sent", "received", "bytes recvd", "cpu ms");
+      for (SimulatedNetwork.Node n: nodes) {
+        out.printf("%6s %10d %12d %10d %12d %10.1f%n", n.id.id,
+                   n.messagesSent, n.bytesSent, n.messagesReceived,
+                   n.bytesReceived, n.cpuNanos / 1000000.0);
+      }
+    }
+  }
+}
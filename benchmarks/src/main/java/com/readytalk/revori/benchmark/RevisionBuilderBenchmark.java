@@ -0,0 +1,109 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.benchmark;
+
+import static com.readytalk.revori.util.Util.cols;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.readytalk.revori.Column;
+import com.readytalk.revori.Revision;
+import com.readytalk.revori.RevisionBuilder;
+import com.readytalk.revori.Revisions;
+import com.readytalk.revori.Table;
+
+/**
+ * Measures building and committing a revision which inserts, updates
+ * or deletes a batch of rows in a table of a given size.  Each
+ * invocation starts from the same base revision, so the table size is
+ * constant throughout.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(value = 1, jvmArgsAppend = { "-Xms2g", "-Xmx2g" })
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class RevisionBuilderBenchmark {
+  @Param({ "1000", "100000" })
+  public int rows;
+
+  @Param({ "Integer", "Long", "String" })
+  public String keyType;
+
+  @Param({ "1", "100" })
+  public int batch;
+
+  private final Column<Integer> value = new Column<Integer>
+    (Integer.class, "value");
+  private Table table;
+  private Comparable[] present;
+  private Comparable[] absent;
+  private Revision base;
+  private int next;
+
+  @Setup
+  public void setup() {
+    Column<?> key = new Column(Keys.type(keyType), "key");
+    table = new Table(cols(key), "benchmark");
+
+    present = Keys.shuffled(keyType, rows, 0);
+    absent = Keys.shuffled(keyType, rows, 1);
+
+    RevisionBuilder builder = Revisions.Empty.builder();
+    for (int i = 0; i < rows; ++i) {
+      builder.table(table).row(present[i]).update(value, i);
+    }
+    base = builder.commit();
+  }
+
+  private int next() {
+    int n = next;
+    next = n + 1 == rows ? 0 : n + 1;
+    return n;
+  }
+
+  @Benchmark
+  public Revision insert() {
+    RevisionBuilder builder = base.builder();
+    for (int i = 0; i < batch; ++i) {
+      builder.table(table).row(absent[next()]).update(value, i);
+    }
+    return builder.commit();
+  }
+
+  @Benchmark
+  public Revision update() {
+    RevisionBuilder builder = base.builder();
+    for (int i = 0; i < batch; ++i) {
+      builder.table(table).row(present[next()]).update(value, -i);
+    }
+    return builder.commit();
+  }
+
+  @Benchmark
+  public Revision delete() {
+    RevisionBuilder builder = base.builder();
+    for (int i = 0; i < batch; ++i) {
+      builder.table(table).delete(present[next()]);
+    }
+    return builder.commit();
+  }
+}
@@ -0,0 +1,592 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.benchmark;
+
+import static com.readytalk.revori.server.StreamUtil.readString;
+import static com.readytalk.revori.server.StreamUtil.writeString;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.ConnectException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.readytalk.revori.server.SQLServer;
+import com.readytalk.revori.server.SQLServer.Request;
+import com.readytalk.revori.server.SQLServer.Response;
+import com.readytalk.revori.server.SQLServer.RowSetFlag;
+
+/**
+ * Generates load against an SQLServer over many concurrent
+ * connections, speaking the same Request/Response protocol as the
+ * command line client, and reports the throughput and latency
+ * percentiles of each kind of operation.<p>
+ *
+ * The workload runs against a single table, which is created and
+ * filled using copy beforehand.  Each connection repeatedly picks an
+ * operation at random according to the configured mix:<p>
+ *
+ * <ul><li>select: look up a row by primary key</li>
+ *
+ * <li>insert: insert a new row</li>
+ *
+ * <li>update: update a row by primary key</li>
+ *
+ * <li>copy: insert a batch of new rows using copy</li>
+ *
+ * <li>transaction: update several rows between begin and
+ * commit</li></ul>
+ *
+ * Latency is measured from sending an operation's first request to
+ * receiving its last response, so a copy or transaction counts as a
+ * single operation.  Operations completed during the warmup period
+ * are not counted.  Run it with e.g.
+ *
+ * <pre>
+ *   $ ./gradlew benchmarks:loadgen -Ploadgen="connections=64 mix=select:90,update:10"
+ * </pre>
+ *
+ * By default it starts a server in-process; pass embedded=false to
+ * use one which is already listening at host:port.
+ */
+public class SQLLoadGenerator {
+  private static final String Database = "loadgen";
+  private static final String Table = "loadgen";
+
+  public enum Operation {
+    select, insert, update, copy, transaction;
+  }
+
+  private final Settings settings;
+  private final AtomicInteger nextKey;
+
+  public SQLLoadGenerator(Settings settings) {
+    settings.validate();
+
+    this.settings = settings;
+    this.nextKey = new AtomicInteger(settings.rows);
+  }
+
+  public Result run() throws IOException, InterruptedException {
+    if (settings.embedded) {
+      startServer();
+    }
+
+    Connection setup = connect();
+    try {
+      setup(setup);
+    } finally {
+      setup.close();
+    }
+
+    final long start = System.nanoTime();
+    final long warm = start + (settings.warmupMillis * 1000000L);
+    final long end = warm + (settings.durationMillis * 1000000L);
+    final CountDownLatch done = new CountDownLatch(settings.connections);
+    final List<Worker> workers = new ArrayList<Worker>();
+
+    for (int i = 0; i < settings.connections; ++i) {
+      final Worker worker = new Worker
+        (connect(), new Random(settings.seed + i), warm, end);
+      workers.add(worker);
+
+      Thread thread = new Thread(new Runnable() {
+          public void run() {
+            try {
+              worker.run();
+            } catch (IOException e) {
+              worker.failure = e;
+            } finally {
+              worker.connection.close();
+              done.countDown();
+            }
+          }
+        }, "loadgen-" + i);
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    done.await();
+
+    LatencyHistogram[] histograms = new LatencyHistogram
+      [Operation.values().length];
+    long[] errors = new long[histograms.length];
+    for (int i = 0; i < histograms.length; ++i) {
+      histograms[i] = new LatencyHistogram();
+    }
+
+    int failures = 0;
+    for (Worker worker: workers) {
+      if (worker.failure != null) {
+        ++ failures;
+        System.err.println("connection failed: " + worker.failure);
+      }
+      for (int i = 0; i < histograms.length; ++i) {
+        histograms[i].add(worker.histograms[i]);
+        errors[i] += worker.errors[i];
+      }
+    }
+
+    return new Result(settings, histograms, errors, failures);
+  }
+
+  private void startServer() {
+    Thread thread = new Thread(new Runnable() {
+        public void run() {
+          try {
+            SQLServer.main
+              (new String[] { settings.host, String.valueOf(settings.port) });
+          } catch (IOException e) {
+            throw new RuntimeException(e);
+          }
+        }
+      }, "loadgen-server");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  private Connection connect() throws IOException, InterruptedException {
+    // give an embedded server a chance to start listening
+    for (int attempt = 0; ; ++attempt) {
+      try {
+        return new Connection(new Socket(settings.host, settings.port));
+      } catch (ConnectException e) {
+        if (! settings.embedded || attempt == 50) {
+          throw e;
+        }
+        Thread.sleep(100);
+      }
+    }
+  }
+
+  private void setup(Connection c) throws IOException {
+    // these may fail if a previous run left the database or table
+    // behind, which is fine
+    c.execute("create database " + Database);
+    c.expect(Response.NewDatabase, "use database " + Database);
+    c.execute("drop table " + Table);
+    c.expect(Response.Success, "create table " + Table
+             + " ( id int32, value int32, name string, primary key ( id ) )");
+
+    c.expect(Response.CopySuccess, "copy " + Table + " from stdin");
+    for (int i = 0; i < settings.rows; ++i) {
+      c.send(i + "," + i + ",row" + i);
+    }
+    c.send("\\.");
+    c.expect(Response.Success);
+  }
+
+  private class Worker {
+    public final Connection connection;
+    public final LatencyHistogram[] histograms = new LatencyHistogram
+      [Operation.values().length];
+    public final long[] errors = new long[histograms.length];
+    public IOException failure;
+
+    private final Random random;
+    private final long warm;
+    private final long end;
+
+    public Worker(Connection connection, Random random, long warm, long end) {
+      this.connection = connection;
+      this.random = random;
+      this.warm = warm;
+      this.end = end;
+
+      for (int i = 0; i < histograms.length; ++i) {
+        histograms[i] = new LatencyHistogram();
+      }
+    }
+
+    public void run() throws IOException {
+      connection.expect(Response.NewDatabase, "use database " + Database);
+
+      while (true) {
+        Operation operation = settings.pick(random);
+        long start = System.nanoTime();
+        if (start >= end) {
+          break;
+        }
+
+        boolean success = perform(operation);
+
+        long finish = System.nanoTime();
+        if (start >= warm) {
+          if (success) {
+            histograms[operation.ordinal()].record(finish - start);
+          } else {
+            ++ errors[operation.ordinal()];
+          }
+        }
+      }
+    }
+
+    private int existingKey() {
+      return random.nextInt(settings.rows);
+    }
+
+    private boolean perform(Operation operation) throws IOException {
+      switch (operation) {
+      case select:
+        return connection.execute
+          ("select value, name from " + Table + " where id = "
+           + existingKey());
+
+      case insert: {
+        int key = nextKey.getAndIncrement();
+        return connection.execute
+          ("insert into " + Table + " values ( " + key + ", " + key
+           + ", 'row" + key + "' )");
+      }
+
+      case update:
+        return connection.execute
+          ("update " + Table + " set value = " + random.nextInt()
+           + " where id = " + existingKey());
+
+      case copy: {
+        if (! connection.execute("copy " + Table + " from stdin")) {
+          return false;
+        }
+        int first = nextKey.getAndAdd(settings.copyRows);
+        for (int i = 0; i < settings.copyRows; ++i) {
+          int key = first + i;
+          connection.send(key + "," + key + ",row" + key);
+        }
+        connection.send("\\.");
+        return connection.receive();
+      }
+
+      case transaction: {
+        if (! connection.execute("begin")) {
+          return false;
+        }
+        boolean success = true;
+        for (int i = 0; i < settings.transactionSize; ++i) {
+          success &= connection.execute
+            ("update " + Table + " set value = " + random.nextInt()
+             + " where id = " + existingKey());
+        }
+        return connection.execute("commit") && success;
+      }
+
+      default:
+        throw new RuntimeException("unexpected operation: " + operation);
+      }
+    }
+  }
+
+  private static class Connection {
+    private final Socket socket;
+    private final InputStream in;
+    private final OutputStream out;
+
+    public Connection(Socket socket) throws IOException {
+      this.socket = socket;
+      socket.setTcpNoDelay(true);
+      this.in = new BufferedInputStream(socket.getInputStream());
+      this.out = new BufferedOutputStream(socket.getOutputStream());
+    }
+
+    /**
+     * Sends a request without waiting for a response, as for each
+     * line of copy data.
+     */
+    public void send(String command) throws IOException {
+      out.write(Request.Execute.ordinal());
+      writeString(out, command);
+    }
+
+    /**
+     * Sends a request and reads the response, returning false if it
+     * was an error.
+     */
+    public boolean execute(String command) throws IOException {
+      send(command);
+      return receive();
+    }
+
+    public void expect(Response expected, String command) throws IOException {
+      send(command);
+      expect(expected);
+    }
+
+    public void expect(Response expected) throws IOException {
+      out.flush();
+      Response response = read();
+      if (response != expected) {
+        throw new RuntimeException
+          ("expected " + expected + " but got " + response
+           + (response == Response.Error ? ": " + lastError : ""));
+      }
+    }
+
+    public boolean receive() throws IOException {
+      out.flush();
+      return read() != Response.Error;
+    }
+
+    private String lastError;
+
+    private Response read() throws IOException {
+      int type = in.read();
+      if (type == -1) {
+        throw new IOException("connection closed by server");
+      }
+
+      Response response = Response.values()[type];
+      switch (response) {
+      case Success:
+      case CopySuccess:
+        readString(in);
+        break;
+
+      case Error:
+        lastError = readString(in);
+        break;
+
+      case NewDatabase:
+        readString(in);
+        readString(in);
+        break;
+
+      case RowSet:
+        readRows();
+        break;
+
+      default:
+        throw new RuntimeException("unexpected response: " + response);
+      }
+
+      return response;
+    }
+
+    private void readRows() throws IOException {
+      while (true) {
+        int flag = in.read();
+        if (flag == -1) {
+          throw new IOException("connection closed by server");
+        }
+
+        switch (RowSetFlag.values()[flag]) {
+        case InsertedRow:
+        case DeletedRow:
+          break;
+
+        case Item:
+          readString(in);
+          break;
+
+        case End:
+          return;
+
+        default:
+          throw new RuntimeException("unexpected flag: " + flag);
+        }
+      }
+    }
+
+    public void close() {
+      try {
+        socket.close();
+      } catch (IOException e) {
+        // ignore
+      }
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    new SQLLoadGenerator(Settings.parse(args)).run().print(System.out);
+  }
+
+  /**
+   * The parameters of a run.  Each may be specified on the command
+   * line as name=value.
+   */
+  public static class Settings {
+    public String host = "localhost";
+    public int port = 8017;
+    /** whether to start a server in this process */
+    public boolean embedded = true;
+    public int connections = 16;
+    public long warmupMillis = 5000;
+    public long durationMillis = 10000;
+    /** the number of rows loaded before the run */
+    public int rows = 10000;
+    /** the rows inserted by each copy operation */
+    public int copyRows = 100;
+    /** the updates made by each transaction operation */
+    public int transactionSize = 5;
+    public long seed = 42;
+    /**
+     * relative weights of each operation, given on the command line
+     * as e.g. mix=select:50,update:50
+     */
+    public final int[] mix = { 60, 10, 20, 5, 5 };
+
+    public void validate() {
+      int total = 0;
+      for (int weight: mix) {
+        if (weight < 0) {
+          throw new IllegalArgumentException("negative weight in mix");
+        }
+        total += weight;
+      }
+      if (total == 0) {
+        throw new IllegalArgumentException("empty mix");
+      }
+      if (connections < 1 || rows < 1 || copyRows < 0
+          || transactionSize < 0 || warmupMillis < 0 || durationMillis < 0)
+      {
+        throw new IllegalArgumentException("invalid settings");
+      }
+    }
+
+    public Operation pick(Random random) {
+      int total = 0;
+      for (int weight: mix) {
+        total += weight;
+      }
+
+      int n = random.nextInt(total);
+      for (Operation operation: Operation.values()) {
+        n -= mix[operation.ordinal()];
+        if (n < 0) {
+          return operation;
+        }
+      }
+      throw new RuntimeException();
+    }
+
+    public static Settings parse(String[] args) {
+      Settings s = new Settings();
+      for (String arg: args) {
+        int equals = arg.indexOf('=');
+        if (equals < 0) {
+          throw new IllegalArgumentException("expected name=value: " + arg);
+        }
+
+        String name = arg.substring(0, equals);
+        String value = arg.substring(equals + 1);
+        if ("host".equals(name)) {
+          s.host = value;
+        } else if ("port".equals(name)) {
+          s.port = Integer.parseInt(value);
+        } else if ("embedded".equals(name)) {
+          s.embedded = Boolean.parseBoolean(value);
+        } else if ("connections".equals(name)) {
+          s.connections = Integer.parseInt(value);
+        } else if ("warmup".equals(name)) {
+          s.warmupMillis = Long.parseLong(value);
+        } else if ("duration".equals(name)) {
+          s.durationMillis = Long.parseLong(value);
+        } else if ("rows".equals(name)) {
+          s.rows = Integer.parseInt(value);
+        } else if ("copyRows".equals(name)) {
+          s.copyRows = Integer.parseInt(value);
+        } else if ("transactionSize".equals(name)) {
+          s.transactionSize = Integer.parseInt(value);
+        } else if ("seed".equals(name)) {
+          s.seed = Long.parseLong(value);
+        } else if ("mix".equals(name)) {
+          // operations left out of the mix are not performed
+          Arrays.fill(s.mix, 0);
+          for (String entry: value.split(",")) {
+            int colon = entry.indexOf(':');
+            if (colon < 0) {
+              throw new IllegalArgumentException
+                ("expected operation:weight: " + entry);
+            }
+            s.mix[Operation.valueOf(entry.substring(0, colon)).ordinal()]
+              = Integer.parseInt(entry.substring(colon + 1));
+          }
+        } else {
+          throw new IllegalArgumentException("unknown setting: " + name);
+        }
+      }
+      return s;
+    }
+
+    public String toString() {
+      StringBuilder sb = new StringBuilder();
+      for (Operation operation: Operation.values()) {
+        if (mix[operation.ordinal()] > 0) {
+          sb.append(sb.length() == 0 ? "" : ",").append(operation)
+            .append(":").append(mix[operation.ordinal()]);
+        }
+      }
+      return "server " + (embedded ? "embedded " : "") + host + ":" + port
+        + " connections " + connections + " warmup " + warmupMillis + "ms"
+        + " duration " + durationMillis + "ms rows " + rows
+        + " copyRows " + copyRows + " transactionSize " + transactionSize
+        + " mix " + sb;
+    }
+  }
+
+  public static class Result {
+    public final Settings settings;
+    public final LatencyHistogram[] histograms;
+    public final long[] errors;
+    public final int failedConnections;
+
+    public Result(Settings settings, LatencyHistogram[] histograms,
+                  long[] errors, int failedConnections)
+    {
+      this.settings = settings;
+      this.histograms = histograms;
+      this.errors = errors;
+      this.failedConnections = failedConnections;
+    }
+
+    public void print(PrintStream out) {
+      double seconds = settings.durationMillis / 1000.0;
+      LatencyHistogram all = new LatencyHistogram();
+      long allErrors = 0;
+
+      out.println(settings);
+      out.printf("%-12s %10s %8s %10s %9s %9s %9s %9s %9s %9s%n",
+                 "operation", "count", "errors", "ops/s", "mean ms",
+                 "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms");
+      for (Operation operation: Operation.values()) {
+        LatencyHistogram h = histograms[operation.ordinal()];
+        long e = errors[operation.ordinal()];
+        if (h.count() > 0 || e > 0) {
+          print(out, operation.name(), h, e, seconds);
+          all.add(h);
+          allErrors += e;
+        }
+      }
+      print(out, "all", all, allErrors, seconds);
+
+      if (failedConnections > 0) {
+        out.println(failedConnections + " connection(s) failed");
+      }
+    }
+
+    private static void print(PrintStream out, String name,
+                              LatencyHistogram h, long errors,
+                              double seconds)
+    {
+      out.printf("%-12s %10d %8d %10.1f %9.3f %9.3f %9.3f %9.3f %9.3f %9.3f%n",
+                 name, h.count(), errors,
+                 seconds == 0 ? 0 : h.count() / seconds,
+                 h.mean() / 1e6, h.percentile(50) / 1e6,
+                 h.percentile(90) / 1e6, h.percentile(99) / 1e6,
+                 h.percentile(99.9) / 1e6, h.max() / 1e6);
+    }
+  }
+}
@@ -0,0 +1,489 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+
+import com.readytalk.revori.server.NetworkServer;
+import com.readytalk.revori.server.NetworkServer.Network;
+import com.readytalk.revori.server.NetworkServer.NodeID;
+import com.readytalk.revori.server.protocol.ReadContext;
+import com.readytalk.revori.server.protocol.Readable;
+import com.readytalk.revori.server.protocol.Writable;
+import com.readytalk.revori.server.protocol.WriteContext;
+import com.readytalk.revori.util.BufferOutputStream;
+
+/**
+ * An in-process Network which delivers messages between
+ * NetworkServers according to a simulated clock rather than real
+ * time, so that a run is fully determined by its seed and settings
+ * and takes only as long as the servers' own processing.<p>
+ *
+ * Each message is serialized when sent, which determines its size,
+ * and deserialized when delivered.  A link between two nodes
+ * delivers messages in order after a fixed latency plus a random
+ * jitter, and transmits at most one message at a time at its
+ * configured bandwidth, so large messages delay those queued behind
+ * them.  A link is cut when a message on it is dropped, as a TCP
+ * connection would be reset, and when its ends are partitioned from
+ * each other; either way, both ends are told via updateView, messages
+ * in flight on it are lost, and it comes back up after the reconnect
+ * delay or when the partition ends, respectively.<p>
+ *
+ * Time is measured in microseconds.  Calls into each server are
+ * timed using the current thread's CPU clock and charged to that
+ * server's node, along with the messages it sends and receives.
+ */
+public class SimulatedNetwork implements Network {
+  private static final ThreadMXBean Threads
+    = ManagementFactory.getThreadMXBean();
+
+  private final Random random;
+  private final long latencyMicros;
+  private final long jitterMicros;
+  private final long bytesPerSecond;
+  private final double dropRate;
+  private final long reconnectMicros;
+  private final Map<NodeID, Node> nodes = new LinkedHashMap<NodeID, Node>();
+  private final PriorityQueue<Event> events = new PriorityQueue<Event>();
+  private Observer observer;
+  private long now;
+  private long nextSequence;
+  private long dropped;
+  private long lost;
+  private long resets;
+
+  /**
+   * @param bytesPerSecond the bandwidth of each direction of each
+   * link, or zero for unlimited
+   * @param dropRate the probability that any given message is dropped,
+   * resetting the link it was sent on
+   */
+  public SimulatedNetwork(long seed,
+                          long latencyMicros,
+                          long jitterMicros,
+                          long bytesPerSecond,
+                          double dropRate,
+                          long reconnectMicros)
+  {
+    if (latencyMicros < 0 || jitterMicros < 0 || bytesPerSecond < 0
+        || dropRate < 0 || dropRate >= 1 || reconnectMicros < 0)
+    {
+      throw new IllegalArgumentException("invalid network settings");
+    }
+
+    this.random = new Random(seed);
+    this.latencyMicros = latencyMicros;
+    this.jitterMicros = jitterMicros;
+    this.bytesPerSecond = bytesPerSecond;
+    this.dropRate = dropRate;
+    this.reconnectMicros = reconnectMicros;
+  }
+
+  /**
+   * Registers a callback to be invoked after each delivery.
+   */
+  public void setObserver(Observer observer) {
+    this.observer = observer;
+  }
+
+  public void add(NodeID id, NetworkServer server) {
+    if (nodes.containsKey(id)) {
+      throw new IllegalArgumentException("duplicate node: " + id);
+    }
+
+    nodes.put(id, new Node(id, server));
+  }
+
+  public NetworkServer server(NodeID id) {
+    return node(id).server;
+  }
+
+  public Collection<Node> nodes() {
+    return nodes.values();
+  }
+
+  /**
+   * Adds a link between the specified nodes, which takes effect the
+   * next time views are updated (see updateViews).
+   */
+  public void link(NodeID a, NodeID b) {
+    Link link = new Link();
+    node(a).channels.put(b, new Channel(link));
+    node(b).channels.put(a, new Channel(link));
+  }
+
+  /**
+   * Tells each node which of its links are currently up.
+   */
+  public void updateViews() {
+    for (Node node: nodes.values()) {
+      updateView(node);
+    }
+  }
+
+  /**
+   * Cuts every link between the specified set of nodes and the rest
+   * from the specified time until the specified time.
+   */
+  public void partition(long start, long end, final Set<NodeID> side) {
+    schedule(start, new Runnable() {
+        public void run() {
+          for (Link link: crossing(side)) {
+            cut(link);
+          }
+        }
+      });
+
+    schedule(end, new Runnable() {
+        public void run() {
+          for (Link link: crossing(side)) {
+            restore(link);
+          }
+        }
+      });
+  }
+
+  public long now() {
+    return now;
+  }
+
+  public void schedule(long time, Runnable task) {
+    if (time < now) {
+      throw new IllegalArgumentException("cannot schedule in the past");
+    }
+
+    events.add(new Event(time, nextSequence++, task));
+  }
+
+  /**
+   * Runs scheduled events, in order, until either none remain or the
+   * next is scheduled after the specified time.  Returns true if any
+   * events remain.
+   */
+  public boolean run(long until) {
+    while (! events.isEmpty() && events.peek().time <= until) {
+      Event event = events.poll();
+      now = event.time;
+      event.task.run();
+    }
+
+    if (until > now) {
+      now = until;
+    }
+
+    return ! events.isEmpty();
+  }
+
+  /**
+   * Runs the specified task on behalf of the specified node, charging
+   * the CPU time it takes to that node.
+   */
+  public void execute(NodeID id, Runnable task) {
+    Node node = node(id);
+    long start = cpuTime();
+    try {
+      task.run();
+    } finally {
+      node.cpuNanos += cpuTime() - start;
+    }
+  }
+
+  public void send(NodeID source, NodeID destination, Writable message) {
+    Node from = node(source);
+    Channel channel = from.channels.get(destination);
+    if (channel == null || channel.link.failing || channel.link.down > 0) {
+      ++ lost;
+      return;
+    }
+
+    BufferOutputStream buffer = new BufferOutputStream();
+    try {
+      message.writeTo(new WriteContext(buffer));
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+
+    int size = buffer.size();
+    ++ from.messagesSent;
+    from.bytesSent += size;
+
+    if (dropRate > 0 && random.nextDouble() < dropRate) {
+      ++ dropped;
+      // the sender is in the middle of generating messages, so don't
+      // change its view until it's done
+      final Link link = channel.link;
+      link.failing = true;
+      schedule(now, new Runnable() {
+          public void run() {
+            ++ resets;
+            link.failing = false;
+            cut(link);
+            schedule(now + reconnectMicros, new Runnable() {
+                public void run() {
+                  restore(link);
+                }
+              });
+          }
+        });
+      return;
+    }
+
+    long transmit = bytesPerSecond == 0
+      ? 0 : (size * 1000000L) / bytesPerSecond;
+    long start = Math.max(now, channel.busyUntil);
+    channel.busyUntil = start + transmit;
+
+    long arrival = channel.busyUntil + latencyMicros
+      + (jitterMicros == 0 ? 0 : (long) (random.nextDouble() * jitterMicros));
+    // links deliver in order, regardless of jitter
+    arrival = Math.max(arrival, channel.lastArrival);
+    channel.lastArrival = arrival;
+
+    schedule(arrival, new Delivery
+             (source, destination, message.getClass(), buffer.getBuffer(),
+              size, channel.link, channel.link.epoch));
+  }
+
+  public Stats stats() {
+    long messages = 0;
+    long bytes = 0;
+    for (Node node: nodes.values()) {
+      messages += node.messagesSent;
+      bytes += node.bytesSent;
+    }
+    return new Stats(messages, bytes, dropped, lost, resets);
+  }
+
+  private void deliver(Delivery delivery) {
+    if (delivery.link.down > 0 || delivery.link.epoch != delivery.epoch) {
+      // the connection this was sent on has since been reset
+      ++ lost;
+      return;
+    }
+
+    final Node destination = node(delivery.destination);
+    ++ destination.messagesReceived;
+    destination.bytesReceived += delivery.size;
+
+    final Readable message;
+    try {
+      message = (Readable) delivery.type.newInstance();
+      message.readFrom
+        (new ReadContext
+         (new ByteArrayInputStream(delivery.body, 0, delivery.size)));
+    } catch (InstantiationException e) {
+      throw new RuntimeException(e);
+    } catch (IllegalAccessException e) {
+      throw new RuntimeException(e);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+
+    final NodeID source = delivery.source;
+    execute(destination.id, new Runnable() {
+        public void run() {
+          destination.server.accept(source, message);
+        }
+      });
+
+    if (observer != null) {
+      observer.delivered(destination.id);
+    }
+  }
+
+  private Set<Link> crossing(Set<NodeID> side) {
+    Set<Link> links = new HashSet<Link>();
+    for (NodeID id: side) {
+      for (Map.Entry<NodeID, Channel> e: node(id).channels.entrySet()) {
+        if (! side.contains(e.getKey())) {
+          links.add(e.getValue().link);
+        }
+      }
+    }
+    return links;
+  }
+
+  private void cut(Link link) {
+    if (link.down++ == 0) {
+      ++ link.epoch;
+      updateViews(link);
+    }
+  }
+
+  private void restore(Link link) {
+    if (--link.down == 0) {
+      ++ link.epoch;
+      updateViews(link);
+    }
+  }
+
+  private void updateViews(Link link) {
+    for (Node node: nodes.values()) {
+      for (Channel channel: node.channels.values()) {
+        if (channel.link == link) {
+          // a new connection starts with nothing in flight
+          channel.busyUntil = now;
+          channel.lastArrival = now;
+          updateView(node);
+        }
+      }
+    }
+  }
+
+  private void updateView(final Node node) {
+    final Set<NodeID> view = new HashSet<NodeID>();
+    for (Map.Entry<NodeID, Channel> e: node.channels.entrySet()) {
+      if (e.getValue().link.down == 0) {
+        view.add(e.getKey());
+      }
+    }
+
+    execute(node.id, new Runnable() {
+        public void run() {
+          node.server.updateView(view);
+        }
+      });
+  }
+
+  private Node node(NodeID id) {
+    Node node = nodes.get(id);
+    if (node == null) {
+      throw new IllegalArgumentException("no such node: " + id);
+    }
+    return node;
+  }
+
+  private static long cpuTime() {
+    return Threads.isCurrentThreadCpuTimeSupported()
+      ? Threads.getCurrentThreadCpuTime() : System.nanoTime();
+  }
+
+  public interface Observer {
+    public void delivered(NodeID node);
+  }
+
+  public static class Node {
+    public final NodeID id;
+    public final NetworkServer server;
+    public long messagesSent;
+    public long bytesSent;
+    public long messagesReceived;
+    public long bytesReceived;
+    public long cpuNanos;
+
+    private final Map<NodeID, Channel> channels
+      = new LinkedHashMap<NodeID, Channel>();
+
+    public Node(NodeID id, NetworkServer server) {
+      this.id = id;
+      this.server = server;
+    }
+  }
+
+  public static class Stats {
+    public final long messages;
+    public final long bytes;
+    /**
+     * Messages dropped at random, each of which reset its link.
+     */
+    public final long dropped;
+    /**
+     * Messages sent or in flight on a link which was down, and thus
+     * never delivered.
+     */
+    public final long lost;
+    public final long resets;
+
+    public Stats(long messages, long bytes, long dropped, long lost,
+                 long resets)
+    {
+      this.messages = messages;
+      this.bytes = bytes;
+      this.dropped = dropped;
+      this.lost = lost;
+      this.resets = resets;
+    }
+  }
+
+  private static class Link {
+    // incremented whenever the link goes down or comes back up, so
+    // that messages sent on an earlier connection can be recognized
+    public int epoch;
+    // the number of reasons (a reset and/or partitions) the link is
+    // currently down
+    public int down;
+    public boolean failing;
+  }
+
+  private static class Channel {
+    public final Link link;
+    public long busyUntil;
+    public long lastArrival;
+
+    public Channel(Link link) {
+      this.link = link;
+    }
+  }
+
+  private static class Event implements Comparable<Event> {
+    public final long time;
+    public final long sequence;
+    public final Runnable task;
+
+    public Event(long time, long sequence, Runnable task) {
+      this.time = time;
+      this.sequence = sequence;
+      this.task = task;
+    }
+
+    public int compareTo(Event o) {
+      if (time != o.time) {
+        return time < o.time ? -1 : 1;
+      } else {
+        return sequence < o.sequence ? -1 : (sequence > o.sequence ? 1 : 0);
+      }
+    }
+  }
+
+  private class Delivery implements Runnable {
+    public final NodeID source;
+    public final NodeID destination;
+    public final Class<?> type;
+    public final byte[] body;
+    public final int size;
+    public final Link link;
+    public final int epoch;
+
+    public Delivery(NodeID source, NodeID destination, Class<?> type,
+                    byte[] body, int size, Link link, int epoch)
+    {
+      this.source = source;
+      this.destination = destination;
+      this.type = type;
+      this.body = body;
+      this.size = size;
+      this.link = link;
+      this.epoch = epoch;
+    }
+
+    public void run() {
+      deliver(this);
+    }
+  }
+}
@@ -0,0 +1,236 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.benchmark;
+
+import static com.readytalk.revori.ExpressionFactory.aggregate;
+import static com.readytalk.revori.ExpressionFactory.and;
+import static com.readytalk.revori.ExpressionFactory.equal;
+import static com.readytalk.revori.ExpressionFactory.parameter;
+import static com.readytalk.revori.ExpressionFactory.reference;
+import static com.readytalk.revori.util.Util.cols;
+import static com.readytalk.revori.util.Util.set;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.collect.Lists;
+import com.readytalk.revori.Column;
+import com.readytalk.revori.ConflictResolvers;
+import com.readytalk.revori.Expression;
+import com.readytalk.revori.Foldables;
+import com.readytalk.revori.ForeignKeyResolvers;
+import com.readytalk.revori.Join;
+import com.readytalk.revori.QueryTemplate;
+import com.readytalk.revori.Revision;
+import com.readytalk.revori.RevisionBuilder;
+import com.readytalk.revori.Table;
+import com.readytalk.revori.TableReference;
+import com.readytalk.revori.server.simple.SimpleRevisionServer;
+import com.readytalk.revori.subscribe.BatchListener;
+import com.readytalk.revori.subscribe.DiffMachine;
+import com.readytalk.revori.subscribe.DiffServer;
+import com.readytalk.revori.subscribe.RowBatch;
+import com.readytalk.revori.subscribe.RowListener;
+
+/**
+ * Measures the cost of delivering a new revision to a DiffMachine's
+ * subscribers, as a function of:<p>
+ *
+ * <ul><li>subscribers: the number of subscriptions</li>
+ *
+ * <li>cardinality: the number of distinct parameter values among
+ * them, from one (every subscription has the same parameter) to one
+ * per subscription</li>
+ *
+ * <li>changed: the number of rows changed by the revision</li>
+ *
+ * <li>shape: the query subscribed to, which is either a lookup in a
+ * single table, a join with a second table, or a sum (served from a
+ * View, as a view-backed DiffMachine does)</li>
+ *
+ * <li>delivery: whether subscribers are RowListeners or
+ * BatchListeners</li></ul>
+ *
+ * Each subscription selects the rows of one group, and rows are
+ * spread evenly across the groups named by the parameter values.  The
+ * benchmark alternates between two revisions which differ only in the
+ * changed rows, so each invocation delivers the same diff, and the
+ * cost of building the revisions is excluded.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(value = 1, jvmArgsAppend = { "-Xms2g", "-Xmx2g" })
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class SubscriptionBenchmark {
+  private static final int Rows = 10000;
+
+  @Param({ "1", "100", "10000" })
+  public int subscribers;
+
+  @Param({ "1", "100", "10000" })
+  public int cardinality;
+
+  @Param({ "1", "100" })
+  public int changed;
+
+  @Param({ "single", "join", "aggregate" })
+  public String shape;
+
+  @Param({ "row", "batch" })
+  public String delivery;
+
+  private final Column<Integer> key = new Column<Integer>
+    (Integer.class, "key");
+  private final Column<Integer> group = new Column<Integer>
+    (Integer.class, "group");
+  private final Column<Integer> value = new Column<Integer>
+    (Integer.class, "value");
+  private final Table items = new Table(cols(key), "items");
+
+  private final Column<Integer> groupKey = new Column<Integer>
+    (Integer.class, "groupKey");
+  private final Column<String> groupName = new Column<String>
+    (String.class, "groupName");
+  private final Table groups = new Table(cols(groupKey), "groups");
+
+  private SimpleRevisionServer server;
+  private DiffMachine machine;
+  private Revision a;
+  private Revision b;
+  private boolean flip;
+  private long delivered;
+
+  @Setup
+  public void setup() {
+    server = new SimpleRevisionServer
+      (ConflictResolvers.Restrict, ForeignKeyResolvers.Delete);
+
+    // spread the groups across parameter values such that
+    // subscriptions share parameters when cardinality < subscribers
+    int groupCount = Math.min(cardinality, Rows);
+
+    Revision base = server.head();
+    RevisionBuilder builder = base.builder();
+    for (int i = 0; i < groupCount; ++i) {
+      builder.table(groups).row(i).update(groupName, "group" + i);
+    }
+    for (int i = 0; i < Rows; ++i) {
+      builder.table(items).row(i)
+        .update(group, i % groupCount)
+        .update(value, i);
+    }
+    server.merge(base, builder.commit());
+
+    machine = new DiffMachine
+      (new DiffServer(server), true, "aggregate".equals(shape));
+
+    QueryTemplate query = query();
+    RowListener rowListener = new RowListener() {
+        public void handleUpdate(Object[] row) {
+          ++ delivered;
+        }
+
+        public void handleDelete(Object[] row) {
+          ++ delivered;
+        }
+      };
+    BatchListener batchListener = new BatchListener() {
+        public void handleBatch(RowBatch batch) {
+          delivered += batch.size();
+        }
+      };
+
+    for (int i = 0; i < subscribers; ++i) {
+      Object parameter = i % groupCount;
+      if ("row".equals(delivery)) {
+        machine.subscribe(rowListener, query, parameter);
+      } else if ("batch".equals(delivery)) {
+        machine.subscribe(batchListener, query, parameter);
+      } else {
+        throw new IllegalArgumentException("unknown delivery: " + delivery);
+      }
+    }
+
+    // build the alternate revisions on top of any views the
+    // subscriptions added, so that switching between them touches
+    // only the changed rows and what depends on them
+    base = server.head();
+    builder = base.builder();
+    for (int i = 0; i < changed; ++i) {
+      builder.table(items).row(changedRow(i)).update(value, -i - 1);
+    }
+    a = builder.commit();
+
+    builder = a.builder();
+    for (int i = 0; i < changed; ++i) {
+      builder.table(items).row(changedRow(i)).update(value, i + 1);
+    }
+    b = builder.commit();
+  }
+
+  /**
+   * Returns the key of the specified changed row.  These are spread
+   * across the table and, with the offset, across groups, so that a
+   * change reaches as many distinct subscriptions as it can.
+   */
+  private int changedRow(int i) {
+    int stride = Math.max(1, Rows / changed);
+    return ((i * stride) + (i % stride)) % Rows;
+  }
+
+  private QueryTemplate query() {
+    TableReference item = new TableReference(items);
+    if ("single".equals(shape)) {
+      return new QueryTemplate
+        (Lists.newArrayList((Expression) reference(item, key),
+                            reference(item, value)),
+         item,
+         equal(reference(item, group), parameter()));
+    } else if ("join".equals(shape)) {
+      TableReference g = new TableReference(groups);
+      return new QueryTemplate
+        (Lists.newArrayList((Expression) reference(item, key),
+                            reference(item, value),
+                            reference(g, groupName)),
+         new Join(Join.Type.Inner, item, g),
+         and(equal(reference(item, group), reference(g, groupKey)),
+             equal(reference(item, group), parameter())));
+    } else if ("aggregate".equals(shape)) {
+      return new QueryTemplate
+        (Lists.newArrayList((Expression) reference(item, group),
+                            aggregate(Integer.class, Foldables.Sum,
+                                      reference(item, value))),
+         item,
+         equal(reference(item, group), parameter()),
+         set((Expression) reference(item, group)));
+    } else {
+      throw new IllegalArgumentException("unknown shape: " + shape);
+    }
+  }
+
+  @Benchmark
+  public long deliver() {
+    Revision head = server.head();
+    server.merge(head, flip ? b : a);
+    flip = ! flip;
+    return delivered;
+  }
+}
@@ -0,0 +1,125 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.benchmark;
+
+import static com.readytalk.revori.ExpressionFactory.aggregate;
+import static com.readytalk.revori.ExpressionFactory.reference;
+import static com.readytalk.revori.util.Util.cols;
+import static com.readytalk.revori.util.Util.set;
+
+import com.google.common.collect.Lists;
+import com.readytalk.revori.Column;
+import com.readytalk.revori.Constant;
+import com.readytalk.revori.Expression;
+import com.readytalk.revori.Foldables;
+import com.readytalk.revori.ForeignKey;
+import com.readytalk.revori.Index;
+import com.readytalk.revori.QueryTemplate;
+import com.readytalk.revori.Revision;
+import com.readytalk.revori.RevisionBuilder;
+import com.readytalk.revori.Revisions;
+import com.readytalk.revori.Table;
+import com.readytalk.revori.TableReference;
+import com.readytalk.revori.View;
+
+/**
+ * A table of integer rows, optionally accompanied by the structures
+ * which make writes to it more expensive, for benchmarks of
+ * operations on revisions.  The schema may be:<p>
+ *
+ * <ul><li>"plain": just the table</li>
+ *
+ * <li>"indexed": with a secondary index on column a</li>
+ *
+ * <li>"view": with a view summing column a grouped by column b</li>
+ *
+ * <li>"foreignKey": with each row referring to one of a hundred rows
+ * of a second table</li></ul>
+ */
+public class Workload {
+  private static final int ParentCount = 100;
+
+  public final Column<Integer> key = new Column<Integer>
+    (Integer.class, "key");
+  public final Column<Integer> a = new Column<Integer>(Integer.class, "a");
+  public final Column<Integer> b = new Column<Integer>(Integer.class, "b");
+  public final Column<Integer> parent = new Column<Integer>
+    (Integer.class, "parent");
+  public final Table table = new Table(cols(key), "workload");
+  public final TableReference reference = new TableReference(table);
+
+  private final Column<Integer> parentKey = new Column<Integer>
+    (Integer.class, "parentKey");
+  private final Column<Integer> parentValue = new Column<Integer>
+    (Integer.class, "parentValue");
+  private final Table parents = new Table(cols(parentKey), "parents");
+  private final String schema;
+
+  public Workload(String schema) {
+    if (! ("plain".equals(schema)
+           || "indexed".equals(schema)
+           || "view".equals(schema)
+           || "foreignKey".equals(schema)))
+    {
+      throw new IllegalArgumentException("unknown schema: " + schema);
+    }
+
+    this.schema = schema;
+  }
+
+  /**
+   * Returns a revision containing the specified number of rows, keyed
+   * from zero, along with whatever the schema calls for.
+   */
+  public Revision populate(int rows) {
+    RevisionBuilder builder = Revisions.Empty.builder();
+
+    if ("indexed".equals(schema)) {
+      builder.add(new Index(table, cols(a, key)));
+    } else if ("view".equals(schema)) {
+      builder.add(new View(new QueryTemplate
+        (Lists.newArrayList((Expression) reference(reference, b),
+                            aggregate(Integer.class, Foldables.Sum,
+                                      reference(reference, a))),
+         reference, new Constant(true),
+         set((Expression) reference(reference, b)))));
+    } else if ("foreignKey".equals(schema)) {
+      for (int i = 0; i < ParentCount; ++i) {
+        builder.table(parents).row(i).update(parentValue, i);
+      }
+      builder.add(new ForeignKey(table, cols(parent), parents, cols(parentKey)));
+    }
+
+    for (int i = 0; i < rows; ++i) {
+      builder.table(table).row(i)
+        .update(a, i)
+        .update(b, i % 16)
+        .update(parent, i % ParentCount);
+    }
+
+    return builder.commit();
+  }
+
+  /**
+   * Sets the specified column of the specified row.  Under the
+   * foreignKey schema, this also changes which parent the row refers
+   * to, so the constraint must be checked.
+   */
+  public void edit(RevisionBuilder builder,
+                   int row,
+                   Column<Integer> column,
+                   int value)
+  {
+    builder.table(table).row(row).update(column, value);
+
+    if ("foreignKey".equals(schema)) {
+      builder.table(table).row(row).update
+        (parent, Math.abs(value) % ParentCount);
+    }
+  }
+}
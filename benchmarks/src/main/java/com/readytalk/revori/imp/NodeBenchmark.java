@@ -0,0 +1,116 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.imp;
+
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.readytalk.revori.Comparators;
+import com.readytalk.revori.benchmark.Keys;
+
+/**
+ * Measures the persistent red-black tree underlying every revision.
+ * This lives in the imp package since NodeStack and NodeIterator are
+ * package-private.<p>
+ *
+ * Each operation which modifies the tree uses a fresh token, as a new
+ * revision would, so the tree built during setup is never modified
+ * and every invocation measures a path copy from the same state.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(value = 1, jvmArgsAppend = { "-Xms2g", "-Xmx2g" })
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class NodeBenchmark {
+  @Param({ "1000", "100000" })
+  public int size;
+
+  @Param({ "Integer", "String" })
+  public String keyType;
+
+  private final Comparator comparator = Comparators.Ascending;
+  private final NodeStack stack = new NodeStack();
+  private final Node.BlazeResult result = new Node.BlazeResult();
+  private Comparable[] present;
+  private Comparable[] absent;
+  private Node root;
+  private int next;
+
+  @Setup
+  public void setup() {
+    present = Keys.shuffled(keyType, size, 0);
+    absent = Keys.shuffled(keyType, size, 1);
+
+    Object token = new Object();
+    root = Node.Null;
+    for (Comparable key: present) {
+      root = Node.blaze(result, token, stack, root, key, comparator);
+      result.node.value = key;
+    }
+  }
+
+  private int next() {
+    int n = next;
+    next = n + 1 == size ? 0 : n + 1;
+    return n;
+  }
+
+  @Benchmark
+  public Node find() {
+    return Node.find(root, present[next()], comparator);
+  }
+
+  @Benchmark
+  public Node findMissing() {
+    return Node.find(root, absent[next()], comparator);
+  }
+
+  @Benchmark
+  public Node blazeExisting() {
+    Node newRoot = Node.blaze
+      (result, new Object(), stack, root, present[next()], comparator);
+    result.node.value = Boolean.TRUE;
+    return newRoot;
+  }
+
+  @Benchmark
+  public Node blazeNew() {
+    Node newRoot = Node.blaze
+      (result, new Object(), stack, root, absent[next()], comparator);
+    result.node.value = Boolean.TRUE;
+    return newRoot;
+  }
+
+  @Benchmark
+  public Node delete() {
+    return Node.delete
+      (new Object(), stack, root, present[next()], comparator);
+  }
+
+  @Benchmark
+  public void iterate(Blackhole blackhole) {
+    for (NodeIterator it = new NodeIterator(stack, root); it.hasNext();) {
+      blackhole.consume(it.next().value);
+    }
+  }
+}
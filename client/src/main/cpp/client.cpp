@@ -12,6 +12,7 @@
 #include <sys/types.h>
 #include <sys/socket.h>
 #include <netdb.h>
+#include <poll.h>
 #include <unistd.h>
 
 #include <readline/readline.h>
@@ -29,7 +30,9 @@ enum Response {
   NewDatabase,
   CopySuccess,
   Success,
-  Error
+  Error,
+  Subscribed,
+  SubscriptionRowSet
 };
 
 enum RowSetFlag {
@@ -270,9 +273,139 @@ readString(Context* context)
   return string;
 }
 
+bool
+printRows(Context* context)
+{
+  bool sawRow = false;
+  while (true) {
+    int flag = readByte(context);
+    switch (flag) {
+    case -1:
+      return false;
+
+    case InsertedRow:
+      sawRow = true;
+      fprintf(stdout, "\n inserted:");
+      break;
+
+    case DeletedRow:
+      sawRow = true;
+      fprintf(stdout, "\n  deleted:");
+      break;
+
+    case Item: {
+      char* item = readString(context);
+      if (item == 0) {
+        return false;
+      }
+        
+      fprintf(stdout, " %s", item);
+
+      free(item);
+    } break;
+
+    case End:
+      if (not sawRow) {
+        fprintf(stdout, "\n no matching rows found");
+      }
+      fprintf(stdout, "\n");
+      return true;
+
+    default:
+      fprintf(stderr, "\nunexpected flag from server: %d\n", flag);
+      context->trouble = true;
+      return false;
+    }
+  }
+}
+
+bool
+printSubscriptionRows(Context* context)
+{
+  int id = readInteger(context);
+  if (id < 0) {
+    return false;
+  }
+
+  fprintf(stdout, "\nsubscription %d:", id);
+
+  return printRows(context);
+}
+
+// Reads the type of the next response from the server, printing any
+// subscription updates which arrive ahead of it.
+int
+readResponseType(Context* context)
+{
+  while (true) {
+    int result = readByte(context);
+    if (result != SubscriptionRowSet) {
+      return result;
+    }
+
+    if (not printSubscriptionRows(context)) {
+      return -1;
+    }
+  }
+}
+
+bool
+readable(Context* context)
+{
+  if (context->buffer.position < context->buffer.limit) {
+    return true;
+  }
+
+  pollfd p;
+  p.fd = context->socket;
+  p.events = POLLIN;
+  p.revents = 0;
+  return poll(&p, 1, 0) > 0;
+}
+
+// Prints any subscription updates the server has sent while we
+// weren't waiting for a response.  Since the buffer is shared between
+// reading and writing, this must be called before writing a request.
+void
+printNotifications(Context* context)
+{
+  while ((not context->trouble) and readable(context)) {
+    int result = readByte(context);
+    if (result != SubscriptionRowSet) {
+      if (result != -1) {
+        fprintf(stderr, "\nunexpected result from server: %d\n", result);
+        context->trouble = true;
+      }
+      return;
+    }
+
+    if (not printSubscriptionRows(context)) {
+      return;
+    }
+  }
+}
+
+int
+notificationHook()
+{
+  Context* context = globalContext;
+  if (not (context->copying or context->trouble) and readable(context)) {
+    fprintf(stdout, "\n");
+    printNotifications(context);
+    rl_on_new_line();
+    rl_redisplay();
+  }
+  return 0;
+}
+
 int
 startCompletion(Context* context, const char* text)
 {
+  printNotifications(context);
+  if (context->trouble) {
+    return -1;
+  }
+
   context->buffer.position = 0;
   context->buffer.limit = context->buffer.capacity;
 
@@ -290,7 +423,7 @@ startCompletion(Context* context, const char* text)
 
   context->buffer.limit = 0;
 
-  int result = readByte(context);
+  int result = readResponseType(context);
   switch (result) {
   case -1:
     break;
@@ -375,6 +508,11 @@ execute(Context* context, const char* command)
   }
 
   if (not context->copying) {
+    printNotifications(context);
+    if (context->trouble) {
+      return;
+    }
+
     context->buffer.position = 0;
     context->buffer.limit = context->buffer.capacity;
   }
@@ -404,7 +542,7 @@ execute(Context* context, const char* command)
 
   context->buffer.limit = 0;
 
-  int result = readByte(context);
+  int result = readResponseType(context);
   switch (result) {
   case -1:
     break;
@@ -457,49 +595,18 @@ execute(Context* context, const char* command)
   } break;
 
   case RowSet: {
-    bool done = false;
-    bool sawRow = false;
-    while (not done) {
-      int flag = readByte(context);
-      switch (flag) {
-      case -1:
-        return;
-
-      case InsertedRow:
-        sawRow = true;
-        fprintf(stdout, "\n inserted:");
-        break;
-
-      case DeletedRow:
-        sawRow = true;
-        fprintf(stdout, "\n  deleted:");
-        break;
-
-      case Item: {
-        char* item = readString(context);
-        if (item == 0) {
-          return;
-        }
-        
-        fprintf(stdout, " %s", item);
+    printRows(context);
+  } break;
 
-        free(item);
-      } break;
+  case Subscribed: {
+    int id = readInteger(context);
+    if (id < 0) {
+      return;
+    }
 
-      case End:
-        if (not sawRow) {
-          fprintf(stdout, "\n no matching rows found");
-        }
-        done = true;
-        fprintf(stdout, "\n");
-        break;
+    fprintf(stdout, "subscription %d", id);
 
-      default:
-        fprintf(stderr, "\nunexpected flag from server: %d\n", flag);
-        context->trouble = true;
-        return;
-      }
-    }
+    printRows(context);
   } break;
 
   case Error: {
@@ -588,6 +695,8 @@ main(int argumentCount, const char** arguments)
 
     rl_completion_entry_function = completionGenerator;
 
+    rl_event_hook = notificationHook;
+
     while (not (context.trouble or context.exit)) {
       char* line;
       if (context.databaseName) {
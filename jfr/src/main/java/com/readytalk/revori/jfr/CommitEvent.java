@@ -0,0 +1,32 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("revori.Commit")
+@Label("Commit")
+@Category("Revori")
+@Description("A RevisionBuilder commit")
+class CommitEvent extends Event {
+  @Label("Writes")
+  @Description("Row and column writes made through the builder")
+  int writes;
+
+  @Label("Indexes")
+  @Description("Index data trees updated")
+  int indexes;
+
+  @Label("Views")
+  @Description("View data trees updated")
+  int views;
+}
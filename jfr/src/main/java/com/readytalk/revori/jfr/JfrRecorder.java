@@ -0,0 +1,135 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.jfr;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+import jdk.jfr.Event;
+
+import com.readytalk.revori.Index;
+import com.readytalk.revori.Table;
+import com.readytalk.revori.trace.Recorder;
+
+/**
+ * Reports Revori's operations as Java Flight Recorder events, e.g.:
+ *
+ * <pre>
+ *   Tracing.install(new JfrRecorder());
+ * </pre>
+ *
+ * Then start a recording as usual, e.g. with
+ * -XX:StartFlightRecording or jcmd JFR.start.  The events appear
+ * under the Revori category, and each may be enabled and given a
+ * duration threshold separately in the recording settings.  Events
+ * which are disabled cost an allocation which the JIT usually
+ * eliminates, and a check.
+ */
+@ThreadSafe
+public class JfrRecorder implements Recorder {
+  private static String describe(Index index) {
+    return index.isPrimary() ? "primary key" : index.columns.toString();
+  }
+
+  public Object begin(Kind kind) {
+    Event event;
+    switch (kind) {
+    case Merge:
+      event = new MergeEvent();
+      break;
+
+    case Commit:
+      event = new CommitEvent();
+      break;
+
+    case Plan:
+      event = new PlanEvent();
+      break;
+
+    case Scan:
+      event = new ScanEvent();
+      break;
+
+    case Send:
+      event = new SendEvent();
+      break;
+
+    case Receive:
+      event = new ReceiveEvent();
+      break;
+
+    default:
+      throw new RuntimeException("unexpected kind: " + kind);
+    }
+
+    if (event.isEnabled()) {
+      event.begin();
+      return event;
+    } else {
+      return null;
+    }
+  }
+
+  public void endMerge(Object handle, int tables, int indexes, int views,
+                       int conflicts)
+  {
+    MergeEvent event = (MergeEvent) handle;
+    event.end();
+    if (event.shouldCommit()) {
+      event.tables = tables;
+      event.indexes = indexes;
+      event.views = views;
+      event.conflicts = conflicts;
+      event.commit();
+    }
+  }
+
+  public void endCommit(Object handle, int writes, int indexes, int views) {
+    CommitEvent event = (CommitEvent) handle;
+    event.end();
+    if (event.shouldCommit()) {
+      event.writes = writes;
+      event.indexes = indexes;
+      event.views = views;
+      event.commit();
+    }
+  }
+
+  public void endPlan(Object handle, Table table, Index index) {
+    PlanEvent event = (PlanEvent) handle;
+    event.end();
+    if (event.shouldCommit()) {
+      event.table = table.id;
+      event.index = describe(index);
+      event.commit();
+    }
+  }
+
+  public void endScan(Object handle, Table table, Index index,
+                      long rowsExamined, long rowsReturned)
+  {
+    ScanEvent event = (ScanEvent) handle;
+    event.end();
+    if (event.shouldCommit()) {
+      event.table = table.id;
+      event.index = describe(index);
+      event.rowsExamined = rowsExamined;
+      event.rowsReturned = rowsReturned;
+      event.commit();
+    }
+  }
+
+  public void endMessage(Object handle, String peer, Object message) {
+    MessageEvent event = (MessageEvent) handle;
+    event.end();
+    if (event.shouldCommit()) {
+      event.peer = peer;
+      event.type = message.getClass().getSimpleName();
+      event.commit();
+    }
+  }
+}
@@ -0,0 +1,36 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("revori.Merge")
+@Label("Merge")
+@Category("Revori")
+@Description("A three-way merge of revisions")
+class MergeEvent extends Event {
+  @Label("Tables")
+  @Description("Tables whose rows differed between the revisions")
+  int tables;
+
+  @Label("Indexes")
+  @Description("Index data trees updated or built")
+  int indexes;
+
+  @Label("Views")
+  @Description("View data trees updated or built")
+  int views;
+
+  @Label("Conflicts")
+  @Description("Conflicts passed to the ConflictResolver")
+  int conflicts;
+}
@@ -0,0 +1,22 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.jfr;
+
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+
+/**
+ * The fields common to SendEvent and ReceiveEvent.
+ */
+abstract class MessageEvent extends Event {
+  @Label("Peer")
+  String peer;
+
+  @Label("Message Type")
+  String type;
+}
@@ -0,0 +1,26 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("revori.Plan")
+@Label("Query Plan")
+@Category("Revori")
+@Description("The choice of index through which to scan a table")
+class PlanEvent extends Event {
+  @Label("Table")
+  String table;
+
+  @Label("Index")
+  String index;
+}
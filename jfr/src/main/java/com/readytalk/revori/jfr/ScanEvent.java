@@ -0,0 +1,32 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("revori.Scan")
+@Label("Table Scan")
+@Category("Revori")
+@Description("A scan of one table for a query")
+class ScanEvent extends Event {
+  @Label("Table")
+  String table;
+
+  @Label("Index")
+  String index;
+
+  @Label("Rows Examined")
+  long rowsExamined;
+
+  @Label("Rows Returned")
+  long rowsReturned;
+}
@@ -0,0 +1,63 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.metrics.dropwizard;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.codahale.metrics.MetricRegistry;
+import com.readytalk.revori.metrics.Counter;
+import com.readytalk.revori.metrics.Gauge;
+import com.readytalk.revori.metrics.Histogram;
+import com.readytalk.revori.metrics.Metrics;
+
+/**
+ * Reports Revori's instruments to a Dropwizard MetricRegistry, e.g.:
+ *
+ * <pre>
+ *   Instruments.install(new DropwizardMetrics(registry));
+ * </pre>
+ *
+ * Histograms use the registry's default reservoir, which is
+ * exponentially decaying and so favors recent values.
+ */
+@ThreadSafe
+public class DropwizardMetrics implements Metrics {
+  private final MetricRegistry registry;
+
+  public DropwizardMetrics(MetricRegistry registry) {
+    this.registry = registry;
+  }
+
+  public Counter counter(String name) {
+    final com.codahale.metrics.Counter counter = registry.counter(name);
+    return new Counter() {
+      public void increment(long delta) {
+        counter.inc(delta);
+      }
+    };
+  }
+
+  public Histogram histogram(String name) {
+    final com.codahale.metrics.Histogram histogram
+      = registry.histogram(name);
+    return new Histogram() {
+      public void record(long value) {
+        histogram.update(value);
+      }
+    };
+  }
+
+  public synchronized void gauge(String name, final Gauge gauge) {
+    registry.remove(name);
+    registry.register(name, new com.codahale.metrics.Gauge<Long>() {
+        public Long getValue() {
+          return gauge.value();
+        }
+      });
+  }
+}
@@ -27,7 +27,9 @@ codes = {
     1: OKGREEN,
     2: OKGREEN,
     3: OKGREEN,
-    4: WARNING
+    4: WARNING,
+    5: OKGREEN,
+    6: OKGREEN
 }
 
 class Prompt(object):
@@ -72,6 +74,9 @@ def present_prompt(p):
 
 def generate_output(value):
     output = ''
+    
+    if getattr(value, 'subscription', None) is not None:
+        output += 'subscription %d:\n' % value.subscription
                 
     if isinstance(value.message, str):
         output += value.message
@@ -143,6 +148,10 @@ def main():
     print('Type "help" to get started.\n' + ENDC);
     try:
         while True:
+            if not copying:
+                for notification in c.poll():
+                    printout(args.lines, notification)
+            
             value = present_prompt(p)
             
             if value == 'exit' or value == 'quit':
@@ -156,6 +165,9 @@ def main():
                 
                     result = send(c, value)
                     
+                    for notification in c.poll():
+                        printout(args.lines, notification)
+                    
                     printout(args.lines, result)
                 
                     if hasattr(result, 'database'):
@@ -2,6 +2,7 @@
 
 from __future__ import print_function, absolute_import
 
+import select
 import socket
 import struct
 
@@ -16,6 +17,7 @@ class RevoriConnection(object):
         self.socket.connect((host, port))
         self.frame = struct.Struct('> B I')
         self.header = struct.Struct('> B')
+        self.notifications = []
     
     def send(self, msg):
         smsg = self.frame.pack(*(0, len(msg))) + msg.encode('utf8')
@@ -24,6 +26,30 @@ class RevoriConnection(object):
         
         
     def recv(self):
+        while True:
+            retval = self._recv_one()
+            
+            if isinstance(retval, SubscriptionRowSet):
+                self.notifications.append(retval)
+            else:
+                return retval
+    
+    def poll(self):
+        """Returns any subscription updates received so far, reading
+        whatever the server has already sent without blocking."""
+        while select.select([self.socket], [], [], 0)[0]:
+            retval = self._recv_one()
+            
+            if isinstance(retval, SubscriptionRowSet):
+                self.notifications.append(retval)
+            else:
+                break
+        
+        notifications = self.notifications
+        self.notifications = []
+        return notifications
+    
+    def _recv_one(self):
         value = self.socket.recv(1)
         t = self.header.unpack(value)[0]
         
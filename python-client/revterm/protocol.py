@@ -140,10 +140,41 @@ class InternalError(Protocol):
         
         self.message = u"Unrecognized type: " + self.socket.recv(4096)
 
+class Subscribed(RowSet):
+    def __init__(self, socket):
+        RowSet.__init__(self, socket)
+        self.code = 5
+        self.subscription = None
+    
+    def read(self):
+        if self.wasread:
+            return
+        
+        self.subscription = self.next_size()
+        RowSet.read(self)
+
+class SubscriptionRowSet(RowSet):
+    """Rows pushed by the server for a subscription; these may arrive
+    at any time, including ahead of the response to a request."""
+    
+    def __init__(self, socket):
+        RowSet.__init__(self, socket)
+        self.code = 6
+        self.subscription = None
+    
+    def read(self):
+        if self.wasread:
+            return
+        
+        self.subscription = self.next_size()
+        RowSet.read(self)
+
 protocol = {
 	0: RowSet,
     1: NewDatabase,
     2: CopySuccess,
     3: Success,
     4: Error,
+    5: Subscribed,
+    6: SubscriptionRowSet,
 }
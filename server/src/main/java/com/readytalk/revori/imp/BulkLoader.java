@@ -0,0 +1,170 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.imp;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import javax.annotation.concurrent.NotThreadSafe;
+
+import com.readytalk.revori.Column;
+import com.readytalk.revori.Revision;
+import com.readytalk.revori.Table;
+
+/**
+ * Builds a revision from rows supplied in table and primary key
+ * order.  Each tree is constructed directly in balanced form, which
+ * avoids the searching and rebalancing a RevisionBuilder does for
+ * every insert.  Only primary key data is loaded; secondary indexes
+ * and views are not maintained.
+ */
+@NotThreadSafe
+public class BulkLoader {
+  private final Object token = new Object();
+  private final List<Table> tables = new ArrayList<Table>();
+  private final List<Node> tableTrees = new ArrayList<Node>();
+  private final List<Object[]> keys = new ArrayList<Object[]>();
+  private final List<Node> rows = new ArrayList<Node>();
+  private Table table;
+
+  /**
+   * Starts loading rows for the specified table, which must sort
+   * after any table previously passed to this method.
+   */
+  public void table(Table table) {
+    finishTable();
+
+    if (! tables.isEmpty()
+        && Compare.TableComparator.compare
+        (tables.get(tables.size() - 1), table) >= 0)
+    {
+      throw new IllegalArgumentException("tables out of order");
+    }
+
+    this.table = table;
+  }
+
+  /**
+   * Adds a row to the current table, specified as the first count
+   * elements of columns and values.  Every primary key column must be
+   * present, and the row must sort after any row previously added to
+   * this table.  Both arrays may be reordered by this method.
+   */
+  public void row(Column<?>[] columns, Object[] values, int count) {
+    if (table == null) {
+      throw new IllegalStateException("no table specified");
+    }
+
+    // rows are narrow, so a simple insertion sort will do
+    for (int i = 1; i < count; ++i) {
+      Column<?> column = columns[i];
+      Object value = values[i];
+      int j = i - 1;
+      while (j >= 0
+             && Compare.ColumnComparator.compare(columns[j], column) > 0)
+      {
+        columns[j + 1] = columns[j];
+        values[j + 1] = values[j];
+        -- j;
+      }
+      columns[j + 1] = column;
+      values[j + 1] = value;
+    }
+
+    List<Column<?>> keyColumns = table.primaryKey.columns;
+    Object[] key = new Object[keyColumns.size()];
+    for (int i = 0; i < key.length; ++i) {
+      Column<?> keyColumn = keyColumns.get(i);
+      for (int j = 0; j < count; ++j) {
+        if (columns[j].equals(keyColumn)) {
+          key[i] = values[j];
+          break;
+        }
+      }
+
+      if (key[i] == null) {
+        throw new IllegalArgumentException
+          ("missing value for primary key column " + keyColumn);
+      }
+    }
+
+    if (! keys.isEmpty() && compare(keys.get(keys.size() - 1), key) >= 0) {
+      throw new IllegalArgumentException("rows out of order");
+    }
+
+    keys.add(key);
+    rows.add(Node.build(token, columns, values, count));
+  }
+
+  /**
+   * Returns a revision containing everything loaded so far.
+   */
+  public Revision revision() {
+    finishTable();
+
+    return new DefaultRevision
+      (token, Node.build(token, tables.toArray(), tableTrees.toArray(),
+                         tables.size()));
+  }
+
+  private int compare(Object[] a, Object[] b) {
+    List<Column<?>> columns = table.primaryKey.columns;
+    for (int i = 0; i < a.length; ++i) {
+      int d = Compare.compare(a[i], b[i], columns.get(i).comparator);
+      if (d != 0) {
+        return d;
+      }
+    }
+    return 0;
+  }
+
+  private void finishTable() {
+    if (table != null) {
+      if (! rows.isEmpty()) {
+        Node index = build(0, 0, rows.size());
+
+        tables.add(table);
+        tableTrees.add
+          (Node.build(token, new Object[] { table.primaryKey },
+                      new Object[] { index }, 1));
+      }
+
+      keys.clear();
+      rows.clear();
+      table = null;
+    }
+  }
+
+  private Node build(int level, int start, int end) {
+    boolean last = level == table.primaryKey.columns.size() - 1;
+    Comparator comparator = table.primaryKey.columns.get(level).comparator;
+
+    List<Object> levelKeys = new ArrayList<Object>();
+    List<Object> levelValues = new ArrayList<Object>();
+    int i = start;
+    while (i < end) {
+      Object key = keys.get(i)[level];
+      if (last) {
+        levelKeys.add(key);
+        levelValues.add(rows.get(i));
+        ++ i;
+      } else {
+        int groupStart = i;
+        while (i < end && Compare.equal(key, keys.get(i)[level], comparator)) {
+          ++ i;
+        }
+        levelKeys.add(key);
+        levelValues.add(build(level + 1, groupStart, i));
+      }
+    }
+
+    return Node.build(token, levelKeys.toArray(), levelValues.toArray(),
+                      levelKeys.size());
+  }
+}
@@ -16,8 +16,18 @@ import javax.annotation.Nullable;
 import com.readytalk.revori.Expression;
 import com.readytalk.revori.QueryResult;
 import com.readytalk.revori.QueryTemplate;
+import com.readytalk.revori.metrics.Histogram;
+import com.readytalk.revori.metrics.Instruments;
+import com.readytalk.revori.trace.SlowLog;
 
 class DefaultQueryResult implements QueryResult {
+  private static final Histogram queryNanos = Instruments.histogram
+    ("revori.query.nanos");
+  private static final Histogram rowsScanned = Instruments.histogram
+    ("revori.query.rowsScanned");
+  private static final Histogram rowsReturned = Instruments.histogram
+    ("revori.query.rowsReturned");
+
   private static class ChangeFinder implements SourceAdapterVisitor {
     public final DefaultRevision base;
     public final DefaultRevision fork;
@@ -42,6 +52,8 @@ class DefaultQueryResult implements QueryResult {
     }
   }
 
+  private final QueryTemplate template;
+  private final Object[] parameters;
   private final SourceAdapter source;
   public final List<ExpressionAdapter> expressions;
   public final ExpressionContext expressionContext;
@@ -52,6 +64,12 @@ class DefaultQueryResult implements QueryResult {
   private final NodeStack forkStack;
   private SourceIterator iterator;
   private int nextItemIndex;
+  // when the current pass over the result started, if it's being
+  // timed, and how many rows it has returned so far
+  private long start;
+  private boolean timed;
+  private int returned;
+  private SlowLog slowLog;
 
   public DefaultQueryResult(DefaultRevision base,
                        @Nullable NodeStack baseStack,
@@ -108,6 +126,8 @@ class DefaultQueryResult implements QueryResult {
       }
     }
 
+    this.template = template;
+    this.parameters = parameters;
     this.base = base;
     this.fork = fork;
     this.baseStack = baseStack;
@@ -118,6 +138,12 @@ class DefaultQueryResult implements QueryResult {
 
   public void reset() {
     if (source != null) {
+      slowLog = SlowLog.installed();
+      timed = Instruments.enabled() || slowLog != null;
+      start = timed ? System.nanoTime() : 0;
+      returned = 0;
+      expressionContext.rowsExamined = 0;
+
       iterator = source.iterator
         (base, baseStack, fork, forkStack, test, expressionContext, false);
     }
@@ -128,7 +154,26 @@ class DefaultQueryResult implements QueryResult {
       return QueryResult.Type.End;
     } else {
       nextItemIndex = 0;
-      return iterator.nextRow();
+      QueryResult.Type type = iterator.nextRow();
+      if (timed) {
+        if (type == QueryResult.Type.End) {
+          timed = false;
+          long nanos = System.nanoTime() - start;
+          queryNanos.record(nanos);
+          rowsScanned.record(expressionContext.rowsExamined);
+          rowsReturned.record(returned);
+
+          if (slowLog != null && slowLog.admit(SlowLog.Kind.Query, nanos)) {
+            slowLog.logQuery
+              (nanos, QueryPlans.format(template, QueryPlans.IdNamer),
+               QueryPlans.explain(base, fork, template, parameters).toString(),
+               expressionContext.rowsExamined, returned);
+          }
+        } else {
+          ++ returned;
+        }
+      }
+      return type;
     }
   }
 
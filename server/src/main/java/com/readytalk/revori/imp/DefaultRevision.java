@@ -24,6 +24,7 @@ import com.readytalk.revori.QueryResult;
 import com.readytalk.revori.QueryTemplate;
 import com.readytalk.revori.Revision;
 import com.readytalk.revori.RevisionBuilder;
+import com.readytalk.revori.Table;
 import com.readytalk.revori.TableReference;
 import com.readytalk.revori.View;
 
@@ -43,6 +44,35 @@ public class DefaultRevision implements Revision {
     this.root = root;
   }
 
+  /**
+   * Returns true if the specified revisions share the subtree at the
+   * specified path, which consists of a table followed by zero or more
+   * of its primary key values, meaning nothing within it differs
+   * between them.  Since unchanged subtrees are shared by identity,
+   * this costs one search per path element rather than a diff.
+   */
+  public static boolean sameSubtree(Revision a, Revision b, Object[] path) {
+    Node aRoot = ((DefaultRevision) a).root;
+    Node bRoot = ((DefaultRevision) b).root;
+    if (aRoot == bRoot) {
+      return true;
+    }
+
+    Table table = (Table) path[0];
+    List<Column<?>> columns = table.primaryKey.columns;
+    Object[] myPath = new Object[(path.length + 1) * 2];
+    myPath[0] = table;
+    myPath[1] = Compare.TableComparator;
+    myPath[2] = table.primaryKey;
+    myPath[3] = Compare.IndexComparator;
+    for (int i = 1; i < path.length; ++i) {
+      myPath[(i + 1) * 2] = path[i];
+      myPath[((i + 1) * 2) + 1] = columns.get(i - 1).comparator;
+    }
+
+    return Node.pathFind(aRoot, myPath) == Node.pathFind(bRoot, myPath);
+  }
+
   public <T> T query(Column<T> column, Index index, Object ... indexValues) {
     Object[] path = new Object[indexValues.length + 2];
     path[0] = index;
@@ -42,6 +42,9 @@ import com.readytalk.revori.TableBuilder;
 import com.readytalk.revori.TableReference;
 import com.readytalk.revori.UpdateTemplate;
 import com.readytalk.revori.View;
+import com.readytalk.revori.trace.Recorder;
+import com.readytalk.revori.trace.SlowLog;
+import com.readytalk.revori.trace.Tracing;
 import com.readytalk.revori.util.Util;
 
 class DefaultRevisionBuilder implements RevisionBuilder {
@@ -70,6 +73,11 @@ class DefaultRevisionBuilder implements RevisionBuilder {
 	public DefaultRevision result;
 	private int max = -1;
 	private boolean dirtyIndexes;
+	// counted since this builder was created or last committed, for
+	// Recorder.endCommit
+	private int writes;
+	private int indexUpdates;
+	private int viewUpdates;
 
 	public DefaultRevisionBuilder(Object token, DefaultRevision base,
 			NodeStack stack) {
@@ -247,6 +255,8 @@ class DefaultRevisionBuilder implements RevisionBuilder {
 			NodeStack baseStack, NodeStack forkStack) {
 		checkArgument(!index.equals(index.table.primaryKey));
 
+		++indexUpdates;
+
 		TableIterator iterator = new TableIterator(reference(index.table),
 				base, baseStack, result, forkStack, ConstantAdapter.True,
 				new ExpressionContext(null, null), false);
@@ -330,6 +340,8 @@ class DefaultRevisionBuilder implements RevisionBuilder {
 
 	public void updateViewTree(View view, DefaultRevision base,
 			NodeStack baseStack, NodeStack forkStack) {
+		++viewUpdates;
+
 		if (log.isDebugEnabled()) { // Because Util.toString() may hurt
 									// performance.
 			log.debug("update {} diff {}", view, Util.toString(base, result));
@@ -898,6 +910,8 @@ class DefaultRevisionBuilder implements RevisionBuilder {
 	}
 
 	private void doDelete(Object[] keys) {
+		++writes;
+
 		if (keys.length == 0) {
 			deleteAll();
 			return;
@@ -939,6 +953,8 @@ class DefaultRevisionBuilder implements RevisionBuilder {
 			Table table, Column<?> column, Object value, Object[] path) {
 		prepareForUpdate(table);
 
+		++writes;
+
 		setKey(Constants.TableDataDepth, table, Compare.TableComparator);
 		setKey(Constants.IndexDataDepth, table.primaryKey,
 				Compare.IndexComparator);
@@ -1282,6 +1298,12 @@ class DefaultRevisionBuilder implements RevisionBuilder {
 			return result;
 		}
 
+		Recorder recorder = Tracing.recorder();
+		Object trace = recorder == null ? null : recorder
+				.begin(Recorder.Kind.Commit);
+		SlowLog slowLog = SlowLog.installed();
+		long start = slowLog == null ? 0 : System.nanoTime();
+
 		updateIndexes();
 
 		checkForeignKeys(foreignKeyResolver);
@@ -1292,6 +1314,17 @@ class DefaultRevisionBuilder implements RevisionBuilder {
 
 		base = indexBase = result;
 
+		if (trace != null) {
+			recorder.endCommit(trace, writes, indexUpdates, viewUpdates);
+		}
+		if (slowLog != null) {
+			long nanos = System.nanoTime() - start;
+			if (slowLog.admit(SlowLog.Kind.Commit, nanos)) {
+				slowLog.logCommit(nanos, writes, indexUpdates, viewUpdates);
+			}
+		}
+		writes = indexUpdates = viewUpdates = 0;
+
 		return result;
 	}
 
@@ -23,6 +23,9 @@ class ExpressionContext {
   public final Object[] parameters;
   public final List<ExpressionAdapter> queryExpressions;
   public int parameterIndex;
+  // rows examined by the TableIterators of a query, whether or not
+  // they passed its test, added by each once it reaches its end
+  public long rowsExamined;
 
   public ExpressionContext(@Nullable Object[] parameters, @Nullable List<ExpressionAdapter> queryExpressions) {
     this.parameters = parameters;
@@ -0,0 +1,251 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.imp;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+import com.readytalk.revori.Index;
+import com.readytalk.revori.Revision;
+import com.readytalk.revori.Table;
+import com.readytalk.revori.View;
+
+/**
+ * Estimates the memory retained by revisions.  Since revisions share
+ * structure, the interesting quantity is usually how much memory a
+ * revision retains beyond what a newer one already does, i.e. what
+ * would become garbage if the older one were dropped.
+ */
+public class Footprints {
+  /**
+   * A rough estimate of the size of a Node in bytes on a 64-bit VM
+   * with compressed references, not counting its key and value.
+   */
+  public static final int NodeBytes = 40;
+
+  private Footprints() { }
+
+  /**
+   * The nodes of one index data tree, i.e. of a table's rows as
+   * ordered by one of its indexes, including its primary key.  If the
+   * table holds the rows of a view, the view is identified as well.
+   */
+  public static class TreeFootprint {
+    public final Table table;
+    public final Index index;
+    public final @Nullable View view;
+    public final long nodes;
+    public final long estimatedBytes;
+
+    public TreeFootprint(Table table,
+                         Index index,
+                         @Nullable View view,
+                         long nodes)
+    {
+      this.table = table;
+      this.index = index;
+      this.view = view;
+      this.nodes = nodes;
+      this.estimatedBytes = nodes * NodeBytes;
+    }
+
+    public String toString() {
+      return "treeFootprint[" + index + (view == null ? "" : " " + view)
+        + " nodes " + nodes + " estimatedBytes " + estimatedBytes + "]";
+    }
+  }
+
+  /**
+   * Returns the number of tree nodes reachable from the specified
+   * revision which are not reachable from the other.<p>
+   *
+   * Because trees are persistent, a node shared by two revisions
+   * occupies the position of its key in both, so each node of the
+   * first revision is looked up by key in the second, and the subtree
+   * below it is skipped if the same node is found there.  The cost is
+   * thus proportional to the number of nodes which differ, times the
+   * depth of the trees, rather than to the size of the revisions.
+   */
+  public static long uniqueNodes(Revision revision, Revision other) {
+    if (revision == other) {
+      return 0;
+    }
+
+    return count(((DefaultRevision) revision).root,
+                 ((DefaultRevision) other).root,
+                 Constants.TableDataDepth, null);
+  }
+
+  /**
+   * Returns the number of tree nodes reachable from the specified
+   * revision.
+   */
+  public static long nodes(Revision revision) {
+    return uniqueNodes(revision, DefaultRevision.Empty);
+  }
+
+  /**
+   * Returns the footprint of each index data tree of the specified
+   * revision, including those of Revori's own tables of indexes,
+   * views and foreign keys, in table and index order.  The few nodes
+   * which link the trees to the revision's root are not included.
+   */
+  public static List<TreeFootprint> trees(Revision revision) {
+    return trees(revision, DefaultRevision.Empty);
+  }
+
+  /**
+   * Returns the footprint of each index data tree of the specified
+   * revision counting only nodes which are not reachable from the
+   * other, i.e. those which the first revision alone retains, as
+   * uniqueNodes does.  Trees which share all their nodes with the
+   * other revision are omitted.
+   */
+  public static List<TreeFootprint> trees(Revision revision,
+                                          Revision other)
+  {
+    List<TreeFootprint> result = new ArrayList<TreeFootprint>();
+    if (revision != other) {
+      DefaultRevision r = (DefaultRevision) revision;
+
+      Map<Table, View> views = new HashMap<Table, View>();
+      findViews(Node.pathFind
+                (r.root, Constants.ViewTable, Compare.TableComparator,
+                 Constants.ViewTable.primaryKey, Compare.IndexComparator),
+                views);
+
+      trees(r.root, ((DefaultRevision) other).root, views, result);
+    }
+    return result;
+  }
+
+  private static void findViews(Node n, Map<Table, View> views) {
+    if (n != Node.Null) {
+      findViews(n.left, views);
+      for (View view: keys((Node) n.value)) {
+        views.put(view.table, view);
+      }
+      findViews(n.right, views);
+    }
+  }
+
+  private static List<View> keys(Node n) {
+    List<View> keys = new ArrayList<View>();
+    keys(n, keys);
+    return keys;
+  }
+
+  private static void keys(Node n, List<View> keys) {
+    if (n != Node.Null) {
+      keys(n.left, keys);
+      keys.add((View) n.key);
+      keys(n.right, keys);
+    }
+  }
+
+  private static void trees(Node table,
+                            Node otherRoot,
+                            Map<Table, View> views,
+                            List<TreeFootprint> result)
+  {
+    if (table == Node.Null) {
+      return;
+    }
+
+    trees(table.left, otherRoot, views, result);
+
+    Node otherTable = otherRoot == Node.Null ? Node.Null : Node.find
+      (otherRoot, table.key, Compare.TableComparator);
+    if (otherTable != table) {
+      indexTrees(table, (Node) table.value,
+                 otherTable == Node.Null
+                 ? Node.Null : (Node) otherTable.value,
+                 views.get((Table) table.key), result);
+    }
+
+    trees(table.right, otherRoot, views, result);
+  }
+
+  private static void indexTrees(Node table,
+                                 Node index,
+                                 Node otherIndexRoot,
+                                 View view,
+                                 List<TreeFootprint> result)
+  {
+    if (index == Node.Null) {
+      return;
+    }
+
+    indexTrees(table, index.left, otherIndexRoot, view, result);
+
+    Node otherIndex = otherIndexRoot == Node.Null ? Node.Null : Node.find
+      (otherIndexRoot, index.key, Compare.IndexComparator);
+    if (otherIndex != index) {
+      result.add
+        (new TreeFootprint
+         ((Table) table.key, (Index) index.key, view,
+          1 + count((Node) index.value,
+                    otherIndex == Node.Null
+                    ? Node.Null : (Node) otherIndex.value,
+                    Constants.IndexDataBodyDepth, (Index) index.key)));
+    }
+
+    indexTrees(table, index.right, otherIndexRoot, view, result);
+  }
+
+  private static long count(Node n, Node otherRoot, int depth, Index index) {
+    if (n == Node.Null) {
+      return 0;
+    }
+
+    Node match = otherRoot == Node.Null
+      ? Node.Null : Node.find(otherRoot, n.key, comparator(depth, index));
+    if (match == n) {
+      return 0;
+    }
+
+    long count = 1;
+
+    // below the table and index levels, each index column adds a
+    // level of trees, and the values of the last are the row trees,
+    // whose values are column values rather than trees
+    Index childIndex = depth == Constants.IndexDataDepth
+      ? (Index) n.key : index;
+    if (childIndex == null
+        || depth < Constants.IndexDataBodyDepth + childIndex.columns.size())
+    {
+      count += count((Node) n.value,
+                     match == Node.Null ? Node.Null : (Node) match.value,
+                     depth + 1, childIndex);
+    }
+
+    return count
+      + count(n.left, otherRoot, depth, index)
+      + count(n.right, otherRoot, depth, index);
+  }
+
+  private static Comparator comparator(int depth, Index index) {
+    if (depth == Constants.TableDataDepth) {
+      return Compare.TableComparator;
+    } else if (depth == Constants.IndexDataDepth) {
+      return Compare.IndexComparator;
+    } else {
+      int column = depth - Constants.IndexDataBodyDepth;
+      if (column < index.columns.size()) {
+        return index.columns.get(column).comparator;
+      } else {
+        return Compare.ColumnComparator;
+      }
+    }
+  }
+}
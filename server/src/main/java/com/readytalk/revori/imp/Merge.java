@@ -19,6 +19,9 @@ import com.readytalk.revori.ForeignKeyResolver;
 import com.readytalk.revori.Index;
 import com.readytalk.revori.Table;
 import com.readytalk.revori.View;
+import com.readytalk.revori.trace.Recorder;
+import com.readytalk.revori.trace.SlowLog;
+import com.readytalk.revori.trace.Tracing;
 
 class Merge {
   public static DefaultRevision mergeRevisions
@@ -53,6 +56,14 @@ class Merge {
     //
     //  4. Verify foreign key constraints.
 
+    Recorder recorder = Tracing.recorder();
+    Object trace = recorder == null
+      ? null : recorder.begin(Recorder.Kind.Merge);
+    SlowLog slowLog = SlowLog.installed();
+    long start = slowLog == null ? 0 : System.nanoTime();
+    int tablesTouched = 0;
+    int conflicts = 0;
+
     DefaultRevisionBuilder builder = new DefaultRevisionBuilder
       (new Object(), left, new NodeStack());
 
@@ -152,6 +163,8 @@ class Merge {
             : triple.base.key;
 
           if (conflict) {
+            ++ conflicts;
+
             Object[] primaryKeyValues = new Object
               [depth - Constants.IndexDataBodyDepth];
 
@@ -189,6 +202,8 @@ class Merge {
                 continue;
               }
 
+              ++ tablesTouched;
+
               nextComparator = Compare.IndexComparator;
 
               { DiffIterator indexIterator = new DiffIterator
@@ -353,6 +368,21 @@ class Merge {
     // Node.dump(builder.result.root, System.out, 1);
     // System.out.println();
 
+    if (trace != null) {
+      recorder.endMerge(trace, tablesTouched,
+                        indexes.size() + newIndexes.size(),
+                        views.size() + newViews.size(), conflicts);
+    }
+
+    if (slowLog != null) {
+      long nanos = System.nanoTime() - start;
+      if (slowLog.admit(SlowLog.Kind.Merge, nanos)) {
+        slowLog.logMerge(nanos, tablesTouched,
+                         indexes.size() + newIndexes.size(),
+                         views.size() + newViews.size(), conflicts);
+      }
+    }
+
     if (left.equals(builder.result)) {
       return left;
     } else if (base.equals(builder.result)) {
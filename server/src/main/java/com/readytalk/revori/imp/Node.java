@@ -74,6 +74,49 @@ public class Node {
     return Null;
   }
 
+  /**
+   * Builds a tree from the first size elements of keys and values,
+   * which must already be sorted by the tree's comparator.  The tree
+   * is built in balanced form in one pass, with the nodes on the
+   * bottom, incomplete level colored red so the result is a valid
+   * red-black tree.
+   */
+  public static Node build(Object token,
+                           Object[] keys,
+                           Object[] values,
+                           int size)
+  {
+    int completeLevels = 0;
+    while ((2 << completeLevels) - 1 <= size) {
+      ++ completeLevels;
+    }
+
+    return build(token, keys, values, 0, size, 0, completeLevels);
+  }
+
+  private static Node build(Object token,
+                            Object[] keys,
+                            Object[] values,
+                            int start,
+                            int end,
+                            int depth,
+                            int redDepth)
+  {
+    if (start == end) {
+      return Null;
+    }
+
+    int middle = (start + end) >>> 1;
+    Node n = new Node(token, null);
+    n.key = keys[middle];
+    n.value = values[middle];
+    n.left = build(token, keys, values, start, middle, depth + 1, redDepth);
+    n.right = build(token, keys, values, middle + 1, end, depth + 1,
+                    redDepth);
+    n.red = depth == redDepth;
+    return n;
+  }
+
   private static Node leftRotate(Object token, Node n) {
     if (Debug) checkArgument(n.token == token);
     Node child = getNode(token, n.right);
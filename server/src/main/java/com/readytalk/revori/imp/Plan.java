@@ -11,6 +11,8 @@ import com.google.common.collect.Lists;
 import com.readytalk.revori.Column;
 import com.readytalk.revori.Index;
 import com.readytalk.revori.TableReference;
+import com.readytalk.revori.trace.Recorder;
+import com.readytalk.revori.trace.Tracing;
 
 class Plan {
   public final Index index;
@@ -100,6 +102,10 @@ class Plan {
                                 ExpressionAdapter test,
                                 TableReference tableReference)
   {
+    Recorder recorder = Tracing.recorder();
+    Object trace = recorder == null
+      ? null : recorder.begin(Recorder.Kind.Plan);
+
     Plan best = improvePlan
       (null, tableReference.table.primaryKey, test, tableReference);
 
@@ -142,6 +148,10 @@ class Plan {
     baseStack.popStack();
     forkStack.popStack();
 
+    if (trace != null) {
+      recorder.endPlan(trace, tableReference.table, best.index);
+    }
+
     return best;
   }
 
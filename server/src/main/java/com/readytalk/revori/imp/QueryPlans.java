@@ -0,0 +1,526 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.imp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import com.readytalk.revori.Aggregate;
+import com.readytalk.revori.BinaryOperation;
+import com.readytalk.revori.Column;
+import com.readytalk.revori.ColumnReference;
+import com.readytalk.revori.Constant;
+import com.readytalk.revori.Expression;
+import com.readytalk.revori.Index;
+import com.readytalk.revori.Join;
+import com.readytalk.revori.Parameter;
+import com.readytalk.revori.QueryResult;
+import com.readytalk.revori.QueryTemplate;
+import com.readytalk.revori.Revision;
+import com.readytalk.revori.Source;
+import com.readytalk.revori.TableReference;
+import com.readytalk.revori.UnaryOperation;
+
+/**
+ * Describes how queries are executed, for diagnosing slow queries
+ * and deciding which indexes to add.<p>
+ *
+ * A query is a tree of operators: a scan of each table it
+ * references, through the index chosen by the planner and restricted
+ * to the intervals of that index's leading columns implied by the
+ * query's test, and a nested loop join for each join.  The inner
+ * (right) side of a join is planned again for each row of its outer
+ * side, using the values from that row, so in an explanation those
+ * values are shown as "?".
+ */
+public class QueryPlans {
+  private QueryPlans() { }
+
+  /**
+   * Names tables and columns when formatting an Operator.
+   */
+  public interface Namer {
+    public String name(TableReference reference);
+
+    public String name(Column<?> column);
+  }
+
+  /**
+   * Names tables and columns by their IDs.
+   */
+  public static final Namer IdNamer = new Namer() {
+      public String name(TableReference reference) {
+        return reference.table.id;
+      }
+
+      public String name(Column<?> column) {
+        return column.id;
+      }
+    };
+
+  /**
+   * The intervals to which a scan restricts one column of its index,
+   * formatted e.g. as "[1, 1]" or "(5, +inf) or [?, ?]".
+   */
+  public static class Restriction {
+    public final Column<?> column;
+    public final String intervals;
+
+    public Restriction(Column<?> column, String intervals) {
+      this.column = column;
+      this.intervals = intervals;
+    }
+  }
+
+  /**
+   * A scan or a join.  Scans have a table reference, index and
+   * restrictions, and joins a join type and two children.<p>
+   *
+   * The statistics are only meaningful if the query was analyzed.
+   * Times include those of an operator's children, as well as that
+   * spent planning each scan.
+   */
+  public static class Operator {
+    public final @Nullable Join.Type joinType;
+    public final @Nullable TableReference tableReference;
+    public final @Nullable Index index;
+    public final List<Restriction> restrictions;
+    public final List<Operator> children;
+    public boolean analyzed;
+    // the number of times the operator was started, which for the
+    // inner side of a join is once per row of the outer side
+    public long loops;
+    public long rowsExamined;
+    public long rowsReturned;
+    public long nanos;
+
+    private Operator(Join.Type joinType, Operator left, Operator right) {
+      this.joinType = joinType;
+      this.tableReference = null;
+      this.index = null;
+      this.restrictions = Collections.emptyList();
+      this.children = new ArrayList<Operator>(2);
+      children.add(left);
+      children.add(right);
+    }
+
+    private Operator(TableReference tableReference,
+                     Index index,
+                     List<Restriction> restrictions)
+    {
+      this.joinType = null;
+      this.tableReference = tableReference;
+      this.index = index;
+      this.restrictions = restrictions;
+      this.children = Collections.emptyList();
+    }
+
+    /**
+     * Returns a description of this operator and its children, one
+     * per line, with children indented below their parent.
+     */
+    public String format(Namer namer) {
+      StringBuilder sb = new StringBuilder();
+      format(namer, sb, 0);
+      return sb.toString();
+    }
+
+    private void format(Namer namer, StringBuilder sb, int depth) {
+      for (int i = 0; i < depth; ++i) {
+        sb.append("  ");
+      }
+
+      if (joinType != null) {
+        sb.append(joinType == Join.Type.LeftOuter ? "left" : "inner")
+          .append(" join (nested loop)");
+      } else {
+        sb.append("scan ").append(namer.name(tableReference)).append(" using ")
+          .append(index.isPrimary() ? "primary key" : "index").append(" (");
+        for (int i = 0; i < index.columns.size(); ++i) {
+          if (i > 0) {
+            sb.append(", ");
+          }
+          sb.append(namer.name(index.columns.get(i)));
+        }
+        sb.append(")");
+
+        for (int i = 0; i < restrictions.size(); ++i) {
+          Restriction r = restrictions.get(i);
+          sb.append(i == 0 ? ": " : " and ").append(namer.name(r.column))
+            .append(" in ").append(r.intervals);
+        }
+      }
+
+      if (analyzed) {
+        sb.append(" -- loops ").append(loops);
+        if (joinType == null) {
+          sb.append(", examined ").append(rowsExamined);
+        }
+        sb.append(", returned ").append(rowsReturned)
+          .append(String.format(", %.3f ms", nanos / 1000000D));
+      }
+
+      sb.append("\n");
+
+      for (Operator child: children) {
+        child.format(namer, sb, depth + 1);
+      }
+    }
+
+    public String toString() {
+      return format(IdNamer);
+    }
+  }
+
+  /**
+   * Returns the plan by which a diff of the specified revisions
+   * according to the specified query would be executed, without
+   * executing it.
+   */
+  public static Operator explain(Revision base,
+                                 Revision fork,
+                                 QueryTemplate template,
+                                 Object ... parameters)
+  {
+    Query query = new Query(template, parameters);
+    return explain(query.source, query.expressionContext, query.test,
+                   (DefaultRevision) base, (DefaultRevision) fork);
+  }
+
+  /**
+   * Executes a diff of the specified revisions according to the
+   * specified query, reading every row and item of the result, and
+   * returns its plan with the statistics gathered while doing so.
+   */
+  public static Operator analyze(Revision base,
+                                 Revision fork,
+                                 QueryTemplate template,
+                                 Object ... parameters)
+  {
+    Query query = new Query(template, parameters);
+    Operator plan = explain(query.source, query.expressionContext, query.test,
+                            (DefaultRevision) base, (DefaultRevision) fork);
+
+    SourceIterator iterator = analyzer(query.source, plan).iterator
+      ((DefaultRevision) base, new NodeStack(), (DefaultRevision) fork,
+       new NodeStack(), query.test, query.expressionContext, false);
+
+    while (iterator.nextRow() != QueryResult.Type.End) {
+      for (ExpressionAdapter e: query.expressions) {
+        e.evaluate(true);
+      }
+    }
+
+    return plan;
+  }
+
+  /**
+   * Returns a SQL-like description of the specified query, e.g.
+   * "select name from users where (team = ?) and (id > 5)", with
+   * parameters shown as "?".
+   */
+  public static String format(QueryTemplate template, Namer namer) {
+    StringBuilder sb = new StringBuilder("select ");
+    for (int i = 0; i < template.expressions.size(); ++i) {
+      if (i > 0) {
+        sb.append(", ");
+      }
+      format(template.expressions.get(i), namer, sb);
+    }
+
+    sb.append(" from ");
+    format(template.source, namer, sb);
+
+    if (! (template.test instanceof Constant
+           && Boolean.TRUE.equals(((Constant) template.test).value)))
+    {
+      sb.append(" where ");
+      format(template.test, namer, sb);
+    }
+
+    return sb.toString();
+  }
+
+  private static void format(Source source, Namer namer, StringBuilder sb) {
+    if (source instanceof Join) {
+      Join join = (Join) source;
+      sb.append("(");
+      format(join.left, namer, sb);
+      sb.append(join.type == Join.Type.LeftOuter
+                ? " left join " : " inner join ");
+      format(join.right, namer, sb);
+      sb.append(")");
+    } else {
+      sb.append(namer.name((TableReference) source));
+    }
+  }
+
+  private static void format(Expression expression,
+                             Namer namer,
+                             StringBuilder sb)
+  {
+    if (expression instanceof ColumnReference) {
+      sb.append(namer.name(((ColumnReference<?>) expression).column));
+    } else if (expression instanceof Constant) {
+      sb.append(format(((Constant) expression).value, "null"));
+    } else if (expression instanceof Parameter) {
+      sb.append("?");
+    } else if (expression instanceof BinaryOperation) {
+      BinaryOperation operation = (BinaryOperation) expression;
+      formatOperand(operation.leftOperand, namer, sb);
+      sb.append(" ").append(operator(operation.type)).append(" ");
+      formatOperand(operation.rightOperand, namer, sb);
+    } else if (expression instanceof UnaryOperation) {
+      UnaryOperation operation = (UnaryOperation) expression;
+      if (operation.type == UnaryOperation.Type.Not) {
+        sb.append("not ");
+        formatOperand(operation.operand, namer, sb);
+      } else {
+        formatOperand(operation.operand, namer, sb);
+        sb.append(" is null");
+      }
+    } else if (expression instanceof Aggregate) {
+      Aggregate<?> aggregate = (Aggregate<?>) expression;
+      sb.append("aggregate(");
+      for (int i = 0; i < aggregate.expressions.size(); ++i) {
+        if (i > 0) {
+          sb.append(", ");
+        }
+        format(aggregate.expressions.get(i), namer, sb);
+      }
+      sb.append(")");
+    } else {
+      sb.append(expression.getClass().getSimpleName());
+    }
+  }
+
+  private static void formatOperand(Expression expression,
+                                    Namer namer,
+                                    StringBuilder sb)
+  {
+    if (expression instanceof BinaryOperation
+        || expression instanceof UnaryOperation)
+    {
+      sb.append("(");
+      format(expression, namer, sb);
+      sb.append(")");
+    } else {
+      format(expression, namer, sb);
+    }
+  }
+
+  private static String operator(BinaryOperation.Type type) {
+    switch (type) {
+    case And: return "and";
+    case Or: return "or";
+    case Equal: return "=";
+    case NotEqual: return "<>";
+    case LessThan: return "<";
+    case LessThanOrEqual: return "<=";
+    case GreaterThan: return ">";
+    case GreaterThanOrEqual: return ">=";
+    default: throw new RuntimeException("unexpected operation type: " + type);
+    }
+  }
+
+  private static Operator explain(SourceAdapter adapter,
+                                  ExpressionContext expressionContext,
+                                  ExpressionAdapter test,
+                                  DefaultRevision base,
+                                  DefaultRevision fork)
+  {
+    if (adapter instanceof JoinAdapter) {
+      JoinAdapter join = (JoinAdapter) adapter;
+      Operator left = explain
+        (join.left, expressionContext, test, base, fork);
+
+      // the inner side is planned knowing the values of the current
+      // row of the outer side, which is what Dummy stands for
+      join.left.visit(expressionContext, new ColumnReferenceAdapterVisitor() {
+          public void visit(ColumnReferenceAdapter r) {
+            r.value = Compare.Dummy;
+          }
+        });
+
+      Operator right = explain
+        (join.right, expressionContext, test, base, fork);
+
+      join.left.visit(expressionContext, new ColumnReferenceAdapterVisitor() {
+          public void visit(ColumnReferenceAdapter r) {
+            r.value = Compare.Undefined;
+          }
+        });
+
+      return new Operator(join.type, left, right);
+    } else {
+      TableReference tableReference = ((TableAdapter) adapter).tableReference;
+      Plan plan = Plan.choosePlan
+        (base, new NodeStack(), fork, new NodeStack(), test, tableReference);
+
+      List<Restriction> restrictions = new ArrayList<Restriction>();
+      for (int i = 0; i < plan.size; ++i) {
+        Scan scan = plan.scans[i];
+        if (! scan.isUseful()) {
+          // later columns can't narrow the scan without this one
+          break;
+        }
+
+        restrictions.add
+          (new Restriction(plan.index.columns.get(i), format(scan)));
+      }
+
+      return new Operator(tableReference, plan.index, restrictions);
+    }
+  }
+
+  private static String format(Scan scan) {
+    if (scan == IntervalScan.Empty) {
+      return "nothing";
+    }
+
+    StringBuilder sb = new StringBuilder();
+    for (Interval interval: scan.evaluate()) {
+      if (sb.length() != 0) {
+        sb.append(" or ");
+      }
+
+      sb.append(interval.lowBoundType == Interval.BoundType.Inclusive
+                && interval.low != Compare.Undefined ? "[" : "(")
+        .append(format(interval.low, "-inf")).append(", ")
+        .append(format(interval.high, "+inf"))
+        .append(interval.highBoundType == Interval.BoundType.Inclusive
+                && interval.high != Compare.Undefined ? "]" : ")");
+    }
+    return sb.toString();
+  }
+
+  private static String format(Object value, String unbounded) {
+    if (value == Compare.Undefined) {
+      return unbounded;
+    } else if (value == Compare.Dummy) {
+      return "?";
+    } else if (value instanceof String) {
+      return "'" + value + "'";
+    } else {
+      return String.valueOf(value);
+    }
+  }
+
+  /**
+   * Returns an adapter equivalent to the specified one which gathers
+   * statistics into the specified operator and its children.
+   */
+  private static SourceAdapter analyzer(SourceAdapter adapter,
+                                        Operator operator)
+  {
+    if (adapter instanceof JoinAdapter) {
+      JoinAdapter join = (JoinAdapter) adapter;
+      adapter = new JoinAdapter
+        (join.type, analyzer(join.left, operator.children.get(0)),
+         analyzer(join.right, operator.children.get(1)));
+    }
+
+    return new AnalyzingAdapter(adapter, operator);
+  }
+
+  private static class Query {
+    public final SourceAdapter source;
+    public final List<ExpressionAdapter> expressions;
+    public final ExpressionContext expressionContext;
+    public final ExpressionAdapter test;
+
+    public Query(QueryTemplate template, Object[] parameters) {
+      source = SourceAdapterFactory.makeAdapter(template.source);
+
+      expressions = new ArrayList<ExpressionAdapter>
+        (template.expressions.size());
+
+      expressionContext = new ExpressionContext(parameters, expressions);
+
+      for (Expression e: template.expressions) {
+        expressions.add
+          (ExpressionAdapterFactory.makeAdapter(expressionContext, e));
+      }
+
+      test = ExpressionAdapterFactory.makeAdapter
+        (expressionContext, template.test);
+    }
+  }
+
+  private static class AnalyzingAdapter implements SourceAdapter {
+    private final SourceAdapter adapter;
+    private final Operator operator;
+
+    public AnalyzingAdapter(SourceAdapter adapter, Operator operator) {
+      this.adapter = adapter;
+      this.operator = operator;
+      operator.analyzed = true;
+    }
+
+    public SourceIterator iterator(DefaultRevision base,
+                                   NodeStack baseStack,
+                                   DefaultRevision fork,
+                                   NodeStack forkStack,
+                                   ExpressionAdapter test,
+                                   ExpressionContext expressionContext,
+                                   boolean visitUnchanged)
+    {
+      long start = System.nanoTime();
+      SourceIterator iterator = adapter.iterator
+        (base, baseStack, fork, forkStack, test, expressionContext,
+         visitUnchanged);
+      operator.nanos += System.nanoTime() - start;
+      ++ operator.loops;
+
+      return new AnalyzingIterator(iterator, operator);
+    }
+
+    public void visit(SourceAdapterVisitor visitor) {
+      adapter.visit(visitor);
+    }
+
+    public void visit(ExpressionContext expressionContext,
+                      ColumnReferenceAdapterVisitor visitor)
+    {
+      adapter.visit(expressionContext, visitor);
+    }
+  }
+
+  private static class AnalyzingIterator implements SourceIterator {
+    private final SourceIterator iterator;
+    private final Operator operator;
+
+    public AnalyzingIterator(SourceIterator iterator, Operator operator) {
+      this.iterator = iterator;
+      this.operator = operator;
+    }
+
+    public QueryResult.Type nextRow() {
+      long start = System.nanoTime();
+      QueryResult.Type type = iterator.nextRow();
+      operator.nanos += System.nanoTime() - start;
+
+      if (type == QueryResult.Type.End) {
+        if (iterator instanceof TableIterator) {
+          operator.rowsExamined += ((TableIterator) iterator).rowsExamined();
+        }
+      } else {
+        ++ operator.rowsReturned;
+      }
+
+      return type;
+    }
+
+    public boolean rowUpdated() {
+      return iterator.rowUpdated();
+    }
+  }
+}
@@ -18,6 +18,8 @@ import org.slf4j.LoggerFactory;
 import com.readytalk.revori.QueryResult;
 import com.readytalk.revori.TableReference;
 import com.readytalk.revori.imp.DiffIterator.DiffPair;
+import com.readytalk.revori.trace.Recorder;
+import com.readytalk.revori.trace.Tracing;
 
 class TableIterator implements SourceIterator {
   private static final Logger log = LoggerFactory.getLogger(TableIterator.class);
@@ -30,10 +32,14 @@ class TableIterator implements SourceIterator {
   private final boolean visitUnchanged;
   private final List<ColumnReferenceAdapter> columnReferences = new ArrayList<ColumnReferenceAdapter>();
   private final Plan plan;
+  private final Recorder recorder;
+  private final Object trace;
   public final DiffPair pair = new DiffPair();
   private NodeStack baseStack;
   private NodeStack forkStack;
   private int depth;
+  private long rowsExamined;
+  private long rowsReturned;
   public boolean testFork;
 
   public TableIterator(TableReference tableReference,
@@ -55,6 +61,9 @@ class TableIterator implements SourceIterator {
     this.expressionContext = expressionContext;
     this.visitUnchanged = visitUnchanged;
     this.plan = plan;
+    this.recorder = Tracing.recorder();
+    this.trace = recorder == null
+      ? null : recorder.begin(Recorder.Kind.Scan);
 
     // System.out.println("base:");
     // Node.dump(this.base, System.out, 1);
@@ -104,6 +113,20 @@ class TableIterator implements SourceIterator {
   }
 
   public QueryResult.Type nextRow() {
+    QueryResult.Type type = next();
+    if (type == QueryResult.Type.End) {
+      expressionContext.rowsExamined += rowsExamined;
+      if (trace != null) {
+        recorder.endScan(trace, tableReference.table, plan.index,
+                         rowsExamined, rowsReturned);
+      }
+    } else {
+      ++ rowsReturned;
+    }
+    return type;
+  }
+
+  private QueryResult.Type next() {
     if (testFork) {
       testFork = false;
       if (test(pair.fork)) {
@@ -115,6 +138,8 @@ class TableIterator implements SourceIterator {
       log.trace("depth: {}\n\tkey: {}", depth, (Constants.IndexDataBodyDepth + tableReference.table.primaryKey.columns.size()));
       if (plan.iterators[depth].next(pair)) {
         if (depth == plan.size - 1) {
+          ++ rowsExamined;
+
           if (test(pair.base)) {
             if (pair.fork == null) {
               return QueryResult.Type.Deleted;
@@ -165,6 +190,14 @@ class TableIterator implements SourceIterator {
     }
   }
 
+  /**
+   * Returns the number of rows examined so far, whether or not they
+   * passed the test.
+   */
+  public long rowsExamined() {
+    return rowsExamined;
+  }
+
   public boolean rowUpdated() {
     // TODO: this is a really ugly way to avoid affecting the expression evaluation results
     // The real problem is that test(pair.fork) is side-affecting - it causes
@@ -0,0 +1,15 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.metrics;
+
+/**
+ * A value which is sampled on demand, such as a queue length.
+ */
+public interface Gauge {
+  public long value();
+}
@@ -0,0 +1,17 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.metrics;
+
+/**
+ * A distribution of values, such as latencies.  By convention, the
+ * names of histograms of durations end in ".nanos", and the values
+ * recorded are in nanoseconds.
+ */
+public interface Histogram {
+  public void record(long value);
+}
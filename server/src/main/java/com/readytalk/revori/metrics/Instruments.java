@@ -0,0 +1,183 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * The process-wide Metrics registry to which Revori reports, and the
+ * instruments through which it does so.<p>
+ *
+ * Revori's classes obtain their instruments from this class once, as
+ * static fields, before any registry is installed.  Each instrument
+ * therefore forwards to the corresponding one in whichever registry
+ * is currently installed, looking it up again after each call to
+ * install.  Until a registry is installed, instruments do nothing, and
+ * code which would do extra work to produce a value (e.g. read the
+ * clock) checks enabled first.<p>
+ *
+ * The instruments are:<p>
+ *
+ * <ul><li>revori.server.merge.nanos: the time taken by
+ * SimpleRevisionServer.merge</li>
+ *
+ * <li>revori.server.merge.retries: merges SimpleRevisionServer had to
+ * redo because the head changed while merging</li>
+ *
+ * <li>revori.server.merge.conflicts: conflicts passed to
+ * SimpleRevisionServer's ConflictResolver</li>
+ *
+ * <li>revori.query.nanos: the time from starting a query until its
+ * last row was read</li>
+ *
+ * <li>revori.query.rowsScanned and revori.query.rowsReturned: rows
+ * examined and returned by each query</li>
+ *
+ * <li>revori.epidemic.messagesSent and
+ * revori.epidemic.messagesReceived: messages exchanged by
+ * EpidemicServers, in total and, with the suffix ".&lt;peer&gt;", per
+ * peer</li>
+ *
+ * <li>revori.epidemic.lag.&lt;node&gt;.&lt;peer&gt;: a gauge of the
+ * number of the node's revisions which the peer has yet to
+ * acknowledge</li>
+ *
+ * <li>revori.epidemic.records.retained.&lt;node&gt; and
+ * revori.epidemic.revisions.pinned.&lt;node&gt;: gauges of the number
+ * of records the node's EpidemicServer retains for replication, and
+ * of distinct revisions those records hold</li>
+ *
+ * <li>revori.network.bytesSent and revori.network.bytesReceived:
+ * bytes exchanged by NioNetworks, in total and per peer as above</li>
+ *
+ * <li>revori.sql.request.nanos and revori.sql.request.errors: the
+ * time taken by each SQLServer request, and those which failed</li></ul>
+ */
+@ThreadSafe
+public class Instruments {
+  private static final Object lock = new Object();
+  private static volatile Metrics metrics = Metrics.Noop;
+  private static volatile int generation;
+  // guarded by lock
+  private static final Map<String, Gauge> gauges
+    = new LinkedHashMap<String, Gauge>();
+
+  private Instruments() { }
+
+  /**
+   * Makes the specified registry the one to which all instruments
+   * report from now on.  Gauges registered so far are registered with
+   * it as well.
+   */
+  public static void install(Metrics metrics) {
+    synchronized (lock) {
+      Instruments.metrics = metrics;
+      ++ generation;
+
+      for (Map.Entry<String, Gauge> e: gauges.entrySet()) {
+        metrics.gauge(e.getKey(), e.getValue());
+      }
+    }
+  }
+
+  public static Metrics installed() {
+    return metrics;
+  }
+
+  /**
+   * Returns true if a registry other than Metrics.Noop is installed.
+   */
+  public static boolean enabled() {
+    return metrics != Metrics.Noop;
+  }
+
+  public static Counter counter(String name) {
+    return new ForwardingCounter(name);
+  }
+
+  public static Histogram histogram(String name) {
+    return new ForwardingHistogram(name);
+  }
+
+  /**
+   * Registers the specified gauge with the current registry and any
+   * installed later.
+   */
+  public static void gauge(String name, Gauge gauge) {
+    synchronized (lock) {
+      gauges.put(name, gauge);
+      metrics.gauge(name, gauge);
+    }
+  }
+
+  /**
+   * Forgets the gauge registered under the specified name, so that
+   * it's not registered with registries installed later.
+   */
+  public static void removeGauge(String name) {
+    synchronized (lock) {
+      gauges.remove(name);
+    }
+  }
+
+  // The forwarding instruments below look up their delegate again
+  // whenever the generation has changed since they last did.  The
+  // generation and delegate are published together through an
+  // immutable Binding in a volatile field, so a thread never sees one
+  // without the other.  Racing lookups are harmless, since Metrics
+  // implementations return equivalent instruments for the same name.
+
+  private static class Binding<T> {
+    public final int generation;
+    public final T delegate;
+
+    public Binding(int generation, T delegate) {
+      this.generation = generation;
+      this.delegate = delegate;
+    }
+  }
+
+  private static class ForwardingCounter implements Counter {
+    private final String name;
+    private volatile Binding<Counter> binding;
+
+    public ForwardingCounter(String name) {
+      this.name = name;
+    }
+
+    public void increment(long delta) {
+      Binding<Counter> b = binding;
+      int g = Instruments.generation;
+      if (b == null || b.generation != g) {
+        binding = b = new Binding<Counter>(g, metrics.counter(name));
+      }
+      b.delegate.increment(delta);
+    }
+  }
+
+  private static class ForwardingHistogram implements Histogram {
+    private final String name;
+    private volatile Binding<Histogram> binding;
+
+    public ForwardingHistogram(String name) {
+      this.name = name;
+    }
+
+    public void record(long value) {
+      Binding<Histogram> b = binding;
+      int g = Instruments.generation;
+      if (b == null || b.generation != g) {
+        binding = b = new Binding<Histogram>(g, metrics.histogram(name));
+      }
+      b.delegate.record(value);
+    }
+  }
+}
@@ -0,0 +1,53 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.metrics;
+
+/**
+ * A registry of named instruments, to be implemented by an adapter to
+ * whatever metrics library an application uses.  See Instruments for
+ * how to install one and for the names Revori uses.<p>
+ *
+ * Implementations must be thread safe, and must return the same
+ * instrument, or at least an equivalent one, each time the same name
+ * is requested.
+ */
+public interface Metrics {
+  public Counter counter(String name);
+
+  public Histogram histogram(String name);
+
+  /**
+   * Registers the specified gauge under the specified name, replacing
+   * any gauge previously registered under that name.
+   */
+  public void gauge(String name, Gauge gauge);
+
+  /**
+   * A registry whose instruments do nothing.  This is what Revori
+   * uses until another is installed.
+   */
+  public static final Metrics Noop = new Metrics() {
+      private final Counter counter = new Counter() {
+          public void increment(long delta) { }
+        };
+
+      private final Histogram histogram = new Histogram() {
+          public void record(long value) { }
+        };
+
+      public Counter counter(String name) {
+        return counter;
+      }
+
+      public Histogram histogram(String name) {
+        return histogram;
+      }
+
+      public void gauge(String name, Gauge gauge) { }
+    };
+}
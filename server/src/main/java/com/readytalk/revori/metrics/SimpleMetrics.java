@@ -0,0 +1,135 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.metrics;
+
+import java.io.PrintStream;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * A self-contained Metrics registry which keeps a running total for
+ * each counter and the count, total and maximum of each histogram.
+ * It's meant for tests, tools and applications which don't already
+ * use a metrics library.
+ */
+@ThreadSafe
+public class SimpleMetrics implements Metrics {
+  private final ConcurrentMap<String, SimpleCounter> counters
+    = new ConcurrentHashMap<String, SimpleCounter>();
+  private final ConcurrentMap<String, SimpleHistogram> histograms
+    = new ConcurrentHashMap<String, SimpleHistogram>();
+  private final ConcurrentMap<String, Gauge> gauges
+    = new ConcurrentHashMap<String, Gauge>();
+
+  public SimpleCounter counter(String name) {
+    SimpleCounter counter = counters.get(name);
+    if (counter == null) {
+      SimpleCounter c = new SimpleCounter();
+      counter = counters.putIfAbsent(name, c);
+      if (counter == null) {
+        counter = c;
+      }
+    }
+    return counter;
+  }
+
+  public SimpleHistogram histogram(String name) {
+    SimpleHistogram histogram = histograms.get(name);
+    if (histogram == null) {
+      SimpleHistogram h = new SimpleHistogram();
+      histogram = histograms.putIfAbsent(name, h);
+      if (histogram == null) {
+        histogram = h;
+      }
+    }
+    return histogram;
+  }
+
+  public void gauge(String name, Gauge gauge) {
+    gauges.put(name, gauge);
+  }
+
+  /**
+   * Returns the current value of the specified gauge, or zero if
+   * there is no such gauge.
+   */
+  public long gaugeValue(String name) {
+    Gauge gauge = gauges.get(name);
+    return gauge == null ? 0 : gauge.value();
+  }
+
+  /**
+   * Prints every instrument, in order of name.
+   */
+  public void dump(PrintStream out) {
+    for (Map.Entry<String, SimpleCounter> e
+           : new TreeMap<String, SimpleCounter>(counters).entrySet())
+    {
+      out.println(e.getKey() + " " + e.getValue().value());
+    }
+
+    for (Map.Entry<String, SimpleHistogram> e
+           : new TreeMap<String, SimpleHistogram>(histograms).entrySet())
+    {
+      out.println(e.getKey() + " " + e.getValue());
+    }
+
+    for (Map.Entry<String, Gauge> e
+           : new TreeMap<String, Gauge>(gauges).entrySet())
+    {
+      out.println(e.getKey() + " " + e.getValue().value());
+    }
+  }
+
+  public static class SimpleCounter implements Counter {
+    private final AtomicLong value = new AtomicLong();
+
+    public void increment(long delta) {
+      value.addAndGet(delta);
+    }
+
+    public long value() {
+      return value.get();
+    }
+  }
+
+  public static class SimpleHistogram implements Histogram {
+    private long count;
+    private long total;
+    private long max;
+
+    public synchronized void record(long value) {
+      ++ count;
+      total += value;
+      if (value > max) {
+        max = value;
+      }
+    }
+
+    public synchronized long count() {
+      return count;
+    }
+
+    public synchronized long total() {
+      return total;
+    }
+
+    public synchronized long max() {
+      return max;
+    }
+
+    public synchronized String toString() {
+      return "count " + count + " total " + total + " max " + max;
+    }
+  }
+}
@@ -11,6 +11,7 @@ import static com.google.common.base.Preconditions.checkArgument;
 
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.Maps;
@@ -21,8 +22,25 @@ import com.readytalk.revori.Revision;
 import com.readytalk.revori.RevisionBuilder;
 import com.readytalk.revori.Revisions;
 import com.readytalk.revori.Table;
+import com.readytalk.revori.imp.DefaultRevision;
 import com.readytalk.revori.subscribe.Subscription;
 
+/**
+ * Propagates changes to mapped subtrees of one RevisionServer's
+ * revisions to corresponding subtrees of another's, in both
+ * directions.<p>
+ *
+ * By default, each revision is propagated as soon as it is produced.
+ * Given a TaskHandler which runs tasks later, a bridge instead
+ * propagates everything which has accumulated when the task runs, so
+ * at most one propagation is outstanding per server no matter how
+ * many revisions arrive in the meantime.  A coalescing window may also
+ * be specified, in which case the task handler must be a
+ * DelayedTaskHandler, and propagation is deferred until that window
+ * has elapsed after the first revision of a burst, or until maxBatch
+ * revisions have accumulated, whichever comes first.  Tasks must be
+ * run serially.
+ */
 public class Bridge {
   private static final int MaxDepth = 16;
 
@@ -31,11 +49,32 @@ public class Bridge {
     };
 
   private final TaskHandler taskHandler;
+  private final long windowMillis;
+  private final int maxBatch;
   private final Map<RevisionServer, Listener> listeners = Maps.newHashMap();
 
+  /**
+   * Defines a bridge which propagates revisions using the specified
+   * task handler, deferring each propagation by up to windowMillis
+   * milliseconds to coalesce bursts of revisions, but no longer than
+   * it takes for maxBatch revisions to accumulate.  A window of zero
+   * means propagation is never deliberately deferred, and a maxBatch
+   * of zero means no limit.
+   */
+  public Bridge(TaskHandler taskHandler, long windowMillis, int maxBatch) {
+    checkArgument(windowMillis >= 0 && maxBatch >= 0);
+    checkArgument(windowMillis == 0
+                  || taskHandler instanceof DelayedTaskHandler,
+                  "a coalescing window requires a DelayedTaskHandler");
+
+    this.taskHandler = taskHandler;
+    this.windowMillis = windowMillis;
+    this.maxBatch = maxBatch;
+  }
+
   @VisibleForTesting
   protected Bridge(TaskHandler taskHandler) {
-    this.taskHandler = taskHandler;
+    this(taskHandler, 0, 0);
   }
 
   public Bridge() {
@@ -67,12 +106,14 @@ public class Bridge {
 
   private void register(Mapping mapping) {
     mappings(blaze(mapping.leftListener.tree, mapping.leftPath)).add(mapping);
+    mapping.leftListener.mappings.add(mapping);
   }
 
   private void unregister(Mapping mapping) {
     Node n = find(mapping.leftListener.tree, mapping.leftPath);
 
     n.mappings.remove(mapping);
+    mapping.leftListener.mappings.remove(mapping);
 
     if (n.mappings.isEmpty()) {
       delete(mapping.leftListener.tree, mapping.leftPath);
@@ -91,7 +132,8 @@ public class Bridge {
   private Listener listener(RevisionServer server) {
     Listener listener = listeners.get(server);
     if (listener == null) {
-      listeners.put(server, listener = new Listener(taskHandler, server));
+      listeners.put(server, listener = new Listener
+                    (taskHandler, windowMillis, maxBatch, server));
       listener.subscription = server.registerListener(listener);
     }
     return listener;
@@ -197,14 +239,38 @@ public class Bridge {
 
   private static class Listener implements Runnable {
     public final Runnable task = new Runnable() {
-        public void run() { iterate(); }
+        public void run() {
+          synchronized (Listener.this) {
+            scheduled = false;
+            pendingRevisions = 0;
+          }
+          iterate();
+        }
+      };
+    public final Runnable delayedTask = new Runnable() {
+        public void run() {
+          synchronized (Listener.this) {
+            delayed = false;
+          }
+          task.run();
+        }
       };
     public final TaskHandler taskHandler;
+    public final long windowMillis;
+    public final int maxBatch;
     public final RevisionServer server;
     public final Map<Comparable, Node> tree = Maps.newHashMap();
+    // read on the task handler's thread by untouched while register
+    // and unregister may modify it on any other:
+    public final Set<Mapping> mappings = new CopyOnWriteArraySet<Mapping>();
     public Revision base = Revisions.Empty;
     public boolean active;
     public Subscription subscription;
+    // guarded by this listener's monitor, since revisions may arrive
+    // on any thread:
+    private boolean scheduled;
+    private boolean delayed;
+    private int pendingRevisions;
 
     public static final Task start = new Task() {
         public void run(Mapping mapping, Object argument) {
@@ -291,8 +357,14 @@ public class Bridge {
       return sb.toString();
     }
     
-    public Listener(TaskHandler taskHandler, RevisionServer server) {
+    public Listener(TaskHandler taskHandler,
+                    long windowMillis,
+                    int maxBatch,
+                    RevisionServer server)
+    {
       this.taskHandler = taskHandler;
+      this.windowMillis = windowMillis;
+      this.maxBatch = maxBatch;
       this.server = server;
     }
 
@@ -309,7 +381,45 @@ public class Bridge {
     }
 
     public void run() {
-      taskHandler.handleTask(task);
+      boolean now = false;
+      boolean later = false;
+      synchronized (this) {
+        ++ pendingRevisions;
+        if (windowMillis == 0
+            || (maxBatch != 0 && pendingRevisions >= maxBatch))
+        {
+          if (! scheduled) {
+            scheduled = now = true;
+          }
+        } else if (! delayed) {
+          delayed = later = true;
+        }
+      }
+
+      if (now) {
+        taskHandler.handleTask(task);
+      } else if (later) {
+        ((DelayedTaskHandler) taskHandler).handleTask
+          (delayedTask, windowMillis);
+      }
+    }
+
+    /**
+     * Returns true if none of the subtrees mapped from this server
+     * differ between the specified revisions, in which case there's
+     * nothing to propagate.
+     */
+    private boolean untouched(Revision base, Revision head) {
+      if (base == head) {
+        return true;
+      }
+
+      for (Mapping m: mappings) {
+        if (! DefaultRevision.sameSubtree(base, head, m.leftPath)) {
+          return false;
+        }
+      }
+      return true;
     }
 
     private void iterate() {
@@ -321,6 +431,11 @@ public class Bridge {
 
       try {
         Revision head = server.head();
+        if (untouched(base, head)) {
+          base = head;
+          return;
+        }
+
         Set<Mapping>[] mappings = new Set[MaxDepth];
         int depth = 0;
         boolean visitedColumn = true;
@@ -439,4 +554,12 @@ public class Bridge {
   public interface TaskHandler {
     public void handleTask(Runnable task);
   }
+
+  /**
+   * A TaskHandler which can also run a task after a delay, as needed
+   * by a bridge with a coalescing window.
+   */
+  public interface DelayedTaskHandler extends TaskHandler {
+    public void handleTask(Runnable task, long delayMillis);
+  }
 }
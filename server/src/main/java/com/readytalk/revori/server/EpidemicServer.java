@@ -12,12 +12,21 @@ import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.UUID;
+import java.util.concurrent.Executor;
 
 import javax.annotation.concurrent.ThreadSafe;
 
@@ -27,6 +36,7 @@ import org.slf4j.Marker;
 import org.slf4j.MarkerFactory;
 
 import com.google.common.collect.ObjectArrays;
+import com.google.common.collect.Sets;
 import com.readytalk.revori.Column;
 import com.readytalk.revori.ConflictResolver;
 import com.readytalk.revori.DiffResult;
@@ -36,7 +46,12 @@ import com.readytalk.revori.Revision;
 import com.readytalk.revori.RevisionBuilder;
 import com.readytalk.revori.Revisions;
 import com.readytalk.revori.Table;
+import com.readytalk.revori.imp.BulkLoader;
+import com.readytalk.revori.imp.Compare;
 import com.readytalk.revori.imp.Constants;
+import com.readytalk.revori.metrics.Counter;
+import com.readytalk.revori.metrics.Gauge;
+import com.readytalk.revori.metrics.Instruments;
 import com.readytalk.revori.server.protocol.Protocol;
 import com.readytalk.revori.server.protocol.ReadContext;
 import com.readytalk.revori.server.protocol.Readable;
@@ -44,11 +59,14 @@ import com.readytalk.revori.server.protocol.Stringable;
 import com.readytalk.revori.server.protocol.Writable;
 import com.readytalk.revori.server.protocol.WriteContext;
 import com.readytalk.revori.subscribe.Subscription;
+import com.readytalk.revori.trace.Recorder;
+import com.readytalk.revori.trace.Tracing;
 import com.readytalk.revori.util.BufferOutputStream;
 import com.readytalk.revori.util.Util;
 
 @ThreadSafe
-public class EpidemicServer implements NetworkServer {
+public class EpidemicServer implements NetworkServer,
+		NetworkServer.FlowControlListener {
 	private static final Logger log = LoggerFactory
 			.getLogger(EpidemicServer.class);
 	private static final Marker DEBUG_HELLO = MarkerFactory
@@ -74,25 +92,96 @@ public class EpidemicServer implements NetworkServer {
 	private static final int Delete = 4;
 	private static final int Insert = 5;
 
+	// maximum number of rows per chunk of a snapshot
+	private static final int SnapshotChunkSize = 256;
+	// maximum number of snapshot chunks sent to a peer but not yet
+	// acknowledged by it
+	private static final int SnapshotWindow = 4;
+
+	public static final int DefaultSendQueueCapacity = 16;
+
+	private static final Counter messagesSent = Instruments
+			.counter("revori.epidemic.messagesSent");
+	private static final Counter messagesReceived = Instruments
+			.counter("revori.epidemic.messagesReceived");
+
 	private String id;
-	private final Set<Runnable> listeners = new HashSet<Runnable>();
+	private final Set<Runnable> listeners = Sets.newCopyOnWriteArraySet();
 	private final NodeConflictResolver conflictResolver;
 	private final ForeignKeyResolver foreignKeyResolver;
 	private final Network network;
+	private final Executor sender;
+	private final int sendQueueCapacity;
 	private final Object lock = new Object();
 	private final Map<NodeKey, NodeState> states = new HashMap<NodeKey, NodeState>();
 	private final Map<NodeID, NodeState> directlyConnectedStates = new HashMap<NodeID, NodeState>();
 	private final NodeState localNode;
 	private long nextLocalSequenceNumber = 1;
-
+	// the following are guarded by lock and consumed by notifyListeners
+	// once the lock has been released:
+	private boolean notifyPending;
+	private final List<Runnable> pendingSyncListeners = new ArrayList<Runnable>();
+	// merges computed outside the lock, consulted by merge(Record...)
+	private List<PrecomputedMerge> precomputed;
+	// the following are guarded by lock and maintained as records are
+	// linked and truncated; see truncateRecords:
+	private final Set<NodeState> truncatable = new HashSet<NodeState>();
+	private final Map<Revision, Integer> retainedRevisions = new IdentityHashMap<Revision, Integer>();
+	private volatile int retainedRecords;
+	private volatile int pinnedRevisions;
+
+	/**
+	 * Creates a server which hands each outgoing message to the
+	 * network on the calling thread while holding its internal lock.
+	 * If the network is a FlowControlledNetwork, updates for a peer
+	 * are not generated while it isn't writable.
+	 */
 	public EpidemicServer(NodeConflictResolver conflictResolver,
 			ForeignKeyResolver foreignKeyResolver, Network network,
 			NodeID self, UUID instance) {
+		this(conflictResolver, foreignKeyResolver, network, self, instance,
+				null, DefaultSendQueueCapacity);
+	}
+
+	/**
+	 * Creates a server which queues outgoing messages per peer and
+	 * hands them to the network using tasks run by the specified
+	 * executor, so that a peer which is slow to accept messages does
+	 * not hold up commits or replication to other peers.  At most
+	 * <code>sendQueueCapacity</code> messages are queued for a given
+	 * peer; beyond that, updates for the peer are not generated until
+	 * its queue drains, at which point they are generated from the
+	 * latest state rather than replayed from a backlog.  If
+	 * <code>sender</code> is null, messages are sent synchronously.
+	 */
+	public EpidemicServer(NodeConflictResolver conflictResolver,
+			ForeignKeyResolver foreignKeyResolver, Network network,
+			NodeID self, UUID instance, Executor sender,
+			int sendQueueCapacity) {
+		if (sendQueueCapacity < 1) {
+			throw new IllegalArgumentException(
+					"send queue capacity must be positive");
+		}
+
 		this.conflictResolver = conflictResolver;
 		this.foreignKeyResolver = foreignKeyResolver;
 		this.network = network;
+		this.sender = sender;
+		this.sendQueueCapacity = sendQueueCapacity;
 		this.localNode = state(new NodeKey(self, instance));
 		this.id = self.asString();
+
+		Instruments.gauge(retentionGaugeName(false), new RetentionGauge(this,
+				false));
+		Instruments.gauge(retentionGaugeName(true), new RetentionGauge(this,
+				true));
+	}
+
+	public EpidemicServer(NodeConflictResolver conflictResolver,
+			ForeignKeyResolver foreignKeyResolver, Network network,
+			NodeID self, Executor sender) {
+		this(conflictResolver, foreignKeyResolver, network, self, UUID
+				.randomUUID(), sender, DefaultSendQueueCapacity);
 	}
 
 	public EpidemicServer(NodeConflictResolver conflictResolver,
@@ -101,7 +190,31 @@ public class EpidemicServer implements NetworkServer {
 				.randomUUID());
 	}
 
+	/**
+	 * Unregisters the gauges this server reports through (see
+	 * Instruments), so that registries installed later don't list them.
+	 * Call this when discarding the server; it must not be used
+	 * afterward.
+	 */
+	public void close() {
+		synchronized (lock) {
+			Instruments.removeGauge(retentionGaugeName(false));
+			Instruments.removeGauge(retentionGaugeName(true));
+			for (NodeState state : directlyConnectedStates.values()) {
+				if (state.connectionState != null) {
+					Instruments.removeGauge(lagGaugeName(state.key.id));
+				}
+			}
+		}
+	}
+
 	public void dump(java.io.PrintStream out) {
+		synchronized (lock) {
+			doDump(out);
+		}
+	}
+
+	private void doDump(java.io.PrintStream out) {
 		out.println(localNode.key.toString());
 		for (NodeState state : new java.util.TreeMap<NodeKey, NodeState>(states)
 				.values()) {
@@ -140,7 +253,7 @@ public class EpidemicServer implements NetworkServer {
 	}
 
 	@Override
-	public synchronized Subscription registerListener(final Runnable listener) {
+	public Subscription registerListener(final Runnable listener) {
 		listeners.add(listener);
 		listener.run();
 		return new Subscription() {
@@ -152,14 +265,17 @@ public class EpidemicServer implements NetworkServer {
 	}
 
 	// listeners are removed after being run
-	public synchronized void registerSyncListener(NodeID node, Runnable listener) {
-		NodeState state = state(new NodeKey(node, DefaultInstance));
-		ConnectionState cs = state.connectionState;
-		if (cs != null && cs.gotSync) {
-			listener.run();
-		} else {
-			state.syncListeners.add(listener);
+	public void registerSyncListener(NodeID node, Runnable listener) {
+		synchronized (lock) {
+			NodeState state = state(new NodeKey(node, DefaultInstance));
+			ConnectionState cs = state.connectionState;
+			if (cs == null || !cs.gotSync) {
+				state.syncListeners.add(listener);
+				return;
+			}
 		}
+
+		listener.run();
 	}
 
 	public void setId(String id) {
@@ -178,7 +294,11 @@ public class EpidemicServer implements NetworkServer {
 					debugMessage(DEBUG_VIEW,
 							"remove directly connected state {}", state.key.id);
 					it.remove();
+					// anything still queued for the peer is obsolete now
+					state.connectionState.queue.clear();
+					discard(state.connectionState);
 					state.connectionState = null;
+					Instruments.removeGauge(lagGaugeName(state.key.id));
 				}
 			}
 
@@ -193,13 +313,19 @@ public class EpidemicServer implements NetworkServer {
 				if (state.connectionState == null) {
 					debugMessage(DEBUG_VIEW, "add directly connected state {}",
 							state.key.id);
-					state.connectionState = new ConnectionState();
+					state.connectionState = new ConnectionState(node);
 					state.connectionState.readyToReceive = true;
+					Instruments.gauge(lagGaugeName(node), new LagGauge(this,
+							node));
 
 					sendNext(state);
 				}
 			}
+
+			truncateRecords();
 		}
+
+		notifyListeners();
 	}
 
 	@Override
@@ -209,14 +335,30 @@ public class EpidemicServer implements NetworkServer {
 
 	@Override
 	public void merge(Revision base, Revision fork) {
-		synchronized (lock) {
-			Revision head = base.merge(localNode.head.revision, fork,
-					conflictResolver(), foreignKeyResolver);
-
-			if (head != localNode.head.revision) {
-				acceptRevision(localNode, nextLocalSequenceNumber++, head);
+		// Merge against a snapshot of the head without holding the lock,
+		// then retry against the new head if someone else got there
+		// first, as SimpleRevisionServer does.
+		ConflictResolver resolver = conflictResolver();
+		while (true) {
+			Revision head = head();
+			Revision result = base.merge(head, fork, resolver,
+					foreignKeyResolver);
+
+			synchronized (lock) {
+				if (head == localNode.head.revision) {
+					if (result != head) {
+						acceptRevision(localNode, nextLocalSequenceNumber++, result);
+						truncateRecords();
+					}
+					break;
+				}
 			}
+
+			base = head;
+			fork = result;
 		}
+
+		notifyListeners();
 	}
 
 	public ConflictResolver conflictResolver() {
@@ -230,8 +372,58 @@ public class EpidemicServer implements NetworkServer {
 
 	@Override
 	public void accept(NodeID source, Readable message) {
+		messagesReceived.increment(1);
+
+		Recorder recorder = Tracing.recorder();
+		Object trace = recorder == null ? null : recorder
+				.begin(Recorder.Kind.Receive);
+
+		((Message) message).deliver(source, this);
+
+		if (trace != null) {
+			recorder.endMessage(trace, source.asString(), message);
+		}
+
 		synchronized (lock) {
-			((Message) message).deliver(source, this);
+			NodeState state = directlyConnectedStates.get(source);
+			if (state != null && state.connectionState != null) {
+				state.connectionState.messagesReceived.increment(1);
+			}
+
+			truncateRecords();
+		}
+
+		notifyListeners();
+	}
+
+	private void notifyListeners() {
+		boolean notify;
+		List<Runnable> syncListeners;
+		synchronized (lock) {
+			notify = notifyPending;
+			notifyPending = false;
+
+			if (pendingSyncListeners.isEmpty()) {
+				syncListeners = null;
+			} else {
+				syncListeners = new ArrayList<Runnable>(pendingSyncListeners);
+				pendingSyncListeners.clear();
+			}
+		}
+
+		if (syncListeners != null) {
+			for (Runnable r : syncListeners) {
+				r.run();
+			}
+		}
+
+		if (notify) {
+			debugMessage(DEBUG_STATE, "notify listeners {}", head());
+
+			// tell everyone we have updates!
+			for (Runnable listener : listeners) {
+				listener.run();
+			}
 		}
 	}
 
@@ -242,10 +434,149 @@ public class EpidemicServer implements NetworkServer {
 	}
 
 	private void send(NodeState state, Writable message) {
-		expect(state.connectionState != null);
-		expect(state.connectionState.readyToReceive);
+		final ConnectionState cs = state.connectionState;
+		expect(cs != null);
+		expect(cs.readyToReceive);
+
+		messagesSent.increment(1);
+		cs.messagesSent.increment(1);
+
+		if (sender == null) {
+			transmit(state.key.id, message);
+
+			if (!networkWritable(state.key.id)) {
+				congested(state);
+			}
+			return;
+		}
+
+		cs.queue.add(message);
+
+		if (cs.queue.size() >= sendQueueCapacity) {
+			// stop generating updates for this peer until the queue
+			// drains; see drain
+			debugMessage(DEBUG_SEND, "send queue full for {}", state.key);
+			cs.readyToReceive = false;
+		}
+
+		if (!cs.draining && !cs.congested) {
+			startDraining(state.key.id, cs);
+		}
+	}
+
+	private void startDraining(final NodeID destination,
+			final ConnectionState cs) {
+		cs.draining = true;
+
+		sender.execute(new Runnable() {
+			@Override
+			public void run() {
+				drain(destination, cs);
+			}
+		});
+	}
+
+	private boolean networkWritable(NodeID destination) {
+		return !(network instanceof FlowControlledNetwork)
+				|| ((FlowControlledNetwork) network).writable(destination);
+	}
+
+	/**
+	 * Stops sending to the specified peer until the network says it's
+	 * writable again; see writable.
+	 */
+	private void congested(NodeState state) {
+		debugMessage(DEBUG_SEND, "network congested for {}", state.key);
+
+		state.connectionState.congested = true;
+		state.connectionState.readyToReceive = false;
+	}
+
+	@Override
+	public void writable(NodeID destination) {
+		synchronized (lock) {
+			NodeState state = directlyConnectedStates.get(destination);
+			if (state == null || state.connectionState == null
+					|| !state.connectionState.congested
+					|| !networkWritable(destination)) {
+				return;
+			}
+
+			debugMessage(DEBUG_SEND, "network writable for {}", state.key);
+
+			ConnectionState cs = state.connectionState;
+			cs.congested = false;
+
+			if (!(cs.queue.isEmpty() || cs.draining)) {
+				startDraining(destination, cs);
+			}
 
-		network.send(localNode.key.id, state.key.id, message);
+			if (cs.queue.size() < sendQueueCapacity) {
+				cs.readyToReceive = true;
+				sendNext(state);
+			}
+		}
+	}
+
+	private void transmit(NodeID destination, Writable message) {
+		Recorder recorder = Tracing.recorder();
+		Object trace = recorder == null ? null : recorder
+				.begin(Recorder.Kind.Send);
+
+		network.send(localNode.key.id, destination, message);
+
+		if (trace != null) {
+			recorder.endMessage(trace, destination.asString(), message);
+		}
+	}
+
+	/**
+	 * Hands queued messages for the specified peer to the network, one
+	 * at a time and without holding the lock, until the queue is
+	 * empty, the network is congested or the connection goes away.
+	 */
+	private void drain(NodeID destination, ConnectionState cs) {
+		while (true) {
+			Writable message;
+			synchronized (lock) {
+				NodeState state = directlyConnectedStates.get(destination);
+				if (state == null || state.connectionState != cs) {
+					cs.queue.clear();
+					cs.draining = false;
+					return;
+				}
+
+				// while congested, leave the rest of the queue to be
+				// drained once the network says it's writable again
+				message = cs.congested ? null : cs.queue.poll();
+				if (message == null) {
+					cs.draining = false;
+					return;
+				}
+			}
+
+			try {
+				transmit(destination, message);
+			} catch (RuntimeException e) {
+				log.warn("unable to send message to " + destination, e);
+			}
+
+			// Each message handed to the network makes room for another,
+			// so give sendNext a chance to generate it now rather than
+			// waiting for the next incoming message or local commit.
+			// This also resumes a peer whose queue had filled up.
+			synchronized (lock) {
+				NodeState state = directlyConnectedStates.get(destination);
+				if (state != null && state.connectionState == cs) {
+					if (!networkWritable(destination)) {
+						congested(state);
+					} else if (cs.queue.size() < sendQueueCapacity) {
+						cs.readyToReceive = true;
+						sendNext(state);
+					}
+				}
+			}
+		}
 	}
 
 	private NodeState state(NodeKey key) {
@@ -268,18 +599,16 @@ public class EpidemicServer implements NetworkServer {
 	}
 
 	private Record tail(NodeState state) {
-		// todo: switch from weak references to reference counting to
-		// ensure that we don't follow the chain of records back
-		// further than we need to.
+		// the chain of records is truncated by truncateRecords as soon
+		// as nobody needs the older part, so this only walks back as far
+		// as the oldest record still acknowledged or sent
 		Record tail = state.head;
 		if (tail == null) {
 			return new Record(state.key, Revisions.Empty, 0, null);
 		}
 
-		Record previous;
-		while (tail.previous != null
-				&& (previous = tail.previous.get()) != null) {
-			tail = previous;
+		while (tail.previous != null) {
+			tail = tail.previous;
 		}
 
 		if (tail.merged != null && tail.merged.node == state.key) {
@@ -298,20 +627,21 @@ public class EpidemicServer implements NetworkServer {
 	}
 
 	private void initState(NodeState state) {
-		state.head = tail(state);
+		state.head = state.oldest = tail(state);
+		retain(state.head);
 
 		for (NodeState s : states.values()) {
 			debugMessage(DEBUG_STATE, "{} sees {} at 0 {}", s.key, state.key,
 					state.head.hashCode());
 
 			if (!state.key.instance.equals(DefaultInstance)) {
-				s.acknowledged.put(state.key, state.head);
+				acknowledge(s, state.key, state.head);
 				if (s.connectionState != null) {
-					s.connectionState.lastSent.remove(state.key);
+					setLastSent(s.connectionState, state.key, null);
 				}
 			}
 
-			state.acknowledged.put(s.key, tail(s));
+			acknowledge(state, s.key, tail(s));
 		}
 	}
 
@@ -351,6 +681,19 @@ public class EpidemicServer implements NetworkServer {
 			return;
 		}
 
+		if (!cs.snapshotAcks.isEmpty()) {
+			Iterator<Map.Entry<NodeKey, SnapshotOffset>> it = cs.snapshotAcks
+					.entrySet().iterator();
+			Map.Entry<NodeKey, SnapshotOffset> e = it.next();
+			it.remove();
+
+			debugMessage(DEBUG_SEND, "send snapshot ack to {}: {} {}",
+					state.key, e.getKey(), e.getValue());
+
+			send(state, new SnapshotAck(e.getKey(), e.getValue()));
+			return;
+		}
+
 		for (NodeState other : states.values()) {
 			boolean update = needsUpdate(state, other.head);
 			debugMessage(DEBUG_UPDATE,
@@ -381,11 +724,11 @@ public class EpidemicServer implements NetworkServer {
 		if (acknowledged.sequenceNumber < target.sequenceNumber) {
 			Record lastSent = state.connectionState.lastSent.get(target.node);
 			if (lastSent == null) {
-				state.connectionState.lastSent.put(target.node, acknowledged);
+				setLastSent(state.connectionState, target.node, acknowledged);
 				return true;
 			} else if (lastSent.sequenceNumber < acknowledged.sequenceNumber) {
 				lastSent = acknowledged;
-				state.connectionState.lastSent.put(target.node, lastSent);
+				setLastSent(state.connectionState, target.node, lastSent);
 			}
 
 			debugMessage(DEBUG_UPDATE, "needsUpdate(lsn: {}, {})",
@@ -420,6 +763,33 @@ public class EpidemicServer implements NetworkServer {
 
 				send(state, new Ack(record.node, record.sequenceNumber,
 						record.merged.node, record.merged.sequenceNumber));
+			} else if (!target.node.equals(state.key)
+					&& lastSent.sequenceNumber == 0) {
+				// the peer has nothing from this origin yet, so send it a
+				// snapshot rather than a diff against the empty revision,
+				// a chunk at a time, keeping up to SnapshotWindow chunks in
+				// flight
+				ConnectionState cs = state.connectionState;
+				SnapshotCursor cursor = snapshotCursor(state, lastSent);
+				while (!cursor.finished && cs.readyToReceive
+						&& cursor.unacknowledged.size() < SnapshotWindow) {
+					SnapshotOffset start = cursor.offset;
+					List<Object> items = cursor.next(SnapshotChunkSize);
+
+					debugMessage(DEBUG_SEND, "send snapshot to {}: {} {} to {}",
+							state.key, target.node, start, cursor.offset);
+
+					send(state, new Snapshot(target.node, start, cursor.offset,
+							cursor.finished, items));
+					cursor.unacknowledged.add(cursor.offset);
+				}
+
+				if (!cursor.finished) {
+					return;
+				}
+
+				record = cursor.record;
+				forgetSnapshot(cs, target.node);
 			} else if (!target.node.equals(state.key)) {
 				RevisionDiffBody body = new RevisionDiffBody(lastSent.revision,
 						record.revision);
@@ -432,11 +802,137 @@ public class EpidemicServer implements NetworkServer {
 						record.sequenceNumber, body));
 			}
 
-			state.connectionState.lastSent.put(target.node, record);
+			setLastSent(state.connectionState, target.node, record);
 			break;
 		}
 	}
 
+	/**
+	 * Returns the cursor through which we're sending a snapshot of the
+	 * origin of the specified record to the specified peer, creating it
+	 * if necessary.  A new cursor resumes from the last offset the peer
+	 * acknowledged loading, if any, so that a snapshot interrupted by a
+	 * lost connection need not be sent again from the start.
+	 */
+	private SnapshotCursor snapshotCursor(NodeState state, Record lastSent) {
+		ConnectionState cs = state.connectionState;
+		SnapshotCursor cursor = cs.snapshots.get(lastSent.node);
+		if (cursor == null) {
+			Record record = lastSent.next;
+			SnapshotOffset offset = new SnapshotOffset(record.sequenceNumber,
+					null, null);
+
+			SnapshotOffset acknowledged = state.snapshotsAcknowledged
+					.get(lastSent.node);
+			if (acknowledged != null) {
+				for (Record r = record; r != null; r = r.next) {
+					if (r.sequenceNumber == acknowledged.sequenceNumber) {
+						record = r;
+						offset = acknowledged;
+						break;
+					}
+				}
+			}
+
+			debugMessage(DEBUG_SEND, "start snapshot to {}: {} at {}",
+					state.key, lastSent.node, offset);
+
+			cursor = new SnapshotCursor(record, offset);
+			reference(record);
+			cs.snapshots.put(lastSent.node, cursor);
+		}
+		return cursor;
+	}
+
+	private void forgetSnapshot(ConnectionState cs, NodeKey origin) {
+		SnapshotCursor cursor = cs.snapshots.remove(origin);
+		if (cursor != null) {
+			release(cursor.record);
+		}
+	}
+
+	private void acceptSnapshotAck(NodeID source, NodeKey origin,
+			SnapshotOffset offset) {
+		debugMessage(DEBUG_RECEIVE, "snapshot ack from {}: {} {}", source,
+				origin, offset);
+
+		NodeState state = directlyConnectedStates.get(source);
+		if (state == null || state.connectionState == null) {
+			return;
+		}
+
+		state.snapshotsAcknowledged.put(origin, offset);
+
+		ConnectionState cs = state.connectionState;
+		SnapshotCursor cursor = cs.snapshots.get(origin);
+		if (cursor != null && !offset.equals(cursor.acknowledged)) {
+			if (cursor.unacknowledged.contains(offset)) {
+				while (!cursor.unacknowledged.poll().equals(offset)) {
+				}
+				cursor.acknowledged = offset;
+			} else {
+				// the peer isn't where we thought it was, so start again
+				// from where it says it is
+				forgetSnapshot(cs, origin);
+			}
+		}
+
+		sendNext(state);
+	}
+
+	private void acceptSnapshot(NodeID source, NodeKey origin,
+			SnapshotOffset start, SnapshotOffset end, boolean finished,
+			List<Object> items) {
+		debugMessage(DEBUG_RECEIVE, "accept snapshot {} {} to {} from {}",
+				origin, start, end, source);
+
+		SnapshotLoad load;
+		synchronized (lock) {
+			NodeState state = state(origin);
+			NodeState peer = directlyConnectedStates.get(source);
+			ConnectionState cs = peer == null ? null : peer.connectionState;
+
+			load = state.snapshotLoads.get(source);
+			if (head(state).sequenceNumber >= end.sequenceNumber) {
+				// we've caught up with this snapshot by other means
+				state.snapshotLoads.remove(source);
+				return;
+			}
+
+			if (start.table == null) {
+				load = new SnapshotLoad(start);
+				state.snapshotLoads.put(source, load);
+			} else if (load == null || !start.equals(load.offset)) {
+				// we've lost or already loaded what precedes this chunk,
+				// so tell the sender where to resume
+				if (cs != null) {
+					cs.snapshotAcks.put(origin, load == null
+							|| load.offset.sequenceNumber != start.sequenceNumber
+							? new SnapshotOffset(start.sequenceNumber, null, null)
+							: load.offset);
+					sendNext(peer);
+				}
+				return;
+			}
+
+			load.load(items);
+			load.offset = end;
+
+			if (!finished) {
+				if (cs != null) {
+					cs.snapshotAcks.put(origin, end);
+					sendNext(peer);
+				}
+				return;
+			}
+
+			state.snapshotLoads.remove(source);
+		}
+
+		acceptDiff(origin, 0, end.sequenceNumber, new LoadedSnapshotBody(
+				load.loader.revision()));
+	}
+
 	private NodeState accept(NodeKey origin) {
 		NodeState state = state(origin);
 
@@ -445,6 +941,9 @@ public class EpidemicServer implements NetworkServer {
 		if (state != defaultState) {
 			expect(defaultState.head.sequenceNumber == 0);
 
+			if (state.connectionState != null) {
+				discard(state.connectionState);
+			}
 			state.connectionState = defaultState.connectionState;
 
 			directlyConnectedStates.put(origin.id, state);
@@ -461,9 +960,7 @@ public class EpidemicServer implements NetworkServer {
 		if (!state.connectionState.gotSync) {
 			state.connectionState.gotSync = true;
 			if (state.syncListeners != null) {
-				for (Runnable r : state.syncListeners) {
-					r.run();
-				}
+				pendingSyncListeners.addAll(state.syncListeners);
 			}
 			state.syncListeners = null;
 
@@ -482,28 +979,83 @@ public class EpidemicServer implements NetworkServer {
 
 	private void acceptDiff(NodeKey origin, long startSequenceNumber,
 			long endSequenceNumber, DiffBody body) {
-		NodeState state = state(origin);
+		// Applying the diff and merging the result into our local head
+		// are the expensive parts of accepting a diff, so we do both on
+		// a snapshot taken outside the lock.  If nothing relevant
+		// changed by the time we reacquire it, the precomputed results
+		// are used as-is; otherwise they are recomputed under the lock.
+		Revision base;
+		Record localAcknowledged;
+		Revision localHead;
+		synchronized (lock) {
+			base = diffBase(state(origin), startSequenceNumber,
+					endSequenceNumber).revision;
+			localAcknowledged = localNode.acknowledged.get(origin);
+			if (localAcknowledged != null
+					&& (localAcknowledged.next != null
+							|| localAcknowledged.sequenceNumber != startSequenceNumber)) {
+				// the merge will span more than one record, so don't
+				// bother precomputing it
+				localAcknowledged = null;
+			}
+			localHead = localNode.head.revision;
+		}
+
+		Revision revision = body.apply(this, base);
+
+		PrecomputedMerge merge = null;
+		if (localAcknowledged != null) {
+			merge = new PrecomputedMerge(localAcknowledged.revision, localHead,
+					revision, localAcknowledged.revision.merge(localHead,
+							revision, new MyConflictResolver(localNode.key.id,
+									origin.id, conflictResolver),
+							foreignKeyResolver));
+		}
+
+		synchronized (lock) {
+			NodeState state = state(origin);
+			Record record = diffBase(state, startSequenceNumber,
+					endSequenceNumber);
+
+			if (record.revision != base) {
+				revision = body.apply(this, record.revision);
+			}
+
+			precomputed = merge == null ? null : Collections
+					.singletonList(merge);
+			try {
+				acceptRevision(state, endSequenceNumber, revision);
+			} finally {
+				precomputed = null;
+			}
+		}
+	}
 
+	private Record diffBase(NodeState state, long startSequenceNumber,
+			long endSequenceNumber) {
 		Record head = head(state);
 
-		debugMessage(DEBUG_RECEIVE, "accept diff {} {} {} head {} body {}",
-				origin, startSequenceNumber, endSequenceNumber, head, body);
+		debugMessage(DEBUG_RECEIVE, "accept diff {} {} {} head {}", state.key,
+				startSequenceNumber, endSequenceNumber, head);
 
 		if (startSequenceNumber <= head.sequenceNumber) {
 			Record record = head;
 			while (record != null && endSequenceNumber != record.sequenceNumber
 					&& startSequenceNumber < record.sequenceNumber) {
-				record = record.previous.get();
+				record = record.previous;
 			}
 
 			if (record != null) {
 				if (endSequenceNumber == record.sequenceNumber
 						|| startSequenceNumber == record.sequenceNumber) {
-					acceptRevision(state, endSequenceNumber,
-							body.apply(this, record.revision));
+					return record;
 				} else {
 					throw new RuntimeException("missed a diff");
 				}
+			} else if (startSequenceNumber == 0) {
+				// the initial record may have been truncated, but its
+				// revision is always empty
+				return new Record(state.key, Revisions.Empty, 0, null);
 			} else {
 				throw new RuntimeException("obsolete diff");
 			}
@@ -516,6 +1068,15 @@ public class EpidemicServer implements NetworkServer {
 			Revision revision) {
 		insertRevision(state, sequenceNumber, revision, null);
 
+		// any snapshot of this origin we're still loading is obsolete if
+		// it's no newer
+		for (Iterator<SnapshotLoad> it = state.snapshotLoads.values()
+				.iterator(); it.hasNext();) {
+			if (it.next().offset.sequenceNumber <= sequenceNumber) {
+				it.remove();
+			}
+		}
+
 		acceptAck(localNode.key, nextLocalSequenceNumber++, state.key,
 				sequenceNumber);
 	}
@@ -527,7 +1088,10 @@ public class EpidemicServer implements NetworkServer {
 				record.hashCode());
 
 		while (sequenceNumber < record.sequenceNumber) {
-			record = record.previous.get();
+			record = record.previous;
+			if (record == null) {
+				throw new RuntimeException("obsolete revision");
+			}
 		}
 
 		if (sequenceNumber != record.sequenceNumber) {
@@ -535,7 +1099,8 @@ public class EpidemicServer implements NetworkServer {
 			Record newRecord = new Record(state.key, revision, sequenceNumber,
 					merged);
 			record.next = newRecord;
-			newRecord.previous = new WeakReference<Record>(record);
+			newRecord.previous = record;
+			retain(newRecord);
 			debugMessage(DEBUG_STATE, "link {} {} to {} {}",
 					record.sequenceNumber, record.hashCode(),
 					newRecord.sequenceNumber, newRecord.hashCode());
@@ -546,7 +1111,7 @@ public class EpidemicServer implements NetworkServer {
 						+next.sequenceNumber, next.hashCode());
 
 				newRecord.next = next;
-				next.previous = new WeakReference<Record>(newRecord);
+				next.previous = newRecord;
 			}
 
 			record = newRecord;
@@ -556,13 +1121,7 @@ public class EpidemicServer implements NetworkServer {
 			state.head = record;
 
 			if (state == localNode) {
-				debugMessage(DEBUG_STATE, "notify listeners {}", head());
-
-				// tell everyone we have updates!
-				// TODO: don't notify people twice for each update.
-				for (Runnable listener : listeners) {
-					listener.run();
-				}
+				notifyPending = true;
 			}
 		}
 
@@ -581,8 +1140,14 @@ public class EpidemicServer implements NetworkServer {
 		Record record = base.next;
 		while (base != fork) {
 			if (record.merged == null) {
-				result = base.revision.merge(result, record.revision, resolver,
-						foreignKeyResolver);
+				PrecomputedMerge p = precomputed(base.revision, result,
+						record.revision);
+				if (p != null) {
+					result = p.result;
+				} else {
+					result = base.revision.merge(result, record.revision,
+							resolver, foreignKeyResolver);
+				}
 			}
 
 			base = record;
@@ -592,6 +1157,90 @@ public class EpidemicServer implements NetworkServer {
 		return result;
 	}
 
+	private PrecomputedMerge precomputed(Revision base, Revision left,
+			Revision right) {
+		if (precomputed != null) {
+			for (PrecomputedMerge p : precomputed) {
+				if (p.base == base && p.left == left && p.right == right) {
+					return p;
+				}
+			}
+		}
+		return null;
+	}
+
+	private void deliverAck(NodeKey acknowledger,
+			long acknowledgerSequenceNumber, NodeKey diffOrigin,
+			long diffSequenceNumber) {
+		// As with diffs, merging the acknowledger's head with the records
+		// it acknowledged is the expensive part of accepting an ack, so
+		// we do it on a snapshot taken outside the lock.  If the inputs
+		// changed by the time we reacquire it, we try again with the new
+		// ones.
+		AckPlan plan;
+		synchronized (lock) {
+			plan = planAck(acknowledger, diffOrigin, diffSequenceNumber);
+		}
+
+		while (true) {
+			List<PrecomputedMerge> merges = plan == null ? null : plan
+					.compute(foreignKeyResolver);
+
+			synchronized (lock) {
+				AckPlan current = planAck(acknowledger, diffOrigin,
+						diffSequenceNumber);
+				if (current == null || current.matches(plan)) {
+					precomputed = merges;
+					try {
+						acceptAck(acknowledger, acknowledgerSequenceNumber,
+								diffOrigin, diffSequenceNumber);
+					} finally {
+						precomputed = null;
+					}
+					return;
+				}
+				plan = current;
+			}
+		}
+	}
+
+	/**
+	 * Returns the merges acceptAck would currently perform for the
+	 * specified ack, or null if there are none.
+	 */
+	private AckPlan planAck(NodeKey acknowledger, NodeKey diffOrigin,
+			long diffSequenceNumber) {
+		NodeState state = states.get(acknowledger);
+		if (state == null) {
+			return null;
+		}
+
+		Record base = state.acknowledged.get(diffOrigin);
+		if (base == null || base.sequenceNumber >= diffSequenceNumber) {
+			return null;
+		}
+
+		Record record = base;
+		while (record != null && record.sequenceNumber < diffSequenceNumber) {
+			record = record.next;
+		}
+
+		if (record == null || record.sequenceNumber != diffSequenceNumber
+				|| record.merged != null) {
+			return null;
+		}
+
+		AckPlan plan = new AckPlan(state.head.revision, new MyConflictResolver(
+				acknowledger.id, diffOrigin.id, conflictResolver));
+		for (Record r = base.next; base != record; base = r, r = r.next) {
+			if (r.merged == null) {
+				plan.bases.add(base.revision);
+				plan.forks.add(r.revision);
+			}
+		}
+		return plan;
+	}
+
 	private void acceptAck(NodeKey acknowledger,
 			long acknowledgerSequenceNumber, NodeKey diffOrigin,
 			long diffSequenceNumber) {
@@ -618,7 +1267,13 @@ public class EpidemicServer implements NetworkServer {
 									diffOrigin), record);
 				}
 
-				state.acknowledged.put(diffOrigin, record);
+				acknowledge(state, diffOrigin, record);
+
+				// the acknowledger no longer needs a snapshot of this origin
+				state.snapshotsAcknowledged.remove(diffOrigin);
+				if (state.connectionState != null) {
+					forgetSnapshot(state.connectionState, diffOrigin);
+				}
 
 				if (record.merged == null) {
 					acceptAck(localNode.key, nextLocalSequenceNumber++,
@@ -634,25 +1289,380 @@ public class EpidemicServer implements NetworkServer {
 		sendNext();
 	}
 
-	private static class NodeState {
-		public final NodeKey key;
-		public Record head;
-		public final Map<NodeKey, Record> acknowledged = new HashMap<NodeKey, Record>();
-		public Set<Runnable> syncListeners = new HashSet<Runnable>();
-		public ConnectionState connectionState;
+	/**
+	 * Drops every record older than the oldest one still referenced,
+	 * for each origin whose oldest referenced record may have moved
+	 * forward since the last call.  A record is referenced if any node
+	 * is known to have acknowledged it, if we have sent it to a
+	 * directly connected node, or if a retained record of another
+	 * origin merged it.  Nothing else can refer to older records, so
+	 * they and the revisions they hold may be reclaimed.<p>
+	 *
+	 * References are counted by sequence number per origin as they are
+	 * made and released (see acknowledge, setLastSent and retain), and
+	 * an origin is only revisited once its oldest direct reference
+	 * moves forward.  Since merges may refer to each other in cycles,
+	 * we first retract each such origin to its oldest direct reference,
+	 * releasing the merges of the records behind it and retracting the
+	 * origins those pinned in turn.  Then we extend each retracted
+	 * origin back as far as the merges of records still retained
+	 * require.  Only the records between each retracted origin's
+	 * previous limit and its oldest direct reference are visited.
+	 */
+	private void truncateRecords() {
+		if (truncatable.isEmpty()) {
+			return;
+		}
 
-		public NodeState(NodeKey key) {
-			this.key = key;
+		Map<NodeState, Record> limits = new HashMap<NodeState, Record>();
+		while (!truncatable.isEmpty()) {
+			Iterator<NodeState> it = truncatable.iterator();
+			NodeState state = it.next();
+			it.remove();
+
+			Record limit = limit(state, limits);
+			if (state.references.isEmpty()) {
+				continue;
+			}
+
+			Record target = floor(limit, state.references.firstKey());
+			for (Record r = limit; r != target; r = r.next) {
+				if (r.merged != null) {
+					NodeState origin = unmerge(r.merged);
+					if (origin != null) {
+						truncatable.add(origin);
+					}
+				}
+			}
+			limits.put(state, target);
 		}
-	}
+
+		List<NodeState> work = new ArrayList<NodeState>(limits.keySet());
+		while (!work.isEmpty()) {
+			NodeState state = work.remove(work.size() - 1);
+
+			Record limit = limit(state, limits);
+			if (state.merges.isEmpty()
+					|| state.merges.firstKey() >= limit.sequenceNumber) {
+				continue;
+			}
+
+			Record target = floor(state.oldest, state.merges.firstKey());
+			for (Record r = target; r != limit; r = r.next) {
+				if (r.merged != null) {
+					NodeState origin = merge(r.merged);
+					if (origin != null) {
+						work.add(origin);
+					}
+				}
+			}
+			limits.put(state, target);
+		}
+
+		for (Map.Entry<NodeState, Record> e : limits.entrySet()) {
+			NodeState state = e.getKey();
+			Record limit = e.getValue();
+			if (limit != state.oldest) {
+				debugMessage(DEBUG_STATE, "truncate {} before {}", state.key,
+						limit.sequenceNumber);
+
+				Record record = state.oldest;
+				while (record != limit) {
+					Record next = record.next;
+					// unlink each dropped record so that any which are still
+					// referenced elsewhere don't pin their predecessors
+					next.previous = null;
+					drop(record);
+					record = next;
+				}
+				state.oldest = limit;
+			}
+		}
+	}
+
+	private static Record limit(NodeState state, Map<NodeState, Record> limits) {
+		Record limit = limits.get(state);
+		return limit == null ? state.oldest : limit;
+	}
+
+	/**
+	 * Returns the newest record no newer than the specified sequence
+	 * number, starting from the specified record.
+	 */
+	private static Record floor(Record record, long sequenceNumber) {
+		while (record.next != null && record.next.sequenceNumber <= sequenceNumber) {
+			record = record.next;
+		}
+		return record;
+	}
+
+	private void acknowledge(NodeState state, NodeKey origin, Record record) {
+		reference(record);
+		Record old = state.acknowledged.put(origin, record);
+		if (old != null) {
+			release(old);
+		}
+	}
+
+	private void setLastSent(ConnectionState cs, NodeKey origin, Record record) {
+		Record old;
+		if (record == null) {
+			old = cs.lastSent.remove(origin);
+		} else {
+			reference(record);
+			old = cs.lastSent.put(origin, record);
+		}
+
+		if (old != null) {
+			release(old);
+		}
+	}
+
+	private void discard(ConnectionState cs) {
+		for (Record record : cs.lastSent.values()) {
+			release(record);
+		}
+		cs.lastSent.clear();
+
+		for (SnapshotCursor cursor : cs.snapshots.values()) {
+			release(cursor.record);
+		}
+		cs.snapshots.clear();
+	}
+
+	private void reference(Record record) {
+		NodeState origin = states.get(record.node);
+		if (origin != null) {
+			increment(origin.references, record.sequenceNumber);
+		}
+	}
+
+	private void release(Record record) {
+		NodeState origin = states.get(record.node);
+		if (origin != null
+				&& decrement(origin.references, record.sequenceNumber)) {
+			truncatable.add(origin);
+		}
+	}
+
+	/**
+	 * Counts a reference to the specified record by the merged field of
+	 * a retained record, returning the record's origin.
+	 */
+	private NodeState merge(Record record) {
+		NodeState origin = states.get(record.node);
+		if (origin != null) {
+			increment(origin.merges, record.sequenceNumber);
+		}
+		return origin;
+	}
+
+	/**
+	 * Releases a reference counted by merge, returning the record's
+	 * origin.
+	 */
+	private NodeState unmerge(Record record) {
+		NodeState origin = states.get(record.node);
+		if (origin != null) {
+			decrement(origin.merges, record.sequenceNumber);
+		}
+		return origin;
+	}
+
+	private static void increment(TreeMap<Long, Integer> counts,
+			long sequenceNumber) {
+		Integer count = counts.get(sequenceNumber);
+		counts.put(sequenceNumber, count == null ? 1 : count + 1);
+	}
+
+	/**
+	 * Decrements the specified count, returning true if that removed
+	 * the lowest sequence number counted.
+	 */
+	private static boolean decrement(TreeMap<Long, Integer> counts,
+			long sequenceNumber) {
+		Integer count = counts.get(sequenceNumber);
+		if (count == null) {
+			throw new RuntimeException("unbalanced reference");
+		} else if (count > 1) {
+			counts.put(sequenceNumber, count - 1);
+			return false;
+		} else {
+			counts.remove(sequenceNumber);
+			return counts.isEmpty() || counts.firstKey() > sequenceNumber;
+		}
+	}
+
+	/**
+	 * Counts the specified record, newly linked into its origin's
+	 * chain, toward the retention gauges and the references of its
+	 * merge.
+	 */
+	private void retain(Record record) {
+		++retainedRecords;
+
+		Integer count = retainedRevisions.get(record.revision);
+		retainedRevisions.put(record.revision, count == null ? 1 : count + 1);
+		pinnedRevisions = retainedRevisions.size();
+
+		if (record.merged != null) {
+			merge(record.merged);
+		}
+	}
+
+	/**
+	 * Undoes retain for the specified record, except for the reference
+	 * of its merge, which truncateRecords has already released.
+	 */
+	private void drop(Record record) {
+		--retainedRecords;
+
+		int count = retainedRevisions.get(record.revision);
+		if (count > 1) {
+			retainedRevisions.put(record.revision, count - 1);
+		} else {
+			retainedRevisions.remove(record.revision);
+		}
+		pinnedRevisions = retainedRevisions.size();
+	}
+
+	/**
+	 * Returns the number of this node's revisions which the specified
+	 * peer has yet to acknowledge, or zero if the peer is unknown. Only
+	 * revisions originating here are counted; records which merely
+	 * acknowledge a peer's revision carry nothing the peer lacks.
+	 */
+	public long lag(NodeID peer) {
+		synchronized (lock) {
+			Record acknowledged = null;
+			for (NodeState state : states.values()) {
+				if (state.key.id.equals(peer)) {
+					Record r = state.acknowledged.get(localNode.key);
+					if (r != null
+							&& (acknowledged == null
+							|| r.sequenceNumber > acknowledged.sequenceNumber)) {
+						acknowledged = r;
+					}
+				}
+			}
+
+			long lag = 0;
+			if (acknowledged != null) {
+				for (Record r = acknowledged.next; r != null; r = r.next) {
+					if (r.merged == null) {
+						++lag;
+					}
+				}
+			}
+			return lag;
+		}
+	}
+
+	private String lagGaugeName(NodeID peer) {
+		return "revori.epidemic.lag." + localNode.key.id.asString() + "."
+				+ peer.asString();
+	}
+
+	private String retentionGaugeName(boolean revisions) {
+		return (revisions ? "revori.epidemic.revisions.pinned."
+				: "revori.epidemic.records.retained.")
+				+ localNode.key.id.asString();
+	}
+
+	private static class NodeState {
+		public final NodeKey key;
+		// volatile so that head() may be called without holding the lock
+		public volatile Record head;
+		public final Map<NodeKey, Record> acknowledged = new HashMap<NodeKey, Record>();
+		// the oldest record not yet truncated
+		public Record oldest;
+		// the number of references to this origin's records by sequence
+		// number, from acknowledged and lastSent, and from the merged
+		// fields of other origins' retained records; see truncateRecords
+		public final TreeMap<Long, Integer> references = new TreeMap<Long, Integer>();
+		public final TreeMap<Long, Integer> merges = new TreeMap<Long, Integer>();
+		public Set<Runnable> syncListeners = new HashSet<Runnable>();
+		public ConnectionState connectionState;
+		// offsets of snapshots sent to this node which it has acknowledged
+		// loading, by origin
+		public final Map<NodeKey, SnapshotOffset> snapshotsAcknowledged = new HashMap<NodeKey, SnapshotOffset>();
+		// snapshots of this origin being loaded, by the peer sending them
+		public final Map<NodeID, SnapshotLoad> snapshotLoads = new HashMap<NodeID, SnapshotLoad>();
+
+		public NodeState(NodeKey key) {
+			this.key = key;
+		}
+	}
 
 	private static class ConnectionState {
 		public final Map<NodeKey, Record> lastSent = new HashMap<NodeKey, Record>();
+		public final Counter messagesSent;
+		public final Counter messagesReceived;
+		// messages waiting to be handed to the network when sending
+		// asynchronously
+		public final ArrayDeque<Writable> queue = new ArrayDeque<Writable>();
+		// snapshots being sent to the peer, by origin
+		public final Map<NodeKey, SnapshotCursor> snapshots = new HashMap<NodeKey, SnapshotCursor>();
+		// the progress of snapshots the peer is sending us, to be
+		// acknowledged by sendNext
+		public final Map<NodeKey, SnapshotOffset> snapshotAcks = new LinkedHashMap<NodeKey, SnapshotOffset>();
+		public boolean draining;
+		// true while the network reports the peer as not writable
+		public boolean congested;
 		public boolean readyToReceive;
 		public boolean sentHello;
 		public boolean gotHello;
 		public boolean sentSync;
 		public boolean gotSync;
+
+		public ConnectionState(NodeID peer) {
+			messagesSent = Instruments.counter("revori.epidemic.messagesSent."
+					+ peer.asString());
+			messagesReceived = Instruments
+					.counter("revori.epidemic.messagesReceived."
+							+ peer.asString());
+		}
+	}
+
+	/**
+	 * Reports the lag of a peer without keeping the server reachable,
+	 * since gauges are held globally (see Instruments).
+	 */
+	private static class LagGauge implements Gauge {
+		private final WeakReference<EpidemicServer> server;
+		private final NodeID peer;
+
+		public LagGauge(EpidemicServer server, NodeID peer) {
+			this.server = new WeakReference<EpidemicServer>(server);
+			this.peer = peer;
+		}
+
+		public long value() {
+			EpidemicServer s = server.get();
+			return s == null ? 0 : s.lag(peer);
+		}
+	}
+
+	/**
+	 * Reports the number of records or distinct revisions retained by a
+	 * server; see LagGauge.
+	 */
+	private static class RetentionGauge implements Gauge {
+		private final WeakReference<EpidemicServer> server;
+		private final boolean revisions;
+
+		public RetentionGauge(EpidemicServer server, boolean revisions) {
+			this.server = new WeakReference<EpidemicServer>(server);
+			this.revisions = revisions;
+		}
+
+		public long value() {
+			EpidemicServer s = server.get();
+			if (s == null) {
+				return 0;
+			}
+			return revisions ? s.pinnedRevisions : s.retainedRecords;
+		}
 	}
 
 	private static class Record {
@@ -660,7 +1670,9 @@ public class EpidemicServer implements NetworkServer {
 		public final Revision revision;
 		public final long sequenceNumber;
 		public final Record merged;
-		public WeakReference<Record> previous;
+		// strong reference, cleared by truncateRecords once no peer can
+		// need this or any older record
+		public Record previous;
 		public Record next;
 
 		public Record(NodeKey node, Revision revision, long sequenceNumber,
@@ -672,6 +1684,66 @@ public class EpidemicServer implements NetworkServer {
 		}
 	}
 
+	private static class PrecomputedMerge {
+		public final Revision base;
+		public final Revision left;
+		public final Revision right;
+		public final Revision result;
+
+		public PrecomputedMerge(Revision base, Revision left, Revision right,
+				Revision result) {
+			this.base = base;
+			this.left = left;
+			this.right = right;
+			this.result = result;
+		}
+	}
+
+	/**
+	 * The inputs of the merges performed when accepting an ack, as in
+	 * merge(Record...).
+	 */
+	private static class AckPlan {
+		public final Revision head;
+		public final ConflictResolver resolver;
+		public final List<Revision> bases = new ArrayList<Revision>();
+		public final List<Revision> forks = new ArrayList<Revision>();
+
+		public AckPlan(Revision head, ConflictResolver resolver) {
+			this.head = head;
+			this.resolver = resolver;
+		}
+
+		public boolean matches(AckPlan other) {
+			if (other == null || head != other.head
+					|| bases.size() != other.bases.size()) {
+				return false;
+			}
+			for (int i = 0; i < bases.size(); ++i) {
+				if (bases.get(i) != other.bases.get(i)
+						|| forks.get(i) != other.forks.get(i)) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		public List<PrecomputedMerge> compute(
+				ForeignKeyResolver foreignKeyResolver) {
+			List<PrecomputedMerge> merges = new ArrayList<PrecomputedMerge>();
+			Revision result = head;
+			for (int i = 0; i < bases.size(); ++i) {
+				Revision base = bases.get(i);
+				Revision fork = forks.get(i);
+				Revision merged = base.merge(result, fork, resolver,
+						foreignKeyResolver);
+				merges.add(new PrecomputedMerge(base, result, fork, merged));
+				result = merged;
+			}
+			return merges;
+		}
+	}
+
 	private interface Message extends Writable, Readable {
 		public void deliver(NodeID source, EpidemicServer server);
 	}
@@ -715,7 +1787,7 @@ public class EpidemicServer implements NetworkServer {
 		public void deliver(NodeID source, EpidemicServer server) {
 			server.debugMessage(DEBUG_RECEIVE, "ack from {}", source);
 
-			server.acceptAck(acknowledger, acknowledgerSequenceNumber,
+			server.deliverAck(acknowledger, acknowledgerSequenceNumber,
 					diffOrigin, diffSequenceNumber);
 		}
 	}
@@ -771,6 +1843,167 @@ public class EpidemicServer implements NetworkServer {
 		}
 	}
 
+	/**
+	 * A chunk of a snapshot of an origin's revision.  Together, the
+	 * chunks of a snapshot are equivalent to a diff from sequence number
+	 * zero, but carry a compact, sorted copy of the revision which can
+	 * be loaded directly into balanced trees instead of being applied
+	 * row by row.  Each chunk carries the offsets it starts and ends at,
+	 * so the receiver can tell whether it follows what it has loaded so
+	 * far and acknowledge its progress with a SnapshotAck.
+	 */
+	// public for deserialization
+	public static class Snapshot implements Message {
+		private NodeKey origin;
+		private SnapshotOffset start;
+		private SnapshotOffset end;
+		private boolean finished;
+		// tables, each followed by rows as column/value pairs
+		private List<Object> items;
+
+		private Snapshot(NodeKey origin, SnapshotOffset start,
+				SnapshotOffset end, boolean finished, List<Object> items) {
+			this.origin = origin;
+			this.start = start;
+			this.end = end;
+			this.finished = finished;
+			this.items = items;
+		}
+
+		// for deserialization
+		public Snapshot() {
+		}
+
+		@Override
+		public void writeTo(WriteContext context) throws IOException {
+			StreamUtil.writeString(context.out, origin.asString());
+			start.writeTo(context);
+			end.writeTo(context);
+			context.out.write(finished ? 1 : 0);
+
+			int i = 0;
+			while (i < items.size()) {
+				Object item = items.get(i);
+				if (item instanceof Table) {
+					context.out.write(Key);
+					Protocol.write(context, item);
+					++i;
+				} else {
+					int rowCount = 0;
+					while (i + rowCount < items.size()
+							&& !(items.get(i + rowCount) instanceof Table)) {
+						++rowCount;
+					}
+
+					context.out.write(Insert);
+					StreamUtil.writeInt(context.out, rowCount);
+					for (; rowCount > 0; --rowCount) {
+						Object[] row = (Object[]) items.get(i++);
+						StreamUtil.writeInt(context.out, row.length / 2);
+						for (Object o : row) {
+							Protocol.write(context, o);
+						}
+					}
+				}
+			}
+			context.out.write(End);
+		}
+
+		@Override
+		public void readFrom(ReadContext context) throws IOException {
+			origin = new NodeKey(StreamUtil.readString(context.in));
+			start = SnapshotOffset.readFrom(context);
+			end = SnapshotOffset.readFrom(context);
+			finished = context.in.read() == 1;
+
+			items = new ArrayList<Object>();
+			while (true) {
+				int flag = context.in.read();
+				switch (flag) {
+				case -1:
+					throw new EOFException();
+
+				case End:
+					return;
+
+				case Key:
+					items.add(Protocol.read(context));
+					break;
+
+				case Insert: {
+					int rowCount = StreamUtil.readInt(context.in);
+					for (int i = 0; i < rowCount; ++i) {
+						Object[] row = new Object[StreamUtil.readInt(context.in) * 2];
+						for (int j = 0; j < row.length; ++j) {
+							row[j] = Protocol.read(context);
+						}
+						items.add(row);
+					}
+				}
+					break;
+
+				default:
+					throw new RuntimeException("unexpected flag: " + flag);
+				}
+			}
+		}
+
+		@Override
+		public void deliver(NodeID source, EpidemicServer server) {
+			server.debugMessage(DEBUG_RECEIVE, "snapshot from {}", source);
+
+			server.acceptSnapshot(source, origin, start, end, finished, items);
+		}
+
+		@Override
+		public String toString() {
+			return "snapshot[" + origin + " " + start + " to " + end + "]";
+		}
+	}
+
+	/**
+	 * Tells the sender of a snapshot how much of it has been loaded, so
+	 * it knows where to resume if the connection is lost.
+	 */
+	// public for deserialization
+	public static class SnapshotAck implements Message {
+		private NodeKey origin;
+		private SnapshotOffset offset;
+
+		private SnapshotAck(NodeKey origin, SnapshotOffset offset) {
+			this.origin = origin;
+			this.offset = offset;
+		}
+
+		// for deserialization
+		public SnapshotAck() {
+		}
+
+		@Override
+		public void writeTo(WriteContext context) throws IOException {
+			StreamUtil.writeString(context.out, origin.asString());
+			offset.writeTo(context);
+		}
+
+		@Override
+		public void readFrom(ReadContext context) throws IOException {
+			origin = new NodeKey(StreamUtil.readString(context.in));
+			offset = SnapshotOffset.readFrom(context);
+		}
+
+		@Override
+		public void deliver(NodeID source, EpidemicServer server) {
+			synchronized (server.lock) {
+				server.acceptSnapshotAck(source, origin, offset);
+			}
+		}
+
+		@Override
+		public String toString() {
+			return "snapshotAck[" + origin + " " + offset + "]";
+		}
+	}
+
 	private static abstract class UUIDMessage implements Message {
 		public UUID instance;
 
@@ -803,7 +2036,9 @@ public class EpidemicServer implements NetworkServer {
 
 		@Override
 		public void deliver(NodeID source, EpidemicServer server) {
-			server.acceptHello(new NodeKey(source, instance));
+			synchronized (server.lock) {
+				server.acceptHello(new NodeKey(source, instance));
+			}
 		}
 	}
 
@@ -818,7 +2053,9 @@ public class EpidemicServer implements NetworkServer {
 
 		@Override
 		public void deliver(NodeID source, EpidemicServer server) {
-			server.acceptSync(new NodeKey(source, instance));
+			synchronized (server.lock) {
+				server.acceptSync(new NodeKey(source, instance));
+			}
 		}
 	}
 
@@ -1106,6 +2343,290 @@ public class EpidemicServer implements NetworkServer {
 		}
 	}
 
+	/**
+	 * A position within a snapshot of the revision with the specified
+	 * sequence number: just after the row with the specified primary
+	 * key in the specified table, or at the start if the table is null.
+	 */
+	private static class SnapshotOffset {
+		public final long sequenceNumber;
+		public final Table table;
+		public final Object[] key;
+
+		public SnapshotOffset(long sequenceNumber, Table table, Object[] key) {
+			this.sequenceNumber = sequenceNumber;
+			this.table = table;
+			this.key = key;
+		}
+
+		public void writeTo(WriteContext context) throws IOException {
+			StreamUtil.writeLong(context.out, sequenceNumber);
+			if (table == null) {
+				context.out.write(0);
+			} else {
+				context.out.write(1);
+				Protocol.write(context, table);
+				StreamUtil.writeInt(context.out, key.length);
+				for (Object o : key) {
+					Protocol.write(context, o);
+				}
+			}
+		}
+
+		public static SnapshotOffset readFrom(ReadContext context)
+				throws IOException {
+			long sequenceNumber = StreamUtil.readLong(context.in);
+			if (context.in.read() == 0) {
+				return new SnapshotOffset(sequenceNumber, null, null);
+			} else {
+				Table table = (Table) Protocol.read(context);
+				Object[] key = new Object[StreamUtil.readInt(context.in)];
+				for (int i = 0; i < key.length; ++i) {
+					key[i] = Protocol.read(context);
+				}
+				return new SnapshotOffset(sequenceNumber, table, key);
+			}
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (o instanceof SnapshotOffset) {
+				SnapshotOffset other = (SnapshotOffset) o;
+				return sequenceNumber == other.sequenceNumber
+						&& Compare.equal(table, other.table)
+						&& Arrays.equals(key, other.key);
+			}
+			return false;
+		}
+
+		@Override
+		public int hashCode() {
+			return (int) sequenceNumber ^ Arrays.hashCode(key);
+		}
+
+		@Override
+		public String toString() {
+			return sequenceNumber
+					+ (table == null ? "" : " " + table + " "
+							+ Arrays.toString(key));
+		}
+	}
+
+	/**
+	 * Generates a snapshot of a record's revision in chunks: for each
+	 * serializable table, its rows in primary key order, starting just
+	 * after a given offset.  Subtrees which sort entirely before the
+	 * offset are skipped rather than visited, so resuming a snapshot
+	 * costs little more than continuing it.
+	 */
+	private static class SnapshotCursor {
+		public final Record record;
+		// the end offsets of chunks sent but not yet acknowledged
+		public final ArrayDeque<SnapshotOffset> unacknowledged = new ArrayDeque<SnapshotOffset>();
+		public SnapshotOffset acknowledged;
+		// the end of the last chunk generated
+		public SnapshotOffset offset;
+		public boolean finished;
+		private final DiffResult result;
+		private final Object[] path = new Object[Constants.MaxDepth];
+		private final List<Object> row = new ArrayList<Object>();
+		private Table table;
+		private int bottom;
+		private int depth;
+		// true until we've passed the offset we started from
+		private boolean seeking;
+		// true if the key in the path names a row not yet emitted
+		private boolean pending;
+
+		public SnapshotCursor(Record record, SnapshotOffset offset) {
+			this.record = record;
+			this.acknowledged = offset;
+			this.offset = offset;
+			this.result = Revisions.Empty.diff(record.revision, true);
+			this.seeking = offset.table != null;
+		}
+
+		/**
+		 * Returns the next chunk of at most the specified number of rows
+		 * as a list of tables, each followed by rows as column/value
+		 * pairs.  The first table is omitted if the chunk continues it.
+		 */
+		public List<Object> next(int maxRows) {
+			List<Object> items = new ArrayList<Object>();
+			int rowCount = 0;
+			while (rowCount < maxRows) {
+				DiffResult.Type type = result.next();
+				switch (type) {
+				case End:
+					if (pending) {
+						rowCount += emit(items);
+					}
+					finished = true;
+					return items;
+
+				case Descend:
+					++depth;
+					break;
+
+				case Ascend:
+					if (pending) {
+						rowCount += emit(items);
+					}
+					--depth;
+					break;
+
+				case Key: {
+					Object key = result.fork();
+					if (pending && depth < bottom) {
+						// a row with no columns besides its primary key has
+						// no column level, so it's complete once we see its
+						// successor
+						rowCount += emit(items);
+					}
+
+					if (depth == 0) {
+						table = (Table) key;
+						if (!table.serializable
+								|| (seeking && Compare.TableComparator.compare(
+										table, offset.table) < 0)) {
+							result.skip();
+						} else {
+							bottom = table.primaryKey.columns.size() + 1;
+							if (!(seeking && table.equals(offset.table))) {
+								seeking = false;
+								items.add(table);
+							}
+						}
+					} else if (depth == bottom) {
+						if (((Column<?>) key).serializable) {
+							row.add(key);
+						} else {
+							result.skip();
+						}
+					} else {
+						path[depth] = key;
+						boolean skip = false;
+						if (seeking) {
+							int difference = Compare.compare(key,
+									offset.key[depth - 1], table.primaryKey.columns
+											.get(depth - 1).comparator);
+							if (difference < 0) {
+								skip = true;
+							} else if (difference > 0) {
+								seeking = false;
+							} else if (depth == bottom - 1) {
+								// this is the row the offset names, which the
+								// receiver already has
+								skip = true;
+								seeking = false;
+							}
+						}
+
+						if (skip) {
+							result.skip();
+						} else if (depth == bottom - 1 && !seeking) {
+							pending = true;
+						}
+					}
+				}
+					break;
+
+				case Value:
+					row.add(result.fork());
+					break;
+
+				default:
+					throw new RuntimeException("unexpected result type: "
+							+ type);
+				}
+			}
+			return items;
+		}
+
+		/**
+		 * Adds the row whose primary key is in the path to the specified
+		 * list, along with any columns collected for it, and returns the
+		 * number of rows added, i.e. one.
+		 */
+		private int emit(List<Object> items) {
+			// primary key columns aren't reported as part of the row, so
+			// add them from the path
+			Object[] key = new Object[bottom - 1];
+			for (int i = 0; i < key.length; ++i) {
+				key[i] = path[i + 1];
+				row.add(table.primaryKey.columns.get(i));
+				row.add(key[i]);
+			}
+			items.add(row.toArray());
+			row.clear();
+			pending = false;
+
+			offset = new SnapshotOffset(record.sequenceNumber, table, key);
+			return 1;
+		}
+	}
+
+	/**
+	 * The receiving end of a SnapshotCursor, which loads each chunk as
+	 * it arrives.
+	 */
+	private static class SnapshotLoad {
+		public final BulkLoader loader = new BulkLoader();
+		// the end of the last chunk loaded
+		public SnapshotOffset offset;
+
+		public SnapshotLoad(SnapshotOffset offset) {
+			this.offset = offset;
+		}
+
+		public void load(List<Object> items) {
+			Column<?>[] columns = new Column<?>[0];
+			Object[] values = new Object[0];
+			for (Object item : items) {
+				if (item instanceof Table) {
+					loader.table((Table) item);
+				} else {
+					Object[] row = (Object[]) item;
+					int columnCount = row.length / 2;
+					if (columnCount > columns.length) {
+						columns = new Column<?>[columnCount];
+						values = new Object[columnCount];
+					}
+
+					for (int j = 0; j < columnCount; ++j) {
+						columns[j] = (Column<?>) row[j * 2];
+						values[j] = row[(j * 2) + 1];
+					}
+
+					loader.row(columns, values, columnCount);
+				}
+			}
+		}
+	}
+
+	/**
+	 * A fully loaded snapshot, ready to be accepted like a diff.
+	 */
+	private static class LoadedSnapshotBody implements DiffBody {
+		public final Revision revision;
+
+		public LoadedSnapshotBody(Revision revision) {
+			this.revision = revision;
+		}
+
+		@Override
+		public Revision apply(EpidemicServer server, Revision base) {
+			// the base is either empty or, if we already have the
+			// snapshotted revision, identical to it
+			return revision;
+		}
+
+		@Override
+		public String toString() {
+			return "snapshot of " + revision;
+		}
+	}
+
 	private static class NodeKey implements Comparable<NodeKey>, Stringable {
 		public final NodeID id;
 		public final UUID instance;
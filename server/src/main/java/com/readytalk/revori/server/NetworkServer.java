@@ -83,4 +83,27 @@ public interface NetworkServer extends RevisionServer {
   public static interface Network {
     public void send(NodeID source, NodeID destination, Writable message);
   }
+
+  /**
+   * A network which queues outgoing messages rather than blocking the
+   * sender until they're written.  Servers should stop sending to a
+   * destination while it isn't writable, lest its queue grow without
+   * bound.
+   */
+  public static interface FlowControlledNetwork extends Network {
+    /**
+     * Returns false if messages queued for the specified destination
+     * have backed up beyond what the network is willing to buffer.
+     */
+    public boolean writable(NodeID destination);
+  }
+
+  /**
+   * Implemented by servers which want to hear when a destination a
+   * FlowControlledNetwork reported as not writable has become
+   * writable again.
+   */
+  public static interface FlowControlListener {
+    public void writable(NodeID destination);
+  }
 }
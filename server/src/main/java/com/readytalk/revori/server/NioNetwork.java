@@ -0,0 +1,803 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.readytalk.revori.metrics.Counter;
+import com.readytalk.revori.metrics.Instruments;
+import com.readytalk.revori.server.NetworkServer.FlowControlListener;
+import com.readytalk.revori.server.NetworkServer.FlowControlledNetwork;
+import com.readytalk.revori.server.NetworkServer.Network;
+import com.readytalk.revori.server.NetworkServer.NodeID;
+import com.readytalk.revori.server.protocol.ReadContext;
+import com.readytalk.revori.server.protocol.Readable;
+import com.readytalk.revori.server.protocol.Writable;
+import com.readytalk.revori.server.protocol.WriteContext;
+import com.readytalk.revori.util.BufferOutputStream;
+
+/**
+ * A {@link Network} implementation which carries messages between
+ * {@link NetworkServer}s over non-blocking TCP connections.
+ *
+ * <p>Each message is sent as a frame consisting of a four byte length
+ * followed by the name of the message class and the message itself.
+ * The first frame on a connection is a handshake carrying the
+ * {@link NodeID} of the sender.  Messages are serialized directly into
+ * the buffer which is handed to the socket, queued per peer, and
+ * written with gathering writes, so a burst of messages to the same
+ * peer costs a single selector wakeup and as few system calls as the
+ * socket allows.
+ *
+ * <p>{@link #send send} never blocks.  Once more than
+ * <code>highWaterMark</code> bytes are queued for a destination,
+ * {@link #writable writable} returns false for it until the queue
+ * drains, at which point a server which is a {@link
+ * NetworkServer.FlowControlListener} is told so, which lets it push
+ * back instead of buffering without bound.  Incoming messages and
+ * changes to the set of connected peers are delivered to the server
+ * in order on a dedicated thread, the latter via {@link
+ * NetworkServer#updateView updateView}.  A connection is not read
+ * from while more than <code>highWaterMark</code> bytes received from
+ * it await delivery.  Connections to peers added with {@link #addPeer
+ * addPeer} are re-established automatically when they are lost.
+ *
+ * <p>Typical usage:
+ *
+ * <pre>
+ *   NioNetwork network = new NioNetwork(self, address);
+ *   NetworkServer server = new EpidemicServer
+ *     (conflictResolver, foreignKeyResolver, network, self);
+ *   network.start(server);
+ *   network.addPeer(other, otherAddress);
+ * </pre>
+ */
+@ThreadSafe
+public class NioNetwork implements FlowControlledNetwork {
+  private static final Logger log = LoggerFactory.getLogger(NioNetwork.class);
+
+  public static final int DefaultHighWaterMark = 4 * 1024 * 1024;
+  public static final int DefaultMaxFrameSize = 256 * 1024 * 1024;
+  public static final long DefaultReconnectDelay = 1000;
+
+  // maximum number of queued frames passed to a single gathering write
+  private static final int MaxBatch = 64;
+
+  private static final int InitialReadBufferSize = 64 * 1024;
+
+  private static final Counter bytesSent = Instruments.counter
+    ("revori.network.bytesSent");
+  private static final Counter bytesReceived = Instruments.counter
+    ("revori.network.bytesReceived");
+
+  private final NodeID self;
+  private final int highWaterMark;
+  private final int maxFrameSize;
+  private final long reconnectDelay;
+  private final Selector selector;
+  private final ServerSocketChannel listener;
+  private final ExecutorService deliverer;
+  private final Thread thread;
+  private final Object lock = new Object();
+  // the following are guarded by lock:
+  private final Map<NodeID, InetSocketAddress> peers
+    = new HashMap<NodeID, InetSocketAddress>();
+  private final Map<NodeID, Connection> connections
+    = new HashMap<NodeID, Connection>();
+  private final Map<NodeID, Long> nextAttempts = new HashMap<NodeID, Long>();
+  private final Set<NodeID> dialing = new HashSet<NodeID>();
+  private final List<Connection> dirty = new ArrayList<Connection>();
+  private final List<Connection> closing = new ArrayList<Connection>();
+  private boolean wakeupPending;
+  private boolean closed;
+  private NetworkServer server;
+
+  public NioNetwork(NodeID self,
+                    InetSocketAddress address,
+                    int highWaterMark,
+                    int maxFrameSize,
+                    long reconnectDelay)
+    throws IOException
+  {
+    this.self = self;
+    this.highWaterMark = highWaterMark;
+    this.maxFrameSize = maxFrameSize;
+    this.reconnectDelay = reconnectDelay;
+
+    this.selector = Selector.open();
+    this.listener = ServerSocketChannel.open();
+    listener.configureBlocking(false);
+    listener.socket().setReuseAddress(true);
+    listener.socket().bind(address);
+    listener.register(selector, SelectionKey.OP_ACCEPT);
+
+    this.deliverer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread
+            (r, "NioNetwork deliverer " + NioNetwork.this.self.asString());
+          t.setDaemon(true);
+          return t;
+        }
+      });
+
+    this.thread = new Thread(new Runnable() {
+        public void run() {
+          loop();
+        }
+      }, "NioNetwork selector " + self.asString());
+    thread.setDaemon(true);
+  }
+
+  public NioNetwork(NodeID self, InetSocketAddress address)
+    throws IOException
+  {
+    this(self, address, DefaultHighWaterMark, DefaultMaxFrameSize,
+         DefaultReconnectDelay);
+  }
+
+  /**
+   * Returns a network which listens on an ephemeral port of the
+   * loopback interface, suitable for running several nodes in a
+   * single process.  Use {@link #localAddress} to find the port
+   * chosen.
+   */
+  public static NioNetwork loopback(NodeID self) throws IOException {
+    return new NioNetwork
+      (self, new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+  }
+
+  public InetSocketAddress localAddress() {
+    return (InetSocketAddress) listener.socket().getLocalSocketAddress();
+  }
+
+  /**
+   * Starts accepting connections and delivering messages to the
+   * specified server.  This is separate from construction since the
+   * server typically needs a reference to this network when it is
+   * created.
+   */
+  public void start(NetworkServer server) {
+    synchronized (lock) {
+      if (this.server != null) {
+        throw new IllegalStateException("already started");
+      }
+      this.server = server;
+    }
+
+    thread.start();
+  }
+
+  /**
+   * Adds a peer to which this network should maintain a connection,
+   * reconnecting as necessary.  Peers which connect to us need not be
+   * added.
+   */
+  public void addPeer(NodeID peer, InetSocketAddress address) {
+    synchronized (lock) {
+      peers.put(peer, address);
+      nextAttempts.remove(peer);
+      wakeup();
+    }
+  }
+
+  public void removePeer(NodeID peer) {
+    synchronized (lock) {
+      peers.remove(peer);
+      nextAttempts.remove(peer);
+      Connection c = connections.get(peer);
+      if (c != null) {
+        requestClose(c);
+      }
+    }
+  }
+
+  /**
+   * Returns the set of peers with which a connection is currently
+   * established.
+   */
+  public Set<NodeID> connectedPeers() {
+    synchronized (lock) {
+      return new HashSet<NodeID>(connections.keySet());
+    }
+  }
+
+  public void close() {
+    synchronized (lock) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+    }
+
+    selector.wakeup();
+
+    if (thread.isAlive() && Thread.currentThread() != thread) {
+      try {
+        thread.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    deliverer.shutdown();
+  }
+
+  public void send(NodeID source, NodeID destination, Writable message) {
+    BufferOutputStream buffer = new BufferOutputStream();
+    try {
+      // reserve space for the length, which is filled in below
+      StreamUtil.writeInt(buffer, 0);
+      StreamUtil.writeString(buffer, message.getClass().getName());
+      message.writeTo(new WriteContext(buffer));
+    } catch (IOException e) {
+      // shouldn't happen, since we're writing to memory
+      throw new RuntimeException(e);
+    }
+
+    byte[] bytes = buffer.getBuffer();
+    int length = buffer.size();
+    ByteBuffer.wrap(bytes, 0, 4).putInt(length - 4);
+
+    synchronized (lock) {
+      Connection c = connections.get(destination);
+      if (c == null) {
+        log.debug("dropping message to unconnected peer {}", destination);
+        return;
+      }
+
+      enqueue(c, ByteBuffer.wrap(bytes, 0, length));
+      bytesSent.increment(length);
+      c.bytesSent.increment(length);
+    }
+  }
+
+  public boolean writable(NodeID destination) {
+    synchronized (lock) {
+      Connection c = connections.get(destination);
+      // messages to unconnected peers are dropped rather than queued
+      return c == null || c.queuedBytes <= highWaterMark;
+    }
+  }
+
+  private void enqueue(Connection c, ByteBuffer frame) {
+    c.queue.add(frame);
+    c.queuedBytes += frame.remaining();
+
+    if (! c.dirty) {
+      c.dirty = true;
+      dirty.add(c);
+      wakeup();
+    }
+  }
+
+  private void wakeup() {
+    if (! wakeupPending) {
+      wakeupPending = true;
+      selector.wakeup();
+    }
+  }
+
+  private void requestClose(Connection c) {
+    closing.add(c);
+    wakeup();
+  }
+
+  private void loop() {
+    try {
+      while (true) {
+        long timeout;
+        List<Connection> toClose;
+        synchronized (lock) {
+          if (closed) {
+            break;
+          }
+
+          wakeupPending = false;
+
+          for (Connection c: dirty) {
+            c.dirty = false;
+            if (c.open) {
+              int ops = c.key.interestOps();
+              if (! c.queue.isEmpty()) {
+                ops |= SelectionKey.OP_WRITE;
+              }
+
+              if (c.readPaused && c.undeliveredBytes <= highWaterMark) {
+                c.readPaused = false;
+                ops |= SelectionKey.OP_READ;
+              }
+
+              c.key.interestOps(ops);
+            }
+          }
+          dirty.clear();
+
+          toClose = new ArrayList<Connection>(closing);
+          closing.clear();
+        }
+
+        for (Connection c: toClose) {
+          close(c);
+        }
+
+        synchronized (lock) {
+          timeout = dial(System.currentTimeMillis());
+        }
+
+        selector.select(timeout);
+
+        for (Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+             it.hasNext();)
+        {
+          SelectionKey key = it.next();
+          it.remove();
+
+          if (! key.isValid()) {
+            continue;
+          }
+
+          if (key.isAcceptable()) {
+            accept();
+            continue;
+          }
+
+          Connection c = (Connection) key.attachment();
+          try {
+            if (key.isConnectable()) {
+              c.channel.finishConnect();
+              key.interestOps(SelectionKey.OP_READ);
+              synchronized (lock) {
+                sendHandshake(c);
+              }
+            }
+
+            if (key.isValid() && key.isReadable()) {
+              read(c);
+            }
+
+            if (key.isValid() && key.isWritable()) {
+              write(c);
+            }
+          } catch (IOException e) {
+            log.debug("connection to " + c.peer + " failed", e);
+            close(c);
+          }
+        }
+      }
+    } catch (IOException e) {
+      log.error("selector failed", e);
+    } finally {
+      List<Connection> list;
+      synchronized (lock) {
+        closed = true;
+        list = new ArrayList<Connection>();
+        for (SelectionKey key: selector.keys()) {
+          if (key.attachment() instanceof Connection) {
+            list.add((Connection) key.attachment());
+          }
+        }
+      }
+
+      for (Connection c: list) {
+        close(c);
+      }
+
+      try {
+        listener.close();
+        selector.close();
+      } catch (IOException e) {
+        log.warn("error closing selector", e);
+      }
+    }
+  }
+
+  private long dial(long now) {
+    long timeout = 0;
+    for (Map.Entry<NodeID, InetSocketAddress> e: peers.entrySet()) {
+      NodeID peer = e.getKey();
+      if (connections.containsKey(peer) || dialing.contains(peer)) {
+        continue;
+      }
+
+      Long next = nextAttempts.get(peer);
+      if (next != null && next > now) {
+        long wait = next - now;
+        if (timeout == 0 || wait < timeout) {
+          timeout = wait;
+        }
+        continue;
+      }
+
+      Connection c = null;
+      try {
+        SocketChannel channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        c = new Connection(channel, peer);
+        dialing.add(peer);
+        if (channel.connect(e.getValue())) {
+          c.key = channel.register(selector, SelectionKey.OP_READ, c);
+          sendHandshake(c);
+        } else {
+          c.key = channel.register(selector, SelectionKey.OP_CONNECT, c);
+        }
+      } catch (IOException ex) {
+        log.debug("unable to connect to " + peer, ex);
+        dialing.remove(peer);
+        nextAttempts.put(peer, now + reconnectDelay);
+        if (c != null) {
+          closeChannel(c);
+        }
+        if (timeout == 0 || reconnectDelay < timeout) {
+          timeout = Math.max(1, reconnectDelay);
+        }
+      }
+    }
+    return timeout;
+  }
+
+  private void accept() throws IOException {
+    SocketChannel channel = listener.accept();
+    if (channel == null) {
+      return;
+    }
+
+    channel.configureBlocking(false);
+    channel.socket().setTcpNoDelay(true);
+
+    Connection c = new Connection(channel, null);
+    synchronized (lock) {
+      c.key = channel.register(selector, SelectionKey.OP_READ, c);
+      sendHandshake(c);
+    }
+  }
+
+  private void sendHandshake(Connection c) {
+    BufferOutputStream buffer = new BufferOutputStream();
+    try {
+      StreamUtil.writeInt(buffer, 0);
+      StreamUtil.writeString(buffer, self.asString());
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+
+    byte[] bytes = buffer.getBuffer();
+    int length = buffer.size();
+    ByteBuffer.wrap(bytes, 0, 4).putInt(length - 4);
+
+    enqueue(c, ByteBuffer.wrap(bytes, 0, length));
+  }
+
+  private void read(Connection c) throws IOException {
+    if (c.channel.read(c.in) < 0) {
+      close(c);
+      return;
+    }
+
+    ByteBuffer in = c.in;
+    in.flip();
+    int needed = 0;
+    while (in.remaining() >= 4) {
+      int length = in.getInt(in.position());
+      if (length < 0 || length > maxFrameSize) {
+        throw new IOException("bad frame length: " + length);
+      }
+
+      if (in.remaining() < 4 + length) {
+        needed = 4 + length;
+        break;
+      }
+
+      in.position(in.position() + 4);
+      byte[] frame = new byte[length];
+      in.get(frame);
+
+      if (! handle(c, frame)) {
+        return;
+      }
+    }
+    in.compact();
+
+    if (needed > in.capacity()) {
+      ByteBuffer bigger = ByteBuffer.allocate
+        (Math.max(needed, in.capacity() * 2));
+      in.flip();
+      bigger.put(in);
+      c.in = bigger;
+    }
+
+    synchronized (lock) {
+      if (c.open && c.undeliveredBytes > highWaterMark) {
+        // stop reading until the deliverer catches up; see delivered
+        c.readPaused = true;
+        c.key.interestOps(c.key.interestOps() & ~SelectionKey.OP_READ);
+      }
+    }
+  }
+
+  private boolean handle(Connection c, byte[] frame) throws IOException {
+    if (! c.established) {
+      NodeID peer = new NodeID
+        (StreamUtil.readString(new ByteArrayInputStream(frame)));
+
+      if (c.peer != null && ! c.peer.equals(peer)) {
+        log.warn("expected {} but connected to {}", c.peer, peer);
+        close(c);
+        return false;
+      }
+
+      c.peer = peer;
+      return established(c);
+    } else {
+      // count the length prefix too, as send does
+      bytesReceived.increment(frame.length + 4);
+      c.bytesReceived.increment(frame.length + 4);
+
+      final NodeID peer = c.peer;
+      final byte[] message = frame;
+      final Connection connection = c;
+      synchronized (lock) {
+        c.undeliveredBytes += frame.length;
+      }
+
+      deliverer.execute(new Runnable() {
+          public void run() {
+            try {
+              deliver(connection, peer, message);
+            } finally {
+              delivered(connection, message.length);
+            }
+          }
+        });
+      return true;
+    }
+  }
+
+  private void delivered(Connection c, int length) {
+    synchronized (lock) {
+      c.undeliveredBytes -= length;
+      if (c.readPaused && c.undeliveredBytes <= highWaterMark && ! c.dirty) {
+        // the loop will resume reading from this connection
+        c.dirty = true;
+        dirty.add(c);
+        wakeup();
+      }
+    }
+  }
+
+  private void deliver(Connection c, NodeID peer, byte[] frame) {
+    Readable message;
+    try {
+      ByteArrayInputStream in = new ByteArrayInputStream(frame);
+      // don't run static initializers for whatever class a peer
+      // names until we know it's a message
+      Class<?> class_ = Class.forName
+        (StreamUtil.readString(in), false, NioNetwork.class.getClassLoader());
+
+      if (! Readable.class.isAssignableFrom(class_)) {
+        throw new IOException("not a message: " + class_.getName());
+      }
+
+      message = (Readable) class_.getDeclaredConstructor().newInstance();
+      message.readFrom(new ReadContext(in));
+    } catch (Exception e) {
+      log.warn("unable to read message from " + peer, e);
+      synchronized (lock) {
+        requestClose(c);
+      }
+      return;
+    }
+
+    try {
+      server.accept(peer, message);
+    } catch (RuntimeException e) {
+      log.warn("error accepting message from " + peer, e);
+    }
+  }
+
+  private boolean established(Connection c) {
+    NodeID peer = c.peer;
+
+    synchronized (lock) {
+      if (peer.equals(self)) {
+        log.warn("closing connection to self");
+        closeLocked(c);
+        return false;
+      }
+
+      if (c.outbound) {
+        dialing.remove(peer);
+      }
+
+      Connection existing = connections.get(peer);
+      if (existing != null) {
+        // Both sides may dial each other at once.  Each side keeps
+        // the connection dialed by the node with the lower ID, so they
+        // agree on which one survives.
+        boolean keep = dialedByLower(c) != dialedByLower(existing)
+          ? dialedByLower(c) : true;
+
+        if (! keep) {
+          closeLocked(c);
+          return false;
+        }
+
+        existing.replaced = true;
+        connections.remove(peer);
+        closeLocked(existing);
+
+        // anything sent on the old connection may be lost, so make
+        // the server start over with this peer:
+        postView();
+      }
+
+      c.established = true;
+      c.bytesSent = Instruments.counter
+        ("revori.network.bytesSent." + peer.asString());
+      c.bytesReceived = Instruments.counter
+        ("revori.network.bytesReceived." + peer.asString());
+      connections.put(peer, c);
+      nextAttempts.remove(peer);
+      postView();
+    }
+
+    return true;
+  }
+
+  private boolean dialedByLower(Connection c) {
+    return c.outbound == (self.compareTo(c.peer) < 0);
+  }
+
+  private void postWritable(final NodeID peer) {
+    if (server instanceof FlowControlListener) {
+      final FlowControlListener listener = (FlowControlListener) server;
+      deliverer.execute(new Runnable() {
+          public void run() {
+            listener.writable(peer);
+          }
+        });
+    }
+  }
+
+  private void postView() {
+    final Set<NodeID> view = new HashSet<NodeID>(connections.keySet());
+    final NetworkServer server = this.server;
+    deliverer.execute(new Runnable() {
+        public void run() {
+          server.updateView(view);
+        }
+      });
+  }
+
+  private void write(Connection c) throws IOException {
+    ByteBuffer[] batch;
+    synchronized (lock) {
+      batch = new ByteBuffer[Math.min(MaxBatch, c.queue.size())];
+      Iterator<ByteBuffer> it = c.queue.iterator();
+      for (int i = 0; i < batch.length; ++i) {
+        batch[i] = it.next();
+      }
+    }
+
+    long written = batch.length == 0 ? 0 : c.channel.write(batch);
+
+    synchronized (lock) {
+      boolean wasAbove = c.queuedBytes > highWaterMark;
+
+      c.queuedBytes -= written;
+      while ((! c.queue.isEmpty()) && ! c.queue.peek().hasRemaining()) {
+        c.queue.poll();
+      }
+
+      if (c.queue.isEmpty()) {
+        c.key.interestOps(c.key.interestOps() & ~SelectionKey.OP_WRITE);
+      }
+
+      if (wasAbove && c.queuedBytes <= highWaterMark && c.peer != null) {
+        postWritable(c.peer);
+      }
+    }
+  }
+
+  private void close(Connection c) {
+    synchronized (lock) {
+      closeLocked(c);
+    }
+  }
+
+  private void closeLocked(Connection c) {
+    if (! c.open) {
+      return;
+    }
+
+    c.open = false;
+    c.queue.clear();
+    c.queuedBytes = 0;
+
+    closeChannel(c);
+
+    if (c.peer != null) {
+      if (c.outbound) {
+        dialing.remove(c.peer);
+      }
+
+      if (connections.get(c.peer) == c) {
+        connections.remove(c.peer);
+        postView();
+      }
+
+      if ((! c.replaced) && peers.containsKey(c.peer)
+          && ! connections.containsKey(c.peer))
+      {
+        nextAttempts.put(c.peer, System.currentTimeMillis() + reconnectDelay);
+      }
+    }
+  }
+
+  private static void closeChannel(Connection c) {
+    if (c.key != null) {
+      c.key.cancel();
+    }
+
+    try {
+      c.channel.close();
+    } catch (IOException e) {
+      log.debug("error closing channel", e);
+    }
+  }
+
+  private static class Connection {
+    public final SocketChannel channel;
+    public final boolean outbound;
+    public final ArrayDeque<ByteBuffer> queue = new ArrayDeque<ByteBuffer>();
+    public SelectionKey key;
+    public NodeID peer;
+    public ByteBuffer in = ByteBuffer.allocate(InitialReadBufferSize);
+    public long queuedBytes;
+    // bytes received but not yet delivered to the server
+    public long undeliveredBytes;
+    public boolean readPaused;
+    public boolean dirty;
+    public boolean established;
+    public boolean replaced;
+    public boolean open = true;
+    // per-peer counters, assigned once the peer is known
+    public Counter bytesSent;
+    public Counter bytesReceived;
+
+    public Connection(SocketChannel channel, NodeID peer) {
+      this.channel = channel;
+      this.peer = peer;
+      this.outbound = peer != null;
+    }
+  }
+}
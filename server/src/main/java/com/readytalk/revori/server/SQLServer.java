@@ -19,6 +19,7 @@ import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.Reader;
 import java.net.InetSocketAddress;
@@ -33,9 +34,15 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.NotThreadSafe;
@@ -71,9 +78,15 @@ import com.readytalk.revori.Table;
 import com.readytalk.revori.TableReference;
 import com.readytalk.revori.UnaryOperation;
 import com.readytalk.revori.UpdateTemplate;
+import com.readytalk.revori.imp.Footprints;
+import com.readytalk.revori.imp.QueryPlans;
+import com.readytalk.revori.metrics.Counter;
+import com.readytalk.revori.metrics.Histogram;
+import com.readytalk.revori.metrics.Instruments;
 import com.readytalk.revori.server.protocol.Stringable;
 import com.readytalk.revori.server.simple.SimpleRevisionServer;
 import com.readytalk.revori.subscribe.Subscription;
+import com.readytalk.revori.trace.SlowLog;
 import com.readytalk.revori.util.BufferOutputStream;
 
 @NotThreadSafe
@@ -82,12 +95,18 @@ public class SQLServer implements RevisionServer {
 
   private static final Logger log = LoggerFactory.getLogger(SQLServer.class);
 
-  private enum Request {
+  private static final Histogram requestNanos = Instruments.histogram
+    ("revori.sql.request.nanos");
+  private static final Counter requestErrors = Instruments.counter
+    ("revori.sql.request.errors");
+
+  public enum Request {
     Execute, Complete;
   }
 
   public enum Response {
-    RowSet, NewDatabase, CopySuccess, Success, Error;
+    RowSet, NewDatabase, CopySuccess, Success, Error, Subscribed,
+    SubscriptionRowSet;
   }
 
   public enum RowSetFlag {
@@ -96,6 +115,10 @@ public class SQLServer implements RevisionServer {
 
   private static final int ThreadPoolSize = 256;
 
+  private static final int PublisherThreadCount = 16;
+
+  private static final long DefaultPublishTimeoutMillis = 30 * 1000;
+
   private static final Tree Nothing = new Nothing();
 
   private static final Map<Class, Validator> validators = Maps.newHashMap();
@@ -244,7 +267,37 @@ public class SQLServer implements RevisionServer {
     public final RevisionServer server = new SimpleRevisionServer
       (conflictResolver, ForeignKeyResolvers.Delete);
 
+    // threads on which subscription updates are written to clients,
+    // so that neither the committing client nor the subscribed one
+    // waits for the other.  At most one publication per client is
+    // queued at a time (see schedulePublish), and none may take
+    // longer than publishTimeoutMillis, so a client which stops
+    // reading delays the others by at most that long.
+    public final ThreadPoolExecutor publisher = new ThreadPoolExecutor
+      (PublisherThreadCount, PublisherThreadCount, 60, TimeUnit.SECONDS,
+       new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "revori-sql-publisher");
+            t.setDaemon(true);
+            return t;
+          }
+        });
+
+    // enforces publishTimeoutMillis
+    public final ScheduledExecutorService publishTimer
+      = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "revori-sql-publish-timer");
+            t.setDaemon(true);
+            return t;
+          }
+        });
+
+    public volatile long publishTimeoutMillis = DefaultPublishTimeoutMillis;
+
     public Server() {
+      publisher.allowCoreThreadTimeOut(true);
+
       Column<String> databasesName = new Column<String>(String.class);
       Column<Object> databasesDatabase = new Column<Object>(Object.class);
       Table databases = new Table(cols(databasesName));
@@ -455,6 +508,27 @@ public class SQLServer implements RevisionServer {
     }
   }
 
+  private static class ClientSubscription {
+    public final int id;
+    public final String database;
+    public final QueryTemplate template;
+    public final int expressionCount;
+    public Revision revision;
+
+    public ClientSubscription(int id,
+                              String database,
+                              QueryTemplate template,
+                              int expressionCount,
+                              Revision revision)
+    {
+      this.id = id;
+      this.database = database;
+      this.template = template;
+      this.expressionCount = expressionCount;
+      this.revision = revision;
+    }
+  }
+
   private static class Client implements Runnable {
     public final Server server;
     @Nullable
@@ -463,6 +537,18 @@ public class SQLServer implements RevisionServer {
     public Transaction transaction;
     public Database database;
     public CopyContext copyContext;
+    // the stream responses are written to, or null if this client
+    // has no persistent connection (and thus can't subscribe).  Both
+    // requests and subscription updates write to it while holding
+    // the client's monitor.
+    @Nullable
+    public OutputStream out;
+    public final Map<Integer, ClientSubscription> subscriptions
+      = new TreeMap<Integer, ClientSubscription>();
+    public int nextSubscriptionId = 1;
+    @Nullable
+    public Subscription listener;
+    public final AtomicBoolean publishScheduled = new AtomicBoolean();
 
     public Client(Server server,
                   @Nullable SocketChannel channel)
@@ -480,10 +566,13 @@ public class SQLServer implements RevisionServer {
           OutputStream out = new BufferedOutputStream
             (Channels.newOutputStream(channel));
 
+          this.out = out;
+
           while (channel.isOpen()) {
             handleRequest(this, in, out);
           }
         } finally {
+          unsubscribeAll(this);
           channel.close();
         }
       } catch (Exception e) {
@@ -1037,7 +1126,16 @@ public class SQLServer implements RevisionServer {
                                                  Tree tree,
                                                  int[] expressionCount)
   {
-    List<MyTableReference> tableReferences = new ArrayList<MyTableReference>();
+    return makeQueryTemplate
+      (client, tree, expressionCount, new ArrayList<MyTableReference>());
+  }
+
+  private static QueryTemplate makeQueryTemplate
+    (Client client,
+     Tree tree,
+     int[] expressionCount,
+     List<MyTableReference> tableReferences)
+  {
     List<Expression> tests = new ArrayList<Expression>();
     Source source = makeSource
       (client, tree.get(3), tableReferences, tests);
@@ -1349,17 +1447,86 @@ public class SQLServer implements RevisionServer {
       } else {
         throw new RuntimeException("unexpected terminal: " + type);
       }
-    } else {
+    } else if (((Terminal) tree.get(0)).value == "columns") {
       for (MyColumn c: findTable
              (client, ((Name) tree.get(2)).value).columnList)
       {
         sb.append("\n");
         sb.append(c.name);
       }
+    } else {
+      makeFootprintList(client, tree, sb);
     }
     return sb.length() == 0 ? "\n no matches found" : sb.toString();
   }
 
+  private static void makeFootprintList(Client client,
+                                        Tree tree,
+                                        StringBuilder sb)
+  {
+    List<MyTable> tables = new ArrayList<MyTable>();
+    if (tree.get(1) == Nothing) {
+      QueryResult result = Revisions.Empty.diff
+        (dbHead(client), client.server.listTables,
+         database(client).name);
+
+      while (result.nextRow() == QueryResult.Type.Inserted) {
+        tables.add((MyTable) result.nextItem());
+      }
+    } else {
+      tables.add(findTable(client, ((Name) tree.get(1).get(1)).value));
+    }
+
+    Revision other = tree.get(2) == Nothing
+      ? Revisions.Empty
+      : findTag(client, ((Name) tree.get(2).get(2)).value).revision;
+
+    Map<Table, List<Footprints.TreeFootprint>> footprints
+      = new HashMap<Table, List<Footprints.TreeFootprint>>();
+    for (Footprints.TreeFootprint f: Footprints.trees(head(client), other)) {
+      List<Footprints.TreeFootprint> list = footprints.get(f.table);
+      if (list == null) {
+        footprints.put(f.table, list = new ArrayList<Footprints.TreeFootprint>());
+      }
+      list.add(f);
+    }
+
+    long nodes = 0;
+    long bytes = 0;
+    for (MyTable table: tables) {
+      List<Footprints.TreeFootprint> list = footprints.get(table.table);
+      if (list != null) {
+        for (Footprints.TreeFootprint f: list) {
+          sb.append("\n").append(table.name)
+            .append(f.index.isPrimary() ? " primary key (" : " index (");
+          for (int i = 0; i < f.index.columns.size(); ++i) {
+            if (i > 0) {
+              sb.append(", ");
+            }
+            sb.append(columnName(table, f.index.columns.get(i)));
+          }
+          sb.append("): ").append(f.nodes).append(" nodes, ~")
+            .append(f.estimatedBytes).append(" bytes");
+
+          nodes += f.nodes;
+          bytes += f.estimatedBytes;
+        }
+      }
+    }
+
+    sb.append("\ntotal: ").append(nodes).append(" nodes, ~").append(bytes)
+      .append(" bytes");
+  }
+
+  private static String columnName(MyTable table, Column<?> column) {
+    for (MyColumn c: table.columnList) {
+      if (c.column == column) {
+        return c.name;
+      }
+    }
+    return column.id;
+  }
+
   public static String makeHelp() throws IOException {
     InputStream help = SQLServer.class.getResourceAsStream
       ("/sql-client-help.txt");
@@ -1385,17 +1552,20 @@ public class SQLServer implements RevisionServer {
     throws IOException
   {
     QueryResult result = base.diff(fork, template);
+    QueryResult.Type first = result.nextRow();
 
-    boolean wroteSentinal = false;
+    out.write(Response.RowSet.ordinal());
+    writeRows(result, first, expressionCount, out);
+  }
 
+  private static void writeRows(QueryResult result,
+                                QueryResult.Type first,
+                                int expressionCount,
+                                OutputStream out)
+    throws IOException
+  {
+    QueryResult.Type resultType = first;
     while (true) {
-      QueryResult.Type resultType = result.nextRow();
-
-      if (! wroteSentinal) {
-        out.write(Response.RowSet.ordinal());
-        wroteSentinal = true;
-      }
-
       switch (resultType) {
       case Inserted:
         out.write(RowSetFlag.InsertedRow.ordinal());
@@ -1420,6 +1590,215 @@ public class SQLServer implements RevisionServer {
       default:
         throw new RuntimeException("unexpected result type: " + resultType);
       }
+
+      resultType = result.nextRow();
+    }
+  }
+
+  private static Revision head(Server server,
+                               Revision dbHead,
+                               String database)
+  {
+    QueryResult result = Revisions.Empty.diff
+      (dbHead, server.findTag, database, "head");
+
+    if (result.nextRow() == QueryResult.Type.Inserted) {
+      return ((Tag) result.nextItem()).revision;
+    } else {
+      return Revisions.Empty;
+    }
+  }
+
+  private static void subscribe(final Client client,
+                                Tree tree,
+                                OutputStream out)
+    throws IOException
+  {
+    if (client.out == null) {
+      throw new RuntimeException
+        ("subscriptions require a persistent connection");
+    }
+
+    int[] expressionCount = new int[1];
+    QueryTemplate template = makeQueryTemplate
+      (client, tree, expressionCount);
+
+    // subscriptions follow the committed head of the database, not
+    // any transaction this client may have open
+    String database = database(client).name;
+    ClientSubscription subscription = new ClientSubscription
+      (client.nextSubscriptionId++, database, template, expressionCount[0],
+       head(client.server, client.server.server.head(), database));
+
+    QueryResult result = Revisions.Empty.diff
+      (subscription.revision, template);
+    QueryResult.Type first = result.nextRow();
+
+    client.subscriptions.put(subscription.id, subscription);
+
+    out.write(Response.Subscribed.ordinal());
+    writeInteger(out, subscription.id);
+    writeRows(result, first, subscription.expressionCount, out);
+
+    if (client.listener == null) {
+      client.listener = client.server.server.registerListener
+        (new Runnable() {
+            public void run() {
+              schedulePublish(client);
+            }
+          });
+    }
+  }
+
+  private static void unsubscribe(Client client, int id) {
+    if (client.subscriptions.remove(id) == null) {
+      throw new RuntimeException("no such subscription: " + id);
+    }
+
+    if (client.subscriptions.isEmpty()) {
+      client.listener.cancel();
+      client.listener = null;
+    }
+  }
+
+  private static void unsubscribeAll(Client client) {
+    synchronized (client) {
+      client.subscriptions.clear();
+      if (client.listener != null) {
+        client.listener.cancel();
+        client.listener = null;
+      }
+    }
+  }
+
+  private static void schedulePublish(final Client client) {
+    // at most one publication is waiting to run at a time, and it
+    // sends everything committed up to when it runs, so a client
+    // which falls behind sees one consolidated update rather than
+    // one per revision
+    if (client.publishScheduled.compareAndSet(false, true)) {
+      client.server.publisher.execute(new Runnable() {
+          public void run() {
+            client.publishScheduled.set(false);
+            publish(client);
+          }
+        });
+    }
+  }
+
+  private static void publish(Client client) {
+    synchronized (client) {
+      if (client.subscriptions.isEmpty()) {
+        return;
+      }
+
+      Revision dbHead = client.server.server.head();
+      Map<String, Revision> heads = new HashMap<String, Revision>();
+      try {
+        // the update is encoded in memory first, so that only the
+        // write to the client, which is bounded by a timeout, may
+        // block while holding its monitor
+        BufferOutputStream buffer = new BufferOutputStream();
+        for (ClientSubscription s: client.subscriptions.values()) {
+          Revision head = heads.get(s.database);
+          if (head == null) {
+            head = head(client.server, dbHead, s.database);
+            heads.put(s.database, head);
+          }
+
+          if (head != s.revision) {
+            QueryResult result = s.revision.diff(head, s.template);
+            QueryResult.Type first = result.nextRow();
+            if (first != QueryResult.Type.End) {
+              buffer.write(Response.SubscriptionRowSet.ordinal());
+              writeInteger(buffer, s.id);
+              writeRows(result, first, s.expressionCount, buffer);
+            }
+            s.revision = head;
+          }
+        }
+
+        if (buffer.size() != 0) {
+          write(client, buffer);
+        }
+      } catch (IOException e) {
+        log.warn("Unable to publish to subscriber; dropping subscriptions"
+                 + " and closing its connection.", e);
+        unsubscribeAll(client);
+        close(client);
+      }
+    }
+  }
+
+  private static class WriteTimeout implements Runnable {
+    private final Client client;
+    private final Thread writer = Thread.currentThread();
+    // guarded by this
+    private boolean done;
+    private boolean expired;
+
+    public WriteTimeout(Client client) {
+      this.client = client;
+    }
+
+    public void run() {
+      synchronized (this) {
+        if (done) {
+          return;
+        }
+        expired = true;
+        writer.interrupt();
+      }
+
+      // interrupting a thread blocked writing to a channel closes the
+      // channel, but a thread writing to some other kind of stream
+      // may not notice, so close the channel explicitly as well
+      if (client.channel != null) {
+        try {
+          client.channel.close();
+        } catch (IOException e) {
+          log.warn("Problem closing channel.", e);
+        }
+      }
+    }
+
+    public synchronized boolean finish() {
+      done = true;
+      return expired;
+    }
+  }
+
+  private static void write(Client client, BufferOutputStream buffer)
+    throws IOException
+  {
+    WriteTimeout timeout = new WriteTimeout(client);
+    ScheduledFuture<?> future = client.server.publishTimer.schedule
+      (timeout, client.server.publishTimeoutMillis, TimeUnit.MILLISECONDS);
+    try {
+      client.out.write(buffer.getBuffer(), 0, buffer.size());
+      client.out.flush();
+    } finally {
+      future.cancel(false);
+      if (timeout.finish()) {
+        // clear the interrupt, which may have arrived just after the
+        // write completed, so it doesn't affect this pool thread's
+        // next task
+        Thread.interrupted();
+        throw new InterruptedIOException
+          ("timed out writing to client after "
+           + client.server.publishTimeoutMillis + "ms");
+      }
+    }
+  }
+
+  private static void close(Client client) {
+    try {
+      if (client.channel != null) {
+        client.channel.close();
+      }
+      client.out.close();
+    } catch (IOException e) {
+      log.warn("Problem closing connection.", e);
     }
   }
 
@@ -1695,7 +2074,10 @@ public class SQLServer implements RevisionServer {
     public Parser parser() {
       return or
         (select(),
+         explain(),
          diff(),
+         subscribe(),
+         unsubscribe(),
          insert(),
          update(),
          delete(),
@@ -2143,6 +2525,64 @@ public class SQLServer implements RevisionServer {
          });
     }
     
+    public Parser explain() {
+      return task
+        (sequence
+         (terminal("explain"),
+          optional(terminal("analyze")),
+          select()),
+         new Task() {
+           public void run(Client client,
+                           Tree tree,
+                           InputStream in,
+                           OutputStream out)
+             throws IOException
+           {
+             final List<MyTableReference> tableReferences
+               = new ArrayList<MyTableReference>();
+             QueryTemplate template = makeQueryTemplate
+               (client, tree.get(2), new int[1], tableReferences);
+
+             QueryPlans.Namer namer = new QueryPlans.Namer() {
+               public String name(TableReference reference) {
+                 for (MyTableReference r: tableReferences) {
+                   if (r.reference == reference) {
+                     return r.table.name;
+                   }
+                 }
+                 return reference.table.id;
+               }
+
+               public String name(Column<?> column) {
+                 for (MyTableReference r: tableReferences) {
+                   for (MyColumn c: r.table.columnList) {
+                     if (c.column == column) {
+                       return c.name;
+                     }
+                   }
+                 }
+                 return column.id;
+               }
+             };
+
+             String result;
+             if (tree.get(1) == Nothing) {
+               result = QueryPlans.explain
+                 (Revisions.Empty, head(client), template).format(namer);
+             } else {
+               long start = System.nanoTime();
+               QueryPlans.Operator plan = QueryPlans.analyze
+                 (Revisions.Empty, head(client), template);
+               result = plan.format(namer) + String.format
+                 ("total %.3f ms", (System.nanoTime() - start) / 1000000D);
+             }
+
+             out.write(Response.Success.ordinal());
+             writeString(out, result.trim());
+           }
+         });
+    }
+
     public Parser diff() {
       return task
         (sequence
@@ -2168,6 +2608,44 @@ public class SQLServer implements RevisionServer {
          });
     }
 
+    public Parser subscribe() {
+      return task
+        (sequence
+         (terminal("subscribe"),
+          select()),
+         new Task() {
+           public void run(Client client,
+                           Tree tree,
+                           InputStream in,
+                           OutputStream out)
+             throws IOException
+           {
+             SQLServer.subscribe(client, tree.get(1), out);
+           }
+         });
+    }
+
+    public static Parser unsubscribe() {
+      return task
+        (sequence
+         (terminal("unsubscribe"),
+          numberLiteral()),
+         new Task() {
+           public void run(Client client,
+                           Tree tree,
+                           InputStream in,
+                           OutputStream out)
+             throws IOException
+           {
+             int id = Integer.parseInt(((Literal) tree.get(1)).value);
+             SQLServer.unsubscribe(client, id);
+
+             out.write(Response.Success.ordinal());
+             writeString(out, "unsubscribed " + id);
+           }
+         });
+    }
+
     public Parser insert() {
       return task
         (sequence
@@ -2409,7 +2887,13 @@ public class SQLServer implements RevisionServer {
              terminal("tags"),
              sequence(terminal("columns"),
                       terminal("of"),
-                      name(NameType.Table, true, false)))),
+                      name(NameType.Table, true, false)),
+             sequence(terminal("footprint"),
+                      optional(sequence(terminal("of"),
+                                        name(NameType.Table, true, false))),
+                      optional(sequence(terminal("relative"),
+                                        terminal("to"),
+                                        name(NameType.Tag, true, false)))))),
          new Task() {
            public void run(Client client,
                            Tree tree,
@@ -2586,11 +3070,19 @@ public class SQLServer implements RevisionServer {
   }
 
   private static void executeRequest(Client client,
+                                     String statement,
                                      InputStream in,
                                      OutputStream out)
     throws IOException
   {
-    String s = tokenize(readString(in));
+    String s = tokenize(statement);
+    SlowLog slowLog = SlowLog.installed();
+    boolean timed = Instruments.enabled() || slowLog != null;
+    long start = timed ? System.nanoTime() : 0;
+    boolean error = false;
+    if (slowLog != null) {
+      SlowLog.setStatement(s);
+    }
     try {
       if (client.copyContext == null) {
         log.debug("execute \"{}\"", s);
@@ -2599,6 +3091,8 @@ public class SQLServer implements RevisionServer {
         if (result.task != null) {
           result.task.run(client, result.tree, in, out);
         } else {
+          error = true;
+          requestErrors.increment(1);
           out.write(Response.Error.ordinal());
           writeString(out, "Sorry, I don't understand.");
         }
@@ -2606,19 +3100,33 @@ public class SQLServer implements RevisionServer {
         applyCopy(client, s, out);
       }
     } catch (Exception e) {
+      error = true;
+      requestErrors.increment(1);
       out.write(Response.Error.ordinal());
       String message = e.getMessage();
       writeString(out, message == null ? e.getClass().getName() : message); 
       log.warn("Problem executing request.", e);
+    } finally {
+      if (timed) {
+        long nanos = System.nanoTime() - start;
+        requestNanos.record(nanos);
+
+        if (slowLog != null) {
+          SlowLog.setStatement(null);
+          if (slowLog.admit(SlowLog.Kind.Request, nanos)) {
+            slowLog.logRequest(nanos, s, error);
+          }
+        }
+      }
     }
   }
 
   private static void completeRequest(Client client,
-                                      InputStream in,
+                                      String statement,
                                       OutputStream out)
     throws IOException
   {
-    String s = tokenize(readString(in));
+    String s = tokenize(statement);
     log.debug("complete \"{}\"", s);
     if (client.copyContext == null) {
       ParseResult result = client.server.parser.parse
@@ -2654,19 +3162,32 @@ public class SQLServer implements RevisionServer {
       return false;
     }
 
-    switch (Request.values()[requestType]) {
-    case Execute:
-      executeRequest(client, in, out);
-      out.flush();
-      break;
+    // read the whole request before taking the client's monitor, so
+    // a client which stalls part way through sending one can't hold
+    // up subscription updates
+    Request request = Request.values()[requestType];
+    String statement = readString(in);
+
+    // the response is produced in memory while holding the monitor,
+    // since requests may change the subscriptions publish reads, and
+    // written with the same timeout as subscription updates, which
+    // mustn't be interleaved with it
+    BufferOutputStream response = new BufferOutputStream();
+    synchronized (client) {
+      switch (request) {
+      case Execute:
+        executeRequest(client, statement, in, response);
+        break;
 
-    case Complete:
-      completeRequest(client, in, out);
-      out.flush();
-      break;
+      case Complete:
+        completeRequest(client, statement, response);
+        break;
 
-    default:
-      throw new RuntimeException("unexpected request type: " + requestType);
+      default:
+        throw new RuntimeException("unexpected request type: " + requestType);
+      }
+
+      write(client, response);
     }
 
     return true;
@@ -2706,15 +3227,11 @@ public class SQLServer implements RevisionServer {
       private final Client client = new Client(server, null);
 
       public InputStream execute(String command) {
-        BufferOutputStream buffer = new BufferOutputStream();
         BufferOutputStream out = new BufferOutputStream();
 
         try {
-          writeString(buffer, command);
-
           executeRequest
-            (client, new ByteArrayInputStream
-             (buffer.getBuffer(), 0, buffer.size()), out);
+            (client, command, new ByteArrayInputStream(new byte[0]), out);
         } catch (IOException e) {
           // should not be possible, since we're reading from and
           // writing to memory
@@ -2727,14 +3244,7 @@ public class SQLServer implements RevisionServer {
   }
 
   private Revision head(Revision dbHead) {
-    QueryResult result = Revisions.Empty.diff
-      (dbHead, server.findTag, database, "head");
-
-    if (result.nextRow() == QueryResult.Type.Inserted) {
-      return ((Tag) result.nextItem()).revision;
-    } else {
-      return Revisions.Empty;
-    }
+    return head(server, dbHead, database);
   }
 
   public Revision head() {
@@ -2757,6 +3267,16 @@ public class SQLServer implements RevisionServer {
     return server.server.registerListener(listener);
   }
 
+  /**
+   * Sets how long writing a subscription update or a response to a
+   * client may take before the client is assumed to have stopped
+   * reading, its subscriptions dropped and its connection closed.
+   * The default is 30 seconds.
+   */
+  public void setPublishTimeout(long millis) {
+    server.publishTimeoutMillis = millis;
+  }
+
   public void add(Table table, List<Column<?>> columns) {
     Map<String, MyColumn> map = new HashMap<String, MyColumn>(columns.size());
     List<MyColumn> myColumns = new ArrayList<MyColumn>(columns.size());
@@ -2790,9 +3310,11 @@ public class SQLServer implements RevisionServer {
     throws IOException
   {
     Client client = new Client(server, null);
+    client.out = out;
     try {
       while (handleRequest(client, in, out)) { }
     } finally {
+      unsubscribeAll(client);
       in.close();
       out.close();
     }
@@ -42,23 +42,25 @@ public class Servers {
   public static Subscription bridge(final RevisionServer a,
                                     final RevisionServer b)
   {
-    final Subscription sa = a.registerListener(new Runnable() {
-        Revision base = Revisions.Empty;
+    return bridge(a, b, DirectTaskHandler);
+  }
 
-        public void run() {
-          b.merge(base, a.head());
-          base = b.head();
-        }
-      });
+  /**
+   * Bridges the specified servers such that each merges the other's
+   * revisions, using the specified handler to run each merge.  A merge
+   * which has been handed to the handler but not yet run covers every
+   * revision produced in the meantime, so a burst of revisions results
+   * in a single merge if the handler runs tasks later.
+   */
+  public static Subscription bridge(final RevisionServer a,
+                                    final RevisionServer b,
+                                    TaskHandler handler)
+  {
+    final Subscription sa = a.registerListener
+      (new CoalescingMerge(a, b, handler));
 
-    final Subscription sb = b.registerListener(new Runnable() {
-        Revision base = Revisions.Empty;
-
-        public void run() {
-          a.merge(base, b.head());
-          base = a.head();
-        }
-      });
+    final Subscription sb = b.registerListener
+      (new CoalescingMerge(b, a, handler));
 
     return new Subscription() {
       public void cancel() {
@@ -68,6 +70,50 @@ public class Servers {
     };
   }
 
+  private static final TaskHandler DirectTaskHandler = new TaskHandler() {
+      public void handleTask(Runnable task) { task.run(); }
+    };
+
+  private static class CoalescingMerge implements Runnable {
+    private final RevisionServer source;
+    private final RevisionServer destination;
+    private final TaskHandler handler;
+    private final Runnable task = new Runnable() {
+        public void run() {
+          synchronized (CoalescingMerge.this) {
+            scheduled = false;
+          }
+          merge();
+        }
+      };
+    private Revision base = Revisions.Empty;
+    private boolean scheduled;
+
+    public CoalescingMerge(RevisionServer source,
+                           RevisionServer destination,
+                           TaskHandler handler)
+    {
+      this.source = source;
+      this.destination = destination;
+      this.handler = handler;
+    }
+
+    public void run() {
+      synchronized (this) {
+        if (scheduled) {
+          return;
+        }
+        scheduled = true;
+      }
+      handler.handleTask(task);
+    }
+
+    private void merge() {
+      destination.merge(base, source.head());
+      base = destination.head();
+    }
+  }
+
   private static class AsynchronousRevisionServer implements RevisionServer {
     protected final RevisionServer server;
     private final ConflictResolver conflictResolver;
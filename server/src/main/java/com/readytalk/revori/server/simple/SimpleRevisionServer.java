@@ -17,15 +17,27 @@ import javax.inject.Inject;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.Atomics;
+import com.readytalk.revori.Column;
 import com.readytalk.revori.ConflictResolver;
 import com.readytalk.revori.ForeignKeyResolver;
 import com.readytalk.revori.Revision;
 import com.readytalk.revori.Revisions;
+import com.readytalk.revori.Table;
+import com.readytalk.revori.metrics.Counter;
+import com.readytalk.revori.metrics.Histogram;
+import com.readytalk.revori.metrics.Instruments;
 import com.readytalk.revori.server.RevisionServer;
 import com.readytalk.revori.subscribe.Subscription;
 
 @ThreadSafe
 public class SimpleRevisionServer implements RevisionServer {
+	private static final Histogram mergeNanos = Instruments
+			.histogram("revori.server.merge.nanos");
+	private static final Counter mergeRetries = Instruments
+			.counter("revori.server.merge.retries");
+	private static final Counter mergeConflicts = Instruments
+			.counter("revori.server.merge.conflicts");
+
 	private final ConflictResolver conflictResolver;
 	private final ForeignKeyResolver foreignKeyResolver;
 	private final AtomicReference<Revision> head = Atomics
@@ -36,7 +48,8 @@ public class SimpleRevisionServer implements RevisionServer {
 	@Inject
 	public SimpleRevisionServer(@Nullable ConflictResolver conflictResolver,
 			@Nullable ForeignKeyResolver foreignKeyResolver) {
-		this.conflictResolver = conflictResolver;
+		this.conflictResolver = conflictResolver == null ? null
+				: new CountingConflictResolver(conflictResolver);
 		this.foreignKeyResolver = foreignKeyResolver;
 	}
 	
@@ -46,13 +59,28 @@ public class SimpleRevisionServer implements RevisionServer {
 
 	public void merge(Revision base, Revision fork) {
 		if (base != fork || base != head.get()) {
+			boolean timed = Instruments.enabled();
+			long start = timed ? System.nanoTime() : 0;
+
+			boolean merged = false;
 			while (!head.compareAndSet(base, fork)) {
+				// the first failure means we have to merge; any after that
+				// mean someone else committed while we were merging
+				if (merged) {
+					mergeRetries.increment(1);
+				}
+				merged = true;
+
 				Revision h = head.get();
 				fork = base
 						.merge(h, fork, conflictResolver, foreignKeyResolver);
 				base = h;
 			}
 
+			if (timed) {
+				mergeNanos.record(System.nanoTime() - start);
+			}
+
 			notifyListeners();
 		}
 	}
@@ -75,4 +103,20 @@ public class SimpleRevisionServer implements RevisionServer {
 			}
 		};
 	}
+
+	private static class CountingConflictResolver implements ConflictResolver {
+		private final ConflictResolver resolver;
+
+		public CountingConflictResolver(ConflictResolver resolver) {
+			this.resolver = resolver;
+		}
+
+		public Object resolveConflict(Table table, Column column,
+				Object[] primaryKeyValues, Object baseValue, Object leftValue,
+				Object rightValue) {
+			mergeConflicts.increment(1);
+			return resolver.resolveConflict(table, column, primaryKeyValues,
+					baseValue, leftValue, rightValue);
+		}
+	}
 }
@@ -0,0 +1,523 @@
+package com.readytalk.revori.subscribe;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.readytalk.revori.QueryTemplate;
+import com.readytalk.revori.Revision;
+import com.readytalk.revori.Revisions;
+import com.readytalk.revori.server.RevisionServer;
+
+/**
+ * A counterpart to DiffMachine which evaluates subscriptions and
+ * delivers their results using an Executor rather than on the thread
+ * which produced each revision.<p>
+ *
+ * Each revision is evaluated for all subscriptions at once as a
+ * single task, sharing queries among subscriptions as DiffMachine
+ * does (see MatcherIndex), and the rows are then split among the
+ * listeners' queues.  Different revisions may be evaluated in
+ * parallel.  Results are delivered to each listener serially and in
+ * revision order, but different listeners may be called concurrently,
+ * so a slow listener delays only itself.<p>
+ *
+ * Each listener has a queue of pending deliveries, bounded by the
+ * queue capacity specified at construction time.  What happens when a
+ * queue is full depends on the OverflowPolicy, which defaults to
+ * Coalesce; see its documentation for details.  The lag(RowListener)
+ * method reports how far behind a listener is.
+ */
+@ThreadSafe
+public class AsynchronousDiffMachine {
+  private static final Logger log = LoggerFactory.getLogger
+    (AsynchronousDiffMachine.class);
+
+  public static final int DefaultQueueCapacity = 64;
+
+  /**
+   * Determines what happens when a listener's delivery queue is full.
+   */
+  public enum OverflowPolicy {
+    /**
+     * The thread producing new revisions waits until the queue has
+     * room, unless that thread is itself delivering results (e.g. a
+     * listener which commits a revision), in which case the bound is
+     * exceeded rather than risk deadlock.  Every revision is
+     * delivered, but a single slow listener holds up the producer,
+     * and with it every other listener.
+     */
+    Block,
+
+    /**
+     * The producing thread never waits.  Instead, each subscription
+     * of the listener gets a single deferred delivery which is
+     * extended to each new revision until the queue has room again, at
+     * which point a single diff spanning all of those revisions is
+     * evaluated and delivered.  Intermediate revisions are never seen
+     * by that listener, so both its lag and the memory used on its
+     * behalf are bounded.
+     */
+    Coalesce;
+  }
+
+  /**
+   * A snapshot of how far a listener is behind the most recent
+   * revision.
+   */
+  public static class Lag {
+    /**
+     * The number of deliveries queued but not yet made.
+     */
+    public final int pendingDeliveries;
+
+    /**
+     * The number of revisions published since the last one delivered
+     * to the listener.
+     */
+    public final long revisionsBehind;
+
+    /**
+     * How long, in milliseconds, the oldest pending delivery has been
+     * queued, or zero if none are pending.
+     */
+    public final long delayMillis;
+
+    /**
+     * The total number of revisions which have been folded into
+     * other deliveries rather than delivered individually.
+     */
+    public final long coalescedRevisions;
+
+    public Lag(int pendingDeliveries,
+               long revisionsBehind,
+               long delayMillis,
+               long coalescedRevisions)
+    {
+      this.pendingDeliveries = pendingDeliveries;
+      this.revisionsBehind = revisionsBehind;
+      this.delayMillis = delayMillis;
+      this.coalescedRevisions = coalescedRevisions;
+    }
+
+    public String toString() {
+      return "lag[pending " + pendingDeliveries
+        + " behind " + revisionsBehind
+        + " delay " + delayMillis
+        + "ms coalesced " + coalescedRevisions + "]";
+    }
+  }
+
+  private static final ThreadLocal<Boolean> delivering
+    = new ThreadLocal<Boolean>();
+
+  private final DiffServer server;
+  private final Executor executor;
+  private final int queueCapacity;
+  private final OverflowPolicy policy;
+  private final Object lock = new Object();
+  private final List<Subscriber> subscribers = new ArrayList<Subscriber>();
+  private final Map<RowListener, Queue> queues
+    = new HashMap<RowListener, Queue>();
+  private final Subscription registration;
+  private LinearRevision base;
+  private boolean closed;
+
+  public AsynchronousDiffMachine(DiffServer server,
+                                 Executor executor,
+                                 int queueCapacity,
+                                 OverflowPolicy policy)
+  {
+    if (queueCapacity < 1) {
+      throw new IllegalArgumentException
+        ("queue capacity must be at least one");
+    }
+
+    this.server = server;
+    this.executor = executor;
+    this.queueCapacity = queueCapacity;
+    this.policy = policy;
+    this.base = server.tail();
+
+    this.registration = server.register(new Runnable() {
+        public void run() {
+          publish();
+        }
+      });
+
+    publish();
+  }
+
+  public AsynchronousDiffMachine(DiffServer server,
+                                 Executor executor,
+                                 int queueCapacity)
+  {
+    this(server, executor, queueCapacity, OverflowPolicy.Coalesce);
+  }
+
+  public AsynchronousDiffMachine(RevisionServer server, Executor executor) {
+    this(new DiffServer(server), executor, DefaultQueueCapacity);
+  }
+
+  public Subscription subscribe(RowListener listener,
+                                QueryTemplate query,
+                                Object... params)
+  {
+    final Subscriber subscriber;
+    synchronized (lock) {
+      Queue queue = queues.get(listener);
+      if (queue == null) {
+        queues.put(listener, queue = new Queue(listener));
+        queue.deliveredSequenceNumber = base.sequenceNumber;
+      }
+      ++ queue.subscriberCount;
+
+      subscriber = new Subscriber(queue, query, params);
+      subscribers.add(subscriber);
+
+      // the new subscriber starts with everything in the current
+      // revision; later revisions are handled by publish
+      Evaluation evaluation = new Evaluation(Revisions.Empty, base.revision);
+      enqueue(subscriber, evaluation, base.sequenceNumber);
+      evaluate(evaluation);
+    }
+
+    return new Subscription() {
+      public void cancel() {
+        synchronized (lock) {
+          if (subscribers.remove(subscriber)) {
+            subscriber.cancelled = true;
+            if (-- subscriber.queue.subscriberCount == 0) {
+              queues.remove(subscriber.queue.listener);
+            }
+          }
+        }
+      }
+    };
+  }
+
+  /**
+   * Returns how far the specified listener is behind the most recent
+   * revision, or null if it has no subscriptions.
+   */
+  public @Nullable Lag lag(RowListener listener) {
+    synchronized (lock) {
+      Queue queue = queues.get(listener);
+      if (queue == null) {
+        return null;
+      }
+
+      Delivery first = queue.deliveries.peek();
+      return new Lag
+        (queue.deliveries.size(),
+         base.sequenceNumber - queue.deliveredSequenceNumber,
+         first == null ? 0 : System.currentTimeMillis() - first.queuedAt,
+         queue.coalescedRevisions);
+    }
+  }
+
+  /**
+   * Stops tracking new revisions.  Deliveries already queued are
+   * still made.
+   */
+  public void close() {
+    synchronized (lock) {
+      closed = true;
+      lock.notifyAll();
+    }
+    registration.cancel();
+  }
+
+  private void publish() {
+    synchronized (lock) {
+      while (! closed) {
+        waitForRoom();
+
+        LinearRevision head = server.next(base);
+        if (head == null) {
+          return;
+        }
+
+        Evaluation evaluation = new Evaluation(base.revision, head.revision);
+        for (Subscriber s: subscribers) {
+          enqueue(s, evaluation, head.sequenceNumber);
+        }
+        evaluate(evaluation);
+
+        base = head;
+      }
+    }
+  }
+
+  private void waitForRoom() {
+    if (policy == OverflowPolicy.Coalesce || delivering.get() != null) {
+      return;
+    }
+
+    boolean interrupted = false;
+    while (full() && ! closed) {
+      try {
+        lock.wait();
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private boolean full() {
+    for (Queue q: queues.values()) {
+      if (q.deliveries.size() >= queueCapacity) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Adds a delivery of the specified evaluation to the subscriber's
+   * queue, or, if the subscriber is coalescing, extends its deferred
+   * delivery to the evaluation's head instead.
+   */
+  private void enqueue(Subscriber subscriber,
+                       Evaluation evaluation,
+                       long sequenceNumber)
+  {
+    Delivery deferred = subscriber.deferred;
+    if (deferred != null) {
+      deferred.head = evaluation.head;
+      deferred.sequenceNumber = sequenceNumber;
+      ++ subscriber.queue.coalescedRevisions;
+      return;
+    }
+
+    Delivery delivery = new Delivery
+      (subscriber, evaluation.base, evaluation.head, sequenceNumber);
+    subscriber.queue.deliveries.add(delivery);
+
+    if (policy == OverflowPolicy.Coalesce
+        && subscriber.queue.deliveries.size() > queueCapacity)
+    {
+      subscriber.deferred = delivery;
+    } else {
+      evaluation.deliveries.put(subscriber, delivery);
+    }
+  }
+
+  private void evaluate(final Evaluation evaluation) {
+    if (evaluation.deliveries.isEmpty()) {
+      return;
+    }
+
+    executor.execute(new Runnable() {
+        public void run() {
+          try {
+            evaluation.evaluate();
+          } catch (RuntimeException e) {
+            log.error("unable to evaluate subscriptions", e);
+            for (Delivery d: evaluation.deliveries.values()) {
+              d.rows.clear();
+            }
+          }
+
+          synchronized (lock) {
+            for (Delivery d: evaluation.deliveries.values()) {
+              d.ready = true;
+              schedule(d.subscriber.queue);
+            }
+          }
+        }
+      });
+  }
+
+  private void schedule(final Queue queue) {
+    Delivery first = queue.deliveries.peek();
+    if (first != null && first.ready && ! queue.draining) {
+      queue.draining = true;
+      executor.execute(new Runnable() {
+          public void run() {
+            drain(queue);
+          }
+        });
+    }
+  }
+
+  private void drain(Queue queue) {
+    delivering.set(Boolean.TRUE);
+    try {
+      while (true) {
+        Delivery delivery;
+        synchronized (lock) {
+          delivery = queue.deliveries.peek();
+          if (delivery == null || ! delivery.ready) {
+            queue.draining = false;
+            return;
+          }
+          queue.deliveries.poll();
+          queue.deliveredSequenceNumber = delivery.sequenceNumber;
+          undefer(queue);
+          lock.notifyAll();
+        }
+
+        delivery.deliver(queue.listener);
+      }
+    } finally {
+      delivering.remove();
+    }
+  }
+
+  /**
+   * Starts evaluating any deferred deliveries which now fit within the
+   * queue capacity.
+   */
+  private void undefer(Queue queue) {
+    int index = 0;
+    for (Delivery d: queue.deliveries) {
+      if (index++ >= queueCapacity) {
+        break;
+      }
+
+      if (d.subscriber.deferred == d) {
+        d.subscriber.deferred = null;
+
+        Evaluation evaluation = new Evaluation(d.base, d.head);
+        evaluation.deliveries.put(d.subscriber, d);
+        evaluate(evaluation);
+      }
+    }
+  }
+
+  private static class Queue {
+    final RowListener listener;
+    final ArrayDeque<Delivery> deliveries = new ArrayDeque<Delivery>();
+    int subscriberCount;
+    boolean draining;
+    long deliveredSequenceNumber;
+    long coalescedRevisions;
+
+    public Queue(RowListener listener) {
+      this.listener = listener;
+    }
+  }
+
+  private static class Subscriber implements ContextRowListener<Evaluation> {
+    final Queue queue;
+    final Matcher<Evaluation> matcher;
+    volatile boolean cancelled;
+    // the delivery waiting for room in the queue, if any, to which
+    // new revisions are added when coalescing
+    Delivery deferred;
+
+    public Subscriber(Queue queue, QueryTemplate query, Object[] params) {
+      this.queue = queue;
+      this.matcher = new Matcher<Evaluation>(this, query, params);
+    }
+
+    public void handleUpdate(Evaluation evaluation, Object[] row) {
+      evaluation.deliveries.get(this).rows.add(new Row(false, row.clone()));
+    }
+
+    public void handleDelete(Evaluation evaluation, Object[] row) {
+      evaluation.deliveries.get(this).rows.add(new Row(true, row.clone()));
+    }
+  }
+
+  /**
+   * The diff of a revision (or, when coalescing, a span of
+   * revisions) for a set of subscribers, which is evaluated once for
+   * all of them, with each row added to the delivery of each
+   * subscriber it matches.
+   */
+  private static class Evaluation {
+    final Revision base;
+    final Revision head;
+    final Map<Subscriber, Delivery> deliveries
+      = new IdentityHashMap<Subscriber, Delivery>();
+
+    public Evaluation(Revision base, Revision head) {
+      this.base = base;
+      this.head = head;
+    }
+
+    public void evaluate() {
+      MatcherIndex<Evaluation> index = new MatcherIndex<Evaluation>();
+      for (Subscriber s: deliveries.keySet()) {
+        if (! s.cancelled) {
+          index.add(s.matcher);
+        }
+      }
+
+      if (index.isEmpty()) {
+        return;
+      }
+
+      DiffIterator<Evaluation> iterator = new DiffIterator<Evaluation>
+        (base, head, index);
+      while (iterator.next(this)) { }
+    }
+  }
+
+  private static class Row {
+    final boolean delete;
+    final Object[] values;
+
+    public Row(boolean delete, Object[] values) {
+      this.delete = delete;
+      this.values = values;
+    }
+  }
+
+  /**
+   * The rows a subscriber should see for a revision (or, when
+   * coalescing, a span of revisions).  They're collected when the
+   * delivery's evaluation runs and passed to the listener when every
+   * earlier delivery for that listener has been made.
+   */
+  private static class Delivery {
+    final Subscriber subscriber;
+    final Revision base;
+    final long queuedAt = System.currentTimeMillis();
+    final List<Row> rows = new ArrayList<Row>();
+    Revision head;
+    long sequenceNumber;
+    boolean ready;
+
+    public Delivery(Subscriber subscriber,
+                    Revision base,
+                    Revision head,
+                    long sequenceNumber)
+    {
+      this.subscriber = subscriber;
+      this.base = base;
+      this.head = head;
+      this.sequenceNumber = sequenceNumber;
+    }
+
+    public void deliver(RowListener listener) {
+      for (Row row: rows) {
+        if (subscriber.cancelled) {
+          return;
+        }
+
+        if (row.delete) {
+          listener.handleDelete(row.values);
+        } else {
+          listener.handleUpdate(row.values);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,69 @@
+package com.readytalk.revori.subscribe;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Adapts a BatchListener to the row-at-a-time interface used by
+ * DiffIterator, collecting rows until the diff of the current
+ * revision is complete.  DiffIterator doesn't yield after rows sent
+ * to a collector, so a revision whose listeners are all batched is
+ * processed in a single pass.
+ */
+class BatchCollector<Context> implements ContextRowListener<Context> {
+  private final BatchListener listener;
+  private final int columnCount;
+  // the collectors with rows waiting to be flushed, shared by all the
+  // collectors of a DiffMachine
+  private final List<BatchCollector<Context>> pending;
+  private List<Object[]> updates = new ArrayList<Object[]>();
+  private List<Object[]> deletes = new ArrayList<Object[]>();
+  boolean cancelled;
+
+  public BatchCollector(BatchListener listener,
+                        int columnCount,
+                        List<BatchCollector<Context>> pending)
+  {
+    this.listener = listener;
+    this.columnCount = columnCount;
+    this.pending = pending;
+  }
+
+  public void handleUpdate(Context context, Object[] row) {
+    add(updates, row);
+  }
+
+  public void handleDelete(Context context, Object[] row) {
+    add(deletes, row);
+  }
+
+  private void add(List<Object[]> list, Object[] row) {
+    if (updates.isEmpty() && deletes.isEmpty()) {
+      pending.add(this);
+    }
+    // the iterator may reuse the array for the next row
+    list.add(Arrays.copyOf(row, columnCount));
+  }
+
+  /**
+   * Delivers the rows collected so far as a batch, if any, returning
+   * true if a batch was delivered.
+   */
+  public boolean flush() {
+    if (updates.isEmpty() && deletes.isEmpty()) {
+      return false;
+    }
+
+    RowBatch batch = new RowBatch(columnCount, updates, deletes);
+    updates = new ArrayList<Object[]>();
+    deletes = new ArrayList<Object[]>();
+
+    if (cancelled) {
+      return false;
+    }
+
+    listener.handleBatch(batch);
+    return true;
+  }
+}
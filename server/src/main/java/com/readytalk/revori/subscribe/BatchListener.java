@@ -0,0 +1,9 @@
+package com.readytalk.revori.subscribe;
+
+/**
+ * A listener which receives the changes to a subscription's result
+ * one revision at a time rather than one row at a time.
+ */
+public interface BatchListener {
+  public void handleBatch(RowBatch batch);
+}
@@ -1,35 +1,60 @@
 package com.readytalk.revori.subscribe;
 
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 
 import com.google.common.collect.SetMultimap;
+import com.google.common.collect.Sets;
+import com.readytalk.revori.Column;
 import com.readytalk.revori.DiffResult;
 import com.readytalk.revori.QueryResult;
+import com.readytalk.revori.QueryTemplate;
 import com.readytalk.revori.Revision;
 import com.readytalk.revori.Table;
 
 public class DiffIterator<Context> {
   private static boolean DebugThreads = true;
 
-  private enum State { Diff, Matchers, Result, End; };
+  private enum State { Diff, Matchers, Result, SharedResult, Dispatch, End; };
 
   private final Revision base;
   private final Revision head;
   private final DiffResult diffResult;
-  private final SetMultimap<Table, Matcher<Context>> matchers;
-  private Set<Matcher<Context>> visited;
+  private final MatcherIndex<Context> matchers;
+  private Set<Object> visited;
   private Iterator<Matcher<Context>> matchIterator;
+  private Iterator<MatcherIndex.Group<Context>> groupIterator;
   private Matcher matcher;
+  private MatcherIndex.Group<Context> group;
+  private Table table;
+  // columns changed in the current table, or null if we should
+  // assume all of them changed
+  private Set<Column<?>> changedColumns;
   private State state;
   private QueryResult queryResult;
   private Object[] row;
   private Thread thread;
+  // state for dispatching rows of a shared query to the matchers of a
+  // group:
+  private Iterator<Matcher<Context>> deleteIterator;
+  private Object[] deleteRow;
+  private Iterator<Matcher<Context>> updateIterator;
+  private Object[] updateRow;
+  private Object[] updatedRow;
 
   public DiffIterator(Revision base,
                       Revision head,
                       SetMultimap<Table, Matcher<Context>> matchers)
+  {
+    this(base, head, MatcherIndex.of(matchers));
+  }
+
+  DiffIterator(Revision base,
+               Revision head,
+               MatcherIndex<Context> matchers)
   {
     this.base = base;
     this.head = head;
@@ -56,13 +81,24 @@ public class DiffIterator<Context> {
         case Key: {
           Object base = diffResult.base();
           Object fork = diffResult.fork();
-          diffResult.skip();
 
-          Set<Matcher<Context>> set = matchers.get
-            ((Table) (base == null ? fork : base));
+          Table table = (Table) (base == null ? fork : base);
+          Set<Matcher<Context>> set = matchers.matchers(table);
+          Set<MatcherIndex.Group<Context>> groups = matchers.groups(table);
+
+          if (set.isEmpty() && groups.isEmpty()) {
+            diffResult.skip();
+          } else {
+            if (base == null || fork == null) {
+              diffResult.skip();
+              changedColumns = null;
+            } else {
+              changedColumns = changedColumns(table);
+            }
 
-          if (set != null) {
+            this.table = table;
             matchIterator = set.iterator();
+            groupIterator = groups.iterator();
             state = State.Matchers;
           }
         } break;
@@ -79,16 +115,28 @@ public class DiffIterator<Context> {
       case Matchers: {
         if (matchIterator.hasNext()) {
           matcher = matchIterator.next();
-          if (visited == null || ! visited.contains(matcher)) {
-            if (visited == null) {
-              visited = new HashSet<Matcher<Context>>();
+          if (affected(matcher.query) && visit(matcher)) {
+            queryResult = matcher.diff(base, head);
+            state = State.Result;
+          }
+        } else if (groupIterator.hasNext()) {
+          group = groupIterator.next();
+          if (affected(group.shared.template) && visit(group)) {
+            if (group.size == 1) {
+              // nothing to share, so let the query use the parameter
+              // to narrow its search
+              matcher = group.single();
+              queryResult = matcher.diff(base, head);
+              state = State.Result;
+            } else {
+              queryResult = base.diff(head, group.shared.template);
+              state = State.SharedResult;
             }
-            visited.add(matcher);
-            queryResult = base.diff(head, matcher.query, matcher.params);
-            state = State.Result;            
           }
         } else {
           matchIterator = null;
+          groupIterator = null;
+          group = null;
           state = State.Diff;
         }
       } break;
@@ -99,18 +147,72 @@ public class DiffIterator<Context> {
         case Inserted: {
           fillRow(matcher.query.expressions.size(), queryResult);
           matcher.listener.handleUpdate(context, row);
-          return true;
-        }
+          if (yields(matcher)) {
+            return true;
+          }
+        } break;
 
         case Deleted: {
           if (! queryResult.rowUpdated()) {
             fillRow(matcher.query.expressions.size(), queryResult);
             matcher.listener.handleDelete(context, row);
-            return true;
-          } else {
-            break;
+            if (yields(matcher)) {
+              return true;
+            }
           }
+        } break;
+
+        case End: {
+          state = State.Matchers;
+        } break;
+
+        default:
+          throw new RuntimeException("unexpected type: " + type);
         }
+      } break;
+
+      case SharedResult: {
+        QueryResult.Type type = queryResult.nextRow();
+        switch (type) {
+        case Inserted: {
+          Object[] row = sharedRow();
+          List<Matcher<Context>> matchers = group.matchers(row);
+          if (updatedRow != null) {
+            // the row may have moved from one set of subscribers to
+            // another, in which case those it left see a delete
+            List<Matcher<Context>> old = group.matchers(updatedRow);
+            if (! old.isEmpty()) {
+              Set<Matcher<Context>> current = Sets.newIdentityHashSet();
+              current.addAll(matchers);
+              for (Iterator<Matcher<Context>> it = old.iterator();
+                   it.hasNext();)
+              {
+                if (current.contains(it.next())) {
+                  it.remove();
+                }
+              }
+              deleteIterator = old.iterator();
+              deleteRow = Arrays.copyOf
+                (updatedRow, group.shared.expressionCount);
+            }
+            updatedRow = null;
+          }
+          updateIterator = matchers.iterator();
+          updateRow = Arrays.copyOf(row, group.shared.expressionCount);
+          state = State.Dispatch;
+        } break;
+
+        case Deleted: {
+          boolean updated = queryResult.rowUpdated();
+          Object[] row = sharedRow();
+          if (updated) {
+            updatedRow = row;
+          } else {
+            deleteIterator = group.matchers(row).iterator();
+            deleteRow = Arrays.copyOf(row, group.shared.expressionCount);
+            state = State.Dispatch;
+          }
+        } break;
 
         case End: {
           state = State.Matchers;
@@ -121,6 +223,28 @@ public class DiffIterator<Context> {
         }
       } break;
 
+      case Dispatch: {
+        if (deleteIterator != null && deleteIterator.hasNext()) {
+          Matcher<Context> m = deleteIterator.next();
+          m.listener.handleDelete(context, deleteRow);
+          if (yields(m)) {
+            return true;
+          }
+        } else if (updateIterator != null && updateIterator.hasNext()) {
+          Matcher<Context> m = updateIterator.next();
+          m.listener.handleUpdate(context, updateRow);
+          if (yields(m)) {
+            return true;
+          }
+        } else {
+          deleteIterator = null;
+          deleteRow = null;
+          updateIterator = null;
+          updateRow = null;
+          state = State.SharedResult;
+        }
+      } break;
+
       case End:
         return false;
 
@@ -130,11 +254,87 @@ public class DiffIterator<Context> {
     }
   }
 
+  /**
+   * Returns true if next should return after delivering a row to the
+   * specified matcher, i.e. unless the row was merely collected into a
+   * batch.
+   */
+  private static boolean yields(Matcher<?> matcher) {
+    return ! (matcher.listener instanceof BatchCollector);
+  }
+
+  private boolean affected(QueryTemplate template) {
+    return changedColumns == null
+      || ReferencedColumns.affected(template, table, changedColumns);
+  }
+
+  /**
+   * Walks the changes to the table whose key was just returned by the
+   * DiffResult, returning the set of columns changed in rows present
+   * in both revisions, or null if any rows were inserted or deleted.
+   */
+  private Set<Column<?>> changedColumns(Table table) {
+    int rowDepth = table.primaryKey.columns.size();
+    Set<Column<?>> changed = new HashSet<Column<?>>();
+    boolean all = false;
+    int depth = 0;
+    while (true) {
+      DiffResult.Type type = diffResult.next();
+      switch (type) {
+      case Descend: {
+        ++ depth;
+      } break;
+
+      case Ascend: {
+        if (-- depth == 0) {
+          return all ? null : changed;
+        }
+      } break;
+
+      case Key: {
+        if (all) {
+          diffResult.skip();
+        } else if (depth <= rowDepth) {
+          if (diffResult.base() == null || diffResult.fork() == null) {
+            all = true;
+            diffResult.skip();
+          }
+        } else {
+          Object column = diffResult.fork();
+          changed.add((Column<?>) (column == null ? diffResult.base() : column));
+        }
+      } break;
+
+      case Value:
+        break;
+
+      default:
+        throw new RuntimeException("unexpected type: " + type);
+      }
+    }
+  }
+
+  private boolean visit(Object o) {
+    if (visited == null) {
+      visited = new HashSet<Object>();
+    }
+    return visited.add(o);
+  }
+
+  private Object[] sharedRow() {
+    int count = group.shared.template.expressions.size();
+    Object[] row = new Object[count];
+    for (int i = 0; i < count; ++i) {
+      row[i] = queryResult.nextItem();
+    }
+    return row;
+  }
+
   private void fillRow(int count, QueryResult result) {
     if (row == null || row.length < count) {
       row = new Object[count];
     }
-    
+
     for (int i = 0; i < count; ++i) {
       row[i] = result.nextItem();
     }
@@ -1,23 +1,20 @@
 package com.readytalk.revori.subscribe;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import javax.annotation.Nullable;
 
-import com.google.common.collect.HashMultimap;
-import com.google.common.collect.SetMultimap;
 import com.readytalk.revori.QueryTemplate;
 import com.readytalk.revori.Revisions;
-import com.readytalk.revori.Source;
-import com.readytalk.revori.SourceVisitor;
-import com.readytalk.revori.Table;
-import com.readytalk.revori.TableReference;
 import com.readytalk.revori.server.RevisionServer;
 public class DiffMachine<Context> {
 
   private static boolean DebugThreads = true;
 
-  private final SetMultimap<Table, Matcher<Context>> newMatchers = HashMultimap.create();
+  private final MatcherIndex<Context> newMatchers = new MatcherIndex<Context>();
   
-  private final SetMultimap<Table, Matcher<Context>> matchersForTable = HashMultimap.create();
+  private final MatcherIndex<Context> matchersForTable = new MatcherIndex<Context>();
 
   private LinearRevision base;
   private LinearRevision head;
@@ -30,6 +27,13 @@ public class DiffMachine<Context> {
 
   private final boolean autoDeliver;
 
+  // non-null if aggregate subscriptions should be backed by views
+  private final ViewBacking viewBacking;
+
+  // batch listeners with rows collected from the current diff
+  private final List<BatchCollector<Context>> pendingBatches
+    = new ArrayList<BatchCollector<Context>>();
+
   private Thread thread;
 
   private enum State { Start, New, Cached, Uncached; };
@@ -39,8 +43,26 @@ public class DiffMachine<Context> {
   }
 
   public DiffMachine(DiffServer server, boolean autoDeliver) {
+    this(server, autoDeliver, false);
+  }
+
+  /**
+   * If viewBacked is true, each subscription to an aggregate query is
+   * served from a View of that query, which this machine adds to (and
+   * eventually removes from) the underlying RevisionServer.  Such
+   * views are maintained incrementally as revisions are committed, so
+   * updates cost in proportion to the groups changed rather than to
+   * the complexity of the query.  This is off by default, since
+   * adding a view modifies the revisions other users of the server
+   * see.
+   */
+  public DiffMachine(DiffServer server, boolean autoDeliver,
+                     boolean viewBacked)
+  {
     this.server = server;
     this.base = server.tail();
+    this.viewBacking = viewBacked
+      ? new ViewBacking(server.revisionServer()) : null;
 
     // TODO: perhaps move this autoDeliver into a wrapper object?
     this.autoDeliver = autoDeliver;
@@ -57,38 +79,18 @@ public class DiffMachine<Context> {
     this(new DiffServer(server), autoDeliver);
   }
 
-  private static <Context> void register
-    (final Matcher<Context> matcher,
-     final SetMultimap<Table, Matcher<Context>> matchers)
-  {
-    matcher.query.source.visit(new SourceVisitor() {
-      public void visit(Source s) {
-        if(s instanceof TableReference) {
-          matchers.put(((TableReference) s).table, matcher);
-        }
-      }
-    });
-  }
-
-  private static <Context> void unregister
-    (final Matcher<Context> matcher,
-     final SetMultimap<Table, Matcher<Context>> matchers)
-  {
-    matcher.query.source.visit(new SourceVisitor() {
-      public void visit(Source s) {
-        if (s instanceof TableReference) {
-          matchers.remove(((TableReference) s).table, matcher);
-        }
-      }
-    });
-  }
-
   public Subscription subscribe(ContextRowListener<Context> listener,
                                 QueryTemplate query,
                                 Object... params)
   {
-    final Matcher matcher = new Matcher(listener, query, params);
-    register(matcher, newMatchers);
+    final ViewBacking.Entry view
+      = viewBacking != null && ViewBacking.eligible(query)
+      ? viewBacking.acquire(query, params) : null;
+
+    final Matcher matcher = view == null
+      ? new Matcher(listener, query, params)
+      : new Matcher(listener, view.query, new Object[0]);
+    newMatchers.add(matcher);
 
     if(autoDeliver) {
       while(next()) {}
@@ -99,8 +101,11 @@ public class DiffMachine<Context> {
       public void cancel() {
         if(subscribed) {
           subscribed = false;
-          unregister(matcher, newMatchers);
-          unregister(matcher, matchersForTable);
+          newMatchers.remove(matcher);
+          matchersForTable.remove(matcher);
+          if (view != null) {
+            viewBacking.release(view);
+          }
         }
       }
     };
@@ -113,8 +118,51 @@ public class DiffMachine<Context> {
     return subscribe(new ContextRowAdapter(listener), query, params);
   }
 
+  /**
+   * Subscribes the specified listener to the specified query, such
+   * that it receives a single batch of rows for each revision which
+   * changes the query's result, rather than a call per row.  Batches
+   * are delivered from next once the diff of each revision is
+   * complete, and next returns true after delivering any batches.
+   */
+  public Subscription subscribe(BatchListener listener,
+                                QueryTemplate query,
+                                Object... params)
+  {
+    final BatchCollector<Context> collector = new BatchCollector<Context>
+      (listener, query.expressions.size(), pendingBatches);
+    final Subscription subscription = subscribe(collector, query, params);
+
+    return new Subscription() {
+      public void cancel() {
+        collector.cancelled = true;
+        subscription.cancel();
+      }
+    };
+  }
+
+  /**
+   * Delivers the batches collected from the diff just completed,
+   * returning true if any were delivered.
+   */
+  private boolean flushBatches() {
+    if (pendingBatches.isEmpty()) {
+      return false;
+    }
+
+    List<BatchCollector<Context>> batches
+      = new ArrayList<BatchCollector<Context>>(pendingBatches);
+    pendingBatches.clear();
+
+    boolean delivered = false;
+    for (BatchCollector<Context> c: batches) {
+      delivered |= c.flush();
+    }
+    return delivered;
+  }
+
   private void promoteMatchers() {
-    matchersForTable.putAll(newMatchers);
+    matchersForTable.addAll(newMatchers);
     newMatchers.clear();
   }
 
@@ -135,7 +183,7 @@ public class DiffMachine<Context> {
     while (true) {
       switch (state) {
       case Start: {
-        if(newMatchers.size() > 0) {
+        if(! newMatchers.isEmpty()) {
           iterator = new DiffIterator<Context>
             (Revisions.Empty, base.revision, newMatchers);
           
@@ -160,6 +208,9 @@ public class DiffMachine<Context> {
         } else {
           promoteMatchers();
           state = State.Start;
+          if (flushBatches()) {
+            return true;
+          }
         }
       } break;
 
@@ -169,6 +220,9 @@ public class DiffMachine<Context> {
         } else {
           base = head;
           state = State.Start;
+          if (flushBatches()) {
+            return true;
+          }
         }
       } break;
 
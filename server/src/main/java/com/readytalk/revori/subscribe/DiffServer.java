@@ -1,13 +1,19 @@
 package com.readytalk.revori.subscribe;
 
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
 
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Sets;
 import com.readytalk.revori.Revisions;
+import com.readytalk.revori.imp.Footprints;
 import com.readytalk.revori.server.RevisionServer;
 
 /**
@@ -19,31 +25,97 @@ import com.readytalk.revori.server.RevisionServer;
  * data, whereas others have complete data, and thus the latter are
  * sent preferentially to clients, with partial updates sent only when
  * after the latest complete update has been sent.
+ *
+ * Revisions may be produced and consumed concurrently.  Listeners are
+ * notified on the thread which produced the revision, without any
+ * lock held.
+ *
+ * A tag which is never moved or removed would otherwise retain its
+ * revision, and every tree node unique to it, indefinitely.  A
+ * RetentionPolicy may be specified to bound this; each time a new
+ * revision is produced, tags referring to revisions which violate it
+ * are moved forward, oldest first.  See footprint() for a measure of
+ * what is currently retained.
  */
+@ThreadSafe
 public class DiffServer {
+  private static final Logger log = LoggerFactory.getLogger(DiffServer.class);
+
   private static final Object Head = new Object();
 
+  /**
+   * A snapshot of what a DiffServer is retaining.
+   */
+  public static class Footprint {
+    /**
+     * The number of revisions retained, including the head.
+     */
+    public final int retainedRevisions;
+
+    /**
+     * The number of tree nodes retained by revisions other than the
+     * head which are not shared with a newer retained revision.
+     */
+    public final long uniqueNodes;
+
+    /**
+     * An estimate of the memory used by those nodes, in bytes.
+     */
+    public final long estimatedBytes;
+
+    /**
+     * The total number of times a tag has been moved forward to
+     * satisfy the retention policy.
+     */
+    public final long forcedTags;
+
+    public Footprint(int retainedRevisions,
+                     long uniqueNodes,
+                     long estimatedBytes,
+                     long forcedTags)
+    {
+      this.retainedRevisions = retainedRevisions;
+      this.uniqueNodes = uniqueNodes;
+      this.estimatedBytes = estimatedBytes;
+      this.forcedTags = forcedTags;
+    }
+
+    public String toString() {
+      return "footprint[revisions " + retainedRevisions
+        + " nodes " + uniqueNodes
+        + " bytes " + estimatedBytes
+        + " forced " + forcedTags + "]";
+    }
+  }
+
   private final RevisionServer server;
-  private final Set<Runnable> listeners = new HashSet<Runnable>();
+  private final RetentionPolicy policy;
+  private final Set<Runnable> listeners = Sets.newCopyOnWriteArraySet();
   private final Map<Object, LinearRevision> tags = new HashMap<Object, LinearRevision>();
   private final TreeMap<Long, LinearRevision> revisions = new TreeMap<Long, LinearRevision>();
   private long nextSequenceNumber = 0;
   private final LinearRevision tail = new LinearRevision
     (Revisions.Empty, nextSequenceNumber++);
+  private long forcedTags;
 
-  public DiffServer(final RevisionServer server) {
+  public DiffServer(final RevisionServer server, RetentionPolicy policy) {
     this.server = server;
+    this.policy = policy;
 
     server.registerListener(new Runnable() {
       public void run() {
-        decrement(
-          tags.put(
-            Head,
-            increment(
-              new LinearRevision(
-                server.head(),
-                nextSequenceNumber++))));
-        
+        synchronized (DiffServer.this) {
+          decrement(
+            tags.put(
+              Head,
+              increment(
+                new LinearRevision(
+                  server.head(),
+                  nextSequenceNumber++))));
+
+          enforce();
+        }
+
         for (Runnable listener: listeners) {
           listener.run();
         }
@@ -51,6 +123,10 @@ public class DiffServer {
     });
   }
 
+  public DiffServer(RevisionServer server) {
+    this(server, RetentionPolicy.Unbounded);
+  }
+
   private LinearRevision increment(LinearRevision r) {
     if (r.referenceCount++ == 0) {
       revisions.put(r.sequenceNumber, r);
@@ -69,11 +145,11 @@ public class DiffServer {
     return r;
   }
   
-  public void setTag(Object key) {
+  public synchronized void setTag(Object key) {
     decrement(tags.put(key, increment(tags.get(Head))));
   }
 
-  public void removeTag(Object key) {
+  public synchronized void removeTag(Object key) {
     decrement(tags.remove(key));
   }
 
@@ -87,13 +163,95 @@ public class DiffServer {
     };
   }
 
-  public LinearRevision next(LinearRevision base) {
+  public synchronized LinearRevision next(LinearRevision base) {
     SortedMap<Long, LinearRevision> tail = revisions.tailMap
       (base.sequenceNumber + 1);
 
     return tail.isEmpty() ? null : tail.values().iterator().next();
   }
 
+  /**
+   * Returns a snapshot of what this server is currently retaining.
+   */
+  public synchronized Footprint footprint() {
+    long nodes = uniqueNodes();
+    return new Footprint
+      (revisions.size(), nodes, nodes * Footprints.NodeBytes, forcedTags);
+  }
+
+  private void enforce() {
+    if (policy.maxRevisions == 0
+        && policy.maxAgeMillis == 0
+        && policy.maxRetainedBytes == 0)
+    {
+      return;
+    }
+
+    long now = System.currentTimeMillis();
+    while (revisions.size() > 1) {
+      LinearRevision oldest = revisions.firstEntry().getValue();
+      if (! exceeded(oldest, now)) {
+        return;
+      }
+
+      forward(oldest, revisions.higherEntry(oldest.sequenceNumber).getValue());
+    }
+  }
+
+  private boolean exceeded(LinearRevision oldest, long now) {
+    return (policy.maxRevisions != 0
+            && revisions.size() - 1 > policy.maxRevisions)
+      || (policy.maxAgeMillis != 0
+          && now - oldest.createdAt > policy.maxAgeMillis)
+      || (policy.maxRetainedBytes != 0
+          && uniqueNodes() * Footprints.NodeBytes > policy.maxRetainedBytes);
+  }
+
+  /**
+   * Moves every tag referring to the specified revision to the
+   * specified newer one.  Consumers which have yet to see the latter
+   * will get a single diff spanning both.
+   */
+  private void forward(LinearRevision from, LinearRevision to) {
+    for (Map.Entry<Object, LinearRevision> e: tags.entrySet()) {
+      if (e.getValue() == from) {
+        log.warn("retention policy {} forcing tag {} from revision {} to {}",
+                 policy, e.getKey(), from.sequenceNumber, to.sequenceNumber);
+
+        decrement(from);
+        e.setValue(increment(to));
+        ++ forcedTags;
+      }
+    }
+  }
+
+  /**
+   * Returns the number of nodes retained by revisions other than the
+   * head and not shared with a newer retained revision.  Each
+   * revision's count is cached until the revision after it changes,
+   * so the cost of keeping this up to date is proportional to how much
+   * each new revision differs from its predecessor.
+   */
+  private long uniqueNodes() {
+    long total = 0;
+    LinearRevision newer = null;
+    for (LinearRevision r: revisions.descendingMap().values()) {
+      if (newer != null) {
+        if (r.uniqueNodesSuccessor != newer.sequenceNumber) {
+          r.uniqueNodes = Footprints.uniqueNodes(r.revision, newer.revision);
+          r.uniqueNodesSuccessor = newer.sequenceNumber;
+        }
+        total += r.uniqueNodes;
+      }
+      newer = r;
+    }
+    return total;
+  }
+
+  RevisionServer revisionServer() {
+    return server;
+  }
+
   public LinearRevision tail() {
     return tail;
   }
@@ -0,0 +1,221 @@
+package com.readytalk.revori.subscribe;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A set of ranges over Comparable values, each with an associated
+ * value, which may be queried for the ranges containing a given point
+ * in O(log n + k) time, where k is the number of matches.<p>
+ *
+ * The ranges are kept in an implicit, augmented binary search tree
+ * over a list sorted by lower bound, where each subtree records the
+ * greatest upper bound within it.  Adding a range invalidates the
+ * tree, which is rebuilt by the next query, on the assumption that
+ * queries are much more frequent than changes.  Removing a range just
+ * marks it as removed, and the tree is only rebuilt once removed
+ * ranges make up half of it.
+ */
+class IntervalIndex<T> {
+  private static final Comparator<Entry<?>> LowComparator
+    = new Comparator<Entry<?>>() {
+    public int compare(Entry<?> a, Entry<?> b) {
+      return compareLow(a.range.low, b.range.low);
+    }
+  };
+
+  // by value, which is compared by identity
+  private final Map<T, Entry<T>> entries
+    = new IdentityHashMap<T, Entry<T>>();
+  private List<Entry<T>> tree;
+  // the number of entries in the tree which have since been removed
+  private int removedCount;
+
+  /**
+   * Adds the specified range with the specified value, which must not
+   * already be in this index.
+   */
+  public void add(Range range, T value) {
+    entries.put(value, new Entry<T>(range, value));
+    tree = null;
+  }
+
+  public void remove(T value) {
+    Entry<T> entry = entries.remove(value);
+    if (entry != null && tree != null) {
+      entry.removed = true;
+      if (++ removedCount > tree.size() / 2) {
+        tree = null;
+      }
+    }
+  }
+
+  public boolean isEmpty() {
+    return entries.isEmpty();
+  }
+
+  /**
+   * Appends to the specified list the value of every range which
+   * contains the specified point.
+   */
+  public void query(Comparable<Object> point, List<T> result) {
+    if (point == null) {
+      return;
+    }
+
+    if (tree == null) {
+      build();
+    }
+
+    query(point, 0, tree.size(), result);
+  }
+
+  private void query(Comparable<Object> point, int start, int end,
+                     List<T> result)
+  {
+    if (start >= end) {
+      return;
+    }
+
+    int middle = (start + end) >>> 1;
+    Entry<T> entry = tree.get(middle);
+    if (entry.maxHigh != null && entry.maxHigh.compareTo(point) < 0) {
+      // every range in this subtree ends before the point
+      return;
+    }
+
+    query(point, start, middle, result);
+
+    if (entry.range.low != null && entry.range.low.compareTo(point) > 0) {
+      // this range and every one to its right start after the point
+      return;
+    }
+
+    if ((! entry.removed) && entry.range.contains(point)) {
+      result.add(entry.value);
+    }
+
+    query(point, middle + 1, end, result);
+  }
+
+  private void build() {
+    tree = new ArrayList<Entry<T>>(entries.values());
+    Collections.sort(tree, LowComparator);
+    removedCount = 0;
+    if (! tree.isEmpty()) {
+      build(0, tree.size());
+    }
+  }
+
+  private Comparable<Object> build(int start, int end) {
+    int middle = (start + end) >>> 1;
+    Entry<T> entry = tree.get(middle);
+    Comparable<Object> high = entry.range.high;
+    if (start < middle) {
+      high = max(high, build(start, middle));
+    }
+    if (middle + 1 < end) {
+      high = max(high, build(middle + 1, end));
+    }
+    entry.maxHigh = high;
+    return high;
+  }
+
+  private static Comparable<Object> max(Comparable<Object> a,
+                                        Comparable<Object> b)
+  {
+    if (a == null || b == null) {
+      return null;
+    } else {
+      return a.compareTo(b) >= 0 ? a : b;
+    }
+  }
+
+  private static int compareLow(Comparable<Object> a, Comparable<Object> b) {
+    if (a == null) {
+      return b == null ? 0 : -1;
+    } else if (b == null) {
+      return 1;
+    } else {
+      return a.compareTo(b);
+    }
+  }
+
+  /**
+   * Returns the specified value as a Comparable which may be compared
+   * with other values of its column.  The caller is responsible for
+   * ensuring it's an instance of Comparable, and for only comparing it
+   * with values of the same type.
+   */
+  @SuppressWarnings("unchecked")
+  static Comparable<Object> comparable(Object value) {
+    return (Comparable<Object>) value;
+  }
+
+  private static class Entry<T> {
+    final Range range;
+    final T value;
+    // the greatest upper bound in the subtree rooted at this entry,
+    // or null if any range in it is unbounded above; see build
+    Comparable<Object> maxHigh;
+    boolean removed;
+
+    public Entry(Range range, T value) {
+      this.range = range;
+      this.value = value;
+    }
+  }
+
+  /**
+   * A range whose bounds may each be inclusive or exclusive, or null
+   * if the range is unbounded in that direction.
+   */
+  static class Range {
+    final Comparable<Object> low;
+    final boolean lowInclusive;
+    final Comparable<Object> high;
+    final boolean highInclusive;
+
+    public Range(Comparable<Object> low,
+                 boolean lowInclusive,
+                 Comparable<Object> high,
+                 boolean highInclusive)
+    {
+      this.low = low;
+      this.lowInclusive = lowInclusive;
+      this.high = high;
+      this.highInclusive = highInclusive;
+    }
+
+    /**
+     * Returns true if the specified value lies within this range.  A
+     * null value lies within no range, consistent with how the query
+     * evaluator treats comparisons with null.
+     */
+    public boolean contains(Comparable<Object> point) {
+      if (point == null) {
+        return false;
+      }
+
+      if (low != null) {
+        int d = low.compareTo(point);
+        if (d > 0 || (d == 0 && ! lowInclusive)) {
+          return false;
+        }
+      }
+
+      if (high != null) {
+        int d = point.compareTo(high);
+        if (d > 0 || (d == 0 && ! highInclusive)) {
+          return false;
+        }
+      }
+
+      return true;
+    }
+  }
+}
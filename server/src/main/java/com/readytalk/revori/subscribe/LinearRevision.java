@@ -5,7 +5,13 @@ import com.readytalk.revori.Revision;
 class LinearRevision implements Comparable<LinearRevision> {
   final Revision revision;
   final long sequenceNumber;
+  final long createdAt = System.currentTimeMillis();
   int referenceCount = 0;
+  // the number of nodes this revision shares with none newer, as of
+  // when the next retained revision was the one with the specified
+  // sequence number, or -1 if not yet computed
+  long uniqueNodes = -1;
+  long uniqueNodesSuccessor = -1;
 
   public LinearRevision(Revision revision, long sequenceNumber) {
     this.revision = revision;
@@ -1,11 +1,20 @@
 package com.readytalk.revori.subscribe;
 
+import java.util.List;
+
+import com.readytalk.revori.QueryResult;
 import com.readytalk.revori.QueryTemplate;
+import com.readytalk.revori.Revision;
 
 class Matcher<Context> {
   final ContextRowListener<Context> listener;
   final QueryTemplate query;
   final Object[] params;
+  // the shared form of the query and this matcher's key and ranges
+  // into it, or null if the query can't be shared
+  final SharedQuery shared;
+  final List<Object> key;
+  final IntervalIndex.Range[] ranges;
 
   public Matcher(ContextRowListener<Context> listener,
                  QueryTemplate query,
@@ -14,5 +23,16 @@ class Matcher<Context> {
     this.listener = listener;
     this.query = query;
     this.params = params;
+
+    SharedQuery shared = SharedQuery.of(query);
+    List<Object> key = shared == null ? null : shared.key(params);
+    IntervalIndex.Range[] ranges = key == null ? null : shared.ranges(params);
+    this.key = ranges == null ? null : key;
+    this.ranges = ranges;
+    this.shared = ranges == null ? null : shared;
+  }
+
+  public QueryResult diff(Revision base, Revision head) {
+    return base.diff(head, query, params);
   }
 }
@@ -0,0 +1,214 @@
+package com.readytalk.revori.subscribe;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.SetMultimap;
+import com.readytalk.revori.Source;
+import com.readytalk.revori.SourceVisitor;
+import com.readytalk.revori.Table;
+import com.readytalk.revori.TableReference;
+
+/**
+ * The set of matchers registered with a DiffMachine, indexed by the
+ * tables they query.  Matchers whose queries have a shared form (see
+ * SharedQuery) are further grouped by query and indexed by their
+ * parameter values and ranges, so that a group may be evaluated with
+ * a single query per revision.
+ */
+class MatcherIndex<Context> {
+  private final Set<Matcher<Context>> all = new HashSet<Matcher<Context>>();
+  private final SetMultimap<Table, Matcher<Context>> matchers
+    = HashMultimap.create();
+  private final SetMultimap<Table, Group<Context>> groupsForTable
+    = HashMultimap.create();
+  private final Map<SharedQuery, Group<Context>> groups
+    = new HashMap<SharedQuery, Group<Context>>();
+
+  public static <Context> MatcherIndex<Context> of
+    (SetMultimap<Table, Matcher<Context>> matchers)
+  {
+    MatcherIndex<Context> index = new MatcherIndex<Context>();
+    for (Matcher<Context> m: matchers.values()) {
+      index.add(m);
+    }
+    return index;
+  }
+
+  public void add(final Matcher<Context> matcher) {
+    if (! all.add(matcher)) {
+      return;
+    }
+
+    if (matcher.key == null) {
+      for (Table table: tables(matcher)) {
+        matchers.put(table, matcher);
+      }
+    } else {
+      Group<Context> group = groups.get(matcher.shared);
+      if (group == null) {
+        groups.put(matcher.shared, group = new Group<Context>(matcher.shared));
+        for (Table table: tables(matcher)) {
+          groupsForTable.put(table, group);
+        }
+      }
+      group.add(matcher);
+    }
+  }
+
+  public void remove(Matcher<Context> matcher) {
+    if (! all.remove(matcher)) {
+      return;
+    }
+
+    if (matcher.key == null) {
+      for (Table table: tables(matcher)) {
+        matchers.remove(table, matcher);
+      }
+    } else {
+      Group<Context> group = groups.get(matcher.shared);
+      group.remove(matcher);
+      if (group.size == 0) {
+        groups.remove(matcher.shared);
+        for (Table table: tables(matcher)) {
+          groupsForTable.remove(table, group);
+        }
+      }
+    }
+  }
+
+  public void addAll(MatcherIndex<Context> index) {
+    for (Matcher<Context> m: index.all) {
+      add(m);
+    }
+  }
+
+  public void clear() {
+    all.clear();
+    matchers.clear();
+    groupsForTable.clear();
+    groups.clear();
+  }
+
+  public boolean isEmpty() {
+    return all.isEmpty();
+  }
+
+  public Set<Matcher<Context>> matchers(Table table) {
+    return matchers.get(table);
+  }
+
+  public Set<Group<Context>> groups(Table table) {
+    return groupsForTable.get(table);
+  }
+
+  private static Set<Table> tables(Matcher<?> matcher) {
+    final Set<Table> tables = new HashSet<Table>();
+    matcher.query.source.visit(new SourceVisitor() {
+      public void visit(Source s) {
+        if (s instanceof TableReference) {
+          tables.add(((TableReference) s).table);
+        }
+      }
+    });
+    return tables;
+  }
+
+  /**
+   * The matchers sharing a query.  Those with the same key are kept in
+   * a bucket, and if the query has range conjuncts, each bucket indexes
+   * its matchers by their range over the first such column, so that
+   * the matchers for a row may be found in O(log n + k) time, where k
+   * is the number of matches.  Any further ranges are checked against
+   * each of those.
+   */
+  static class Group<Context> {
+    final SharedQuery shared;
+    private final Map<List<Object>, Bucket<Context>> buckets
+      = new HashMap<List<Object>, Bucket<Context>>();
+    int size;
+
+    public Group(SharedQuery shared) {
+      this.shared = shared;
+    }
+
+    private void add(Matcher<Context> matcher) {
+      Bucket<Context> bucket = buckets.get(matcher.key);
+      if (bucket == null) {
+        buckets.put(matcher.key, bucket = new Bucket<Context>
+                    (shared.rangeCount() != 0));
+      }
+      bucket.matchers.add(matcher);
+      if (bucket.index != null) {
+        bucket.index.add(matcher.ranges[0], matcher);
+      }
+      ++ size;
+    }
+
+    private void remove(Matcher<Context> matcher) {
+      Bucket<Context> bucket = buckets.get(matcher.key);
+      bucket.matchers.remove(matcher);
+      if (bucket.index != null) {
+        bucket.index.remove(matcher);
+      }
+      if (bucket.matchers.isEmpty()) {
+        buckets.remove(matcher.key);
+      }
+      -- size;
+    }
+
+    /**
+     * Returns the matchers to which the specified row of the shared
+     * query should be dispatched.
+     */
+    public List<Matcher<Context>> matchers(Object[] row) {
+      Bucket<Context> bucket = buckets.get(shared.rowKey(row));
+      if (bucket == null) {
+        return Collections.emptyList();
+      } else if (bucket.index == null) {
+        // copy, since a listener may cancel its subscription while we
+        // iterate
+        return new ArrayList<Matcher<Context>>(bucket.matchers);
+      } else {
+        List<Matcher<Context>> list = new ArrayList<Matcher<Context>>();
+        bucket.index.query(shared.rangeValue(row, 0), list);
+
+        int count = shared.rangeCount();
+        if (count > 1) {
+          for (Iterator<Matcher<Context>> it = list.iterator(); it.hasNext();) {
+            Matcher<Context> m = it.next();
+            for (int i = 1; i < count; ++i) {
+              if (! m.ranges[i].contains(shared.rangeValue(row, i))) {
+                it.remove();
+                break;
+              }
+            }
+          }
+        }
+
+        return list;
+      }
+    }
+
+    public Matcher<Context> single() {
+      return buckets.values().iterator().next().matchers.get(0);
+    }
+  }
+
+  private static class Bucket<Context> {
+    final List<Matcher<Context>> matchers
+      = new ArrayList<Matcher<Context>>(1);
+    final IntervalIndex<Matcher<Context>> index;
+
+    public Bucket(boolean ranged) {
+      this.index = ranged ? new IntervalIndex<Matcher<Context>>() : null;
+    }
+  }
+}
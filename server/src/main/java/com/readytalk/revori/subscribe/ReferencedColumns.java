@@ -0,0 +1,84 @@
+package com.readytalk.revori.subscribe;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.common.collect.MapMaker;
+import com.readytalk.revori.Aggregate;
+import com.readytalk.revori.Column;
+import com.readytalk.revori.ColumnReference;
+import com.readytalk.revori.Expression;
+import com.readytalk.revori.QueryTemplate;
+import com.readytalk.revori.Table;
+
+/**
+ * Computes and caches the set of columns of each table which a
+ * QueryTemplate refers to anywhere in its expressions, test, grouping
+ * or ordering.  A change which touches none of those columns (and
+ * inserts or deletes no rows) cannot affect the query's result.
+ */
+class ReferencedColumns {
+  private static final ConcurrentMap<QueryTemplate, Map<Table, Set<Column<?>>>>
+    cache = new MapMaker().weakKeys().makeMap();
+
+  static Set<Column<?>> of(QueryTemplate template, Table table) {
+    Map<Table, Set<Column<?>>> map = cache.get(template);
+    if (map == null) {
+      map = new HashMap<Table, Set<Column<?>>>();
+      for (Expression e: template.expressions) {
+        collect(e, map);
+      }
+      collect(template.test, map);
+      for (Expression e: template.groupingExpressions) {
+        collect(e, map);
+      }
+      for (QueryTemplate.OrderExpression e: template.orderByExpressions) {
+        collect(e.expression, map);
+      }
+      cache.put(template, map);
+    }
+
+    Set<Column<?>> set = map.get(table);
+    return set == null ? Collections.<Column<?>>emptySet() : set;
+  }
+
+  /**
+   * Returns true if a change to the specified table which modified
+   * only the specified columns might affect the result of the
+   * specified template.
+   */
+  static boolean affected(QueryTemplate template,
+                          Table table,
+                          Set<Column<?>> changed)
+  {
+    for (Column<?> c: of(template, table)) {
+      if (changed.contains(c)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static void collect(Expression e, Map<Table, Set<Column<?>>> map) {
+    if (e instanceof ColumnReference) {
+      ColumnReference<?> r = (ColumnReference<?>) e;
+      Set<Column<?>> set = map.get(r.tableReference.table);
+      if (set == null) {
+        map.put(r.tableReference.table, set = new HashSet<Column<?>>());
+      }
+      set.add(r.column);
+    } else if (e instanceof Aggregate) {
+      for (Expression child: ((Aggregate<?>) e).expressions) {
+        collect(child, map);
+      }
+    } else {
+      for (Expression child: e.children()) {
+        collect(child, map);
+      }
+    }
+  }
+}
@@ -0,0 +1,58 @@
+package com.readytalk.revori.subscribe;
+
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * Bounds the revisions a DiffServer retains on behalf of its tags.
+ * When a tag refers to a revision which violates any of these bounds,
+ * the DiffServer moves that tag forward to the next revision it
+ * retains, so that a consumer which has fallen behind sees a single,
+ * consolidated diff rather than pinning old revisions indefinitely.<p>
+ *
+ * A bound of zero means no limit.
+ */
+@Immutable
+public class RetentionPolicy {
+  /**
+   * A policy which retains every tagged revision until its tag is
+   * moved or removed.
+   */
+  public static final RetentionPolicy Unbounded
+    = new RetentionPolicy(0, 0, 0);
+
+  /**
+   * The maximum number of revisions to retain besides the head.
+   */
+  public final int maxRevisions;
+
+  /**
+   * The maximum time, in milliseconds, to retain a revision after
+   * it was produced.
+   */
+  public final long maxAgeMillis;
+
+  /**
+   * The maximum estimated number of bytes of tree structure to retain
+   * beyond that of the head (see DiffServer.Footprint).
+   */
+  public final long maxRetainedBytes;
+
+  public RetentionPolicy(int maxRevisions,
+                         long maxAgeMillis,
+                         long maxRetainedBytes)
+  {
+    if (maxRevisions < 0 || maxAgeMillis < 0 || maxRetainedBytes < 0) {
+      throw new IllegalArgumentException("bounds must not be negative");
+    }
+
+    this.maxRevisions = maxRevisions;
+    this.maxAgeMillis = maxAgeMillis;
+    this.maxRetainedBytes = maxRetainedBytes;
+  }
+
+  public String toString() {
+    return "retentionPolicy[maxRevisions " + maxRevisions
+      + " maxAgeMillis " + maxAgeMillis
+      + " maxRetainedBytes " + maxRetainedBytes + "]";
+  }
+}
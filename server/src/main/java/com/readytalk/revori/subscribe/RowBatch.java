@@ -0,0 +1,92 @@
+package com.readytalk.revori.subscribe;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The rows a subscription's result gained, changed, or lost in a
+ * single revision.  Each row appears at most once, either as an
+ * update or a delete, so the two lists may be applied in either
+ * order.<p>
+ *
+ * The rows are available row-major via updates() and deletes(), or
+ * column-major via updateColumns() and deleteColumns(), which are
+ * built on first use.
+ */
+public class RowBatch {
+  public final int columnCount;
+  private final List<Object[]> updates;
+  private final List<Object[]> deletes;
+  private Object[][] updateColumns;
+  private Object[][] deleteColumns;
+
+  public RowBatch(int columnCount,
+                  List<Object[]> updates,
+                  List<Object[]> deletes)
+  {
+    this.columnCount = columnCount;
+    this.updates = Collections.unmodifiableList(updates);
+    this.deletes = Collections.unmodifiableList(deletes);
+  }
+
+  /**
+   * Returns the rows inserted or updated, in the order of the query
+   * result.
+   */
+  public List<Object[]> updates() {
+    return updates;
+  }
+
+  /**
+   * Returns the rows deleted, in the order of the query result.
+   */
+  public List<Object[]> deletes() {
+    return deletes;
+  }
+
+  /**
+   * Returns the updated rows as an array of columns, such that
+   * <code>updateColumns()[c][r]</code> is column c of row r.
+   */
+  public Object[][] updateColumns() {
+    if (updateColumns == null) {
+      updateColumns = columns(updates);
+    }
+    return updateColumns;
+  }
+
+  /**
+   * Returns the deleted rows as an array of columns, such that
+   * <code>deleteColumns()[c][r]</code> is column c of row r.
+   */
+  public Object[][] deleteColumns() {
+    if (deleteColumns == null) {
+      deleteColumns = columns(deletes);
+    }
+    return deleteColumns;
+  }
+
+  public int size() {
+    return updates.size() + deletes.size();
+  }
+
+  public boolean isEmpty() {
+    return updates.isEmpty() && deletes.isEmpty();
+  }
+
+  private Object[][] columns(List<Object[]> rows) {
+    Object[][] columns = new Object[columnCount][rows.size()];
+    for (int r = 0; r < rows.size(); ++r) {
+      Object[] row = rows.get(r);
+      for (int c = 0; c < columnCount; ++c) {
+        columns[c][r] = row[c];
+      }
+    }
+    return columns;
+  }
+
+  public String toString() {
+    return "batch[updates " + updates.size()
+      + " deletes " + deletes.size() + "]";
+  }
+}
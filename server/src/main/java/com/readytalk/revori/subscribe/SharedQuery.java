@@ -0,0 +1,355 @@
+package com.readytalk.revori.subscribe;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Nullable;
+
+import com.google.common.collect.MapMaker;
+import com.readytalk.revori.Aggregate;
+import com.readytalk.revori.BinaryOperation;
+import com.readytalk.revori.ColumnReference;
+import com.readytalk.revori.Constant;
+import com.readytalk.revori.Expression;
+import com.readytalk.revori.Join;
+import com.readytalk.revori.Parameter;
+import com.readytalk.revori.QueryTemplate;
+import com.readytalk.revori.Source;
+import com.readytalk.revori.SourceVisitor;
+
+/**
+ * A form of a QueryTemplate whose parameters all appear in top-level
+ * <code>column = ?</code> or range (e.g. <code>column &gt;= ?</code>)
+ * conjuncts of its test.  Such a query may be evaluated once without
+ * those conjuncts, selecting the parameterized columns as extra
+ * trailing expressions, and each resulting row dispatched to the
+ * subscriptions whose parameters equal, or whose ranges contain, those
+ * values.
+ */
+class SharedQuery {
+  private static final ConcurrentMap<QueryTemplate, Object> cache
+    = new MapMaker().weakKeys().makeMap();
+
+  private static final Object Unshareable = new Object();
+
+  final QueryTemplate template;
+  final int expressionCount;
+  private final ColumnReference<?>[] keyColumns;
+  private final int[] keyParameters;
+  private final RangeColumn[] rangeColumns;
+
+  private SharedQuery(QueryTemplate template,
+                      int expressionCount,
+                      ColumnReference<?>[] keyColumns,
+                      int[] keyParameters,
+                      RangeColumn[] rangeColumns)
+  {
+    this.template = template;
+    this.expressionCount = expressionCount;
+    this.keyColumns = keyColumns;
+    this.keyParameters = keyParameters;
+    this.rangeColumns = rangeColumns;
+  }
+
+  /**
+   * Returns the shared form of the specified template, or null if it
+   * has none.
+   */
+  static @Nullable SharedQuery of(QueryTemplate template) {
+    Object shared = cache.get(template);
+    if (shared == null) {
+      shared = analyze(template);
+      if (shared == null) {
+        shared = Unshareable;
+      }
+      cache.put(template, shared);
+    }
+    return shared == Unshareable ? null : (SharedQuery) shared;
+  }
+
+  /**
+   * Returns the dispatch key for a subscription with the specified
+   * parameters, or null if those parameters can't be matched by
+   * equality (e.g. a null or a value of the wrong type).
+   */
+  @Nullable List<Object> key(Object[] params) {
+    Object[] key = new Object[keyParameters.length];
+    for (int i = 0; i < key.length; ++i) {
+      Object value = params[keyParameters[i]];
+      if (value == null || ! keyColumns[i].column.type.isInstance(value)) {
+        return null;
+      }
+      key[i] = value;
+    }
+    return Arrays.asList(key);
+  }
+
+  /**
+   * Returns the ranges for a subscription with the specified
+   * parameters, one per range column, or null if those parameters
+   * can't be compared with the column values (e.g. a null or a value
+   * of the wrong type).
+   */
+  @Nullable IntervalIndex.Range[] ranges(Object[] params) {
+    IntervalIndex.Range[] ranges = new IntervalIndex.Range
+      [rangeColumns.length];
+    for (int i = 0; i < ranges.length; ++i) {
+      RangeColumn c = rangeColumns[i];
+      Comparable<Object> low = null;
+      if (c.lowParameter >= 0) {
+        low = bound(c, params[c.lowParameter]);
+        if (low == null) {
+          return null;
+        }
+      }
+
+      Comparable<Object> high = null;
+      if (c.highParameter >= 0) {
+        high = bound(c, params[c.highParameter]);
+        if (high == null) {
+          return null;
+        }
+      }
+
+      ranges[i] = new IntervalIndex.Range
+        (low, c.lowInclusive, high, c.highInclusive);
+    }
+    return ranges;
+  }
+
+  private static @Nullable Comparable<Object> bound(RangeColumn c,
+                                                    Object value)
+  {
+    if (value instanceof Comparable && c.column.column.type.isInstance(value)) {
+      return IntervalIndex.comparable(value);
+    } else {
+      return null;
+    }
+  }
+
+  int rangeCount() {
+    return rangeColumns.length;
+  }
+
+  /**
+   * Returns the dispatch key for a row of the shared query.
+   */
+  List<Object> rowKey(Object[] row) {
+    return Arrays.asList
+      (Arrays.copyOfRange
+       (row, expressionCount, expressionCount + keyColumns.length));
+  }
+
+  /**
+   * Returns the value of the specified range column for a row of the
+   * shared query.
+   */
+  Comparable<Object> rangeValue(Object[] row, int index) {
+    return IntervalIndex.comparable
+      (row[expressionCount + keyColumns.length + index]);
+  }
+
+  private static @Nullable SharedQuery analyze(QueryTemplate template) {
+    if (template.parameterCount == 0
+        || template.hasAggregates
+        || (! template.groupingExpressions.isEmpty())
+        || hasOuterJoin(template.source))
+    {
+      return null;
+    }
+
+    // parameters are bound in the order the query evaluator first
+    // encounters them: the expression list, then the test
+    List<Parameter> parameters = new ArrayList<Parameter>();
+    for (Expression e: template.expressions) {
+      collectParameters(e, parameters);
+    }
+    if (! parameters.isEmpty()) {
+      return null;
+    }
+    collectParameters(template.test, parameters);
+
+    List<Expression> conjuncts = new ArrayList<Expression>();
+    conjuncts(template.test, conjuncts);
+
+    List<ColumnReference<?>> keyColumns = new ArrayList<ColumnReference<?>>();
+    List<Integer> keyParameters = new ArrayList<Integer>();
+    List<RangeColumn> rangeColumns = new ArrayList<RangeColumn>();
+    Expression test = null;
+    for (Expression e: conjuncts) {
+      if (e instanceof BinaryOperation
+          && ((BinaryOperation) e).type == BinaryOperation.Type.Equal)
+      {
+        BinaryOperation o = (BinaryOperation) e;
+        if (o.leftOperand instanceof ColumnReference
+            && o.rightOperand instanceof Parameter)
+        {
+          keyColumns.add((ColumnReference<?>) o.leftOperand);
+          keyParameters.add(parameters.indexOf(o.rightOperand));
+          continue;
+        } else if (o.leftOperand instanceof Parameter
+                   && o.rightOperand instanceof ColumnReference)
+        {
+          keyColumns.add((ColumnReference<?>) o.rightOperand);
+          keyParameters.add(parameters.indexOf(o.leftOperand));
+          continue;
+        }
+      } else if (e instanceof BinaryOperation
+                 && addBound((BinaryOperation) e, parameters, rangeColumns))
+      {
+        continue;
+      }
+
+      List<Parameter> remaining = new ArrayList<Parameter>();
+      collectParameters(e, remaining);
+      if (! remaining.isEmpty()) {
+        return null;
+      }
+
+      test = test == null ? e : new BinaryOperation
+        (BinaryOperation.Type.And, test, e);
+    }
+
+    List<Expression> expressions = new ArrayList<Expression>
+      (template.expressions);
+    expressions.addAll(keyColumns);
+    for (RangeColumn c: rangeColumns) {
+      expressions.add(c.column);
+    }
+
+    int[] keyParameterArray = new int[keyParameters.size()];
+    for (int i = 0; i < keyParameterArray.length; ++i) {
+      keyParameterArray[i] = keyParameters.get(i);
+    }
+
+    return new SharedQuery
+      (new QueryTemplate
+       (expressions, template.source,
+        test == null ? new Constant(true) : test,
+        Collections.<Expression>emptySet(),
+        template.orderByExpressions),
+       template.expressions.size(),
+       keyColumns.toArray(new ColumnReference<?>[keyColumns.size()]),
+       keyParameterArray,
+       rangeColumns.toArray(new RangeColumn[rangeColumns.size()]));
+  }
+
+  /**
+   * If the specified operation compares a column with a parameter,
+   * adds it as a bound of that column's range and returns true.
+   */
+  private static boolean addBound(BinaryOperation o,
+                                  List<Parameter> parameters,
+                                  List<RangeColumn> rangeColumns)
+  {
+    ColumnReference<?> column;
+    int parameter;
+    boolean lower;
+    boolean inclusive;
+    if (o.leftOperand instanceof ColumnReference
+        && o.rightOperand instanceof Parameter)
+    {
+      column = (ColumnReference<?>) o.leftOperand;
+      parameter = parameters.indexOf(o.rightOperand);
+      switch (o.type) {
+      case GreaterThan: lower = true; inclusive = false; break;
+      case GreaterThanOrEqual: lower = true; inclusive = true; break;
+      case LessThan: lower = false; inclusive = false; break;
+      case LessThanOrEqual: lower = false; inclusive = true; break;
+      default: return false;
+      }
+    } else if (o.leftOperand instanceof Parameter
+               && o.rightOperand instanceof ColumnReference)
+    {
+      column = (ColumnReference<?>) o.rightOperand;
+      parameter = parameters.indexOf(o.leftOperand);
+      switch (o.type) {
+      case LessThan: lower = true; inclusive = false; break;
+      case LessThanOrEqual: lower = true; inclusive = true; break;
+      case GreaterThan: lower = false; inclusive = false; break;
+      case GreaterThanOrEqual: lower = false; inclusive = true; break;
+      default: return false;
+      }
+    } else {
+      return false;
+    }
+
+    // pair the bound with an open bound on the other side of the same
+    // column if there is one, so the two form a single range
+    for (RangeColumn c: rangeColumns) {
+      if (c.column.equals(column)) {
+        if (lower && c.lowParameter < 0) {
+          c.lowParameter = parameter;
+          c.lowInclusive = inclusive;
+          return true;
+        } else if ((! lower) && c.highParameter < 0) {
+          c.highParameter = parameter;
+          c.highInclusive = inclusive;
+          return true;
+        }
+      }
+    }
+
+    RangeColumn c = new RangeColumn(column);
+    if (lower) {
+      c.lowParameter = parameter;
+      c.lowInclusive = inclusive;
+    } else {
+      c.highParameter = parameter;
+      c.highInclusive = inclusive;
+    }
+    rangeColumns.add(c);
+    return true;
+  }
+
+  private static class RangeColumn {
+    final ColumnReference<?> column;
+    // indexes into the parameter list, or -1 if unbounded
+    int lowParameter = -1;
+    boolean lowInclusive;
+    int highParameter = -1;
+    boolean highInclusive;
+
+    public RangeColumn(ColumnReference<?> column) {
+      this.column = column;
+    }
+  }
+
+  private static boolean hasOuterJoin(Source source) {
+    final boolean[] found = new boolean[1];
+    source.visit(new SourceVisitor() {
+        public void visit(Source s) {
+          if (s instanceof Join && ((Join) s).type != Join.Type.Inner) {
+            found[0] = true;
+          }
+        }
+      });
+    return found[0];
+  }
+
+  private static void conjuncts(Expression e, List<Expression> list) {
+    if (e instanceof BinaryOperation
+        && ((BinaryOperation) e).type == BinaryOperation.Type.And)
+    {
+      conjuncts(((BinaryOperation) e).leftOperand, list);
+      conjuncts(((BinaryOperation) e).rightOperand, list);
+    } else {
+      list.add(e);
+    }
+  }
+
+  private static void collectParameters(Expression e, List<Parameter> list) {
+    if (e instanceof Parameter) {
+      if (! list.contains(e)) {
+        list.add((Parameter) e);
+      }
+    } else if (! (e instanceof Aggregate)) {
+      for (Expression child: e.children()) {
+        collectParameters(child, list);
+      }
+    }
+  }
+}
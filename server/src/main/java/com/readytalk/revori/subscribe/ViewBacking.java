@@ -0,0 +1,103 @@
+package com.readytalk.revori.subscribe;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.readytalk.revori.ColumnReference;
+import com.readytalk.revori.Constant;
+import com.readytalk.revori.Expression;
+import com.readytalk.revori.QueryTemplate;
+import com.readytalk.revori.Revision;
+import com.readytalk.revori.TableReference;
+import com.readytalk.revori.View;
+import com.readytalk.revori.server.RevisionServer;
+
+/**
+ * Maintains the Views which back aggregate subscriptions for a
+ * DiffMachine.  Rather than re-running an aggregate query against
+ * each new revision, the subscription queries a View of it, which
+ * the RevisionBuilder keeps up to date incrementally, so the cost of
+ * each update is proportional to the number of groups which changed.
+ * Subscriptions with the same query and parameters share a View,
+ * which is removed when the last of them is cancelled.
+ */
+class ViewBacking {
+  private final RevisionServer server;
+  private final Map<QueryTemplate, Map<List<Object>, Entry>> entries
+    = new IdentityHashMap<QueryTemplate, Map<List<Object>, Entry>>();
+
+  public ViewBacking(RevisionServer server) {
+    this.server = server;
+  }
+
+  /**
+   * Returns true if subscriptions to the specified query should be
+   * backed by a View.
+   */
+  public static boolean eligible(QueryTemplate query) {
+    return query.hasAggregates;
+  }
+
+  public Entry acquire(QueryTemplate query, Object[] params) {
+    Map<List<Object>, Entry> map = entries.get(query);
+    if (map == null) {
+      entries.put(query, map = new HashMap<List<Object>, Entry>());
+    }
+
+    List<Object> key = Arrays.asList(params.clone());
+    Entry entry = map.get(key);
+    if (entry == null) {
+      View view = new View(query, params);
+
+      Revision head = server.head();
+      server.merge(head, head.builder().add(view).commit());
+
+      map.put(key, entry = new Entry(query, key, view));
+    }
+
+    ++ entry.references;
+    return entry;
+  }
+
+  public void release(Entry entry) {
+    if (-- entry.references == 0) {
+      Map<List<Object>, Entry> map = entries.get(entry.original);
+      map.remove(entry.key);
+      if (map.isEmpty()) {
+        entries.remove(entry.original);
+      }
+
+      Revision head = server.head();
+      server.merge(head, head.builder().remove(entry.view).commit());
+    }
+  }
+
+  static class Entry {
+    final QueryTemplate original;
+    final List<Object> key;
+    final View view;
+    // selects the original query's expressions from the view
+    final QueryTemplate query;
+    int references;
+
+    public Entry(QueryTemplate original, List<Object> key, View view) {
+      this.original = original;
+      this.key = key;
+      this.view = view;
+
+      TableReference reference = new TableReference(view.table);
+      int count = original.expressions.size();
+      List<Expression> expressions = new ArrayList<Expression>(count);
+      for (int i = 0; i < count; ++i) {
+        expressions.add(new ColumnReference(reference, view.columns.get(i)));
+      }
+
+      this.query = new QueryTemplate
+        (expressions, reference, new Constant(true));
+    }
+  }
+}
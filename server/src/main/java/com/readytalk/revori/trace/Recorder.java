@@ -0,0 +1,107 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.trace;
+
+import javax.annotation.Nullable;
+
+import com.readytalk.revori.Index;
+import com.readytalk.revori.Table;
+
+/**
+ * Records individual operations as events, e.g. for Java Flight
+ * Recorder.  Unlike Metrics, which aggregates, a Recorder sees each
+ * operation with its own duration and details, so it must be cheap
+ * to consult when it's not recording.<p>
+ *
+ * Each operation calls begin when it starts and, if that returned a
+ * handle, the end method for its kind when it finishes, on the same
+ * thread.  Operations which fail or are abandoned part way through
+ * (e.g. a query whose rows are not all read) are never ended.<p>
+ *
+ * Implementations must be thread safe.  See Tracing for how to
+ * install one.
+ */
+public interface Recorder {
+  public enum Kind {
+    /**
+     * A three-way merge of revisions; see Revision.merge.
+     */
+    Merge,
+
+    /**
+     * A call to RevisionBuilder.commit.
+     */
+    Commit,
+
+    /**
+     * The choice of index through which to scan a table for a query,
+     * including the queries made internally to maintain index and
+     * view data trees.
+     */
+    Plan,
+
+    /**
+     * A scan of one table for a query, as above, from its start until
+     * its last row was read.
+     */
+    Scan,
+
+    /**
+     * A replication message sent by an EpidemicServer.
+     */
+    Send,
+
+    /**
+     * A replication message received and handled by an
+     * EpidemicServer.
+     */
+    Receive;
+  }
+
+  /**
+   * Returns a handle to pass to the end method for the specified kind
+   * of operation once it finishes, or null if it should not be
+   * recorded.
+   */
+  @Nullable
+  public Object begin(Kind kind);
+
+  /**
+   * Ends a merge which visited the specified numbers of tables whose
+   * rows differed, index and view data trees it updated or built,
+   * and conflicts it resolved.
+   */
+  public void endMerge(Object handle, int tables, int indexes, int views,
+                       int conflicts);
+
+  /**
+   * Ends a commit, reporting the number of row and column writes made
+   * through the builder since it was created or last committed, and
+   * the number of index and view data trees updated in that time.
+   */
+  public void endCommit(Object handle, int writes, int indexes, int views);
+
+  /**
+   * Ends the choice of the specified index for scanning the specified
+   * table.
+   */
+  public void endPlan(Object handle, Table table, Index index);
+
+  /**
+   * Ends a scan of the specified table through the specified index
+   * which examined and returned the specified numbers of rows.
+   */
+  public void endScan(Object handle, Table table, Index index,
+                      long rowsExamined, long rowsReturned);
+
+  /**
+   * Ends the sending or receipt of the specified message to or from
+   * the specified peer.
+   */
+  public void endMessage(Object handle, String peer, Object message);
+}
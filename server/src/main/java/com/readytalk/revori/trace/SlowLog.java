@@ -0,0 +1,267 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.trace;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Logs queries, commits, merges and SQLServer requests which take
+ * longer than configurable thresholds, one line each at WARN level,
+ * as space-separated key=value fields, e.g.:
+ *
+ * <pre>
+ *   slow query millis=12.345 rowsExamined=10000 rowsReturned=1
+ *     statement="select name from users where team = 3"
+ *     template="select name from users where team = 3"
+ *     plan="scan users using primary key (id)"
+ * </pre>
+ *
+ * Queries are timed from their start until their last row was read,
+ * and include those made internally to maintain index and view data
+ * trees.  The plan of a slow query is only computed once it's known
+ * to be logged.<p>
+ *
+ * At most maxRecordsPerMinute records are logged per minute.  Those
+ * suppressed beyond that are counted by the suppressed field of the
+ * next record logged.  With a threshold of zero, this samples
+ * operations of that kind regardless of their duration.  Subclasses
+ * may send records elsewhere by overriding write.<p>
+ *
+ * Like a Recorder, a SlowLog is consulted once per operation and does
+ * nothing unless installed:
+ *
+ * <pre>
+ *   SlowLog.install(new SlowLog(100, 100, 100, 500, 60));
+ * </pre>
+ */
+@ThreadSafe
+public class SlowLog {
+  private static final Logger log = LoggerFactory.getLogger(SlowLog.class);
+
+  private static final long WindowNanos = TimeUnit.MINUTES.toNanos(1);
+
+  private static volatile SlowLog installed;
+
+  private static final ThreadLocal<String> statement
+    = new ThreadLocal<String>();
+
+  public enum Kind {
+    Query, Commit, Merge, Request;
+  }
+
+  /**
+   * The thresholds, in milliseconds, beyond which each kind of
+   * operation is logged.  A negative threshold disables logging for
+   * that kind.
+   */
+  public final long queryMillis;
+  public final long commitMillis;
+  public final long mergeMillis;
+  public final long requestMillis;
+
+  public final int maxRecordsPerMinute;
+
+  private final long[] thresholdNanos;
+
+  // guarded by this
+  private long windowStart;
+  private int records;
+  private int suppressed;
+
+  public SlowLog(long queryMillis,
+                 long commitMillis,
+                 long mergeMillis,
+                 long requestMillis,
+                 int maxRecordsPerMinute)
+  {
+    if (maxRecordsPerMinute < 0) {
+      throw new IllegalArgumentException
+        ("maxRecordsPerMinute must not be negative");
+    }
+
+    this.queryMillis = queryMillis;
+    this.commitMillis = commitMillis;
+    this.mergeMillis = mergeMillis;
+    this.requestMillis = requestMillis;
+    this.maxRecordsPerMinute = maxRecordsPerMinute;
+
+    thresholdNanos = new long[Kind.values().length];
+    thresholdNanos[Kind.Query.ordinal()] = nanos(queryMillis);
+    thresholdNanos[Kind.Commit.ordinal()] = nanos(commitMillis);
+    thresholdNanos[Kind.Merge.ordinal()] = nanos(mergeMillis);
+    thresholdNanos[Kind.Request.ordinal()] = nanos(requestMillis);
+
+    windowStart = System.nanoTime();
+  }
+
+  private static long nanos(long millis) {
+    return millis < 0
+      ? Long.MAX_VALUE : TimeUnit.MILLISECONDS.toNanos(millis);
+  }
+
+  /**
+   * Makes the specified log, or none if it's null, the one to which
+   * operations starting from now on are reported.
+   */
+  public static void install(@Nullable SlowLog log) {
+    installed = log;
+  }
+
+  @Nullable
+  public static SlowLog installed() {
+    return installed;
+  }
+
+  /**
+   * Sets the statement text, if any, which the current thread is
+   * executing, to be included in records of the queries, commits and
+   * merges it performs meanwhile.
+   */
+  public static void setStatement(@Nullable String text) {
+    statement.set(text);
+  }
+
+  /**
+   * Returns true if an operation of the specified kind which took the
+   * specified time should be logged, i.e. if it exceeded its
+   * threshold and the rate limit allows it.  If so, the caller must
+   * follow with a call to the log method for that kind.
+   */
+  public boolean admit(Kind kind, long nanos) {
+    long threshold = thresholdNanos[kind.ordinal()];
+    if (threshold == Long.MAX_VALUE || nanos < threshold) {
+      return false;
+    }
+
+    synchronized (this) {
+      long now = System.nanoTime();
+      if (now - windowStart >= WindowNanos) {
+        windowStart = now;
+        records = 0;
+      }
+
+      if (records < maxRecordsPerMinute) {
+        ++ records;
+        return true;
+      } else {
+        ++ suppressed;
+        return false;
+      }
+    }
+  }
+
+  /**
+   * Logs a query which took the specified time, chose the specified
+   * plan and examined and returned the specified numbers of rows.
+   * The template and plan are as formatted by QueryPlans.
+   */
+  public void logQuery(long nanos, String template, String plan,
+                       long rowsExamined, long rowsReturned)
+  {
+    StringBuilder sb = start("query", nanos);
+    sb.append(" rowsExamined=").append(rowsExamined)
+      .append(" rowsReturned=").append(rowsReturned);
+    appendStatement(sb);
+    append(sb, "template", template);
+    append(sb, "plan", plan);
+    finish(sb);
+  }
+
+  /**
+   * Logs a commit; see Recorder.endCommit for the other fields.
+   */
+  public void logCommit(long nanos, int writes, int indexes, int views) {
+    StringBuilder sb = start("commit", nanos);
+    sb.append(" writes=").append(writes)
+      .append(" indexes=").append(indexes)
+      .append(" views=").append(views);
+    appendStatement(sb);
+    finish(sb);
+  }
+
+  /**
+   * Logs a merge; see Recorder.endMerge for the other fields.
+   */
+  public void logMerge(long nanos, int tables, int indexes, int views,
+                       int conflicts)
+  {
+    StringBuilder sb = start("merge", nanos);
+    sb.append(" tables=").append(tables)
+      .append(" indexes=").append(indexes)
+      .append(" views=").append(views)
+      .append(" conflicts=").append(conflicts);
+    appendStatement(sb);
+    finish(sb);
+  }
+
+  /**
+   * Logs a SQLServer request for the specified statement, which
+   * failed if error is true.
+   */
+  public void logRequest(long nanos, String statement, boolean error) {
+    StringBuilder sb = start("request", nanos);
+    sb.append(" error=").append(error);
+    append(sb, "statement", statement);
+    finish(sb);
+  }
+
+  private static StringBuilder start(String kind, long nanos) {
+    return new StringBuilder("slow ").append(kind)
+      .append(String.format(" millis=%.3f", nanos / 1000000D));
+  }
+
+  private static void appendStatement(StringBuilder sb) {
+    String text = statement.get();
+    if (text != null) {
+      append(sb, "statement", text);
+    }
+  }
+
+  private static void append(StringBuilder sb, String key, String value) {
+    value = value.trim();
+    sb.append(" ").append(key).append("=\"");
+    for (int i = 0; i < value.length(); ++i) {
+      char c = value.charAt(i);
+      if (c == '"' || c == '\\') {
+        sb.append('\\').append(c);
+      } else if (c == '\n') {
+        sb.append("; ");
+      } else {
+        sb.append(c);
+      }
+    }
+    sb.append("\"");
+  }
+
+  private void finish(StringBuilder sb) {
+    int s;
+    synchronized (this) {
+      s = suppressed;
+      suppressed = 0;
+    }
+
+    if (s > 0) {
+      sb.append(" suppressed=").append(s);
+    }
+
+    write(sb.toString());
+  }
+
+  /**
+   * Writes the specified record, by default to this class's logger.
+   */
+  protected void write(String record) {
+    log.warn(record);
+  }
+}
@@ -0,0 +1,46 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.trace;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * The process-wide Recorder to which Revori reports operations, if
+ * any.  Instrumented code reads it once per operation, so that the
+ * recorder which began an operation is also the one to end it:
+ *
+ * <pre>
+ *   Recorder recorder = Tracing.recorder();
+ *   Object trace = recorder == null
+ *     ? null : recorder.begin(Recorder.Kind.Merge);
+ *   ...
+ *   if (trace != null) {
+ *     recorder.endMerge(trace, ...);
+ *   }
+ * </pre>
+ */
+@ThreadSafe
+public class Tracing {
+  private static volatile Recorder recorder;
+
+  private Tracing() { }
+
+  /**
+   * Makes the specified recorder, or none if it's null, the one to
+   * which operations starting from now on are reported.
+   */
+  public static void install(@Nullable Recorder recorder) {
+    Tracing.recorder = recorder;
+  }
+
+  @Nullable
+  public static Recorder recorder() {
+    return recorder;
+  }
+}
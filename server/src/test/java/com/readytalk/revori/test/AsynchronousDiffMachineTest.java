@@ -0,0 +1,333 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.test;
+
+import static com.readytalk.revori.ExpressionFactory.reference;
+import static com.readytalk.revori.util.Util.cols;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.readytalk.revori.Column;
+import com.readytalk.revori.ConflictResolvers;
+import com.readytalk.revori.Constant;
+import com.readytalk.revori.Expression;
+import com.readytalk.revori.ForeignKeyResolvers;
+import com.readytalk.revori.QueryTemplate;
+import com.readytalk.revori.Revision;
+import com.readytalk.revori.RevisionBuilder;
+import com.readytalk.revori.Table;
+import com.readytalk.revori.TableReference;
+import com.readytalk.revori.server.simple.SimpleRevisionServer;
+import com.readytalk.revori.subscribe.AsynchronousDiffMachine;
+import com.readytalk.revori.subscribe.DiffServer;
+import com.readytalk.revori.subscribe.RowListener;
+import com.readytalk.revori.subscribe.Subscription;
+
+public class AsynchronousDiffMachineTest {
+  private static final long Timeout = 10000;
+
+  private static final Column<Integer> key
+    = new Column<Integer>(Integer.class, "key");
+  private static final Column<Integer> value
+    = new Column<Integer>(Integer.class, "value");
+  private static final Table counters = new Table(cols(key), "counters");
+  private static final TableReference countersReference
+    = new TableReference(counters);
+  private static final QueryTemplate query = new QueryTemplate
+    (Lists.newArrayList((Expression) reference(countersReference, key),
+                        reference(countersReference, value)),
+     countersReference,
+     new Constant(true));
+
+  private static void waitFor(Condition condition) throws Exception {
+    long deadline = System.currentTimeMillis() + Timeout;
+    while (! condition.satisfied()) {
+      if (System.currentTimeMillis() > deadline) {
+        throw new AssertionError("timed out");
+      }
+      Thread.sleep(10);
+    }
+  }
+
+  private interface Condition {
+    public boolean satisfied();
+  }
+
+  private static void set(SimpleRevisionServer server, int k, int v) {
+    Revision base = server.head();
+    RevisionBuilder builder = base.builder();
+    builder.table(counters).row(k).update(value, v);
+    server.merge(base, builder.commit());
+  }
+
+  private static class ValueListener implements RowListener {
+    final List<Integer> values
+      = Collections.synchronizedList(new ArrayList<Integer>());
+    volatile Thread thread;
+    volatile boolean concurrent;
+    CountDownLatch gate;
+
+    public void handleUpdate(Object[] row) {
+      if (thread != null) {
+        concurrent = true;
+      }
+      thread = Thread.currentThread();
+      try {
+        if (gate != null) {
+          try {
+            gate.await();
+          } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+          }
+        }
+        values.add((Integer) row[1]);
+      } finally {
+        thread = null;
+      }
+    }
+
+    public void handleDelete(Object[] row) {
+      // ignore
+    }
+
+    public int size() {
+      return values.size();
+    }
+  }
+
+  private static int last(ValueListener listener) {
+    synchronized (listener.values) {
+      return listener.values.isEmpty()
+        ? -1 : listener.values.get(listener.values.size() - 1);
+    }
+  }
+
+  private static List<Integer> range(int start, int end) {
+    List<Integer> list = new ArrayList<Integer>();
+    for (int i = start; i < end; ++i) {
+      list.add(i);
+    }
+    return list;
+  }
+
+  @Test
+  public void testOrderedDelivery() throws Exception {
+    SimpleRevisionServer server = new SimpleRevisionServer
+      (ConflictResolvers.Restrict, ForeignKeyResolvers.Delete);
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      AsynchronousDiffMachine machine = new AsynchronousDiffMachine
+        (new DiffServer(server), executor, 256);
+
+      set(server, 1, 0);
+
+      final ValueListener a = new ValueListener();
+      final ValueListener b = new ValueListener();
+      machine.subscribe(a, query);
+      Subscription bs = machine.subscribe(b, query);
+
+      final int count = 100;
+      for (int i = 1; i < count; ++i) {
+        set(server, 1, i);
+      }
+
+      waitFor(new Condition() {
+          public boolean satisfied() {
+            return a.size() == count && b.size() == count;
+          }
+        });
+
+      assertEquals(range(0, count), a.values);
+      assertEquals(range(0, count), b.values);
+      assertTrue(! (a.concurrent || b.concurrent));
+
+      bs.cancel();
+
+      set(server, 1, count);
+
+      waitFor(new Condition() {
+          public boolean satisfied() {
+            return a.size() == count + 1;
+          }
+        });
+
+      assertEquals(count, b.size());
+
+      machine.close();
+    } finally {
+      executor.shutdown();
+      executor.awaitTermination(Timeout, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  @Test
+  public void testSlowListener() throws Exception {
+    SimpleRevisionServer server = new SimpleRevisionServer
+      (ConflictResolvers.Restrict, ForeignKeyResolvers.Delete);
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      AsynchronousDiffMachine machine = new AsynchronousDiffMachine
+        (new DiffServer(server), executor, 16);
+
+      set(server, 1, 0);
+
+      final ValueListener slow = new ValueListener();
+      slow.gate = new CountDownLatch(1);
+      final ValueListener fast = new ValueListener();
+      machine.subscribe(slow, query);
+      machine.subscribe(fast, query);
+
+      // the slow listener doesn't hold up the fast one or the
+      // committing thread, as long as its queue has room
+      final int count = 10;
+      for (int i = 1; i < count; ++i) {
+        set(server, 1, i);
+      }
+
+      waitFor(new Condition() {
+          public boolean satisfied() {
+            return fast.size() == count;
+          }
+        });
+
+      assertEquals(0, slow.size());
+
+      slow.gate.countDown();
+
+      waitFor(new Condition() {
+          public boolean satisfied() {
+            return slow.size() == count;
+          }
+        });
+
+      assertEquals(range(0, count), slow.values);
+      assertEquals(range(0, count), fast.values);
+
+      machine.close();
+    } finally {
+      executor.shutdown();
+      executor.awaitTermination(Timeout, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  @Test(timeout = Timeout)
+  public void testSlowListenerDoesNotBlockByDefault() throws Exception {
+    SimpleRevisionServer server = new SimpleRevisionServer
+      (ConflictResolvers.Restrict, ForeignKeyResolvers.Delete);
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      AsynchronousDiffMachine machine = new AsynchronousDiffMachine
+        (new DiffServer(server), executor, 2);
+
+      set(server, 1, 0);
+
+      final ValueListener slow = new ValueListener();
+      slow.gate = new CountDownLatch(1);
+      final ValueListener fast = new ValueListener();
+      machine.subscribe(slow, query);
+      machine.subscribe(fast, query);
+
+      // the slow listener's queue overflows long before this loop is
+      // done, but the committing thread carries on regardless, and
+      // both listeners eventually see the latest value
+      final int count = 20;
+      for (int i = 1; i < count; ++i) {
+        set(server, 1, i);
+      }
+
+      waitFor(new Condition() {
+          public boolean satisfied() {
+            return last(fast) == count - 1;
+          }
+        });
+
+      assertEquals(0, slow.size());
+
+      slow.gate.countDown();
+
+      waitFor(new Condition() {
+          public boolean satisfied() {
+            return last(slow) == count - 1;
+          }
+        });
+
+      machine.close();
+    } finally {
+      executor.shutdown();
+      executor.awaitTermination(Timeout, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  @Test
+  public void testCoalescing() throws Exception {
+    SimpleRevisionServer server = new SimpleRevisionServer
+      (ConflictResolvers.Restrict, ForeignKeyResolvers.Delete);
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      AsynchronousDiffMachine machine = new AsynchronousDiffMachine
+        (new DiffServer(server), executor, 2,
+         AsynchronousDiffMachine.OverflowPolicy.Coalesce);
+
+      set(server, 1, 0);
+
+      final ValueListener slow = new ValueListener();
+      slow.gate = new CountDownLatch(1);
+      machine.subscribe(slow, query);
+
+      waitFor(new Condition() {
+          public boolean satisfied() {
+            return slow.thread != null;
+          }
+        });
+
+      // with the first delivery stuck in the listener, two more fit in
+      // the queue, and everything after that is folded into a single
+      // deferred delivery
+      final int count = 20;
+      for (int i = 1; i < count; ++i) {
+        set(server, 1, i);
+      }
+
+      AsynchronousDiffMachine.Lag lag = machine.lag(slow);
+      assertEquals(3, lag.pendingDeliveries);
+      assertEquals(count - 1, lag.revisionsBehind);
+      assertEquals(count - 4, lag.coalescedRevisions);
+
+      slow.gate.countDown();
+
+      waitFor(new Condition() {
+          public boolean satisfied() {
+            return slow.size() == 4;
+          }
+        });
+
+      assertEquals(Lists.newArrayList(0, 1, 2, count - 1), slow.values);
+
+      lag = machine.lag(slow);
+      assertEquals(0, lag.pendingDeliveries);
+      assertEquals(0, lag.revisionsBehind);
+      assertEquals(0, lag.delayMillis);
+
+      machine.close();
+    } finally {
+      executor.shutdown();
+      executor.awaitTermination(Timeout, TimeUnit.MILLISECONDS);
+    }
+  }
+}
@@ -10,6 +10,9 @@ import static com.readytalk.revori.DuplicateKeyResolution.Throw;
 import static com.readytalk.revori.util.Util.cols;
 import static org.junit.Assert.assertEquals;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import org.junit.Test;
 
 import com.readytalk.revori.Column;
@@ -164,4 +167,108 @@ public class BridgeTest {
     assertEquals
       (right.head().query(originNumbers.primaryKey, 2, 2, name), null);
   }
+
+  @Test
+  public void testCoalescing() {
+    RevisionServer left = new SimpleRevisionServer(null, null);
+    RevisionServer right = new SimpleRevisionServer(null, null);
+
+    MyTaskHandler handler = new MyTaskHandler();
+    Bridge bridge = new Bridge(handler, 100, 4);
+
+    Column<Integer> number = new Column<Integer>(Integer.class, "number");
+    Column<String> name = new Column<String>(String.class, "name");
+    Table numbers = new Table(cols(number), "numbers");
+    Table others = new Table(cols(number), "others");
+    Bridge.Path path = new Bridge.Path(numbers);
+
+    bridge.register(left, path, right, path);
+    handler.flush();
+
+    // count revisions produced on the right after registration
+    final int[] rightRevisions = new int[1];
+    right.registerListener(new Runnable() {
+        public void run() {
+          ++ rightRevisions[0];
+        }
+      });
+    rightRevisions[0] = 0;
+
+    // a burst shorter than maxBatch waits for the window, and is then
+    // propagated with a single merge
+    for (int i = 1; i <= 3; ++i) {
+      Revision base = left.head();
+      RevisionBuilder builder = base.builder();
+      builder.insert(Throw, numbers, i, name, String.valueOf(i));
+      left.merge(base, builder.commit());
+    }
+
+    assertEquals(0, handler.tasks.size());
+    assertEquals(1, handler.delayedTasks.size());
+    assertEquals(100L, (long) handler.delays.get(0));
+    assertEquals(null, right.head().query(numbers.primaryKey, 1, name));
+
+    handler.flush();
+
+    assertEquals("1", right.head().query(numbers.primaryKey, 1, name));
+    assertEquals("3", right.head().query(numbers.primaryKey, 3, name));
+    assertEquals(1, rightRevisions[0]);
+
+    // reaching maxBatch propagates without waiting for the window
+    for (int i = 4; i <= 7; ++i) {
+      Revision base = left.head();
+      RevisionBuilder builder = base.builder();
+      builder.insert(Throw, numbers, i, name, String.valueOf(i));
+      left.merge(base, builder.commit());
+    }
+
+    assertEquals(1, handler.tasks.size());
+
+    handler.flush();
+
+    assertEquals("7", right.head().query(numbers.primaryKey, 7, name));
+    assertEquals(2, rightRevisions[0]);
+
+    // changes outside the mapped subtree aren't propagated at all
+    { Revision base = left.head();
+      RevisionBuilder builder = base.builder();
+      builder.insert(Throw, others, 1, name, "one");
+      left.merge(base, builder.commit());
+    }
+
+    handler.flush();
+
+    assertEquals(null, right.head().query(others.primaryKey, 1, name));
+    assertEquals(2, rightRevisions[0]);
+  }
+
+  private static class MyTaskHandler implements Bridge.DelayedTaskHandler {
+    public final List<Runnable> tasks = new ArrayList<Runnable>();
+    public final List<Runnable> delayedTasks = new ArrayList<Runnable>();
+    public final List<Long> delays = new ArrayList<Long>();
+
+    public void handleTask(Runnable task) {
+      tasks.add(task);
+    }
+
+    public void handleTask(Runnable task, long delayMillis) {
+      delayedTasks.add(task);
+      delays.add(delayMillis);
+    }
+
+    // runs every task, including any added by the ones run, as if
+    // each window had elapsed
+    public void flush() {
+      while (! (tasks.isEmpty() && delayedTasks.isEmpty())) {
+        List<Runnable> list = new ArrayList<Runnable>(tasks);
+        list.addAll(delayedTasks);
+        tasks.clear();
+        delayedTasks.clear();
+        delays.clear();
+        for (Runnable task: list) {
+          task.run();
+        }
+      }
+    }
+  }
 }
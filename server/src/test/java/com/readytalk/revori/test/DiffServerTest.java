@@ -0,0 +1,106 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.test;
+
+import static com.readytalk.revori.util.Util.cols;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.readytalk.revori.Column;
+import com.readytalk.revori.ConflictResolvers;
+import com.readytalk.revori.ForeignKeyResolvers;
+import com.readytalk.revori.Revision;
+import com.readytalk.revori.RevisionBuilder;
+import com.readytalk.revori.Table;
+import com.readytalk.revori.imp.Footprints;
+import com.readytalk.revori.server.simple.SimpleRevisionServer;
+import com.readytalk.revori.subscribe.DiffServer;
+import com.readytalk.revori.subscribe.RetentionPolicy;
+
+public class DiffServerTest {
+  private static final Column<Integer> key
+    = new Column<Integer>(Integer.class, "key");
+  private static final Column<Integer> value
+    = new Column<Integer>(Integer.class, "value");
+  private static final Table numbers = new Table(cols(key), "numbers");
+
+  private static void set(SimpleRevisionServer server, int k, int v) {
+    Revision base = server.head();
+    RevisionBuilder builder = base.builder();
+    builder.table(numbers).row(k).update(value, v);
+    server.merge(base, builder.commit());
+  }
+
+  @Test
+  public void testMaxRevisions() {
+    SimpleRevisionServer server = new SimpleRevisionServer
+      (ConflictResolvers.Restrict, ForeignKeyResolvers.Delete);
+    DiffServer diffServer = new DiffServer
+      (server, new RetentionPolicy(2, 0, 0));
+
+    set(server, 1, 1);
+    diffServer.setTag("a");
+    set(server, 1, 2);
+    diffServer.setTag("b");
+    set(server, 1, 3);
+    diffServer.setTag("c");
+
+    DiffServer.Footprint footprint = diffServer.footprint();
+    assertEquals(3, footprint.retainedRevisions);
+    assertEquals(0, footprint.forcedTags);
+    assertTrue(footprint.uniqueNodes > 0);
+    assertEquals(footprint.uniqueNodes * Footprints.NodeBytes,
+                 footprint.estimatedBytes);
+
+    // "a" is now the oldest of three revisions retained besides the
+    // head, so it's moved forward to join "b"
+    set(server, 1, 4);
+
+    footprint = diffServer.footprint();
+    assertEquals(3, footprint.retainedRevisions);
+    assertEquals(1, footprint.forcedTags);
+
+    diffServer.removeTag("a");
+    diffServer.removeTag("b");
+    diffServer.removeTag("c");
+
+    footprint = diffServer.footprint();
+    assertEquals(1, footprint.retainedRevisions);
+    assertEquals(0, footprint.uniqueNodes);
+  }
+
+  @Test
+  public void testMaxRetainedBytes() {
+    SimpleRevisionServer server = new SimpleRevisionServer
+      (ConflictResolvers.Restrict, ForeignKeyResolvers.Delete);
+    DiffServer diffServer = new DiffServer
+      (server, new RetentionPolicy(0, 0, Footprints.NodeBytes * 1000));
+
+    Revision base = server.head();
+    RevisionBuilder builder = base.builder();
+    for (int i = 0; i < 1000; ++i) {
+      builder.table(numbers).row(i).update(value, i);
+    }
+    server.merge(base, builder.commit());
+
+    diffServer.setTag("stuck");
+
+    // a tag which is never moved would otherwise pin its revision, and
+    // with it a copy of every row changed since
+    for (int i = 0; i < 1000; ++i) {
+      set(server, i, -i);
+    }
+
+    DiffServer.Footprint footprint = diffServer.footprint();
+    assertTrue(footprint.estimatedBytes <= Footprints.NodeBytes * 1000);
+    assertTrue(footprint.forcedTags > 0);
+    assertTrue(footprint.retainedRevisions <= 2);
+  }
+}
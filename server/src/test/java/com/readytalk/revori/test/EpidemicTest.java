@@ -12,11 +12,14 @@ import static com.readytalk.revori.DuplicateKeyResolution.Throw;
 import static com.readytalk.revori.util.Util.cols;
 import static com.readytalk.revori.util.Util.set;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -25,6 +28,8 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executor;
 
 import org.junit.Test;
 
@@ -35,6 +40,9 @@ import com.readytalk.revori.Index;
 import com.readytalk.revori.Revision;
 import com.readytalk.revori.RevisionBuilder;
 import com.readytalk.revori.Table;
+import com.readytalk.revori.metrics.Instruments;
+import com.readytalk.revori.metrics.Metrics;
+import com.readytalk.revori.metrics.SimpleMetrics;
 import com.readytalk.revori.server.EpidemicServer;
 import com.readytalk.revori.server.NetworkServer;
 import com.readytalk.revori.server.NetworkServer.Network;
@@ -185,6 +193,326 @@ public class EpidemicTest {
     assertEquals(2, n2.server.head().query(valueKey, 0, value));
   }
 
+  @Test
+  public void testRecordTruncation() {
+    NodeConfig config = new NodeConfig
+      (new MyConflictResolver(),
+       ForeignKeyResolvers.Delete,
+       new NodeNetwork(),
+       EpidemicFactory);
+
+    Node n1 = new Node(config, 1);
+    Node n2 = new Node(config, 2);
+
+    n1.server.updateView(set(n2.id));
+    n2.server.updateView(set(n1.id));
+
+    Column<Integer> id = new Column<Integer>(Integer.class);
+    Column<Integer> value = new Column<Integer>(Integer.class);
+    Table valueTable = new Table(cols(id));
+
+    flush(config.network);
+
+    final int count = 100;
+    for (int i = 0; i < count; ++i) {
+      Node n = (i % 2 == 0 ? n1 : n2);
+      Revision base = n.server.head();
+      RevisionBuilder builder = base.builder();
+    
+      builder.insert(Overwrite, valueTable, 0, value, i);
+
+      n.server.merge(base, builder.commit());
+
+      flush(config.network);
+    }
+
+    Index valueKey = valueTable.primaryKey;
+    
+    assertEquals(count - 1, n1.server.head().query(valueKey, 0, value));
+    assertEquals(count - 1, n2.server.head().query(valueKey, 0, value));
+
+    // once both nodes have acknowledged everything, only a handful of
+    // records per origin should remain, regardless of how many updates
+    // were made
+    SimpleMetrics metrics = new SimpleMetrics();
+    Instruments.install(metrics);
+    try {
+      long retained1 = metrics.gaugeValue
+        ("revori.epidemic.records.retained." + n1.id.asString());
+      long retained2 = metrics.gaugeValue
+        ("revori.epidemic.records.retained." + n2.id.asString());
+      long pinned1 = metrics.gaugeValue
+        ("revori.epidemic.revisions.pinned." + n1.id.asString());
+
+      assertTrue(retained1 > 0 && retained1 < 16);
+      assertTrue(retained2 > 0 && retained2 < 16);
+      assertTrue(pinned1 > 0 && pinned1 <= retained1);
+
+      // a closed server's gauges aren't registered with registries
+      // installed later
+      ((EpidemicServer) n1.server).close();
+
+      metrics = new SimpleMetrics();
+      Instruments.install(metrics);
+
+      BufferOutputStream buffer = new BufferOutputStream();
+      metrics.dump(new PrintStream(buffer));
+      String dump = buffer.toString();
+
+      assertFalse(dump.contains
+                  ("revori.epidemic.records.retained." + n1.id.asString()));
+      assertFalse(dump.contains
+                  ("revori.epidemic.revisions.pinned." + n1.id.asString()));
+      assertFalse(dump.contains
+                  ("revori.epidemic.lag." + n1.id.asString() + "."));
+      assertTrue(dump.contains
+                 ("revori.epidemic.records.retained." + n2.id.asString()));
+    } finally {
+      Instruments.install(Metrics.Noop);
+    }
+  }
+
+  @Test
+  public void testSnapshot() {
+    NodeConfig config = new NodeConfig
+      (new MyConflictResolver(),
+       ForeignKeyResolvers.Delete,
+       new NodeNetwork(),
+       EpidemicFactory);
+
+    Node n1 = new Node(config, 1);
+    Node n2 = new Node(config, 2);
+
+    Column<Integer> x = new Column<Integer>(Integer.class);
+    Column<Integer> y = new Column<Integer>(Integer.class);
+    Column<String> name = new Column<String>(String.class);
+    Table points = new Table(cols(x, y));
+
+    Revision base = n1.server.head();
+    RevisionBuilder builder = base.builder();
+    for (int i = 0; i < 1000; ++i) {
+      builder.insert(Throw, points, i / 10, i % 10, name, "p" + i);
+    }
+    n1.server.merge(base, builder.commit());
+
+    // n2 has nothing from n1 yet, so it will be sent a snapshot
+    n1.server.updateView(set(n2.id));
+    n2.server.updateView(set(n1.id));
+
+    flush(config.network);
+
+    assertEquals(n1.server.head(), n2.server.head());
+    assertEquals("p537", n2.server.head().query
+                 (points.primaryKey, 53, 7, name));
+
+    // and subsequent changes are sent as ordinary diffs
+    base = n2.server.head();
+    builder = base.builder();
+    builder.insert(Overwrite, points, 53, 7, name, "changed");
+    builder.delete(points, 0, 0);
+    n2.server.merge(base, builder.commit());
+
+    flush(config.network);
+
+    assertEquals("changed", n1.server.head().query
+                 (points.primaryKey, 53, 7, name));
+    assertNull(n1.server.head().query(points.primaryKey, 0, 0, name));
+    assertEquals(n1.server.head(), n2.server.head());
+  }
+
+  @Test
+  public void testKeyOnlyTables() {
+    Column<Integer> number = new Column<Integer>(Integer.class);
+    Column<Integer> other = new Column<Integer>(Integer.class);
+    Table numbers = new Table(cols(number));
+    Table pairs = new Table(cols(number, other));
+
+    // once sent as a snapshot...
+    NodeConfig config = new NodeConfig
+      (new MyConflictResolver(),
+       ForeignKeyResolvers.Delete,
+       new NodeNetwork(),
+       EpidemicFactory);
+
+    Node n1 = new Node(config, 1);
+    Node n2 = new Node(config, 2);
+
+    insertKeys(n1, numbers, pairs);
+
+    n1.server.updateView(set(n2.id));
+    n2.server.updateView(set(n1.id));
+
+    flush(config.network);
+
+    assertEquals(n1.server.head(), n2.server.head());
+    assertEquals(7, n2.server.head().query(numbers.primaryKey, 7, number));
+    assertEquals(2, n2.server.head().query(pairs.primaryKey, 7, 2, other));
+
+    // ...and once inserted after the nodes have connected
+    config = new NodeConfig
+      (new MyConflictResolver(),
+       ForeignKeyResolvers.Delete,
+       new NodeNetwork(),
+       EpidemicFactory);
+
+    n1 = new Node(config, 1);
+    n2 = new Node(config, 2);
+
+    n1.server.updateView(set(n2.id));
+    n2.server.updateView(set(n1.id));
+
+    flush(config.network);
+
+    insertKeys(n1, numbers, pairs);
+
+    flush(config.network);
+
+    assertEquals(n1.server.head(), n2.server.head());
+    assertEquals(7, n2.server.head().query(numbers.primaryKey, 7, number));
+    assertEquals(2, n2.server.head().query(pairs.primaryKey, 7, 2, other));
+  }
+
+  private static void insertKeys(Node node, Table numbers, Table pairs) {
+    Revision base = node.server.head();
+    RevisionBuilder builder = base.builder();
+    for (int i = 0; i < 1000; ++i) {
+      builder.insert(Throw, numbers, i);
+      builder.insert(Throw, pairs, i / 10, i % 10);
+    }
+    node.server.merge(base, builder.commit());
+  }
+
+  @Test
+  public void testSnapshotResume() {
+    NodeConfig config = new NodeConfig
+      (new MyConflictResolver(),
+       ForeignKeyResolvers.Delete,
+       new NodeNetwork(),
+       EpidemicFactory);
+
+    Node n1 = new Node(config, 1);
+    Node n2 = new Node(config, 2);
+
+    Column<Integer> x = new Column<Integer>(Integer.class);
+    Column<Integer> y = new Column<Integer>(Integer.class);
+    Column<String> name = new Column<String>(String.class);
+    Table points = new Table(cols(x, y));
+    // rows with no columns besides their primary key
+    Table names = new Table(cols(name));
+
+    Revision base = n1.server.head();
+    RevisionBuilder builder = base.builder();
+    for (int i = 0; i < 5000; ++i) {
+      builder.insert(Throw, points, i / 10, i % 10, name, "p" + i);
+    }
+    for (int i = 0; i < 500; ++i) {
+      builder.insert(Throw, names, "n" + i);
+    }
+    n1.server.merge(base, builder.commit());
+
+    n1.server.updateView(set(n2.id));
+    n2.server.updateView(set(n1.id));
+
+    // lose the connection, along with anything in flight, part way
+    // through the snapshot
+    assertEquals(5, deliverSnapshotChunks(config.network, 5));
+    config.network.messages.clear();
+
+    Set<NodeID> none = Collections.emptySet();
+    n1.server.updateView(none);
+    n2.server.updateView(none);
+
+    n1.server.updateView(set(n2.id));
+    n2.server.updateView(set(n1.id));
+
+    // the 22 chunks of the snapshot shouldn't all be sent again
+    int resent = deliverSnapshotChunks(config.network, Integer.MAX_VALUE);
+    assertTrue(resent > 0);
+    assertTrue(resent < 22 - 3);
+
+    assertEquals(n1.server.head(), n2.server.head());
+    assertEquals("p0", n2.server.head().query(points.primaryKey, 0, 0, name));
+    assertEquals("p1537", n2.server.head().query
+                 (points.primaryKey, 153, 7, name));
+    assertEquals("p4999", n2.server.head().query
+                 (points.primaryKey, 499, 9, name));
+    assertEquals("n499", n2.server.head().query
+                 (names.primaryKey, "n499", name));
+  }
+
+  @Test
+  public void testAsynchronousSend() {
+    final ManualExecutor executor = new ManualExecutor();
+    NodeConfig config = new NodeConfig
+      (new MyConflictResolver(),
+       ForeignKeyResolvers.Delete,
+       new NodeNetwork(),
+       new ServerFactory() {
+         public NetworkServer make(NodeConflictResolver conflictResolver,
+                                   ForeignKeyResolver foreignKeyResolver,
+                                   NodeNetwork network,
+                                   NodeID id)
+         {
+           return new EpidemicServer
+             (conflictResolver, foreignKeyResolver, network, id,
+              UUID.randomUUID(), executor, 2);
+         }
+       });
+
+    Node n1 = new Node(config, 1);
+    Node n2 = new Node(config, 2);
+
+    n1.server.updateView(set(n2.id));
+    n2.server.updateView(set(n1.id));
+
+    // nothing reaches the network until the executor gets around to it
+    assertTrue(config.network.messages.isEmpty());
+    assertTrue(executor.tasks.size() > 0);
+
+    flush(config.network, executor);
+
+    Column<Integer> id = new Column<Integer>(Integer.class);
+    Column<Integer> value = new Column<Integer>(Integer.class);
+    Table valueTable = new Table(cols(id));
+    Index valueKey = valueTable.primaryKey;
+
+    final int count = 20;
+    for (int i = 0; i < count; ++i) {
+      Revision base = n1.server.head();
+      RevisionBuilder builder = base.builder();
+      builder.insert(Overwrite, valueTable, 0, value, i);
+      n1.server.merge(base, builder.commit());
+    }
+
+    assertEquals(count - 1, n1.server.head().query(valueKey, 0, value));
+    assertTrue(config.network.messages.isEmpty());
+
+    flush(config.network, executor);
+
+    assertEquals(count - 1, n2.server.head().query(valueKey, 0, value));
+
+    // messages still queued when a peer disconnects are dropped
+    Revision base = n2.server.head();
+    RevisionBuilder builder = base.builder();
+    builder.insert(Overwrite, valueTable, 1, value, 42);
+    n2.server.merge(base, builder.commit());
+
+    n1.server.updateView(Collections.<NodeID>emptySet());
+    n2.server.updateView(Collections.<NodeID>emptySet());
+
+    executor.run();
+
+    assertTrue(config.network.messages.isEmpty());
+
+    n1.server.updateView(set(n2.id));
+    n2.server.updateView(set(n1.id));
+
+    flush(config.network, executor);
+
+    assertEquals(42, n1.server.head().query(valueKey, 1, value));
+    assertEquals(42, n2.server.head().query(valueKey, 1, value));
+  }
+
   @Test
   public void testAcks() {
     NodeConfig config = new NodeConfig
@@ -273,6 +601,48 @@ public class EpidemicTest {
     assertEquals(59, n2.server.head().query(numbersKey, 2, value));
   }
 
+  @Test
+  public void testLag() {
+    NodeConfig config = new NodeConfig
+      (new MyConflictResolver(),
+       ForeignKeyResolvers.Delete,
+       new NodeNetwork(),
+       EpidemicFactory);
+
+    Node n1 = new Node(config, 1);
+    Node n2 = new Node(config, 2);
+
+    n1.server.updateView(set(n2.id));
+    n2.server.updateView(set(n1.id));
+
+    flush(config.network);
+
+    EpidemicServer s1 = (EpidemicServer) n1.server;
+    EpidemicServer s2 = (EpidemicServer) n2.server;
+
+    assertEquals(0, s1.lag(n2.id));
+    assertEquals(0, s2.lag(n1.id));
+
+    Column<Integer> number = new Column<Integer>(Integer.class);
+    Column<Integer> value = new Column<Integer>(Integer.class);
+    Table numbers = new Table(cols(number));
+
+    for (int i = 0; i < 3; ++i) {
+      Revision base = n1.server.head();
+      RevisionBuilder builder = base.builder();
+      builder.insert(Throw, numbers, i, value, i);
+      n1.server.merge(base, builder.commit());
+    }
+
+    assertTrue(s1.lag(n2.id) >= 3);
+    assertEquals(0, s1.lag(n1.id));
+
+    flush(config.network);
+
+    assertEquals(0, s1.lag(n2.id));
+    assertEquals(0, s2.lag(n1.id));
+  }
+
   @Test
   public void testTwoNodeRestart() {
     NodeConfig config = new NodeConfig
@@ -582,6 +952,19 @@ public class EpidemicTest {
     assertEquals("bar", n2.server.head().query(name, key, 1, 2, 2));
   }
   
+  private static void flush(NodeNetwork network, ManualExecutor executor) {
+    final int MaxIterations = 100;
+    int iteration = 0;
+    while (network.messages.size() > 0 || executor.tasks.size() > 0) {
+      if (iteration++ > MaxIterations) {
+        throw new RuntimeException("exceeded maximum iteration count");
+      }
+
+      executor.run();
+      flush(network);
+    }
+  }
+
   private static void flush(NodeNetwork network, NodeID... dontDeliverTo) {
     final int MaxIterations = 100;
     final Set<NodeID> ddt = new HashSet<NodeID>(Arrays.asList(dontDeliverTo));
@@ -600,24 +983,7 @@ public class EpidemicTest {
         if(ddt.contains(m.destination)) {
           undelivered.add(m);
         } else {
-          try {
-            Node destination = network.nodes.get(m.destination);
-  
-            BufferOutputStream buffer = new BufferOutputStream();
-            m.body.writeTo(new WriteContext(buffer));
-  
-            Readable result = (Readable) m.body.getClass().newInstance();
-            result.readFrom
-              (new ReadContext(new ByteArrayInputStream(buffer.getBuffer(), 0, buffer.size())));
-  
-            destination.server.accept(m.source, result);
-          } catch (InstantiationException e) {
-            throw new RuntimeException(e);
-          } catch (IllegalAccessException e) {
-            throw new RuntimeException(e);
-          } catch (IOException e) {
-            throw new RuntimeException(e);
-          }
+          deliver(network, m);
         }
       }
     }
@@ -625,6 +991,39 @@ public class EpidemicTest {
     network.messages.addAll(undelivered);
   }
 
+  private static void deliver(NodeNetwork network, Message m) {
+    try {
+      Node destination = network.nodes.get(m.destination);
+
+      BufferOutputStream buffer = new BufferOutputStream();
+      m.body.writeTo(new WriteContext(buffer));
+
+      Readable result = (Readable) m.body.getClass().newInstance();
+      result.readFrom
+        (new ReadContext(new ByteArrayInputStream(buffer.getBuffer(), 0, buffer.size())));
+
+      destination.server.accept(m.source, result);
+    } catch (InstantiationException e) {
+      throw new RuntimeException(e);
+    } catch (IllegalAccessException e) {
+      throw new RuntimeException(e);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static int deliverSnapshotChunks(NodeNetwork network, int max) {
+    int count = 0;
+    while (count < max && ! network.messages.isEmpty()) {
+      Message m = network.messages.remove(0);
+      if (m.body instanceof EpidemicServer.Snapshot) {
+        ++ count;
+      }
+      deliver(network, m);
+    }
+    return count;
+  }
+
   private static class MyConflictResolver implements NodeConflictResolver {
     public Object resolveConflict(NodeID leftNode,
                                   NodeID rightNode,
@@ -726,6 +1125,20 @@ public class EpidemicTest {
     }
   }
 
+  private static class ManualExecutor implements Executor {
+    public final List<Runnable> tasks = new ArrayList<Runnable>();
+
+    public void execute(Runnable task) {
+      tasks.add(task);
+    }
+
+    public void run() {
+      while (! tasks.isEmpty()) {
+        tasks.remove(0).run();
+      }
+    }
+  }
+
   private static class NodeNetwork implements Network {
     public final Map<NodeID, Node> nodes = new HashMap<NodeID, Node>();
     public final List<Message> messages = new ArrayList<Message>();
@@ -0,0 +1,184 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.test;
+
+import static com.readytalk.revori.DuplicateKeyResolution.Throw;
+import static com.readytalk.revori.ExpressionFactory.aggregate;
+import static com.readytalk.revori.ExpressionFactory.constant;
+import static com.readytalk.revori.ExpressionFactory.reference;
+import static com.readytalk.revori.util.Util.cols;
+import static com.readytalk.revori.util.Util.set;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.Lists;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.readytalk.revori.Column;
+import com.readytalk.revori.Foldables;
+import com.readytalk.revori.Index;
+import com.readytalk.revori.QueryTemplate;
+import com.readytalk.revori.Revision;
+import com.readytalk.revori.RevisionBuilder;
+import com.readytalk.revori.Revisions;
+import com.readytalk.revori.Table;
+import com.readytalk.revori.TableReference;
+import com.readytalk.revori.View;
+import com.readytalk.revori.imp.Footprints;
+import com.readytalk.revori.imp.Footprints.TreeFootprint;
+
+public class FootprintsTest {
+  private static final Column<Integer> key
+    = new Column<Integer>(Integer.class, "key");
+  private static final Column<Integer> value
+    = new Column<Integer>(Integer.class, "value");
+  private static final Table numbers = new Table(cols(key), "numbers");
+
+  private static Revision numbers(int count) {
+    RevisionBuilder builder = Revisions.Empty.builder();
+    for (int i = 0; i < count; ++i) {
+      builder.table(numbers).row(i).update(value, i);
+    }
+    return builder.commit();
+  }
+
+  private static TreeFootprint find(List<TreeFootprint> trees, Index index) {
+    for (TreeFootprint tree: trees) {
+      if (tree.index.equals(index)) {
+        return tree;
+      }
+    }
+    return null;
+  }
+
+  @Test
+  public void testUniqueNodes() {
+    Revision a = numbers(1000);
+    Revision b = a.builder().table(numbers).row(500).update(value, -1)
+      .commit();
+
+    long nodes = Footprints.nodes(a);
+    // at least one node per row and one per column value
+    assertTrue(nodes >= 2000);
+    assertEquals(nodes, Footprints.uniqueNodes(a, Revisions.Empty));
+    assertEquals(0, Footprints.uniqueNodes(a, a));
+    assertEquals(0, Footprints.uniqueNodes(Revisions.Empty, a));
+
+    // only the path to the changed row differs
+    long unique = Footprints.uniqueNodes(a, b);
+    assertTrue(unique > 0);
+    assertTrue(unique < 50);
+    assertEquals(unique, Footprints.uniqueNodes(b, a));
+  }
+
+  @Test
+  public void testTrees() {
+    Revision a = numbers(1000);
+    Revision b = a.builder().table(numbers).row(500).update(value, -1)
+      .commit();
+
+    long nodes = Footprints.nodes(a);
+    List<TreeFootprint> trees = Footprints.trees(a);
+    assertEquals(1, trees.size());
+    assertEquals(numbers.primaryKey, trees.get(0).index);
+    assertNull(trees.get(0).view);
+    // everything but the nodes linking the tree to the revision's root
+    assertTrue(trees.get(0).nodes > nodes - 5);
+    assertEquals(trees.get(0).nodes * Footprints.NodeBytes,
+                 trees.get(0).estimatedBytes);
+
+    trees = Footprints.trees(a, b);
+    assertEquals(1, trees.size());
+    // all but the table node
+    assertEquals(Footprints.uniqueNodes(a, b) - 1, trees.get(0).nodes);
+    assertEquals(0, Footprints.trees(a, a).size());
+    assertEquals(0, Footprints.trees(Revisions.Empty, a).size());
+  }
+
+  @Test
+  public void testIndexesAndViews() {
+    Column<Integer> number = new Column<Integer>(Integer.class, "number");
+    Column<String> name = new Column<String>(String.class, "name");
+    Table things = new Table(cols(number), "things");
+    Index byName = new Index(things, cols(name));
+
+    TableReference thingsReference = new TableReference(things);
+
+    Column<Integer> sum = new Column<Integer>(Integer.class, "sum");
+
+    View view = new View
+      (new QueryTemplate
+       (Lists.newArrayList(reference(thingsReference, name),
+             aggregate(Integer.class, Foldables.Sum,
+                       reference(thingsReference, number))),
+        thingsReference, constant(true),
+        set(reference(thingsReference, name))),
+       Collections.emptyList(),
+       cols(name, sum),
+       cols(name),
+       Lists.newArrayList(reference(thingsReference, name)),
+       "view");
+
+    RevisionBuilder builder = Revisions.Empty.builder();
+    builder.add(byName);
+    builder.add(view);
+    for (int i = 0; i < 100; ++i) {
+      builder.insert(Throw, things, i, name, "name " + (i % 10));
+    }
+    Revision a = builder.commit();
+
+    List<TreeFootprint> trees = Footprints.trees(a);
+
+    // each index of the table has its own tree, and only those of the
+    // view's table are attributed to the view
+    TreeFootprint primary = find(trees, things.primaryKey);
+    assertNotNull(primary);
+    assertSame(things, primary.table);
+    assertNull(primary.view);
+
+    TreeFootprint secondary = find(trees, byName);
+    assertNotNull(secondary);
+    assertSame(things, secondary.table);
+    assertNull(secondary.view);
+    // one entry per distinct name and one per row
+    assertTrue(secondary.nodes > 110);
+
+    TreeFootprint viewTree = find(trees, view.table.primaryKey);
+    assertNotNull(viewTree);
+    assertEquals(view, viewTree.view);
+    // one row per distinct name
+    assertTrue(viewTree.nodes > 10);
+    assertTrue(viewTree.nodes < primary.nodes);
+
+    for (TreeFootprint tree: trees) {
+      if (tree.table.equals(view.table)) {
+        assertEquals(view, tree.view);
+      } else {
+        assertNull(tree.view);
+      }
+    }
+
+    // renaming a row changes its tables' trees and the view's, but
+    // not Revori's own tables of indexes and views
+    Revision b = a.builder().table(things).row(5).update(name, "renamed")
+      .commit();
+
+    trees = Footprints.trees(b, a);
+    assertEquals(3, trees.size());
+    assertNotNull(find(trees, things.primaryKey));
+    assertNotNull(find(trees, byName));
+    assertEquals(view, find(trees, view.table.primaryKey).view);
+  }
+}
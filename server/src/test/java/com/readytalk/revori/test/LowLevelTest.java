@@ -12,6 +12,7 @@ import static com.readytalk.revori.DuplicateKeyResolution.Throw;
 import static com.readytalk.revori.util.Util.cols;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 import org.junit.Test;
 
@@ -21,6 +22,9 @@ import com.readytalk.revori.Revision;
 import com.readytalk.revori.RevisionBuilder;
 import com.readytalk.revori.Revisions;
 import com.readytalk.revori.Table;
+import com.readytalk.revori.imp.BulkLoader;
+import com.readytalk.revori.imp.DefaultRevision;
+import com.readytalk.revori.imp.Node;
 
 public class LowLevelTest {
 
@@ -403,4 +407,45 @@ public class LowLevelTest {
 
     assertEquals(DiffResult.Type.End, result.next());
   }
+
+  @Test
+  public void testBulkLoad() {
+    Column<Integer> a = new Column<Integer>(Integer.class);
+    Column<Integer> b = new Column<Integer>(Integer.class);
+    Column<String> name = new Column<String>(String.class);
+    Table numbers = new Table(cols(a, b));
+    Table names = new Table(cols(name));
+
+    for (int size = 0; size < 70; ++size) {
+      BulkLoader loader = new BulkLoader();
+      RevisionBuilder builder = Revisions.Empty.builder();
+
+      boolean namesFirst = names.compareTo(numbers) < 0;
+      for (int t = 0; t < 2; ++t) {
+        if ((t == 0) == namesFirst) {
+          loader.table(names);
+          for (int i = 0; i < size; ++i) {
+            String n = String.format("%04d", i);
+            loader.row(new Column<?>[] { name }, new Object[] { n }, 1);
+            builder.insert(Throw, names, n);
+          }
+        } else {
+          loader.table(numbers);
+          for (int i = 0; i < size; ++i) {
+            for (int j = 0; j < i % 3; ++j) {
+              // deliberately out of column order
+              loader.row(new Column<?>[] { name, b, a },
+                         new Object[] { i + "/" + j, j, i }, 3);
+              builder.insert(Throw, numbers, i, j, name, i + "/" + j);
+            }
+          }
+        }
+      }
+
+      Revision loaded = loader.revision();
+      Node.validate(null, ((DefaultRevision) loaded).root);
+
+      assertTrue(loaded.equals(builder.commit()));
+    }
+  }
 }
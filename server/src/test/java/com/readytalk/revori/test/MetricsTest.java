@@ -0,0 +1,167 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.test;
+
+import static com.readytalk.revori.ExpressionFactory.constant;
+import static com.readytalk.revori.ExpressionFactory.equal;
+import static com.readytalk.revori.ExpressionFactory.reference;
+import static com.readytalk.revori.util.Util.cols;
+import static org.junit.Assert.assertEquals;
+
+import java.io.InputStream;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.readytalk.revori.Column;
+import com.readytalk.revori.ConflictResolver;
+import com.readytalk.revori.Expression;
+import com.readytalk.revori.ForeignKeyResolvers;
+import com.readytalk.revori.QueryResult;
+import com.readytalk.revori.QueryTemplate;
+import com.readytalk.revori.Revision;
+import com.readytalk.revori.RevisionBuilder;
+import com.readytalk.revori.Revisions;
+import com.readytalk.revori.Table;
+import com.readytalk.revori.TableReference;
+import com.readytalk.revori.metrics.Counter;
+import com.readytalk.revori.metrics.Gauge;
+import com.readytalk.revori.metrics.Instruments;
+import com.readytalk.revori.metrics.Metrics;
+import com.readytalk.revori.metrics.SimpleMetrics;
+import com.readytalk.revori.server.SQLServer;
+import com.readytalk.revori.server.SQLServer.Response;
+import com.readytalk.revori.server.simple.SimpleRevisionServer;
+
+public class MetricsTest {
+  private static final Column<Integer> key
+    = new Column<Integer>(Integer.class, "key");
+  private static final Column<Integer> value
+    = new Column<Integer>(Integer.class, "value");
+  private static final Table numbers = new Table(cols(key), "numbers");
+
+  @After
+  public void uninstall() {
+    Instruments.install(Metrics.Noop);
+  }
+
+  @Test
+  public void testForwarding() {
+    // instruments obtained before a registry is installed report to
+    // whichever one is installed when they're used
+    Counter counter = Instruments.counter("test.counter");
+    Instruments.gauge("test.gauge", new Gauge() {
+        public long value() {
+          return 42;
+        }
+      });
+
+    counter.increment(1);
+
+    SimpleMetrics first = new SimpleMetrics();
+    Instruments.install(first);
+    counter.increment(2);
+
+    SimpleMetrics second = new SimpleMetrics();
+    Instruments.install(second);
+    counter.increment(3);
+
+    assertEquals(2, first.counter("test.counter").value());
+    assertEquals(3, second.counter("test.counter").value());
+    assertEquals(42, first.gaugeValue("test.gauge"));
+    assertEquals(42, second.gaugeValue("test.gauge"));
+
+    Instruments.removeGauge("test.gauge");
+    SimpleMetrics third = new SimpleMetrics();
+    Instruments.install(third);
+    assertEquals(0, third.gaugeValue("test.gauge"));
+  }
+
+  @Test
+  public void testMerge() {
+    SimpleMetrics metrics = new SimpleMetrics();
+    Instruments.install(metrics);
+
+    SimpleRevisionServer server = new SimpleRevisionServer
+      (new ConflictResolver() {
+          public Object resolveConflict(Table table,
+                                        Column column,
+                                        Object[] primaryKeyValues,
+                                        Object baseValue,
+                                        Object leftValue,
+                                        Object rightValue)
+          {
+            return leftValue;
+          }
+        }, ForeignKeyResolvers.Delete);
+
+    Revision base = server.head();
+    server.merge(base, base.builder().table(numbers).row(1).update(value, 1)
+                 .commit());
+
+    base = server.head();
+    Revision left = base.builder().table(numbers).row(1).update(value, 2)
+      .commit();
+    Revision right = base.builder().table(numbers).row(1).update(value, 3)
+      .commit();
+
+    server.merge(base, left);
+    server.merge(base, right);
+
+    assertEquals(Integer.valueOf(2),
+                 server.head().query(value, numbers.primaryKey, 1));
+    assertEquals(3, metrics.histogram("revori.server.merge.nanos").count());
+    assertEquals(1, metrics.counter("revori.server.merge.conflicts").value());
+    assertEquals(0, metrics.counter("revori.server.merge.retries").value());
+  }
+
+  @Test
+  public void testQuery() {
+    SimpleMetrics metrics = new SimpleMetrics();
+    Instruments.install(metrics);
+
+    RevisionBuilder builder = Revisions.Empty.builder();
+    for (int i = 0; i < 10; ++i) {
+      builder.table(numbers).row(i).update(value, i * 10);
+    }
+    Revision revision = builder.commit();
+
+    TableReference reference = new TableReference(numbers);
+    QueryTemplate query = new QueryTemplate
+      (Lists.newArrayList((Expression) reference(reference, key)),
+       reference,
+       equal(reference(reference, value), constant(30)));
+
+    QueryResult result = Revisions.Empty.diff(revision, query);
+    assertEquals(QueryResult.Type.Inserted, result.nextRow());
+    assertEquals(3, result.nextItem());
+    assertEquals(QueryResult.Type.End, result.nextRow());
+
+    // there's no index on value, so every row is examined
+    assertEquals(1, metrics.histogram("revori.query.nanos").count());
+    assertEquals(10, metrics.histogram("revori.query.rowsScanned").total());
+    assertEquals(1, metrics.histogram("revori.query.rowsReturned").total());
+  }
+
+  @Test
+  public void testSQLRequests() throws Exception {
+    SimpleMetrics metrics = new SimpleMetrics();
+    Instruments.install(metrics);
+
+    SQLServer.Connection connection = new SQLServer("test").makeConnection();
+
+    assertEquals(Response.Success.ordinal(),
+                 connection.execute("create database test").read());
+    InputStream in = connection.execute("gobbledygook");
+    assertEquals(Response.Error.ordinal(), in.read());
+
+    assertEquals(2, metrics.histogram("revori.sql.request.nanos").count());
+    assertEquals(1, metrics.counter("revori.sql.request.errors").value());
+  }
+}
@@ -0,0 +1,226 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.test;
+
+import static com.readytalk.revori.util.Util.cols;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+import com.readytalk.revori.Column;
+import com.readytalk.revori.ForeignKeyResolvers;
+import com.readytalk.revori.Revision;
+import com.readytalk.revori.RevisionBuilder;
+import com.readytalk.revori.Table;
+import com.readytalk.revori.server.EpidemicServer;
+import com.readytalk.revori.server.NetworkServer;
+import com.readytalk.revori.server.NetworkServer.NodeID;
+import com.readytalk.revori.server.NioNetwork;
+import com.readytalk.revori.server.StreamUtil;
+import com.readytalk.revori.util.BufferOutputStream;
+
+public class NioNetworkTest {
+  private static final long Timeout = 10000;
+
+  private static class Node {
+    public final NodeID id;
+    public final NioNetwork network;
+    public final NetworkServer server;
+
+    public Node(String id, int highWaterMark) throws IOException {
+      this.id = new NodeID(id);
+      this.network = new NioNetwork
+        (this.id,
+         new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0),
+         highWaterMark, NioNetwork.DefaultMaxFrameSize, 50);
+      this.server = new EpidemicServer
+        (NetworkServer.NodeConflictRestrict, ForeignKeyResolvers.Restrict,
+         network, this.id);
+      network.start(server);
+    }
+  }
+
+  private static void waitFor(Condition condition) throws Exception {
+    long deadline = System.currentTimeMillis() + Timeout;
+    while (! condition.satisfied()) {
+      if (System.currentTimeMillis() > deadline) {
+        throw new AssertionError("timed out");
+      }
+      Thread.sleep(10);
+    }
+  }
+
+  private interface Condition {
+    public boolean satisfied();
+  }
+
+  private static final AtomicBoolean poisonInitialized = new AtomicBoolean();
+
+  private static class Poison {
+    static {
+      poisonInitialized.set(true);
+    }
+  }
+
+  private static void writeFrame(DataOutputStream out, String s)
+    throws IOException
+  {
+    BufferOutputStream buffer = new BufferOutputStream();
+    StreamUtil.writeString(buffer, s);
+    out.writeInt(buffer.size());
+    out.write(buffer.getBuffer(), 0, buffer.size());
+    out.flush();
+  }
+
+  @Test
+  public void testRejectUnknownMessageClass() throws Exception {
+    Node a = new Node("a", NioNetwork.DefaultHighWaterMark);
+    Socket socket = new Socket();
+    try {
+      socket.connect(a.network.localAddress());
+      socket.setSoTimeout((int) Timeout);
+      DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+
+      writeFrame(out, "x");
+      writeFrame(out, Poison.class.getName());
+
+      // the network closes the connection without initializing the
+      // class the frame names
+      while (socket.getInputStream().read() != -1) { }
+
+      assertFalse(poisonInitialized.get());
+    } finally {
+      socket.close();
+      a.network.close();
+    }
+  }
+
+  @Test
+  public void testLoopback() throws Exception {
+    final Node a = new Node("a", NioNetwork.DefaultHighWaterMark);
+    final Node b = new Node("b", NioNetwork.DefaultHighWaterMark);
+    try {
+      a.network.addPeer(b.id, b.network.localAddress());
+
+      waitFor(new Condition() {
+          public boolean satisfied() {
+            return a.network.connectedPeers().equals(Collections.singleton(b.id))
+              && b.network.connectedPeers().equals(Collections.singleton(a.id));
+          }
+        });
+
+      final Column<Integer> number = new Column<Integer>(Integer.class);
+      final Column<String> name = new Column<String>(String.class);
+      final Table numbers = new Table(cols(number));
+
+      Revision base = a.server.head();
+      a.server.merge(base, base.builder().table(numbers).row(1)
+                     .update(name, "one").commit());
+
+      waitFor(new Condition() {
+          public boolean satisfied() {
+            return "one".equals
+              (b.server.head().query(name, numbers.primaryKey, 1));
+          }
+        });
+
+      base = b.server.head();
+      b.server.merge(base, base.builder().table(numbers).row(2)
+                     .update(name, "two").commit());
+
+      waitFor(new Condition() {
+          public boolean satisfied() {
+            return "two".equals
+              (a.server.head().query(name, numbers.primaryKey, 2));
+          }
+        });
+
+      assertEquals("one", a.server.head().query(name, numbers.primaryKey, 1));
+    } finally {
+      a.network.close();
+      b.network.close();
+    }
+  }
+
+  @Test
+  public void testLargeMessagesAndReconnect() throws Exception {
+    // a tiny high water mark makes servers wait for the network to
+    // become writable again
+    final Node a = new Node("a", 1024);
+    final Node b = new Node("b", 1024);
+    final Node c = new Node("c", 1024);
+    try {
+      a.network.addPeer(b.id, b.network.localAddress());
+      b.network.addPeer(a.id, a.network.localAddress());
+      a.network.addPeer(c.id, c.network.localAddress());
+
+      final Column<Integer> number = new Column<Integer>(Integer.class);
+      final Column<String> name = new Column<String>(String.class);
+      final Table numbers = new Table(cols(number));
+
+      final int count = 5000;
+      Revision base = a.server.head();
+      RevisionBuilder builder = base.builder();
+      for (int i = 0; i < count; ++i) {
+        builder.table(numbers).row(i).update(name, "number " + i);
+      }
+      a.server.merge(base, builder.commit());
+
+      waitFor(new Condition() {
+          public boolean satisfied() {
+            return ("number " + (count - 1)).equals
+              (b.server.head().query(name, numbers.primaryKey, count - 1))
+              && ("number " + (count - 1)).equals
+              (c.server.head().query(name, numbers.primaryKey, count - 1));
+          }
+        });
+
+      assertEquals("number 0",
+                   b.server.head().query(name, numbers.primaryKey, 0));
+
+      // c loses its connection and comes back
+      c.network.removePeer(a.id);
+      a.network.removePeer(c.id);
+
+      waitFor(new Condition() {
+          public boolean satisfied() {
+            return ! a.network.connectedPeers().contains(c.id);
+          }
+        });
+
+      base = a.server.head();
+      a.server.merge(base, base.builder().table(numbers).row(count)
+                     .update(name, "late").commit());
+
+      a.network.addPeer(c.id, c.network.localAddress());
+
+      waitFor(new Condition() {
+          public boolean satisfied() {
+            return "late".equals
+              (c.server.head().query(name, numbers.primaryKey, count));
+          }
+        });
+
+      assertTrue(a.network.connectedPeers().contains(b.id));
+    } finally {
+      a.network.close();
+      b.network.close();
+      c.network.close();
+    }
+  }
+}
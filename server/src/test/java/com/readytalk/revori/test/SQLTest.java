@@ -9,15 +9,20 @@ package com.readytalk.revori.test;
 
 import static com.readytalk.revori.server.SQLServer.readString;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
 
 import org.junit.Ignore;
 import org.junit.Test;
 
 import com.readytalk.revori.server.SQLServer;
 import com.readytalk.revori.server.SQLServer.Connection;
+import com.readytalk.revori.server.SQLServer.Request;
 import com.readytalk.revori.server.SQLServer.Response;
 import com.readytalk.revori.server.SQLServer.RowSetFlag;
 
@@ -65,6 +70,115 @@ public class SQLTest {
     assertEquals(RowSetFlag.End.ordinal(), in.read());
   }
   
+  @Test
+  public void testExplain() throws IOException {
+    Connection connection = new SQLServer("test").makeConnection();
+
+    assertEquals(Response.Success.ordinal(), connection.execute("create database test").read());
+
+    assertEquals(Response.NewDatabase.ordinal(), connection.execute("use database test").read());
+
+    assertEquals(Response.Success.ordinal(), connection.execute
+     ("create table users"
+      + " ( id int32, name string, team int32, primary key ( id ) )").read());
+
+    assertEquals(Response.Success.ordinal(), connection.execute
+     ("create table teams"
+      + " ( teamId int32, teamName string, primary key ( teamId ) )").read());
+
+    for (int i = 0; i < 10; ++i) {
+      assertEquals(Response.Success.ordinal(), connection.execute
+       ("insert into users values ( " + i + ", 'user', " + (i % 3) + " )")
+       .read());
+    }
+
+    for (int i = 0; i < 3; ++i) {
+      assertEquals(Response.Success.ordinal(), connection.execute
+       ("insert into teams values ( " + i + ", 'team' )").read());
+    }
+
+    InputStream in = connection.execute
+      ("explain select name from users where id > 3");
+
+    assertEquals(Response.Success.ordinal(), in.read());
+    assertEquals("scan users using primary key (id): id in (3, +inf)",
+                 readString(in));
+
+    in = connection.execute
+      ("explain select name, teamName from users"
+       + " inner join teams on team = teamId");
+
+    assertEquals(Response.Success.ordinal(), in.read());
+    assertEquals("inner join (nested loop)\n"
+                 + "  scan users using primary key (id)\n"
+                 + "  scan teams using primary key (teamId):"
+                 + " teamId in [?, ?]",
+                 readString(in));
+
+    in = connection.execute
+      ("explain analyze select name, teamName from users"
+       + " inner join teams on team = teamId");
+
+    assertEquals(Response.Success.ordinal(), in.read());
+    String[] lines = readString(in).split("\n");
+    assertEquals(4, lines.length);
+    assertTrue(lines[0].startsWith
+               ("inner join (nested loop) -- loops 1, returned 10, "));
+    assertTrue(lines[1].startsWith
+               ("  scan users using primary key (id)"
+                + " -- loops 1, examined 10, returned 10, "));
+    // the inner side is scanned once per user, finding its team each
+    // time without examining any other
+    assertTrue(lines[2].startsWith
+               ("  scan teams using primary key (teamId): teamId in [?, ?]"
+                + " -- loops 10, examined 10, returned 10, "));
+    assertTrue(lines[3].startsWith("total "));
+  }
+
+  @Test
+  public void testListFootprint() throws IOException {
+    Connection connection = new SQLServer("test").makeConnection();
+
+    assertEquals(Response.Success.ordinal(), connection.execute("create database test").read());
+
+    assertEquals(Response.NewDatabase.ordinal(), connection.execute("use database test").read());
+
+    assertEquals(Response.Success.ordinal(), connection.execute
+     ("create table users"
+      + " ( id int32, name string, primary key ( id ) )").read());
+
+    for (int i = 0; i < 10; ++i) {
+      assertEquals(Response.Success.ordinal(), connection.execute
+       ("insert into users values ( " + i + ", 'user' )").read());
+    }
+
+    InputStream in = connection.execute("list footprint");
+
+    assertEquals(Response.Success.ordinal(), in.read());
+    // one node for the index, and one for each row and column value
+    assertEquals("\nusers primary key (id): 31 nodes, ~1240 bytes"
+                 + "\ntotal: 31 nodes, ~1240 bytes",
+                 readString(in));
+
+    assertEquals(Response.Success.ordinal(), connection.execute
+                 ("tag before head").read());
+
+    assertEquals(Response.Success.ordinal(), connection.execute
+                 ("update users set name = 'renamed' where id = 5").read());
+
+    in = connection.execute("list footprint of users relative to before");
+
+    assertEquals(Response.Success.ordinal(), in.read());
+    String[] lines = readString(in).split("\n");
+    assertEquals(3, lines.length);
+    assertTrue(lines[1].startsWith("users primary key (id): "));
+
+    // only the path to the updated row is not shared
+    long nodes = Long.parseLong(lines[1].split(" ")[4]);
+    assertTrue(nodes > 0);
+    assertTrue(nodes < 10);
+  }
+
   @Test
   @Ignore
   public void testAggregates()  throws IOException {
@@ -145,4 +259,236 @@ public class SQLTest {
     assertEquals(RowSetFlag.End.ordinal(), in.read());
 
   }
+
+  private static void writeString(OutputStream out, String s)
+    throws IOException
+  {
+    byte[] bytes = s.getBytes("UTF-8");
+    out.write((bytes.length >>> 24) & 0xFF);
+    out.write((bytes.length >>> 16) & 0xFF);
+    out.write((bytes.length >>>  8) & 0xFF);
+    out.write((bytes.length       ) & 0xFF);
+    out.write(bytes);
+  }
+
+  private static void execute(OutputStream out, String command)
+    throws IOException
+  {
+    out.write(Request.Execute.ordinal());
+    writeString(out, command);
+    out.flush();
+  }
+
+  @Test(timeout = 10000)
+  public void testStalledSubscriber() throws Exception {
+    final SQLServer server = new SQLServer("test");
+    server.setPublishTimeout(100);
+    Connection connection = server.makeConnection();
+
+    assertEquals(Response.Success.ordinal(), connection.execute("create database test").read());
+
+    assertEquals(Response.NewDatabase.ordinal(), connection.execute("use database test").read());
+
+    assertEquals(Response.Success.ordinal(), connection.execute
+     ("create table test"
+      + " ( number int32, name string, primary key ( number ) )").read());
+
+    final PipedInputStream requests = new PipedInputStream(1024);
+    OutputStream out = new PipedOutputStream(requests);
+    final PipedOutputStream responses = new PipedOutputStream();
+    InputStream in = new PipedInputStream(responses, 1024);
+
+    Thread thread = new Thread() {
+        public void run() {
+          try {
+            server.accept(requests, responses);
+          } catch (IOException e) {
+            // ignore
+          }
+        }
+      };
+    thread.start();
+
+    execute(out, "use database test");
+    assertEquals(Response.NewDatabase.ordinal(), in.read());
+    assertEquals("test", readString(in));
+    readString(in);
+
+    execute(out, "subscribe select name from test");
+    assertEquals(Response.Subscribed.ordinal(), in.read());
+    assertEquals(1, SQLServer.readInteger(in));
+    assertEquals(RowSetFlag.End.ordinal(), in.read());
+
+    // stop reading while far more updates are published than fit in
+    // the pipe; commits must not wait for the subscriber
+    for (int i = 0; i < 200; ++i) {
+      assertEquals(Response.Success.ordinal(), connection.execute
+       ("insert into test values ( " + i + ", 'a rather long name, so"
+        + " that the updates soon fill the pipe' )").read());
+    }
+
+    // give the blocked publisher time to give up before we start
+    // reading again, or it may simply finish its write
+    Thread.sleep(1000);
+
+    // once the publisher times out, it drops the subscriber's
+    // connection, so reading what was written eventually ends
+    while (in.read() != -1) { }
+
+    out.close();
+    thread.join();
+  }
+
+  @Test(timeout = 10000)
+  public void testStalledRequest() throws Exception {
+    final SQLServer server = new SQLServer("test");
+    Connection connection = server.makeConnection();
+
+    assertEquals(Response.Success.ordinal(), connection.execute("create database test").read());
+
+    assertEquals(Response.NewDatabase.ordinal(), connection.execute("use database test").read());
+
+    assertEquals(Response.Success.ordinal(), connection.execute
+     ("create table test"
+      + " ( number int32, name string, primary key ( number ) )").read());
+
+    final PipedInputStream requests = new PipedInputStream(1024);
+    OutputStream out = new PipedOutputStream(requests);
+    final PipedOutputStream responses = new PipedOutputStream();
+    InputStream in = new PipedInputStream(responses, 64 * 1024);
+
+    Thread thread = new Thread() {
+        public void run() {
+          try {
+            server.accept(requests, responses);
+          } catch (IOException e) {
+            // ignore
+          }
+        }
+      };
+    thread.start();
+
+    execute(out, "use database test");
+    assertEquals(Response.NewDatabase.ordinal(), in.read());
+    assertEquals("test", readString(in));
+    readString(in);
+
+    execute(out, "subscribe select name from test");
+    assertEquals(Response.Subscribed.ordinal(), in.read());
+    assertEquals(1, SQLServer.readInteger(in));
+    assertEquals(RowSetFlag.End.ordinal(), in.read());
+
+    // start a request, but stall before sending its statement
+    out.write(Request.Execute.ordinal());
+    out.flush();
+
+    assertEquals(Response.Success.ordinal(), connection.execute
+     ("insert into test values ( 42, 'forty-two' )").read());
+
+    // the subscriber still gets the update
+    assertEquals(Response.SubscriptionRowSet.ordinal(), in.read());
+    assertEquals(1, SQLServer.readInteger(in));
+    assertEquals(RowSetFlag.InsertedRow.ordinal(), in.read());
+    assertEquals(RowSetFlag.Item.ordinal(), in.read());
+    assertEquals("forty-two", readString(in));
+    assertEquals(RowSetFlag.End.ordinal(), in.read());
+
+    writeString(out, "unsubscribe 1");
+    out.flush();
+    assertEquals(Response.Success.ordinal(), in.read());
+
+    out.close();
+    thread.join();
+  }
+
+  @Test(timeout = 10000)
+  public void testSubscribe() throws Exception {
+    final SQLServer server = new SQLServer("test");
+    Connection connection = server.makeConnection();
+
+    assertEquals(Response.Success.ordinal(), connection.execute("create database test").read());
+
+    assertEquals(Response.NewDatabase.ordinal(), connection.execute("use database test").read());
+
+    assertEquals(Response.Success.ordinal(), connection.execute
+     ("create table test"
+      + " ( number int32, name string, primary key ( number ) )").read());
+
+    assertEquals(Response.Success.ordinal(), connection.execute
+     ("insert into test values ( 42, 'forty-two' )").read());
+
+    // subscriptions need a persistent connection
+    assertEquals(Response.Error.ordinal(), connection.execute
+     ("subscribe select name from test").read());
+
+    final PipedInputStream requests = new PipedInputStream(64 * 1024);
+    OutputStream out = new PipedOutputStream(requests);
+    final PipedOutputStream responses = new PipedOutputStream();
+    InputStream in = new PipedInputStream(responses, 64 * 1024);
+
+    Thread thread = new Thread() {
+        public void run() {
+          try {
+            server.accept(requests, responses);
+          } catch (IOException e) {
+            // ignore
+          }
+        }
+      };
+    thread.start();
+
+    execute(out, "use database test");
+    assertEquals(Response.NewDatabase.ordinal(), in.read());
+    assertEquals("test", readString(in));
+    readString(in);
+
+    execute(out, "subscribe select name from test");
+    assertEquals(Response.Subscribed.ordinal(), in.read());
+    assertEquals(1, SQLServer.readInteger(in));
+    assertEquals(RowSetFlag.InsertedRow.ordinal(), in.read());
+    assertEquals(RowSetFlag.Item.ordinal(), in.read());
+    assertEquals("forty-two", readString(in));
+    assertEquals(RowSetFlag.End.ordinal(), in.read());
+
+    assertEquals(Response.Success.ordinal(), connection.execute
+     ("insert into test values ( 28, 'twenty-eight' )").read());
+
+    assertEquals(Response.SubscriptionRowSet.ordinal(), in.read());
+    assertEquals(1, SQLServer.readInteger(in));
+    assertEquals(RowSetFlag.InsertedRow.ordinal(), in.read());
+    assertEquals(RowSetFlag.Item.ordinal(), in.read());
+    assertEquals("twenty-eight", readString(in));
+    assertEquals(RowSetFlag.End.ordinal(), in.read());
+
+    assertEquals(Response.Success.ordinal(), connection.execute
+     ("delete from test where number = 42").read());
+
+    assertEquals(Response.SubscriptionRowSet.ordinal(), in.read());
+    assertEquals(1, SQLServer.readInteger(in));
+    assertEquals(RowSetFlag.DeletedRow.ordinal(), in.read());
+    assertEquals(RowSetFlag.Item.ordinal(), in.read());
+    assertEquals("forty-two", readString(in));
+    assertEquals(RowSetFlag.End.ordinal(), in.read());
+
+    execute(out, "unsubscribe 1");
+    assertEquals(Response.Success.ordinal(), in.read());
+    readString(in);
+
+    execute(out, "unsubscribe 1");
+    assertEquals(Response.Error.ordinal(), in.read());
+    readString(in);
+
+    assertEquals(Response.Success.ordinal(), connection.execute
+     ("insert into test values ( 7, 'seven' )").read());
+
+    execute(out, "select name from test where number = 7");
+    assertEquals(Response.RowSet.ordinal(), in.read());
+    assertEquals(RowSetFlag.InsertedRow.ordinal(), in.read());
+    assertEquals(RowSetFlag.Item.ordinal(), in.read());
+    assertEquals("seven", readString(in));
+    assertEquals(RowSetFlag.End.ordinal(), in.read());
+
+    out.close();
+    thread.join();
+  }
 }
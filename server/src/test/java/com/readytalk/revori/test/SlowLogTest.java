@@ -0,0 +1,176 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.test;
+
+import static com.readytalk.revori.ExpressionFactory.constant;
+import static com.readytalk.revori.ExpressionFactory.equal;
+import static com.readytalk.revori.ExpressionFactory.reference;
+import static com.readytalk.revori.util.Util.cols;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.readytalk.revori.Column;
+import com.readytalk.revori.ConflictResolvers;
+import com.readytalk.revori.Expression;
+import com.readytalk.revori.ForeignKeyResolvers;
+import com.readytalk.revori.QueryResult;
+import com.readytalk.revori.QueryTemplate;
+import com.readytalk.revori.Revision;
+import com.readytalk.revori.RevisionBuilder;
+import com.readytalk.revori.Revisions;
+import com.readytalk.revori.Table;
+import com.readytalk.revori.TableReference;
+import com.readytalk.revori.server.SQLServer;
+import com.readytalk.revori.server.SQLServer.Connection;
+import com.readytalk.revori.server.SQLServer.Response;
+import com.readytalk.revori.trace.SlowLog;
+
+public class SlowLogTest {
+  private static final Column<Integer> key
+    = new Column<Integer>(Integer.class, "key");
+  private static final Column<Integer> value
+    = new Column<Integer>(Integer.class, "value");
+  private static final Table numbers = new Table(cols(key), "numbers");
+
+  private static class MySlowLog extends SlowLog {
+    public final List<String> records
+      = Collections.synchronizedList(new ArrayList<String>());
+
+    public MySlowLog(long queryMillis,
+                     long commitMillis,
+                     long mergeMillis,
+                     long requestMillis,
+                     int maxRecordsPerMinute)
+    {
+      super(queryMillis, commitMillis, mergeMillis, requestMillis,
+            maxRecordsPerMinute);
+    }
+
+    protected void write(String record) {
+      records.add(record);
+    }
+  }
+
+  @After
+  public void uninstall() {
+    SlowLog.install(null);
+  }
+
+  @Test
+  public void testCommitAndMerge() {
+    RevisionBuilder builder = Revisions.Empty.builder();
+    builder.table(numbers).row(1).update(value, 1);
+    Revision base = builder.commit();
+
+    // thresholds of zero log every commit and merge
+    MySlowLog log = new MySlowLog(-1, 0, 0, -1, 100);
+    SlowLog.install(log);
+
+    builder = base.builder();
+    builder.table(numbers).row(1).update(value, 10);
+    Revision left = builder.commit();
+
+    builder = base.builder();
+    builder.table(numbers).row(2).update(value, 20);
+    Revision right = builder.commit();
+
+    base.merge(left, right, ConflictResolvers.Restrict,
+               ForeignKeyResolvers.Delete);
+
+    assertEquals(3, log.records.size());
+    assertTrue(log.records.get(0).startsWith("slow commit millis="));
+    assertTrue(log.records.get(0).endsWith
+               (" writes=2 indexes=0 views=0"));
+    assertTrue(log.records.get(2).startsWith("slow merge millis="));
+    assertTrue(log.records.get(2).endsWith
+               (" tables=1 indexes=0 views=0 conflicts=0"));
+  }
+
+  @Test
+  public void testQueryAndRateLimit() {
+    RevisionBuilder builder = Revisions.Empty.builder();
+    for (int i = 0; i < 10; ++i) {
+      builder.table(numbers).row(i).update(value, i * 10);
+    }
+    Revision revision = builder.commit();
+
+    MySlowLog log = new MySlowLog(0, -1, -1, -1, 2);
+    SlowLog.install(log);
+
+    TableReference reference = new TableReference(numbers);
+    QueryTemplate query = new QueryTemplate
+      (Lists.newArrayList((Expression) reference(reference, key)),
+       reference,
+       equal(reference(reference, value), constant(30)));
+
+    for (int i = 0; i < 3; ++i) {
+      QueryResult result = Revisions.Empty.diff(revision, query);
+      assertEquals(QueryResult.Type.Inserted, result.nextRow());
+      assertEquals(3, result.nextItem());
+      assertEquals(QueryResult.Type.End, result.nextRow());
+    }
+
+    // the third query exceeds the rate limit
+    assertEquals(2, log.records.size());
+    String record = log.records.get(0);
+    assertTrue(record.startsWith("slow query millis="));
+    // without an index on value, every row is examined
+    assertTrue(record.endsWith
+               (" rowsExamined=10 rowsReturned=1"
+                + " template=\"select key from numbers where value = 30\""
+                + " plan=\"scan numbers using primary key (key)\""));
+  }
+
+  @Test
+  public void testSQLRequest() throws IOException {
+    MySlowLog log = new MySlowLog(0, -1, -1, 0, 100);
+    SlowLog.install(log);
+
+    Connection connection = new SQLServer("test").makeConnection();
+
+    assertEquals(Response.Success.ordinal(), connection.execute("create database test").read());
+
+    assertEquals(Response.NewDatabase.ordinal(), connection.execute("use database test").read());
+
+    assertEquals(Response.Success.ordinal(), connection.execute
+     ("create table users ( id int32, name string, primary key ( id ) )")
+     .read());
+
+    log.records.clear();
+
+    assertEquals(Response.RowSet.ordinal(), connection.execute
+                 ("select name from users where id = 1").read());
+
+    // the request is logged after the queries it made, which identify
+    // it by its statement
+    String last = log.records.get(log.records.size() - 1);
+    assertTrue(last.startsWith("slow request millis="));
+    assertTrue(last.endsWith
+               (" error=false statement=\"select name from users where id = 1\""));
+
+    boolean found = false;
+    for (String record: log.records) {
+      if (record.startsWith("slow query ")
+          && record.contains
+          (" statement=\"select name from users where id = 1\""))
+      {
+        found = true;
+      }
+    }
+    assertTrue(found);
+  }
+}
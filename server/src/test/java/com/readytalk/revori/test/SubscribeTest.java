@@ -8,8 +8,15 @@
 package com.readytalk.revori.test;
 
 import static com.readytalk.revori.DuplicateKeyResolution.Throw;
+import static com.readytalk.revori.ExpressionFactory.aggregate;
+import static com.readytalk.revori.ExpressionFactory.and;
+import static com.readytalk.revori.ExpressionFactory.equal;
+import static com.readytalk.revori.ExpressionFactory.greaterThanOrEqual;
+import static com.readytalk.revori.ExpressionFactory.lessThan;
+import static com.readytalk.revori.ExpressionFactory.parameter;
 import static com.readytalk.revori.ExpressionFactory.reference;
 import static com.readytalk.revori.util.Util.cols;
+import static com.readytalk.revori.util.Util.set;
 import com.google.common.collect.Lists;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
@@ -24,6 +31,7 @@ import com.readytalk.revori.Column;
 import com.readytalk.revori.ConflictResolvers;
 import com.readytalk.revori.Constant;
 import com.readytalk.revori.Expression;
+import com.readytalk.revori.Foldables;
 import com.readytalk.revori.ForeignKeyResolvers;
 import com.readytalk.revori.QueryTemplate;
 import com.readytalk.revori.Revision;
@@ -31,8 +39,10 @@ import com.readytalk.revori.RevisionBuilder;
 import com.readytalk.revori.Table;
 import com.readytalk.revori.TableReference;
 import com.readytalk.revori.server.simple.SimpleRevisionServer;
+import com.readytalk.revori.subscribe.BatchListener;
 import com.readytalk.revori.subscribe.DiffMachine;
 import com.readytalk.revori.subscribe.DiffServer;
+import com.readytalk.revori.subscribe.RowBatch;
 import com.readytalk.revori.subscribe.RowListener;
 import com.readytalk.revori.subscribe.Subscription;
 
@@ -85,6 +95,14 @@ public class SubscribeTest {
     }
   }
 
+  private static class MyBatchListener implements BatchListener {
+    Queue<RowBatch> batches = new LinkedList<RowBatch>();
+
+    public void handleBatch(RowBatch batch) {
+      batches.add(batch);
+    }
+  }
+
   @Test
   public void testSimpleCase() {
     SimpleRevisionServer server = new SimpleRevisionServer(ConflictResolvers.Restrict, ForeignKeyResolvers.Delete);
@@ -139,4 +157,424 @@ public class SubscribeTest {
     listener.expectNothing();
 
   }
-}
\ No newline at end of file
+
+  @Test
+  public void testSharedSubscriptions() {
+    SimpleRevisionServer server = new SimpleRevisionServer(ConflictResolvers.Restrict, ForeignKeyResolvers.Delete);
+    DiffMachine machine = new DiffMachine(new DiffServer(server));
+
+    Column<Integer> id = new Column<Integer>(Integer.class, "id");
+    Column<Integer> team = new Column<Integer>(Integer.class, "team");
+    Column<String> name = new Column<String>(String.class, "name");
+    Table users = new Table(cols(id), "users");
+
+    Revision base = server.head();
+    RevisionBuilder builder = base.builder();
+    builder.table(users).row(1).update(team, 1).update(name, "one");
+    builder.table(users).row(2).update(team, 2).update(name, "two");
+    server.merge(base, builder.commit());
+
+    TableReference usersReference = new TableReference(users);
+
+    QueryTemplate query = new QueryTemplate
+      (Lists.newArrayList((Expression) reference(usersReference, id), reference(usersReference, name)),
+       usersReference,
+       equal(reference(usersReference, team), parameter()));
+
+    MyRowListener a = new MyRowListener();
+    MyRowListener b = new MyRowListener();
+    MyRowListener c = new MyRowListener();
+    MyRowListener d = new MyRowListener();
+
+    machine.subscribe(a, query, 1);
+    machine.subscribe(b, query, 1);
+    Subscription cs = machine.subscribe(c, query, 2);
+    machine.subscribe(d, query, 3);
+
+    a.expect(Kind.Update, 1, "one");
+    a.expectNothing();
+    b.expect(Kind.Update, 1, "one");
+    b.expectNothing();
+    c.expect(Kind.Update, 2, "two");
+    c.expectNothing();
+    d.expectNothing();
+
+    // an update within a team
+    base = server.head();
+    builder = base.builder();
+    builder.table(users).row(1).update(team, 1).update(name, "uno");
+    server.merge(base, builder.commit());
+
+    a.expect(Kind.Update, 1, "uno");
+    a.expectNothing();
+    b.expect(Kind.Update, 1, "uno");
+    b.expectNothing();
+    c.expectNothing();
+    d.expectNothing();
+
+    // a move from one team to another
+    base = server.head();
+    builder = base.builder();
+    builder.table(users).row(1).update(team, 2).update(name, "uno");
+    server.merge(base, builder.commit());
+
+    a.expect(Kind.Delete, 1, "uno");
+    a.expectNothing();
+    b.expect(Kind.Delete, 1, "uno");
+    b.expectNothing();
+    c.expect(Kind.Update, 1, "uno");
+    c.expectNothing();
+    d.expectNothing();
+
+    // an insert into one team and a delete from another
+    base = server.head();
+    builder = base.builder();
+    builder.table(users).row(3).update(team, 3).update(name, "three");
+    builder.table(users).delete(2);
+    server.merge(base, builder.commit());
+
+    a.expectNothing();
+    b.expectNothing();
+    c.expect(Kind.Delete, 2, "two");
+    c.expectNothing();
+    d.expect(Kind.Update, 3, "three");
+    d.expectNothing();
+
+    cs.cancel();
+
+    base = server.head();
+    builder = base.builder();
+    builder.table(users).delete(1);
+    server.merge(base, builder.commit());
+
+    a.expectNothing();
+    b.expectNothing();
+    c.expectNothing();
+    d.expectNothing();
+  }
+
+  @Test
+  public void testRangeSubscriptions() {
+    SimpleRevisionServer server = new SimpleRevisionServer(ConflictResolvers.Restrict, ForeignKeyResolvers.Delete);
+    DiffMachine machine = new DiffMachine(new DiffServer(server));
+
+    Column<Integer> id = new Column<Integer>(Integer.class, "id");
+    Column<Integer> time = new Column<Integer>(Integer.class, "time");
+    Column<String> name = new Column<String>(String.class, "name");
+    Table events = new Table(cols(id), "events");
+
+    Revision base = server.head();
+    RevisionBuilder builder = base.builder();
+    builder.table(events).row(1).update(time, 3).update(name, "x");
+    builder.table(events).row(2).update(time, 7).update(name, "y");
+    builder.table(events).row(3).update(time, 12).update(name, "z");
+    server.merge(base, builder.commit());
+
+    TableReference eventsReference = new TableReference(events);
+
+    QueryTemplate query = new QueryTemplate
+      (Lists.newArrayList((Expression) reference(eventsReference, id), reference(eventsReference, name)),
+       eventsReference,
+       and(greaterThanOrEqual(reference(eventsReference, time), parameter()),
+           lessThan(reference(eventsReference, time), parameter())));
+
+    MyRowListener a = new MyRowListener();
+    MyRowListener b = new MyRowListener();
+    MyRowListener c = new MyRowListener();
+    MyRowListener d = new MyRowListener();
+
+    Subscription as = machine.subscribe(a, query, 0, 10);
+    machine.subscribe(b, query, 5, 15);
+    Subscription cs = machine.subscribe(c, query, 10, 20);
+    Subscription ds = machine.subscribe(d, query, 0, 10);
+
+    a.expect(Kind.Update, 1, "x");
+    a.expect(Kind.Update, 2, "y");
+    a.expectNothing();
+    b.expect(Kind.Update, 2, "y");
+    b.expect(Kind.Update, 3, "z");
+    b.expectNothing();
+    c.expect(Kind.Update, 3, "z");
+    c.expectNothing();
+    d.expect(Kind.Update, 1, "x");
+    d.expect(Kind.Update, 2, "y");
+    d.expectNothing();
+
+    // a move from one set of overlapping windows to another
+    base = server.head();
+    builder = base.builder();
+    builder.table(events).row(2).update(time, 11);
+    server.merge(base, builder.commit());
+
+    a.expect(Kind.Delete, 2, "y");
+    a.expectNothing();
+    b.expect(Kind.Update, 2, "y");
+    b.expectNothing();
+    c.expect(Kind.Update, 2, "y");
+    c.expectNothing();
+    d.expect(Kind.Delete, 2, "y");
+    d.expectNothing();
+
+    // an insert on the boundary between windows and a delete
+    base = server.head();
+    builder = base.builder();
+    builder.table(events).row(4).update(time, 10).update(name, "w");
+    builder.table(events).delete(1);
+    server.merge(base, builder.commit());
+
+    a.expect(Kind.Delete, 1, "x");
+    a.expectNothing();
+    b.expect(Kind.Update, 4, "w");
+    b.expectNothing();
+    c.expect(Kind.Update, 4, "w");
+    c.expectNothing();
+    d.expect(Kind.Delete, 1, "x");
+    d.expectNothing();
+
+    ds.cancel();
+
+    // an update which doesn't change which windows a row is in
+    base = server.head();
+    builder = base.builder();
+    builder.table(events).row(3).update(name, "zed");
+    builder.table(events).row(1).update(time, 1).update(name, "v");
+    server.merge(base, builder.commit());
+
+    a.expect(Kind.Update, 1, "v");
+    a.expectNothing();
+    b.expect(Kind.Update, 3, "zed");
+    b.expectNothing();
+    c.expect(Kind.Update, 3, "zed");
+    c.expectNothing();
+    d.expectNothing();
+
+    // enough cancellations that the remaining window is indexed anew
+    as.cancel();
+    cs.cancel();
+
+    base = server.head();
+    builder = base.builder();
+    builder.table(events).row(1).update(name, "u");
+    builder.table(events).row(4).update(name, "t");
+    server.merge(base, builder.commit());
+
+    a.expectNothing();
+    b.expect(Kind.Update, 4, "t");
+    b.expectNothing();
+    c.expectNothing();
+    d.expectNothing();
+  }
+
+  @Test
+  public void testBatchedSubscriptions() {
+    SimpleRevisionServer server = new SimpleRevisionServer(ConflictResolvers.Restrict, ForeignKeyResolvers.Delete);
+    DiffMachine machine = new DiffMachine(new DiffServer(server));
+
+    Column<Integer> id = new Column<Integer>(Integer.class, "id");
+    Column<Integer> team = new Column<Integer>(Integer.class, "team");
+    Column<String> name = new Column<String>(String.class, "name");
+    Table users = new Table(cols(id), "users");
+
+    Revision base = server.head();
+    RevisionBuilder builder = base.builder();
+    builder.table(users).row(1).update(team, 1).update(name, "one");
+    builder.table(users).row(2).update(team, 1).update(name, "two");
+    builder.table(users).row(3).update(team, 2).update(name, "three");
+    server.merge(base, builder.commit());
+
+    TableReference usersReference = new TableReference(users);
+
+    QueryTemplate query = new QueryTemplate
+      (Lists.newArrayList((Expression) reference(usersReference, id), reference(usersReference, name)),
+       usersReference,
+       equal(reference(usersReference, team), parameter()));
+
+    MyBatchListener a = new MyBatchListener();
+    MyBatchListener b = new MyBatchListener();
+    MyBatchListener c = new MyBatchListener();
+
+    machine.subscribe(a, query, 1);
+    machine.subscribe(b, query, 1);
+    Subscription cs = machine.subscribe(c, query, 2);
+
+    RowBatch batch = a.batches.poll();
+    assertEquals(2, batch.updates().size());
+    assertEquals(0, batch.deletes().size());
+    assertEquals(Arrays.asList(1, 2), Arrays.asList(batch.updateColumns()[0]));
+    assertEquals(Arrays.asList("one", "two"), Arrays.asList(batch.updateColumns()[1]));
+    assertNull(a.batches.poll());
+    assertEquals(2, b.batches.poll().size());
+    assertNull(b.batches.poll());
+    assertEquals(1, c.batches.poll().size());
+    assertNull(c.batches.poll());
+
+    // several changes in one revision arrive as one batch per
+    // subscription, including a row moving from one to another
+    base = server.head();
+    builder = base.builder();
+    builder.table(users).row(1).update(name, "uno");
+    builder.table(users).row(2).update(team, 2);
+    builder.table(users).row(4).update(team, 1).update(name, "four");
+    builder.table(users).delete(3);
+    server.merge(base, builder.commit());
+
+    batch = a.batches.poll();
+    assertEquals(2, batch.updates().size());
+    assertEquals(Arrays.asList(1, 4), Arrays.asList(batch.updateColumns()[0]));
+    assertEquals(1, batch.deletes().size());
+    assertEquals(Arrays.asList((Object) 2, "two"), Arrays.asList(batch.deletes().get(0)));
+    assertNull(a.batches.poll());
+    assertEquals(3, b.batches.poll().size());
+    assertNull(b.batches.poll());
+
+    batch = c.batches.poll();
+    assertEquals(Arrays.asList((Object) 2, "two"), Arrays.asList(batch.updates().get(0)));
+    assertEquals(Arrays.asList((Object) 3, "three"), Arrays.asList(batch.deletes().get(0)));
+    assertNull(c.batches.poll());
+
+    cs.cancel();
+
+    // subscriptions the revision doesn't affect get no batch at all
+    base = server.head();
+    builder = base.builder();
+    builder.table(users).row(2).update(name, "dos");
+    server.merge(base, builder.commit());
+
+    assertNull(a.batches.poll());
+    assertNull(b.batches.poll());
+    assertNull(c.batches.poll());
+  }
+
+  @Test
+  public void testUnreferencedColumnChanges() {
+    SimpleRevisionServer server = new SimpleRevisionServer(ConflictResolvers.Restrict, ForeignKeyResolvers.Delete);
+    DiffMachine machine = new DiffMachine(new DiffServer(server));
+
+    Column<Integer> id = new Column<Integer>(Integer.class, "id");
+    Column<String> name = new Column<String>(String.class, "name");
+    Column<Long> lastSeen = new Column<Long>(Long.class, "lastSeen");
+    Table users = new Table(cols(id), "users");
+
+    Revision base = server.head();
+    RevisionBuilder builder = base.builder();
+    builder.table(users).row(1).update(name, "one").update(lastSeen, 1L);
+    server.merge(base, builder.commit());
+
+    TableReference usersReference = new TableReference(users);
+
+    MyRowListener names = new MyRowListener();
+    machine.subscribe(names, new QueryTemplate
+      (Lists.newArrayList((Expression) reference(usersReference, id), reference(usersReference, name)),
+       usersReference,
+       new Constant(true)));
+
+    MyRowListener seen = new MyRowListener();
+    machine.subscribe(seen, new QueryTemplate
+      (Lists.newArrayList((Expression) reference(usersReference, id), reference(usersReference, lastSeen)),
+       usersReference,
+       new Constant(true)));
+
+    names.expect(Kind.Update, 1, "one");
+    names.expectNothing();
+    seen.expect(Kind.Update, 1, 1L);
+    seen.expectNothing();
+
+    // a change to a column only one query refers to
+    base = server.head();
+    builder = base.builder();
+    builder.table(users).row(1).update(lastSeen, 2L);
+    server.merge(base, builder.commit());
+
+    names.expectNothing();
+    seen.expect(Kind.Update, 1, 2L);
+    seen.expectNothing();
+
+    // an insert is seen by both, even though the existing row's
+    // unreferenced column also changed
+    base = server.head();
+    builder = base.builder();
+    builder.table(users).row(1).update(lastSeen, 3L);
+    builder.table(users).row(2).update(name, "two").update(lastSeen, 3L);
+    server.merge(base, builder.commit());
+
+    names.expect(Kind.Update, 2, "two");
+    names.expectNothing();
+    seen.expect(Kind.Update, 1, 3L);
+    seen.expect(Kind.Update, 2, 3L);
+    seen.expectNothing();
+
+    base = server.head();
+    builder = base.builder();
+    builder.table(users).row(2).update(name, "dos");
+    server.merge(base, builder.commit());
+
+    names.expect(Kind.Update, 2, "dos");
+    names.expectNothing();
+    seen.expectNothing();
+  }
+
+  @Test
+  public void testViewBackedAggregates() {
+    SimpleRevisionServer server = new SimpleRevisionServer(ConflictResolvers.Restrict, ForeignKeyResolvers.Delete);
+    DiffMachine backed = new DiffMachine(new DiffServer(server), true, true);
+
+    Column<Integer> number = new Column<Integer>(Integer.class, "number");
+    Column<String> name = new Column<String>(String.class, "name");
+    Table things = new Table(cols(number), "things");
+
+    Revision base = server.head();
+    RevisionBuilder builder = base.builder();
+    builder.table(things).row(1).update(name, "tree");
+    builder.table(things).row(2).update(name, "truck");
+    builder.table(things).row(3).update(name, "tree");
+    server.merge(base, builder.commit());
+
+    TableReference thingsReference = new TableReference(things);
+
+    QueryTemplate query = new QueryTemplate
+      (Lists.newArrayList((Expression) reference(thingsReference, name),
+                          aggregate(Integer.class, Foldables.Sum,
+                                    reference(thingsReference, number))),
+       thingsReference, new Constant(true),
+       set((Expression) reference(thingsReference, name)));
+
+    MyRowListener a = new MyRowListener();
+    Subscription as = backed.subscribe(a, query);
+
+    // a second subscription to the same query shares the view
+    MyRowListener b = new MyRowListener();
+    backed.subscribe(b, query);
+
+    for (MyRowListener listener: Arrays.asList(a, b)) {
+      listener.expect(Kind.Update, "tree", 4);
+      listener.expect(Kind.Update, "truck", 2);
+      listener.expectNothing();
+    }
+
+    base = server.head();
+    builder = base.builder();
+    builder.table(things).row(4).update(name, "tree");
+    builder.table(things).row(5).update(name, "planet");
+    builder.table(things).delete(2);
+    server.merge(base, builder.commit());
+
+    // the view reports the new value of each changed group
+    for (MyRowListener listener: Arrays.asList(a, b)) {
+      listener.expect(Kind.Update, "planet", 5);
+      listener.expect(Kind.Update, "tree", 8);
+      listener.expect(Kind.Delete, "truck", 2);
+      listener.expectNothing();
+    }
+
+    as.cancel();
+
+    base = server.head();
+    builder = base.builder();
+    builder.table(things).delete(5);
+    server.merge(base, builder.commit());
+
+    a.expectNothing();
+    b.expect(Kind.Delete, "planet", 5);
+    b.expectNothing();
+  }
+}
@@ -0,0 +1,151 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.test;
+
+import static com.readytalk.revori.ExpressionFactory.constant;
+import static com.readytalk.revori.ExpressionFactory.equal;
+import static com.readytalk.revori.ExpressionFactory.reference;
+import static com.readytalk.revori.util.Util.cols;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.readytalk.revori.Column;
+import com.readytalk.revori.ConflictResolver;
+import com.readytalk.revori.Expression;
+import com.readytalk.revori.ForeignKeyResolvers;
+import com.readytalk.revori.Index;
+import com.readytalk.revori.QueryResult;
+import com.readytalk.revori.QueryTemplate;
+import com.readytalk.revori.Revision;
+import com.readytalk.revori.RevisionBuilder;
+import com.readytalk.revori.Revisions;
+import com.readytalk.revori.Table;
+import com.readytalk.revori.TableReference;
+import com.readytalk.revori.trace.Recorder;
+import com.readytalk.revori.trace.Tracing;
+
+public class TracingTest {
+  private static final Column<Integer> key
+    = new Column<Integer>(Integer.class, "key");
+  private static final Column<Integer> value
+    = new Column<Integer>(Integer.class, "value");
+  private static final Table numbers = new Table(cols(key), "numbers");
+
+  private static class MyRecorder implements Recorder {
+    public final List<String> events = new ArrayList<String>();
+
+    public Object begin(Kind kind) {
+      return kind;
+    }
+
+    public void endMerge(Object handle, int tables, int indexes, int views,
+                         int conflicts)
+    {
+      events.add(handle + " " + tables + " " + indexes + " " + views + " "
+                 + conflicts);
+    }
+
+    public void endCommit(Object handle, int writes, int indexes, int views) {
+      events.add(handle + " " + writes + " " + indexes + " " + views);
+    }
+
+    public void endPlan(Object handle, Table table, Index index) {
+      events.add(handle + " " + table.id + " " + index.columns);
+    }
+
+    public void endScan(Object handle, Table table, Index index,
+                        long rowsExamined, long rowsReturned)
+    {
+      events.add(handle + " " + table.id + " " + rowsExamined + " "
+                 + rowsReturned);
+    }
+
+    public void endMessage(Object handle, String peer, Object message) {
+      events.add(handle + " " + peer);
+    }
+  }
+
+  @After
+  public void uninstall() {
+    Tracing.install(null);
+  }
+
+  @Test
+  public void testCommitAndMerge() {
+    RevisionBuilder builder = Revisions.Empty.builder();
+    builder.table(numbers).row(1).update(value, 1);
+    builder.table(numbers).row(2).update(value, 2);
+    Revision base = builder.commit();
+
+    builder = base.builder();
+    builder.table(numbers).row(1).update(value, 10);
+    Revision left = builder.commit();
+
+    MyRecorder recorder = new MyRecorder();
+    Tracing.install(recorder);
+
+    builder = base.builder();
+    builder.table(numbers).row(1).update(value, 20);
+    builder.table(numbers).row(2).update(value, 20);
+    builder.table(numbers).delete(3);
+    Revision right = builder.commit();
+
+    base.merge(left, right, new ConflictResolver() {
+        public Object resolveConflict(Table table,
+                                      Column column,
+                                      Object[] primaryKeyValues,
+                                      Object baseValue,
+                                      Object leftValue,
+                                      Object rightValue)
+        {
+          return leftValue;
+        }
+      }, ForeignKeyResolvers.Delete);
+
+    // each RowBuilder writes its row's key as well as the updated
+    // column, and the merge conflicts on row 1
+    assertEquals(Lists.newArrayList("Commit 5 0 0", "Merge 1 0 0 1"),
+                 recorder.events);
+  }
+
+  @Test
+  public void testQuery() {
+    RevisionBuilder builder = Revisions.Empty.builder();
+    for (int i = 0; i < 10; ++i) {
+      builder.table(numbers).row(i).update(value, i * 10);
+    }
+    Index valueIndex = new Index(numbers, cols(value));
+    builder.add(valueIndex);
+    Revision revision = builder.commit();
+
+    MyRecorder recorder = new MyRecorder();
+    Tracing.install(recorder);
+
+    TableReference reference = new TableReference(numbers);
+    QueryTemplate query = new QueryTemplate
+      (Lists.newArrayList((Expression) reference(reference, key)),
+       reference,
+       equal(reference(reference, value), constant(30)));
+
+    QueryResult result = Revisions.Empty.diff(revision, query);
+    assertEquals(QueryResult.Type.Inserted, result.nextRow());
+    assertEquals(3, result.nextItem());
+    assertEquals(QueryResult.Type.End, result.nextRow());
+
+    // the index on value means only the matching row is examined
+    assertEquals(Lists.newArrayList("Plan numbers " + valueIndex.columns,
+                                    "Scan numbers 1 1"),
+                 recorder.events);
+  }
+}